@@ -53,6 +53,35 @@ public class PigConfiguration {
      */
     public static final String TIME_UDFS_PROP = "pig.udf.profile";
 
+    /**
+     * Controls whether the records and execution time of each physical operator, UDFs
+     * included, should be tracked. Like {@link #TIME_UDFS_PROP} this feature uses counters,
+     * one group of counters per operator.
+     */
+    public static final String OPERATOR_PROFILE_PROP = "pig.operator.profile";
+
+    /**
+     * Turns on the {@link org.apache.pig.impl.util.MemoryBroker}, which spills the largest
+     * Spillable objects as soon as their reservations exceed its pool, instead of waiting for
+     * the memory notifications of the JVM. Default is false.
+     */
+    public static final String PROP_MEMORY_BROKER = "pig.memory.broker";
+
+    /**
+     * Controls the fraction of the maximum heap size the
+     * {@link org.apache.pig.impl.util.MemoryBroker} lets Spillable objects reserve.
+     * Default is 0.5.
+     */
+    public static final String PROP_MEMORY_BROKER_POOL = "pig.memory.broker.pool";
+
+    /**
+     * Controls the number of threads the sorted bags use to sort large numbers of tuples.
+     * Default is 1: the tuples are sorted by the thread using the bag, and sorting in parallel
+     * is opt-in. The threads come from a pool of one thread per processor shared by all the
+     * tasks of the JVM, in MapReduce and in Spark mode.
+     */
+    public static final String PROP_SORT_PARALLELISM = "pig.sort.parallelism";
+
     /**
      * This key must be set to true by the user for code generation to be used.
      * In the future, it may be turned on by default (at least in certain cases),
@@ -70,6 +99,31 @@ public class PigConfiguration {
 
     public static final String SCHEMA_TUPLE_SHOULD_ALLOW_FORCE = "pig.schematuple.force";
 
+    /**
+     * Generates the SchemaTuples as Java source compiled with javac, instead of writing their
+     * bytecode directly. Default is false.
+     */
+    public static final String SCHEMA_TUPLE_USE_JAVAC = "pig.schematuple.javac";
+
+    /**
+     * Caches the bytecode of the generated SchemaTuples on the local disk, so that scripts run
+     * again with the same Schemas don't generate it again. Default is true.
+     */
+    public static final String SCHEMA_TUPLE_CLASS_CACHE = "pig.schematuple.cache";
+
+    /**
+     * The directory of the SchemaTuple class cache. Defaults to .pig/schematuple-cache in the
+     * home directory of the user. It is created with owner only permissions; a directory owned
+     * by another user or writable by others is not used.
+     */
+    public static final String SCHEMA_TUPLE_CLASS_CACHE_DIR = "pig.schematuple.cache.dir";
+
+    /**
+     * The maximum number of entries of the SchemaTuple class cache, the oldest ones are deleted
+     * beyond it. Default is 1000.
+     */
+    public static final String SCHEMA_TUPLE_CLASS_CACHE_MAX_ENTRIES = "pig.schematuple.cache.max.entries";
+
     /*
      * Turns off use of combiners in MapReduce jobs produced by Pig.
      */
@@ -93,4 +147,69 @@ public class PigConfiguration {
      * as default in case this is undefined.
      */
     public static final String PIG_DEFAULT_STORE_FUNC = "pig.default.store.func";
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    /////////////////////////       SPARK EXECUTION KEYS    /////////////////////////////
+    /////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * In Spark mode, the class of the SparkParallelismEstimator choosing the number of partitions of
+     * the shuffles that don't set PARALLEL, when default_parallel isn't set either. Default is
+     * InputSizeParallelismEstimator, which uses the size of the inputs of each shuffle.
+     */
+    public static final String SPARK_PARALLELISM_ESTIMATOR = "pig.spark.parallelism.estimator";
+
+    /**
+     * Argument passed to the constructor of the {@link #SPARK_PARALLELISM_ESTIMATOR}.
+     */
+    public static final String SPARK_PARALLELISM_ESTIMATOR_ARG = "pig.spark.parallelism.estimator.arg";
+
+    /**
+     * In Spark mode, at most this many independent stores are run at the same time. The stores
+     * reading the output of other stores wait for them to succeed. Default is 4.
+     */
+    public static final String SPARK_STORE_CONCURRENCY = "pig.spark.store.concurrency";
+
+    /**
+     * The Spark master to run on. Defaults to the SPARK_MASTER environment variable, or "local".
+     */
+    public static final String SPARK_MASTER = "pig.spark.master";
+
+    /**
+     * The Spark installation directory of the cluster. Defaults to the SPARK_HOME environment variable.
+     */
+    public static final String SPARK_HOME = "pig.spark.home";
+
+    /**
+     * Comma separated list of jars sent to the Spark executors besides the jars of the UDFs of the
+     * script. Defaults to the jar of Pig and the jars of the SPARK_JARS environment variable.
+     */
+    public static final String SPARK_JARS = "pig.spark.jars";
+
+    /**
+     * Upper bound on the number of cores taken by the executors on a Mesos cluster. Defaults to the
+     * SPARK_MAX_CPUS environment variable, or 32.
+     */
+    public static final String SPARK_MAX_CPUS = "pig.spark.max.cpus";
+
+    /**
+     * In Spark mode, start the Spark session in the background as soon as the PigServer is created,
+     * and launch the executors with a trivial job, so that scripts don't wait for them. The session
+     * is kept for the following scripts of the JVM in any case. Default is false.
+     */
+    public static final String SPARK_SESSION_WARM = "pig.spark.session.warm";
+
+    /**
+     * In Spark mode, the FOREACH, FILTER and local rearrange operators of a pipeline exchange
+     * batches of tuples instead of one tuple at a time, and FOREACH and FILTER evaluate their
+     * arithmetic, comparison and boolean expressions on whole columns of numbers. The expressions
+     * calling UDFs are still evaluated one tuple at a time. Default is false.
+     */
+    public static final String SPARK_VECTORIZED = "pig.spark.vectorized";
+
+    /**
+     * In Spark mode, a warning is logged at the end of a script when the estimated size of the
+     * relations cached with CACHE goes over this many bytes. Default is 1 GB.
+     */
+    public static final String SPARK_CACHE_WARN_BYTES = "pig.spark.cache.warn.bytes";
 }
@@ -57,6 +57,7 @@ import org.apache.pig.backend.executionengine.ExecJob;
 import org.apache.pig.backend.executionengine.ExecJob.JOB_STATUS;
 import org.apache.pig.backend.hadoop.executionengine.HJob;
 import org.apache.pig.backend.hadoop.executionengine.spark.SparkLauncher;
+import org.apache.pig.backend.hadoop.executionengine.spark.SparkSession;
 import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.Launcher;
 import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.MapReduceLauncher;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhysicalPlan;
@@ -226,6 +227,10 @@ public class PigServer {
         }
 
         addJarsFromProperties();
+
+        if (pigContext.getExecType() == ExecType.SPARK) {
+            SparkSession.warmUp(pigContext);
+        }
     }
 
     private void addJarsFromProperties() throws ExecException {
@@ -42,6 +42,7 @@ import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.RawComparator;
 import org.apache.hadoop.io.WritableComparable;
 import org.apache.hadoop.io.WritableComparator;
 import org.apache.hadoop.mapred.Counters;
@@ -1172,6 +1173,65 @@ public class JobControlCompiler{
         }
     }
 
+    /**
+     * Returns the Pig specific raw comparator used to sort keys of the given
+     * type in an order by, or null if the key type has none.
+     * The comparator reads the sort order from pig.sortOrder in its configuration.
+     * @param keyType the type of the sort key
+     * @return the raw comparator class
+     * @throws JobCreationException if the key type can not be sorted on
+     */
+    public static Class<? extends RawComparator> getSortComparatorClass(byte keyType)
+            throws JobCreationException {
+        switch (keyType) {
+        case DataType.BOOLEAN:
+            return PigBooleanRawComparator.class;
+
+        case DataType.INTEGER:
+            return PigIntRawComparator.class;
+
+        case DataType.LONG:
+            return PigLongRawComparator.class;
+
+        case DataType.FLOAT:
+            return PigFloatRawComparator.class;
+
+        case DataType.DOUBLE:
+            return PigDoubleRawComparator.class;
+
+        case DataType.DATETIME:
+            return PigDateTimeRawComparator.class;
+
+        case DataType.CHARARRAY:
+            return PigTextRawComparator.class;
+
+        case DataType.BYTEARRAY:
+            return PigBytesRawComparator.class;
+
+        case DataType.BIGINTEGER:
+            return PigBigIntegerRawComparator.class;
+
+        case DataType.BIGDECIMAL:
+            return PigBigDecimalRawComparator.class;
+
+        case DataType.MAP:
+            int errCode = 1068;
+            String msg = "Using Map as key not supported.";
+            throw new JobCreationException(msg, errCode, PigException.INPUT);
+
+        case DataType.TUPLE:
+            return PigTupleSortComparator.class;
+
+        case DataType.BAG:
+            errCode = 1068;
+            msg = "Using Bag as key not supported.";
+            throw new JobCreationException(msg, errCode, PigException.INPUT);
+
+        default:
+            return null;
+        }
+    }
+
     private void selectComparator(
             MapReduceOper mro,
             byte keyType,
@@ -1196,63 +1256,9 @@ public class JobControlCompiler{
             }
         }
         if (hasOrderBy) {
-            switch (keyType) {
-            case DataType.BOOLEAN:
-                job.setSortComparatorClass(PigBooleanRawComparator.class);
-                break;
-
-            case DataType.INTEGER:
-                job.setSortComparatorClass(PigIntRawComparator.class);
-                break;
-
-            case DataType.LONG:
-                job.setSortComparatorClass(PigLongRawComparator.class);
-                break;
-
-            case DataType.FLOAT:
-                job.setSortComparatorClass(PigFloatRawComparator.class);
-                break;
-
-            case DataType.DOUBLE:
-                job.setSortComparatorClass(PigDoubleRawComparator.class);
-                break;
-
-            case DataType.DATETIME:
-                job.setSortComparatorClass(PigDateTimeRawComparator.class);
-                break;
-
-            case DataType.CHARARRAY:
-                job.setSortComparatorClass(PigTextRawComparator.class);
-                break;
-
-            case DataType.BYTEARRAY:
-                job.setSortComparatorClass(PigBytesRawComparator.class);
-                break;
-
-            case DataType.BIGINTEGER:
-                job.setSortComparatorClass(PigBigIntegerRawComparator.class);
-                break;
-
-            case DataType.BIGDECIMAL:
-                job.setSortComparatorClass(PigBigDecimalRawComparator.class);
-                break;
-
-            case DataType.MAP:
-                int errCode = 1068;
-                String msg = "Using Map as key not supported.";
-                throw new JobCreationException(msg, errCode, PigException.INPUT);
-
-            case DataType.TUPLE:
-                job.setSortComparatorClass(PigTupleSortComparator.class);
-                break;
-
-            case DataType.BAG:
-                errCode = 1068;
-                msg = "Using Bag as key not supported.";
-                throw new JobCreationException(msg, errCode, PigException.INPUT);
-
-            default:
-                break;
+            Class<? extends RawComparator> comparatorClass = getSortComparatorClass(keyType);
+            if (comparatorClass != null) {
+                job.setSortComparatorClass(comparatorClass);
             }
             return;
         }
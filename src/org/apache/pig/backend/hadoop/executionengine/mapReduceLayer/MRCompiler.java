@@ -2588,7 +2588,7 @@ public class MRCompiler extends PhyPlanVisitor {
         return new Pair<MapReduceOper, Integer>(mro, rp);
     }
 
-    static class LastInputStreamingOptimizer extends MROpPlanVisitor {
+    public static class LastInputStreamingOptimizer extends MROpPlanVisitor {
         String chunkSize;
         LastInputStreamingOptimizer(MROperPlan plan, String chunkSize) {
             super(plan, new DepthFirstWalker<MapReduceOper, MROperPlan>(plan));
@@ -2647,94 +2647,99 @@ public class MRCompiler extends PhyPlanVisitor {
             }
             
             op = sucs.get(0);
+            if (op instanceof POForEach && canStreamLastInput(pack, (POForEach)op))
+            {
+                // Now we can optimize the map-reduce plan
+                // Replace POPackage->POForeach to POJoinPackage
+                replaceWithPOJoinPackage(mr.reducePlan, mr, pack, (POForEach)op, chunkSize);
+            }
+        }
+
+        /**
+         * Checks the POForEach following a POPackage. If it only projects the
+         * inputs and flattens the last one, the last input can be streamed by
+         * a POJoinPackage instead of being materialized in a bag.
+         */
+        public static boolean canStreamLastInput(POPackage pack, POForEach forEach) throws VisitorException {
             boolean lastInputFlattened = true;
             boolean allSimple = true;
-            if (op instanceof POForEach)
+            List<PhysicalPlan> planList = forEach.getInputPlans();
+            List<Boolean> flatten = forEach.getToBeFlattened();
+            POProject projOfLastInput = null;
+            int i = 0;
+            // check all nested foreach plans
+            // 1. If it is simple projection
+            // 2. If last input is all flattened
+            for (PhysicalPlan p:planList)
             {
-                POForEach forEach = (POForEach)op;
-                List<PhysicalPlan> planList = forEach.getInputPlans();
-                List<Boolean> flatten = forEach.getToBeFlattened();
-                POProject projOfLastInput = null;
-                int i = 0;
-                // check all nested foreach plans
-                // 1. If it is simple projection
-                // 2. If last input is all flattened
-                for (PhysicalPlan p:planList)
+                PhysicalOperator opProj = p.getRoots().get(0);
+                if (!(opProj instanceof POProject))
                 {
-                    PhysicalOperator opProj = p.getRoots().get(0);
-                    if (!(opProj instanceof POProject))
-                    {
-                        allSimple = false;
-                        break;
-                    }
-                    POProject proj = (POProject)opProj;
-                    // the project should just be for one column
-                    // from the input
-                    if(proj.isProjectToEnd() || proj.getColumns().size() != 1) {
-                        allSimple = false;
-                        break;
-                    }
-                    
-                    try {
-                        // if input to project is the last input
-                        if (proj.getColumn() == pack.getNumInps())
-                        {
-                            // if we had already seen another project
-                            // which was also for the last input, then
-                            // we might be trying to flatten twice on the
-                            // last input in which case we can't optimize by
-                            // just streaming the tuple to those projects
-                            // IMPORTANT NOTE: THIS WILL NEED TO CHANGE WHEN WE
-                            // OPTIMIZE BUILTINS LIKE SUM() AND COUNT() TO
-                            // TAKE IN STREAMING INPUT
-                            if(projOfLastInput != null) {
-                                allSimple = false;
-                                break;
-                            }
-                            projOfLastInput = proj;
-                            // make sure the project is on a bag which needs to be
-                            // flattened
-                            if (!flatten.get(i) || proj.getResultType() != DataType.BAG)
-                            {
-                                lastInputFlattened = false;
-                                break;
-                            }
-                        }
-                    } catch (ExecException e) {
-                        int errCode = 2069;
-                        String msg = "Error during map reduce compilation. Problem in accessing column from project operator.";
-                        throw new MRCompilerException(msg, errCode, PigException.BUG, e);
-                    }
-                    
-                    // if all deeper operators are all project
-                    PhysicalOperator succ = p.getSuccessors(proj)!=null?p.getSuccessors(proj).get(0):null;
-                    while (succ!=null)
+                    allSimple = false;
+                    break;
+                }
+                POProject proj = (POProject)opProj;
+                // the project should just be for one column
+                // from the input
+                if(proj.isProjectToEnd() || proj.getColumns().size() != 1) {
+                    allSimple = false;
+                    break;
+                }
+                
+                try {
+                    // if input to project is the last input
+                    if (proj.getColumn() == pack.getNumInps())
                     {
-                        if (!(succ instanceof POProject))
-                        {
+                        // if we had already seen another project
+                        // which was also for the last input, then
+                        // we might be trying to flatten twice on the
+                        // last input in which case we can't optimize by
+                        // just streaming the tuple to those projects
+                        // IMPORTANT NOTE: THIS WILL NEED TO CHANGE WHEN WE
+                        // OPTIMIZE BUILTINS LIKE SUM() AND COUNT() TO
+                        // TAKE IN STREAMING INPUT
+                        if(projOfLastInput != null) {
                             allSimple = false;
                             break;
                         }
-                        // make sure successors of the last project also project bags
-                        // we will be changing it to project tuples
-                        if(proj == projOfLastInput && ((POProject)succ).getResultType() != DataType.BAG) {
-                            allSimple = false;
+                        projOfLastInput = proj;
+                        // make sure the project is on a bag which needs to be
+                        // flattened
+                        if (!flatten.get(i) || proj.getResultType() != DataType.BAG)
+                        {
+                            lastInputFlattened = false;
                             break;
                         }
-                        succ = p.getSuccessors(succ)!=null?p.getSuccessors(succ).get(0):null;
                     }
-                    i++;
-                    if (allSimple==false)
-                        break;
+                } catch (ExecException e) {
+                    int errCode = 2069;
+                    String msg = "Error during map reduce compilation. Problem in accessing column from project operator.";
+                    throw new MRCompilerException(msg, errCode, PigException.BUG, e);
                 }
                 
-                if (lastInputFlattened && allSimple && projOfLastInput != null)
+                // if all deeper operators are all project
+                PhysicalOperator succ = p.getSuccessors(proj)!=null?p.getSuccessors(proj).get(0):null;
+                while (succ!=null)
                 {
-                    // Now we can optimize the map-reduce plan
-                    // Replace POPackage->POForeach to POJoinPackage
-                    replaceWithPOJoinPackage(mr.reducePlan, mr, pack, forEach, chunkSize);
+                    if (!(succ instanceof POProject))
+                    {
+                        allSimple = false;
+                        break;
+                    }
+                    // make sure successors of the last project also project bags
+                    // we will be changing it to project tuples
+                    if(proj == projOfLastInput && ((POProject)succ).getResultType() != DataType.BAG) {
+                        allSimple = false;
+                        break;
+                    }
+                    succ = p.getSuccessors(succ)!=null?p.getSuccessors(succ).get(0):null;
                 }
+                i++;
+                if (allSimple==false)
+                    break;
             }
+            
+            return lastInputFlattened && allSimple && projOfLastInput != null;
         }
 
         public static void replaceWithPOJoinPackage(PhysicalPlan plan, MapReduceOper mr,
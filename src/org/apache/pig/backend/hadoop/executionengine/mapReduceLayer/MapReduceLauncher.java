@@ -56,6 +56,7 @@ import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.plans.POPack
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhysicalPlan;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POJoinPackage;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POStore;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.util.OperatorProfiler;
 import org.apache.pig.backend.hadoop.executionengine.shims.HadoopShims;
 import org.apache.pig.impl.PigContext;
 import org.apache.pig.impl.io.FileLocalizer;
@@ -434,6 +435,10 @@ public class MapReduceLauncher extends Launcher{
         
         // stats collection is done, log the results
         PigStatsUtil.stopCollection(true); 
+
+        if (OperatorProfiler.isEnabled(pc.getProperties())) {
+            log.info(OperatorProfiler.annotate(php, PigStats.get().getOperatorProfile()));
+        }
         
         // PigStatsUtil.stopCollection also computes the return code based on
         // total jobs to run, jobs successful and jobs failed
@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pig.backend.hadoop.executionengine.mapReduceLayer;
+
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.PhysicalOperator;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhysicalPlan;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.util.OperatorProfiler;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.util.PlanHelper;
+import org.apache.pig.impl.PigContext;
+import org.apache.pig.impl.plan.OperatorKey;
+import org.apache.pig.impl.plan.VisitorException;
+import org.apache.pig.tools.pigstats.PigStatusReporter;
+
+/**
+ * Reports the operator profile as Hadoop counters of the task.
+ */
+public class MapReduceOperatorProfiler extends OperatorProfiler {
+
+    private static final long serialVersionUID = 1L;
+
+    public MapReduceOperatorProfiler(OperatorKey operatorKey) {
+        super(operatorKey);
+    }
+
+    /**
+     * Profiles the operators of the plan and of its nested plans, once the task has
+     * deserialized it, if profiling is turned on
+     */
+    public static void setProfilers(PigContext pigContext, PhysicalPlan plan) throws VisitorException {
+        if (!isEnabled(pigContext.getProperties()) || plan.isEmpty()) {
+            return;
+        }
+        for (PhysicalOperator physicalOperator : PlanHelper.getPhysicalOperators(plan, PhysicalOperator.class)) {
+            setProfiler(pigContext, physicalOperator);
+        }
+    }
+
+    /**
+     * Profiles a single operator the task has deserialized, if profiling is turned on
+     */
+    public static void setProfiler(PigContext pigContext, PhysicalOperator physicalOperator) {
+        if (isEnabled(pigContext.getProperties())) {
+            physicalOperator.setProfiler(new MapReduceOperatorProfiler(physicalOperator.getOperatorKey()));
+        }
+    }
+
+    @Override
+    protected void increment(String counterName, long amount) {
+        Counter counter = PigStatusReporter.getInstance().getCounter(COUNTER_GROUP, counterName);
+        if (counter != null) {
+            counter.increment(amount);
+        }
+    }
+}
@@ -37,6 +37,7 @@ import org.apache.pig.backend.hadoop.executionengine.physicalLayer.Result;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhysicalPlan;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POJoinPackage;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POPackage;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.util.OperatorProfiler;
 import org.apache.pig.data.Tuple;
 import org.apache.pig.impl.PigContext;
 import org.apache.pig.impl.io.NullableTuple;
@@ -92,6 +93,8 @@ public class PigCombiner {
                 cp = (PhysicalPlan) ObjectSerializer.deserialize(jConf
                         .get("pig.combinePlan"));
                 pack = (POPackage)ObjectSerializer.deserialize(jConf.get("pig.combine.package"));
+                MapReduceOperatorProfiler.setProfilers(pigContext, cp);
+                MapReduceOperatorProfiler.setProfiler(pigContext, pack);
                 // To be removed
                 if(cp.isEmpty())
                     log.debug("Combine Plan empty!");
@@ -167,7 +170,7 @@ public class PigCombiner {
         //         true- end of processing
         public boolean processOnePackageOutput(Context oc) throws IOException, InterruptedException {
             try {
-                Result res = pack.getNextTuple();
+                Result res = pack.getNextTupleProfiled();
                 if(res.returnStatus==POStatus.STATUS_OK){
                     Tuple packRes = (Tuple)res.result;
                     
@@ -180,7 +183,7 @@ public class PigCombiner {
                         roots[i].attachInput(packRes);
                     }
                     while(true){
-                        Result redRes = leaf.getNextTuple();
+                        Result redRes = leaf.getNextTupleProfiled();
                         
                         if(redRes.returnStatus==POStatus.STATUS_OK){
                             Tuple tuple = (Tuple)redRes.result;
@@ -251,6 +254,8 @@ public class PigCombiner {
         @Override        
         protected void cleanup(Context context) throws IOException, InterruptedException {
             super.cleanup(context);
+            OperatorProfiler.flush(pack);
+            OperatorProfiler.flush(cp);
             leaf = null;
             pack = null;
             pigReporter = null;
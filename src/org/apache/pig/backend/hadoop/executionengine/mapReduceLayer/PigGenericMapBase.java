@@ -40,6 +40,7 @@ import org.apache.pig.backend.hadoop.executionengine.physicalLayer.PhysicalOpera
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.Result;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhysicalPlan;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POStore;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.util.OperatorProfiler;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.util.PlanHelper;
 import org.apache.pig.backend.hadoop.executionengine.util.MapRedUtil;
 import org.apache.pig.data.DataBag;
@@ -51,6 +52,7 @@ import org.apache.pig.impl.io.PigNullableWritable;
 import org.apache.pig.impl.plan.DependencyOrderWalker;
 import org.apache.pig.impl.plan.OperatorKey;
 import org.apache.pig.impl.plan.VisitorException;
+import org.apache.pig.impl.util.MemoryBroker;
 import org.apache.pig.impl.util.ObjectSerializer;
 import org.apache.pig.impl.util.Pair;
 import org.apache.pig.impl.util.SpillableMemoryManager;
@@ -107,6 +109,9 @@ public abstract class PigGenericMapBase extends Mapper<Text, Tuple, PigNullableW
     @Override
     public void cleanup(Context context) throws IOException, InterruptedException {
         super.cleanup(context);
+        if (MemoryBroker.isEnabled()) {
+            MemoryBroker.getInstance().logUsage();
+        }
         if(errorInMap) {
             //error in map - returning
             return;
@@ -144,6 +149,7 @@ public abstract class PigGenericMapBase extends Mapper<Text, Tuple, PigNullableW
             String msg = "Error while calling finish method on UDFs.";
             throw new VisitorException(msg, errCode, PigException.BUG, e);
         }
+        OperatorProfiler.flush(mp);
         
         mp = null;
 
@@ -179,6 +185,7 @@ public abstract class PigGenericMapBase extends Mapper<Text, Tuple, PigNullableW
         if (mp == null)
             mp = (PhysicalPlan) ObjectSerializer.deserialize(
                 job.get("pig.mapPlan"));
+        MapReduceOperatorProfiler.setProfilers(pigContext, mp);
         stores = PlanHelper.getPhysicalOperators(mp, POStore.class);
         
         // To be removed
@@ -279,7 +286,7 @@ public abstract class PigGenericMapBase extends Mapper<Text, Tuple, PigNullableW
 
     protected void runPipeline(PhysicalOperator leaf) throws IOException, InterruptedException {
         while(true){
-            Result res = leaf.getNextTuple();
+            Result res = leaf.getNextTupleProfiled();
             if(res.returnStatus==POStatus.STATUS_OK){
                 collect(outputCollector,(Tuple)res.result);
                 continue;
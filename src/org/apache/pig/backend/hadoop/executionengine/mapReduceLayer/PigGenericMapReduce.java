@@ -43,6 +43,7 @@ import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.Physica
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POJoinPackage;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POPackage;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POStore;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.util.OperatorProfiler;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.util.PlanHelper;
 import org.apache.pig.backend.hadoop.executionengine.util.MapRedUtil;
 import org.apache.pig.data.DataBag;
@@ -55,6 +56,7 @@ import org.apache.pig.impl.io.NullableTuple;
 import org.apache.pig.impl.io.PigNullableWritable;
 import org.apache.pig.impl.plan.DependencyOrderWalker;
 import org.apache.pig.impl.plan.VisitorException;
+import org.apache.pig.impl.util.MemoryBroker;
 import org.apache.pig.impl.util.ObjectSerializer;
 import org.apache.pig.impl.util.Pair;
 import org.apache.pig.impl.util.SpillableMemoryManager;
@@ -208,7 +210,7 @@ public class PigGenericMapReduce {
                 throws IOException, InterruptedException {
             
             while(true){
-                Result res = leaf.getNextTuple();
+                Result res = leaf.getNextTupleProfiled();
                 
                 if(res.returnStatus==POStatus.STATUS_OK){
                     // For POPartitionRearrange, the result is a bag. 
@@ -324,6 +326,8 @@ public class PigGenericMapReduce {
 
                 if (!inIllustrator)
                     pack = (POPackage)ObjectSerializer.deserialize(jConf.get("pig.reduce.package"));
+                MapReduceOperatorProfiler.setProfilers(pigContext, rp);
+                MapReduceOperatorProfiler.setProfiler(pigContext, pack);
                 // To be removed
                 if(rp.isEmpty())
                     log.debug("Reduce Plan empty!");
@@ -418,7 +422,7 @@ public class PigGenericMapReduce {
         public boolean processOnePackageOutput(Context oc) 
                 throws IOException, InterruptedException {
 
-            Result res = pack.getNextTuple();
+            Result res = pack.getNextTupleProfiled();
             if(res.returnStatus==POStatus.STATUS_OK){
                 Tuple packRes = (Tuple)res.result;
                 
@@ -461,7 +465,7 @@ public class PigGenericMapReduce {
             
             while(true)
             {
-                Result redRes = leaf.getNextTuple();
+                Result redRes = leaf.getNextTupleProfiled();
                 if(redRes.returnStatus==POStatus.STATUS_OK){
                     try{
                         outputCollector.write(null, (Tuple)redRes.result);
@@ -505,6 +509,9 @@ public class PigGenericMapReduce {
         @Override 
         protected void cleanup(Context context) throws IOException, InterruptedException {
             super.cleanup(context);
+            if (MemoryBroker.isEnabled()) {
+                MemoryBroker.getInstance().logUsage();
+            }
             
             if(errorInReduce) {
                 // there was an error in reduce - just return
@@ -541,6 +548,8 @@ public class PigGenericMapReduce {
             } catch (VisitorException e) {
                 throw new IOException("Error trying to finish UDFs",e);
             }
+            OperatorProfiler.flush(pack);
+            OperatorProfiler.flush(rp);
             
             PhysicalOperator.setReporter(null);
             initialized = false;
@@ -638,7 +647,7 @@ public class PigGenericMapReduce {
             
             pack.attachInput(key, tupIter.iterator());
             
-            Result res = pack.getNextTuple();
+            Result res = pack.getNextTupleProfiled();
             if(res.returnStatus==POStatus.STATUS_OK){
                 Tuple packRes = (Tuple)res.result;
                 
@@ -24,9 +24,12 @@ import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.pig.PigException;
 import org.apache.pig.backend.executionengine.ExecException;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhyPlanVisitor;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhysicalPlan;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.util.OperatorProfiler;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.vector.TupleBatch;
 import org.apache.pig.data.BagFactory;
 import org.apache.pig.data.DataBag;
 import org.apache.pig.data.DataType;
@@ -116,6 +119,9 @@ public abstract class PhysicalOperator extends Operator<PhyPlanVisitor> implemen
     private boolean accum;
     private transient boolean accumStart;
 
+    // Counts and times the calls to getNextTuple() when the plan is profiled, set in the tasks
+    private transient OperatorProfiler profiler = null;
+
     private List<OriginalLocation> originalLocations =  new ArrayList<OriginalLocation>();
 
     public PhysicalOperator(OperatorKey k) {
@@ -278,7 +284,7 @@ public abstract class PhysicalOperator extends Operator<PhyPlanVisitor> implemen
         }
 
         if (!isInputAttached()) {
-                return inputs.get(0).getNextTuple();
+                return inputs.get(0).getNextTupleProfiled();
         } else {
             res.result = input;
             res.returnStatus = (res.result == null ? POStatus.STATUS_NULL: POStatus.STATUS_OK);
@@ -379,6 +385,42 @@ public abstract class PhysicalOperator extends Operator<PhyPlanVisitor> implemen
         return res;
     }
 
+    /**
+     * Calls {@link #getNextTuple()} through the profiler of the operator, if it has one.
+     * The operators and backends pulling the tuples of an operator call this one.
+     */
+    public final Result getNextTupleProfiled() throws ExecException {
+        return profiler == null ? getNextTuple() : profiler.getNextTuple(this);
+    }
+
+    /**
+     * Processes a batch of input tuples at once, when the operators of a pipeline exchange
+     * batches instead of tuples. The operator must not have inputs: this default implementation
+     * attaches the tuples of the batch one at a time and collects the results of
+     * {@link #getNextTupleProfiled()}. The operators that can evaluate their expressions on
+     * whole columns of the batch override it.
+     * @return the output tuples, the input batch itself may be returned after being filtered
+     */
+    public TupleBatch processBatch(TupleBatch batch) throws ExecException {
+        TupleBatch output = new TupleBatch(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            attachInput(batch.get(i));
+            while (true) {
+                Result result = getNextTupleProfiled();
+                if (result.returnStatus == POStatus.STATUS_OK) {
+                    output.add((Tuple) result.result);
+                } else if (result.returnStatus == POStatus.STATUS_EOP) {
+                    break;
+                } else if (result.returnStatus == POStatus.STATUS_ERR) {
+                    int errCode = 2267;
+                    String msg = "Error while processing a batch in " + this.toString() + ": " + result;
+                    throw new ExecException(msg, errCode, PigException.BUG);
+                }
+            }
+        }
+        return output;
+    }
+
     public Result getNextDataBag() throws ExecException {
         Result ret = null;
         DataBag tmpBag = BagFactory.getInstance().newDefaultBag();
@@ -426,6 +468,17 @@ public abstract class PhysicalOperator extends Operator<PhyPlanVisitor> implemen
         PhysicalOperator.reporter.set(reporter);
     }
 
+    public OperatorProfiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * @param profiler counts and times the calls to the operator, null to turn profiling off
+     */
+    public void setProfiler(OperatorProfiler profiler) {
+        this.profiler = profiler;
+    }
+
     /**
      * Make a deep copy of this operator. This function is blank, however,
      * we should leave a place holder so that the subclasses can clone
@@ -41,6 +41,7 @@ import org.apache.pig.backend.hadoop.executionengine.physicalLayer.PhysicalOpera
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.Result;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhyPlanVisitor;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.util.MonitoredUDFExecutor;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.util.OperatorProfiler;
 import org.apache.pig.builtin.MonitoredUDF;
 import org.apache.pig.data.DataType;
 import org.apache.pig.data.SchemaTupleClassGenerator.GenContext;
@@ -281,6 +282,8 @@ public class POUserFunc extends ExpressionOperator {
             PigStatusReporter.getInstance().getCounter(counterGroup, INVOCATION_COUNTER).increment(TIMING_FREQ);
 
         }
+        OperatorProfiler profiler = getProfiler();
+        long profileStartNanos = profiler == null ? -1 : profiler.startCall();
         try {
             if(result.returnStatus == POStatus.STATUS_OK) {
                 if (isAccumulative()) {
@@ -335,6 +338,9 @@ public class POUserFunc extends ExpressionOperator {
                 PigStatusReporter.getInstance().getCounter(counterGroup, TIMING_COUNTER).increment(
                         ( Math.round((System.nanoTime() - startNanos) / 1000)) * TIMING_FREQ);
             }
+            if (profiler != null) {
+                profiler.endCall(profileStartNanos, result.returnStatus == POStatus.STATUS_OK);
+            }
             return result;
         } catch (ExecException ee) {
             throw ee;
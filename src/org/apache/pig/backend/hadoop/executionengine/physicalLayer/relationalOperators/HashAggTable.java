@@ -0,0 +1,542 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.pig.EvalFunc;
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.PhysicalOperator;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.expressionOperators.POProject;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.expressionOperators.POUserFunc;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhysicalPlan;
+import org.apache.pig.builtin.COUNT;
+import org.apache.pig.builtin.COUNT_STAR;
+import org.apache.pig.builtin.DoubleAvg;
+import org.apache.pig.builtin.DoubleMax;
+import org.apache.pig.builtin.DoubleMin;
+import org.apache.pig.builtin.DoubleSum;
+import org.apache.pig.builtin.IntAvg;
+import org.apache.pig.builtin.IntMax;
+import org.apache.pig.builtin.IntMin;
+import org.apache.pig.builtin.LongAvg;
+import org.apache.pig.builtin.LongMax;
+import org.apache.pig.builtin.LongMin;
+import org.apache.pig.builtin.LongSum;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.SizeUtil;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+
+/**
+ * Hash table used by {@link POPartialAgg} when all its value plans apply the Intermediate
+ * function of a builtin algebraic function (COUNT, SUM, MIN, MAX, AVG of ints, longs and
+ * doubles) to the output of its Initial function. The running value of each function is
+ * kept per key in arrays of primitives, instead of buffering the input tuples and calling
+ * the Intermediate functions on bags of them. The output tuples are those the Intermediate
+ * functions would return.
+ *
+ * Integer and long keys are kept in an array of longs, other keys as objects. The table
+ * uses open addressing with linear probing over the indexes of the entries, which are
+ * stored densely in the order they were added.
+ */
+public class HashAggTable {
+
+    private static final TupleFactory TF = TupleFactory.getInstance();
+
+    // the functions recognized, by the class of their Intermediate function
+    private static final int COUNT_FUNC = 0;
+    private static final int LONG_SUM = 1;
+    private static final int LONG_MIN = 2;
+    private static final int LONG_MAX = 3;
+    private static final int INT_MIN = 4;
+    private static final int INT_MAX = 5;
+    private static final int DOUBLE_SUM = 6;
+    private static final int DOUBLE_MIN = 7;
+    private static final int DOUBLE_MAX = 8;
+    private static final int LONG_AVG = 9;
+    private static final int DOUBLE_AVG = 10;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final int[] functions;
+    // the column of the value tuple holding the output of the Initial function
+    private final int[] columns;
+    private final byte keyType;
+    private final boolean primitiveKeys;
+
+    // index table, holds entry + 1, 0 for an empty slot
+    private int[] slots;
+    private int mask;
+
+    private int size = 0;
+    private long[] longKeys;
+    private Object[] objectKeys;
+    private int nullKeyEntry = -1;
+    private long objectKeysMemory = 0;
+
+    // running values, per function and entry
+    private final long[][] longValues;
+    private final double[][] doubleValues;
+    private final boolean[][] nonNull;
+    private final long[][] counts;
+
+    // values of the row being added, checked before any entry is updated
+    private final long[] rowLongs;
+    private final double[] rowDoubles;
+    private final boolean[] rowNonNull;
+    private final long[] rowCounts;
+
+    private HashAggTable(byte keyType, int[] functions, int[] columns) {
+        this.keyType = keyType;
+        this.primitiveKeys = keyType == DataType.INTEGER || keyType == DataType.LONG;
+        this.functions = functions;
+        this.columns = columns;
+        int n = functions.length;
+        longValues = new long[n][];
+        doubleValues = new double[n][];
+        nonNull = new boolean[n][];
+        counts = new long[n][];
+        rowLongs = new long[n];
+        rowDoubles = new double[n];
+        rowNonNull = new boolean[n];
+        rowCounts = new long[n];
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param keyType the type of the group key
+     * @param valuePlans the value plans of the POPartialAgg
+     * @return a table for the value plans, or null if one of them isn't a recognized builtin
+     */
+    public static HashAggTable create(byte keyType, List<PhysicalPlan> valuePlans) throws ExecException {
+        int[] functions = new int[valuePlans.size()];
+        int[] columns = new int[valuePlans.size()];
+        for (int i = 0; i < valuePlans.size(); i++) {
+            PhysicalPlan plan = valuePlans.get(i);
+            List<PhysicalOperator> roots = plan.getRoots();
+            List<PhysicalOperator> leaves = plan.getLeaves();
+            if (plan.size() != 2 || roots.size() != 1 || leaves.size() != 1
+                    || !(roots.get(0) instanceof POProject) || !(leaves.get(0) instanceof POUserFunc)) {
+                return null;
+            }
+            POProject project = (POProject) roots.get(0);
+            if (project.isStar() || project.isProjectToEnd() || project.getColumns().size() != 1) {
+                return null;
+            }
+            functions[i] = getFunction(((POUserFunc) leaves.get(0)).getFunc());
+            if (functions[i] < 0) {
+                return null;
+            }
+            columns[i] = project.getColumn();
+        }
+        return new HashAggTable(keyType, functions, columns);
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static int getFunction(EvalFunc func) {
+        if (func == null) {
+            return -1;
+        }
+        Class<?> clazz = func.getClass();
+        if (clazz.equals(COUNT.Intermediate.class) || clazz.equals(COUNT_STAR.Intermediate.class)) {
+            return COUNT_FUNC;
+        } else if (clazz.equals(LongSum.Intermediate.class)) {
+            return LONG_SUM;
+        } else if (clazz.equals(LongMin.Intermediate.class)) {
+            return LONG_MIN;
+        } else if (clazz.equals(LongMax.Intermediate.class)) {
+            return LONG_MAX;
+        } else if (clazz.equals(IntMin.Intermediate.class)) {
+            return INT_MIN;
+        } else if (clazz.equals(IntMax.Intermediate.class)) {
+            return INT_MAX;
+        } else if (clazz.equals(DoubleSum.Intermediate.class)) {
+            return DOUBLE_SUM;
+        } else if (clazz.equals(DoubleMin.Intermediate.class)) {
+            return DOUBLE_MIN;
+        } else if (clazz.equals(DoubleMax.Intermediate.class)) {
+            return DOUBLE_MAX;
+        } else if (clazz.equals(LongAvg.Intermediate.class) || clazz.equals(IntAvg.Intermediate.class)) {
+            return LONG_AVG;
+        } else if (clazz.equals(DoubleAvg.Intermediate.class)) {
+            return DOUBLE_AVG;
+        }
+        return -1;
+    }
+
+    private static boolean isDouble(int function) {
+        return function == DOUBLE_SUM || function == DOUBLE_MIN || function == DOUBLE_MAX
+                || function == DOUBLE_AVG;
+    }
+
+    private void allocate(int capacity) {
+        slots = new int[capacity * 2];
+        mask = slots.length - 1;
+        if (primitiveKeys) {
+            longKeys = new long[capacity];
+        } else {
+            objectKeys = new Object[capacity];
+        }
+        for (int i = 0; i < functions.length; i++) {
+            if (isDouble(functions[i])) {
+                doubleValues[i] = new double[capacity];
+            } else {
+                longValues[i] = new long[capacity];
+            }
+            nonNull[i] = new boolean[capacity];
+            if (functions[i] == LONG_AVG || functions[i] == DOUBLE_AVG) {
+                counts[i] = new long[capacity];
+            }
+        }
+    }
+
+    private int capacity() {
+        return slots.length / 2;
+    }
+
+    private void grow() {
+        int capacity = capacity() * 2;
+        slots = new int[capacity * 2];
+        mask = slots.length - 1;
+        if (primitiveKeys) {
+            longKeys = Arrays.copyOf(longKeys, capacity);
+        } else {
+            objectKeys = Arrays.copyOf(objectKeys, capacity);
+        }
+        for (int i = 0; i < functions.length; i++) {
+            if (doubleValues[i] != null) {
+                doubleValues[i] = Arrays.copyOf(doubleValues[i], capacity);
+            }
+            if (longValues[i] != null) {
+                longValues[i] = Arrays.copyOf(longValues[i], capacity);
+            }
+            nonNull[i] = Arrays.copyOf(nonNull[i], capacity);
+            if (counts[i] != null) {
+                counts[i] = Arrays.copyOf(counts[i], capacity);
+            }
+        }
+        for (int entry = 0; entry < size; entry++) {
+            if (entry == nullKeyEntry) {
+                continue;
+            }
+            int slot = primitiveKeys ? hash(longKeys[entry]) : hash(objectKeys[entry].hashCode());
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = entry + 1;
+        }
+    }
+
+    private int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private int hash(int hashCode) {
+        int h = hashCode * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * @return the entry of the key, added if needed
+     */
+    private int getEntry(Object key) {
+        if (key == null) {
+            if (nullKeyEntry < 0) {
+                nullKeyEntry = newEntry();
+            }
+            return nullKeyEntry;
+        }
+        if (primitiveKeys) {
+            long longKey = ((Number) key).longValue();
+            int slot = hash(longKey);
+            while (slots[slot] != 0) {
+                int entry = slots[slot] - 1;
+                if (longKeys[entry] == longKey) {
+                    return entry;
+                }
+                slot = (slot + 1) & mask;
+            }
+            int entry = newEntry();
+            longKeys[entry] = longKey;
+            slots[slot] = entry + 1;
+            return entry;
+        } else {
+            int slot = hash(key.hashCode());
+            while (slots[slot] != 0) {
+                int entry = slots[slot] - 1;
+                if (objectKeys[entry].equals(key)) {
+                    return entry;
+                }
+                slot = (slot + 1) & mask;
+            }
+            int entry = newEntry();
+            objectKeys[entry] = key;
+            objectKeysMemory += SizeUtil.getPigObjMemSize(key);
+            slots[slot] = entry + 1;
+            return entry;
+        }
+    }
+
+    private int newEntry() {
+        int entry = size++;
+        for (int i = 0; i < functions.length; i++) {
+            if (doubleValues[i] != null) {
+                doubleValues[i][entry] = 0;
+            }
+            if (longValues[i] != null) {
+                longValues[i][entry] = 0;
+            }
+            nonNull[i][entry] = false;
+            if (counts[i] != null) {
+                counts[i][entry] = 0;
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Adds a row to the running values of its key
+     * @param key the group key
+     * @param input the input tuple, with the output of the Initial functions
+     * @return false if the key or the values don't have the types the table expects, the
+     * table is then unchanged
+     */
+    public boolean add(Object key, Tuple input) throws ExecException {
+        if (key != null && primitiveKeys
+                && !(keyType == DataType.INTEGER ? key instanceof Integer : key instanceof Long)) {
+            return false;
+        }
+        if (!readRow(input)) {
+            return false;
+        }
+        if (size == capacity()) {
+            // the key may be there already, growing early is harmless
+            grow();
+        }
+        int entry = getEntry(key);
+        for (int i = 0; i < functions.length; i++) {
+            if (!rowNonNull[i] && functions[i] != COUNT_FUNC && functions[i] != LONG_AVG
+                    && functions[i] != DOUBLE_AVG) {
+                continue;
+            }
+            boolean first = !nonNull[i][entry];
+            switch (functions[i]) {
+            case COUNT_FUNC:
+                longValues[i][entry] += rowLongs[i];
+                break;
+            case LONG_SUM:
+                longValues[i][entry] += rowLongs[i];
+                break;
+            case LONG_MIN:
+                longValues[i][entry] = first ? rowLongs[i] : Math.min(longValues[i][entry], rowLongs[i]);
+                break;
+            case LONG_MAX:
+                longValues[i][entry] = first ? rowLongs[i] : Math.max(longValues[i][entry], rowLongs[i]);
+                break;
+            case INT_MIN:
+                longValues[i][entry] = first ? rowLongs[i] : Math.min(longValues[i][entry], rowLongs[i]);
+                break;
+            case INT_MAX:
+                longValues[i][entry] = first ? rowLongs[i] : Math.max(longValues[i][entry], rowLongs[i]);
+                break;
+            case DOUBLE_SUM:
+                doubleValues[i][entry] = first ? rowDoubles[i] : doubleValues[i][entry] + rowDoubles[i];
+                break;
+            case DOUBLE_MIN:
+                doubleValues[i][entry] = first ? rowDoubles[i] : Math.min(doubleValues[i][entry], rowDoubles[i]);
+                break;
+            case DOUBLE_MAX:
+                doubleValues[i][entry] = first ? rowDoubles[i] : Math.max(doubleValues[i][entry], rowDoubles[i]);
+                break;
+            case LONG_AVG:
+                longValues[i][entry] += rowLongs[i];
+                counts[i][entry] += rowCounts[i];
+                break;
+            default:
+                doubleValues[i][entry] += rowDoubles[i];
+                counts[i][entry] += rowCounts[i];
+            }
+            if (rowNonNull[i]) {
+                nonNull[i][entry] = true;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the values of the Initial functions into the row arrays, as the Intermediate
+     * functions read them
+     */
+    private boolean readRow(Tuple input) throws ExecException {
+        for (int i = 0; i < functions.length; i++) {
+            if (input.size() <= columns[i] || !(input.get(columns[i]) instanceof Tuple)) {
+                return false;
+            }
+            Tuple initial = (Tuple) input.get(columns[i]);
+            if (initial.size() < 1) {
+                return false;
+            }
+            Object value = initial.get(0);
+            rowNonNull[i] = value != null;
+            switch (functions[i]) {
+            case COUNT_FUNC:
+                if (!(value instanceof Long)) {
+                    return false;
+                }
+                rowLongs[i] = (Long) value;
+                break;
+            case LONG_SUM:
+            case LONG_MIN:
+            case LONG_MAX:
+                if (value != null && !(value instanceof Number)) {
+                    return false;
+                }
+                rowLongs[i] = value == null ? 0 : ((Number) value).longValue();
+                break;
+            case INT_MIN:
+            case INT_MAX:
+                if (value != null && !(value instanceof Integer)) {
+                    return false;
+                }
+                rowLongs[i] = value == null ? 0 : (Integer) value;
+                break;
+            case DOUBLE_SUM:
+            case DOUBLE_MIN:
+            case DOUBLE_MAX:
+                if (value != null && !(value instanceof Number)) {
+                    return false;
+                }
+                rowDoubles[i] = value == null ? 0 : ((Number) value).doubleValue();
+                break;
+            case LONG_AVG:
+            case DOUBLE_AVG:
+                if (initial.size() < 2 || !(initial.get(1) instanceof Long)) {
+                    return false;
+                }
+                if (functions[i] == LONG_AVG) {
+                    if (value != null && !(value instanceof Long)) {
+                        return false;
+                    }
+                    rowLongs[i] = value == null ? 0 : (Long) value;
+                } else {
+                    if (value != null && !(value instanceof Double)) {
+                        return false;
+                    }
+                    rowDoubles[i] = value == null ? 0 : (Double) value;
+                }
+                rowCounts[i] = (Long) initial.get(1);
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of keys
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the bytes of the arrays of the table, and an estimate of the size of the keys
+     * kept as objects
+     */
+    public long getMemorySize() {
+        int capacity = capacity();
+        long bytes = slots.length * 4L + (primitiveKeys ? capacity * 8L : capacity * 8L + objectKeysMemory);
+        for (int i = 0; i < functions.length; i++) {
+            bytes += capacity * (9L + (counts[i] != null ? 8L : 0L));
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the output of the POPartialAgg for an entry, the key followed by the outputs
+     * of the Intermediate functions
+     */
+    public Tuple getOutput(int entry) throws ExecException {
+        Tuple output = TF.newTuple(functions.length + 1);
+        output.set(0, getKey(entry));
+        for (int i = 0; i < functions.length; i++) {
+            Object value;
+            boolean seen = nonNull[i][entry];
+            switch (functions[i]) {
+            case COUNT_FUNC:
+                value = Long.valueOf(longValues[i][entry]);
+                break;
+            case LONG_SUM:
+            case LONG_MIN:
+            case LONG_MAX:
+                value = seen ? Long.valueOf(longValues[i][entry]) : null;
+                break;
+            case INT_MIN:
+            case INT_MAX:
+                value = seen ? Integer.valueOf((int) longValues[i][entry]) : null;
+                break;
+            case DOUBLE_SUM:
+            case DOUBLE_MIN:
+            case DOUBLE_MAX:
+                value = seen ? Double.valueOf(doubleValues[i][entry]) : null;
+                break;
+            case LONG_AVG:
+                value = TF.newTuple(2);
+                ((Tuple) value).set(0, seen ? Long.valueOf(longValues[i][entry]) : null);
+                ((Tuple) value).set(1, Long.valueOf(counts[i][entry]));
+                break;
+            default:
+                value = TF.newTuple(2);
+                ((Tuple) value).set(0, seen ? Double.valueOf(doubleValues[i][entry]) : null);
+                ((Tuple) value).set(1, Long.valueOf(counts[i][entry]));
+            }
+            output.set(i + 1, value instanceof Tuple ? value : TF.newTuple(value));
+        }
+        return output;
+    }
+
+    private Object getKey(int entry) {
+        if (entry == nullKeyEntry) {
+            return null;
+        }
+        if (primitiveKeys) {
+            return keyType == DataType.INTEGER ? Integer.valueOf((int) longKeys[entry])
+                    : Long.valueOf(longKeys[entry]);
+        }
+        return objectKeys[entry];
+    }
+
+    /**
+     * Removes all the keys, the arrays grown past their initial capacity are released
+     */
+    public void clear() {
+        if (capacity() > INITIAL_CAPACITY) {
+            allocate(INITIAL_CAPACITY);
+        } else {
+            Arrays.fill(slots, 0);
+            if (objectKeys != null) {
+                Arrays.fill(objectKeys, 0, size, null);
+            }
+        }
+        objectKeysMemory = 0;
+        nullKeyEntry = -1;
+        size = 0;
+    }
+}
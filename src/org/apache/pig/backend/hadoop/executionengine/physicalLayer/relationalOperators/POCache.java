@@ -46,6 +46,7 @@ public class POCache extends PhysicalOperator {
     // The expression plan
     transient PhysicalPlan plan;
     String key;
+    String storageLevel;
 
     public POCache(OperatorKey k, PhysicalPlan plan) {
         super(k);
@@ -61,6 +62,14 @@ public class POCache extends PhysicalOperator {
         return processInput();
     }
 
+    public String getStorageLevel() {
+        return storageLevel;
+    }
+
+    public void setStorageLevel(String storageLevel) {
+        this.storageLevel = storageLevel;
+    }
+
     @Override
     public String name() {
         return getAliasString() + "Cache - " + mKey.toString();
@@ -86,6 +95,7 @@ public class POCache extends PhysicalOperator {
         POCache newCache = new POCache(new OperatorKey(this.mKey.scope,
             NodeIdGenerator.getGenerator().getNextNodeId(this.mKey.scope)),
             this.plan.clone());
+        newCache.setStorageLevel(storageLevel);
         newCache.setInputs(inputs);
         return newCache;
     }
@@ -73,6 +73,8 @@ public class POCollectedGroup extends PhysicalOperator {
 
     private boolean useDefaultBag = false;
 
+    private boolean useSerializedBag = false;
+
     public POCollectedGroup(OperatorKey k) {
         this(k, -1, null);
     }
@@ -178,10 +180,13 @@ public class POCollectedGroup extends PhysicalOperator {
                     String bagType = PigMapReduce.sJobConfInternal.get().get("pig.cachedbag.type");
                     if (bagType != null && bagType.equalsIgnoreCase("default")) {
                         useDefaultBag = true;
+                    } else if (bagType != null && bagType.equalsIgnoreCase("serialized")) {
+                        useSerializedBag = true;
                     }
                 }
                 prevKey = curKey;
-                outputBag = useDefaultBag ? BagFactory.getInstance().newDefaultBag()
+                outputBag = useSerializedBag ? BagFactory.getInstance().newSerializedBag()
+                        : useDefaultBag ? BagFactory.getInstance().newDefaultBag()
                 // In a very rare case if there is a POStream after this
                 // POCollectedGroup in the pipeline and is also blocking the pipeline;
                 // constructor argument should be 2. But for one obscure
@@ -214,7 +219,8 @@ public class POCollectedGroup extends PhysicalOperator {
             res.result = tup2;
 
             prevKey = curKey;
-            outputBag = useDefaultBag ? BagFactory.getInstance().newDefaultBag()
+            outputBag = useSerializedBag ? BagFactory.getInstance().newSerializedBag()
+                    : useDefaultBag ? BagFactory.getInstance().newDefaultBag()
                     : new InternalCachedBag(1);
             outputBag.add((Tuple)tup.get(1));
             return res;
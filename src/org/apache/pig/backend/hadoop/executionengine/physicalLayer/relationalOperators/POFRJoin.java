@@ -22,6 +22,7 @@ import java.io.ObjectInputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -318,7 +319,10 @@ public class POFRJoin extends PhysicalOperator {
         }
     }
 
-    private static class TupleToMapKey {
+    /**
+     * Hash table of a replicated input, from join key to the matching tuples
+     */
+    public static class TupleToMapKey {
         private HashMap<Tuple, TuplesToSchemaTupleList> tuples;
         private SchemaTupleFactory tf;
 
@@ -349,29 +353,11 @@ public class POFRJoin extends PhysicalOperator {
      * @throws ExecException
      */
     private void setUpHashMap() throws ExecException {
-        SchemaTupleFactory[] inputSchemaTupleFactories = new SchemaTupleFactory[inputSchemas.length];
-        SchemaTupleFactory[] keySchemaTupleFactories = new SchemaTupleFactory[inputSchemas.length];
-        for (int i = 0; i < inputSchemas.length; i++) {
-            Schema schema = inputSchemas[i];
-            if (schema != null) {
-                log.debug("Using SchemaTuple for FR Join Schema: " + schema);
-                inputSchemaTupleFactories[i] = SchemaTupleBackend.newSchemaTupleFactory(schema, false, GenContext.FR_JOIN);
-            }
-            schema = keySchemas[i];
-            if (schema != null) {
-                log.debug("Using SchemaTuple for FR Join key Schema: " + schema);
-                keySchemaTupleFactories[i] = SchemaTupleBackend.newSchemaTupleFactory(schema, false, GenContext.FR_JOIN);
-            }
-        }
-
         int i = -1;
         long time1 = System.currentTimeMillis();
         for (FileSpec replFile : replFiles) {
             ++i;
 
-            SchemaTupleFactory inputSchemaTupleFactory = inputSchemaTupleFactories[i];
-            SchemaTupleFactory keySchemaTupleFactory = keySchemaTupleFactories[i];
-
             if (i == fragment) {
                 replicates[i] = null;
                 continue;
@@ -392,23 +378,14 @@ public class POFRJoin extends PhysicalOperator {
             POLocalRearrange lr = LRs[i];
             lr.setInputs(Arrays.asList((PhysicalOperator) ld));
 
-            TupleToMapKey replicate = new TupleToMapKey(1000, keySchemaTupleFactory);
+            SchemaTupleFactory inputSchemaTupleFactory = newSchemaTupleFactory(inputSchemas[i]);
+            TupleToMapKey replicate = new TupleToMapKey(1000, newSchemaTupleFactory(keySchemas[i]));
 
             log.debug("Completed setup. Trying to build replication hash table");
             for (Result res = lr.getNextTuple(); res.returnStatus != POStatus.STATUS_EOP; res = lr.getNextTuple()) {
                 if (getReporter() != null)
                     getReporter().progress();
-                Tuple tuple = (Tuple) res.result;
-                if (isKeyNull(tuple.get(1))) continue;
-                Tuple key = mTupleFactory.newTuple(1);
-                key.set(0, tuple.get(1));
-                Tuple value = getValueTuple(lr, tuple);
-
-                if (replicate.get(key) == null) {
-                    replicate.put(key, new TuplesToSchemaTupleList(1, inputSchemaTupleFactory));
-                }
-
-                replicate.get(key).add(value);
+                addToReplicate(replicate, lr, (Tuple) res.result, inputSchemaTupleFactory);
             }
             replicates[i] = replicate;
         }
@@ -416,6 +393,70 @@ public class POFRJoin extends PhysicalOperator {
         log.debug("Hash Table built. Time taken: " + (time2 - time1));
     }
 
+    /**
+     * Builds the HashMap of the replicated input at the given index from its
+     * tuples. This lets execution engines that ship the replicated inputs
+     * themselves build the HashMaps without going through the replicated files.
+     * 
+     * @param index the index of the replicated input
+     * @param tuples the tuples of the replicated input
+     * @return the HashMap to pass to {@link #setReplicates(TupleToMapKey[])}
+     * @throws ExecException
+     */
+    public TupleToMapKey buildReplicate(int index, Iterator<Tuple> tuples) throws ExecException {
+        POLocalRearrange lr = LRs[index];
+        SchemaTupleFactory inputSchemaTupleFactory = newSchemaTupleFactory(inputSchemas[index]);
+        TupleToMapKey replicate = new TupleToMapKey(1000, newSchemaTupleFactory(keySchemas[index]));
+        while (tuples.hasNext()) {
+            lr.attachInput(tuples.next());
+            Result res = lr.getNextTuple();
+            lr.detachInput();
+            if (res.returnStatus == POStatus.STATUS_NULL) {
+                continue;
+            }
+            if (res.returnStatus != POStatus.STATUS_OK) {
+                int errCode = 2093;
+                String msg = "LocalRearrange isn't configured right or is not working";
+                throw new ExecException(msg, errCode, PigException.BUG);
+            }
+            addToReplicate(replicate, lr, (Tuple) res.result, inputSchemaTupleFactory);
+        }
+        return replicate;
+    }
+
+    /**
+     * Sets the HashMaps of the replicated inputs, indexed like the inputs of
+     * the join. The replicated files are not read when they are set.
+     * 
+     * @param replicates the HashMaps built with {@link #buildReplicate(int, Iterator)}
+     */
+    public void setReplicates(TupleToMapKey[] replicates) {
+        this.replicates = replicates;
+        setUp = true;
+    }
+
+    private void addToReplicate(TupleToMapKey replicate, POLocalRearrange lr, Tuple tuple,
+            SchemaTupleFactory inputSchemaTupleFactory) throws ExecException {
+        if (isKeyNull(tuple.get(1))) return;
+        Tuple key = mTupleFactory.newTuple(1);
+        key.set(0, tuple.get(1));
+        Tuple value = getValueTuple(lr, tuple);
+
+        if (replicate.get(key) == null) {
+            replicate.put(key, new TuplesToSchemaTupleList(1, inputSchemaTupleFactory));
+        }
+
+        replicate.get(key).add(value);
+    }
+
+    private SchemaTupleFactory newSchemaTupleFactory(Schema schema) {
+        if (schema == null) {
+            return null;
+        }
+        log.debug("Using SchemaTuple for FR Join Schema: " + schema);
+        return SchemaTupleBackend.newSchemaTupleFactory(schema, false, GenContext.FR_JOIN);
+    }
+
     private boolean isKeyNull(Object key) throws ExecException {
         if (key == null) return true;
         if (key instanceof Tuple) {
@@ -28,6 +28,9 @@ import org.apache.pig.backend.hadoop.executionengine.physicalLayer.PhysicalOpera
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.Result;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhyPlanVisitor;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhysicalPlan;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.vector.ColumnVector;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.vector.TupleBatch;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.vector.VectorExpression;
 import org.apache.pig.impl.plan.OperatorKey;
 import org.apache.pig.impl.plan.VisitorException;
 import org.apache.pig.impl.util.IdentityHashSet;
@@ -65,6 +68,10 @@ public class POFilter extends PhysicalOperator {
     // appropriate type
     byte compOperandType;
 
+    // The expression plan compiled for the batches, null if it isn't supported
+    private transient VectorExpression vectorPlan;
+    private transient boolean vectorPlanCompiled = false;
+
     public POFilter(OperatorKey k) {
         this(k, -1, null);
     }
@@ -160,6 +167,29 @@ public class POFilter extends PhysicalOperator {
         return inp;
     }
 
+    /**
+     * Evaluates the expression plan on the columns of the batch and retains the rows for
+     * which it is true, if the plan can be compiled to a {@link VectorExpression}.
+     */
+    @Override
+    public TupleBatch processBatch(TupleBatch batch) throws ExecException {
+        if (!vectorPlanCompiled) {
+            vectorPlan = illustrator == null ? VectorExpression.compile(plan) : null;
+            if (vectorPlan != null && vectorPlan.getType() != DataType.BOOLEAN) {
+                vectorPlan = null;
+            }
+            vectorPlanCompiled = true;
+        }
+        if (vectorPlan != null) {
+            ColumnVector condition = vectorPlan.evaluate(batch);
+            if (condition != null) {
+                batch.retain(condition);
+                return batch;
+            }
+        }
+        return super.processBatch(batch);
+    }
+
     @Override
     public String name() {
         return getAliasString() + "Filter" + "["
@@ -185,6 +215,7 @@ public class POFilter extends PhysicalOperator {
     public void setPlan(PhysicalPlan plan) {
         this.plan = plan;
         comOp = plan.getLeaves().get(0);
+        vectorPlanCompiled = false;
 //        compOperandType = comOp.getOperandType();
     }
 
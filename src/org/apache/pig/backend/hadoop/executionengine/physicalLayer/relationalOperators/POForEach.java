@@ -33,6 +33,9 @@ import org.apache.pig.backend.hadoop.executionengine.physicalLayer.expressionOpe
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.expressionOperators.PORelationToExprProject;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhyPlanVisitor;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhysicalPlan;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.vector.ColumnVector;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.vector.TupleBatch;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.vector.VectorExpression;
 import org.apache.pig.data.AccumulativeBag;
 import org.apache.pig.data.DataBag;
 import org.apache.pig.data.DataType;
@@ -319,7 +322,65 @@ public class POForEach extends PhysicalOperator {
         isEarlyTerminated = true;
     }
 
-    protected Result processPlan() throws ExecException{
+    // The input plans compiled for the batches, null if one of them isn't supported
+    private transient VectorExpression[] vectorPlans;
+    private transient boolean vectorPlansCompiled = false;
+
+    /**
+     * Evaluates the input plans on the columns of the batch, if they can all be compiled to
+     * {@link VectorExpression}s, and makes the output tuples from the column values.
+     */
+    @Override
+    public TupleBatch processBatch(TupleBatch batch) throws ExecException {
+        if (!vectorPlansCompiled) {
+            vectorPlans = compileVectorPlans();
+            vectorPlansCompiled = true;
+        }
+        if (vectorPlans == null) {
+            return super.processBatch(batch);
+        }
+        ColumnVector[] columns = new ColumnVector[vectorPlans.length];
+        for (int i = 0; i < vectorPlans.length; i++) {
+            columns[i] = vectorPlans[i].evaluate(batch);
+            if (columns[i] == null) {
+                return super.processBatch(batch);
+            }
+        }
+        initTupleMaker();
+        TupleBatch output = new TupleBatch(batch.size());
+        int[] selected = batch.getSelected();
+        for (int j = 0; j < batch.size(); j++) {
+            int row = selected[j];
+            Object[] fields = new Object[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                fields[i] = columns[i].get(row);
+            }
+            output.add(createTuple(fields));
+        }
+        return output;
+    }
+
+    private VectorExpression[] compileVectorPlans() throws ExecException {
+        if (illustrator != null || isAccumulative() || inputPlans == null) {
+            return null;
+        }
+        if (planLeafOps == null) {
+            getLeaves();
+        }
+        VectorExpression[] plans = new VectorExpression[inputPlans.size()];
+        for (int i = 0; i < plans.length; i++) {
+            if (isToBeFlattenedArray[i]) {
+                return null;
+            }
+            plans[i] = VectorExpression.compile(inputPlans.get(i));
+            if (plans[i] == null) {
+                return null;
+            }
+        }
+        return plans;
+    }
+
+    private void initTupleMaker() {
         if (schema != null && tupleMaker == null) {
             // Note here that if SchemaTuple is currently turned on, then any UDF's in the chain
             // must follow good practices. Namely, they should not append to the Tuple that comes
@@ -332,6 +393,10 @@ public class POForEach extends PhysicalOperator {
         if (tupleMaker == null) {
             tupleMaker = TupleFactory.getInstance();
         }
+    }
+
+    protected Result processPlan() throws ExecException{
+        initTupleMaker();
 
         Result res = new Result();
 
@@ -558,6 +623,7 @@ public class POForEach extends PhysicalOperator {
     }
 
     private void reInitialize() {
+        vectorPlansCompiled = false;
         if(planLeafOps != null) {
             noItems = planLeafOps.length;
             resultTypes = new byte[noItems];
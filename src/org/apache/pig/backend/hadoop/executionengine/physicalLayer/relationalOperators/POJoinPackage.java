@@ -49,6 +49,8 @@ public class POJoinPackage extends POPackage {
     private boolean firstTime = true;
     private boolean useDefaultBag = false;
 
+    private boolean useSerializedBag = false;
+
     public static final String DEFAULT_CHUNK_SIZE = "1000";
 
     private long chunkSize = Long.parseLong(DEFAULT_CHUNK_SIZE);
@@ -112,6 +114,8 @@ public class POJoinPackage extends POPackage {
                 String bagType = PigMapReduce.sJobConfInternal.get().get("pig.cachedbag.type");
                 if (bagType != null && bagType.equalsIgnoreCase("default")) {
                     useDefaultBag = true;
+                } else if (bagType != null && bagType.equalsIgnoreCase("serialized")) {
+                    useSerializedBag = true;
                 }
             }
         }
@@ -143,7 +147,8 @@ public class POJoinPackage extends POPackage {
             //Put n-1 inputs into bags
             dbs = new DataBag[numInputs];
             for (int i = 0; i < numInputs - 1; i++) {
-                dbs[i] = useDefaultBag ? BagFactory.getInstance().newDefaultBag() 
+                dbs[i] = useSerializedBag ? BagFactory.getInstance().newSerializedBag()
+                        : useDefaultBag ? BagFactory.getInstance().newDefaultBag() 
                 // In a very rare case if there is a POStream after this 
                 // POJoinPackage in the pipeline and is also blocking the pipeline;
                 // constructor argument should be 2 * numInputs. But for one obscure
@@ -119,6 +119,8 @@ public class POPackage extends PhysicalOperator {
 
     private boolean useDefaultBag = false;
 
+    private boolean useSerializedBag = false;
+
     private PackageType pkgType;
 
     public POPackage(OperatorKey k) {
@@ -227,6 +229,8 @@ public class POPackage extends PhysicalOperator {
                 String bagType = PigMapReduce.sJobConfInternal.get().get("pig.cachedbag.type");
                 if (bagType != null && bagType.equalsIgnoreCase("default")) {
                     useDefaultBag = true;
+                } else if (bagType != null && bagType.equalsIgnoreCase("serialized")) {
+                    useSerializedBag = true;
                 }
             }
         }
@@ -253,7 +257,8 @@ public class POPackage extends PhysicalOperator {
             } else {
                 // create bag to pull all tuples out of iterator
                 for (int i = 0; i < numInputs; i++) {
-                    dbs[i] = useDefaultBag ? BagFactory.getInstance().newDefaultBag()
+                    dbs[i] = useSerializedBag ? BagFactory.getInstance().newSerializedBag()
+                            : useDefaultBag ? BagFactory.getInstance().newDefaultBag()
                     // In a very rare case if there is a POStream after this
                     // POPackage in the pipeline and is also blocking the pipeline;
                     // constructor argument should be 2 * numInputs. But for one obscure
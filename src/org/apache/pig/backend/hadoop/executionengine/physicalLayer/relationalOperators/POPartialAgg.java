@@ -44,6 +44,7 @@ import org.apache.pig.data.Tuple;
 import org.apache.pig.data.TupleFactory;
 import org.apache.pig.impl.plan.OperatorKey;
 import org.apache.pig.impl.plan.VisitorException;
+import org.apache.pig.impl.util.MemoryBroker;
 import org.apache.pig.impl.util.Spillable;
 import org.apache.pig.impl.util.SpillableMemoryManager;
 
@@ -112,6 +113,13 @@ public class POPartialAgg extends PhysicalOperator implements Spillable {
     private Iterator<Entry<Object, List<Tuple>>> spillingIterator;
     private boolean estimatedMemThresholds = false;
 
+    // running values of the builtin algebraic functions, used instead of the maps
+    // when all the value plans are recognized by the table
+    private transient HashAggTable aggTable;
+    private int numRecsInAggTable = 0;
+    private long aggTableMemLimit = Long.MAX_VALUE;
+    private int numRecsSinceReport = 0;
+
 
     public POPartialAgg(OperatorKey k) {
         super(k);
@@ -123,6 +131,11 @@ public class POPartialAgg extends PhysicalOperator implements Spillable {
         if (percent <= 0) {
             LOG.info("No memory allocated to intermediate memory buffers. Turning off partial aggregation.");
             disableMapAgg();
+        } else {
+            aggTable = HashAggTable.create(keyLeaf.getResultType(), valuePlans);
+            if (aggTable != null) {
+                LOG.info("Aggregating the values of the builtin functions in a hash table.");
+            }
         }
         initialized = true;
         SpillableMemoryManager.getInstance().registerSpillable(this);
@@ -194,6 +207,27 @@ public class POPartialAgg extends PhysicalOperator implements Spillable {
                     }
                     Object key = keyRes.result;
                     keyPlan.detachInput();
+                    if (MemoryBroker.isEnabled() && (++numRecsSinceReport & 0x3ff) == 0) {
+                        // report the growth every 1024 records
+                        MemoryBroker.getInstance().update(this, getMemorySize());
+                    }
+                    if (aggTable != null) {
+                        if (aggTable.add(key, inpTuple)) {
+                            numRecsInAggTable += 1;
+                            if (!sizeReductionChecked && numRecsInAggTable >= NUM_RECS_TO_SAMPLE) {
+                                checkAggTableSizeReduction();
+                            }
+                            if (aggTable != null && aggTable.getMemorySize() > aggTableMemLimit) {
+                                LOG.info("Starting spill.");
+                                startSpill();
+                            }
+                            continue;
+                        }
+                        // the table can't aggregate this input, the maps take over from here
+                        LOG.info("Input not supported by the hash table, aggregating with the maps.");
+                        flushAggTable();
+                        aggTable = null;
+                    }
                     numRecsInRawMap += 1;
                     addKeyValToMap(rawInputMap, key, inpTuple);
 
@@ -256,9 +290,25 @@ public class POPartialAgg extends PhysicalOperator implements Spillable {
         sizeReductionChecked = true;
 
     }
+    private void checkAggTableSizeReduction() throws ExecException {
+        int minReduction = getMinOutputReductionFromProp();
+        sizeReduction = numRecsInAggTable / Math.max(1, aggTable.size());
+        LOG.info("Observed reduction factor: from " + numRecsInAggTable +
+                " to " + aggTable.size() + " => " + sizeReduction + ".");
+        float percent = getPercentUsageFromProp();
+        aggTableMemLimit = (long) (Runtime.getRuntime().maxMemory() * percent / ALL_POPARTS.size());
+        LOG.info("Setting hash table memory limit: " + aggTableMemLimit + " bytes.");
+        sizeReductionChecked = true;
+        if (sizeReduction < minReduction) {
+            LOG.info("Disabling in-memory aggregation, since observed reduction is less than " + minReduction);
+            disableMapAgg();
+        }
+    }
+
     private void disableMapAgg() throws ExecException {
         startSpill();
         disableMapAgg = true;
+        aggTable = null;
     }
 
     private boolean mapAggDisabled() {
@@ -327,10 +377,30 @@ public class POPartialAgg extends PhysicalOperator implements Spillable {
                 LOG.info("processed inputs: " + numRecsInProcessedMap + " tuples.");
             }
         }
+        flushAggTable();
         doSpill = true;
         spillingIterator = processedInputMap.entrySet().iterator();
     }
 
+    /**
+     * Moves the running values of the hash table to processedInputMap, one tuple per key.
+     */
+    private void flushAggTable() throws ExecException {
+        if (aggTable == null || aggTable.size() == 0) {
+            return;
+        }
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Moving " + aggTable.size() + " keys from the hash table to the processed inputs.");
+        }
+        for (int entry = 0; entry < aggTable.size(); entry++) {
+            Tuple output = aggTable.getOutput(entry);
+            addKeyValToMap(processedInputMap, output.get(0), output);
+            numRecsInProcessedMap += 1;
+        }
+        aggTable.clear();
+        numRecsInAggTable = 0;
+    }
+
     private Result spillResult() throws ExecException {
         // if no more to spill, return EOP_RESULT.
         if (processedInputMap.isEmpty()) {
@@ -548,7 +618,8 @@ public class POPartialAgg extends PhysicalOperator implements Spillable {
 
     @Override
     public long getMemorySize() {
-        return avgTupleSize * (numRecsInProcessedMap + numRecsInRawMap);
+        long aggTableSize = aggTable == null ? 0 : aggTable.getMemorySize();
+        return avgTupleSize * (numRecsInProcessedMap + numRecsInRawMap) + aggTableSize;
     }
 
 }
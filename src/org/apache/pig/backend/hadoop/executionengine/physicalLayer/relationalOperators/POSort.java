@@ -39,7 +39,9 @@ import org.apache.pig.data.BagFactory;
 import org.apache.pig.data.DataBag;
 import org.apache.pig.data.DataType;
 import org.apache.pig.data.InternalSortedBag;
+import org.apache.pig.data.NormalizedKeyComparator;
 import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleSorter;
 import org.apache.pig.impl.plan.NodeIdGenerator;
 import org.apache.pig.impl.plan.OperatorKey;
 import org.apache.pig.impl.plan.VisitorException;
@@ -129,52 +131,80 @@ public class POSort extends PhysicalOperator {
 
 	}
 
-	public class SortComparator implements Comparator<Tuple>,Serializable {
+	/**
+	 * Compares the tuples by the values of the sort plans, evaluated once per
+	 * tuple when sorted by a {@link TupleSorter}. With a single sort plan the
+	 * key is its value, otherwise an array of the values.
+	 */
+	public class SortComparator extends NormalizedKeyComparator {
 		/**
          *
          */
         private static final long serialVersionUID = 1L;
 
         @Override
-        public int compare(Tuple o1, Tuple o2) {
-			int count = 0;
-			int ret = 0;
-			if(sortPlans == null || sortPlans.size() == 0) {
-                return 0;
+        public Object getKey(Tuple t) {
+            if (sortPlans == null) {
+                return new Object[0];
             }
-			for(PhysicalPlan plan : sortPlans) {
-				try {
-					plan.attachInput(o1);
-					Result res1 = getResult(plan, ExprOutputTypes.get(count));
-					plan.attachInput(o2);
-					Result res2 = getResult(plan, ExprOutputTypes.get(count));
-					if(res1.returnStatus != POStatus.STATUS_OK || res2.returnStatus != POStatus.STATUS_OK) {
-						log.error("Error processing the input in the expression plan : " + plan.toString());
-					} else {
-						if(mAscCols.get(count++)) {
-							ret = DataType.compare(res1.result, res2.result);
-                            // If they are not equal, return
-                            // Otherwise, keep comparing the next one
-                            if (ret != 0) {
-                                return ret ;
-                            }
-                        }
-                        else {
-                            ret = DataType.compare(res2.result, res1.result);
-                            if (ret != 0) {
-                                return ret ;
-                            }
-
-                        }
-
-					}
-
-				} catch (ExecException e) {
-					log.error("Invalid result while executing the expression plan : " + plan.toString() + "\n" + e.getMessage());
-				}
-			}
-			return ret;
-		}
+            if (sortPlans.size() == 1) {
+                return getValue(t, sortPlans.get(0), 0);
+            }
+            Object[] key = new Object[sortPlans.size()];
+            int count = 0;
+            for (PhysicalPlan plan : sortPlans) {
+                key[count] = getValue(t, plan, count);
+                count++;
+            }
+            return key;
+        }
+
+        private Object getValue(Tuple t, PhysicalPlan plan, int index) {
+            try {
+                plan.attachInput(t);
+                Result res = getResult(plan, ExprOutputTypes.get(index));
+                if (res.returnStatus != POStatus.STATUS_OK) {
+                    log.error("Error processing the input in the expression plan : " + plan.toString());
+                } else {
+                    return res.result;
+                }
+            } catch (ExecException e) {
+                log.error("Invalid result while executing the expression plan : " + plan.toString() + "\n" + e.getMessage());
+            }
+            return null;
+        }
+
+        @Override
+        public int compareKeys(Object key1, Object key2) {
+            if (sortPlans != null && sortPlans.size() == 1) {
+                return mAscCols.get(0) ? DataType.compare(key1, key2) : DataType.compare(key2, key1);
+            }
+            Object[] k1 = (Object[]) key1;
+            Object[] k2 = (Object[]) key2;
+            for (int i = 0; i < k1.length; i++) {
+                int ret;
+                if (mAscCols.get(i)) {
+                    ret = DataType.compare(k1[i], k2[i]);
+                } else {
+                    ret = DataType.compare(k2[i], k1[i]);
+                }
+                // If they are not equal, return
+                // Otherwise, keep comparing the next one
+                if (ret != 0) {
+                    return ret;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public long getPrefix(Object key) {
+            if (sortPlans != null && sortPlans.size() == 1) {
+                return getPrefix(key, mAscCols.get(0));
+            }
+            Object[] k = (Object[]) key;
+            return k.length == 0 ? 0 : getPrefix(k[0], mAscCols.get(0));
+        }
 
 		private Result getResult(PhysicalPlan plan, byte resultType) throws ExecException {
 			ExpressionOperator Op = (ExpressionOperator) plan.getLeaves().get(0);
@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pig.backend.hadoop.executionengine.physicalLayer.util;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.pig.PigConfiguration;
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.POStatus;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.PhysicalOperator;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.Result;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhysicalPlan;
+import org.apache.pig.impl.plan.OperatorKey;
+import org.apache.pig.impl.plan.VisitorException;
+
+/**
+ * Counts the records returned by a physical operator and samples the time spent in it, when
+ * {@link PigConfiguration#OPERATOR_PROFILE_PROP} is set. As with the UDF timings of
+ * {@link PigConfiguration#TIME_UDFS_PROP}, one call in {@link #TIMING_FREQ} is timed and the
+ * counters are only updated on the timed calls, so they are approximate. The records returned
+ * since the last timed call are added when the task is done with the plan, see {@link #flush()}.
+ *
+ * The counters are named after the operator key, in the {@link #COUNTER_GROUP} group. Each
+ * backend reports them its own way: MapReduce as Hadoop counters and Spark as accumulators,
+ * both end up in the counters of the {@link org.apache.pig.tools.pigstats.JobStats}. The
+ * profilers are not serialized with the operators, the backends set them in the tasks.
+ *
+ * The time of a relational operator includes the time its predecessors in the same task
+ * spent producing its input, the time of a UDF is the time of its calls.
+ */
+public abstract class OperatorProfiler implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String COUNTER_GROUP = "PigOperatorProfile";
+    public static final String CALLS = "approx_calls";
+    public static final String RECORDS = "approx_records";
+    public static final String MICROSECS = "approx_microsecs";
+
+    public static final int TIMING_FREQ = 100;
+
+    protected final String operatorKey;
+
+    private transient long calls;
+    // records returned since the counters were last updated
+    private transient long records;
+
+    protected OperatorProfiler(OperatorKey operatorKey) {
+        this.operatorKey = operatorKey.toString();
+    }
+
+    /**
+     * Calls {@link PhysicalOperator#getNextTuple()}, counting the records returned.
+     */
+    public Result getNextTuple(PhysicalOperator physicalOperator) throws ExecException {
+        long startNanos = startCall();
+        Result result = physicalOperator.getNextTuple();
+        endCall(startNanos, result.returnStatus == POStatus.STATUS_OK);
+        return result;
+    }
+
+    /**
+     * @return the start of the call if it is timed, -1 otherwise
+     */
+    public long startCall() {
+        return calls++ % TIMING_FREQ == 0 ? System.nanoTime() : -1;
+    }
+
+    /**
+     * @param startNanos what {@link #startCall()} returned
+     * @param output whether the call returned a record
+     */
+    public void endCall(long startNanos, boolean output) {
+        if (output) {
+            ++records;
+        }
+        if (startNanos >= 0) {
+            increment(getCounterName(operatorKey, CALLS), TIMING_FREQ);
+            increment(getCounterName(operatorKey, MICROSECS),
+                    (System.nanoTime() - startNanos) / 1000 * TIMING_FREQ);
+            flush();
+        }
+    }
+
+    /**
+     * Adds the records returned since the last timed call to the counters, when the task is
+     * done with the operator
+     */
+    public void flush() {
+        if (records > 0) {
+            increment(getCounterName(operatorKey, RECORDS), records);
+            records = 0;
+        }
+    }
+
+    /**
+     * Flushes the profilers of the operators of the plan and of its nested plans
+     */
+    public static void flush(PhysicalPlan plan) throws VisitorException {
+        if (plan == null || plan.isEmpty()) {
+            return;
+        }
+        for (PhysicalOperator physicalOperator : PlanHelper.getPhysicalOperators(plan, PhysicalOperator.class)) {
+            flush(physicalOperator);
+        }
+    }
+
+    /**
+     * Flushes the profiler of the operator, if it has one
+     */
+    public static void flush(PhysicalOperator physicalOperator) {
+        if (physicalOperator != null && physicalOperator.getProfiler() != null) {
+            physicalOperator.getProfiler().flush();
+        }
+    }
+
+    /**
+     * Adds to a counter of the profile
+     */
+    protected abstract void increment(String counterName, long amount);
+
+    public static String getCounterName(String operatorKey, String counter) {
+        return operatorKey + "." + counter;
+    }
+
+    /**
+     * @return whether operator profiling is turned on in the configuration
+     */
+    public static boolean isEnabled(Properties properties) {
+        return "true".equalsIgnoreCase(properties.getProperty(PigConfiguration.OPERATOR_PROFILE_PROP));
+    }
+
+    /**
+     * Writes the operators of the plan that were profiled with their counters, in the order
+     * of the plan, the operators of the nested plans before the operator holding them.
+     * @param profile the counters of the {@link #COUNTER_GROUP} group, as returned by
+     * {@link org.apache.pig.tools.pigstats.PigStats#getOperatorProfile()}
+     */
+    public static String annotate(PhysicalPlan plan, Map<String, Long> profile) throws VisitorException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Operator profile (approximate, times include the input of the relational operators):\n");
+        for (PhysicalOperator physicalOperator : PlanHelper.getPhysicalOperators(plan, PhysicalOperator.class)) {
+            String key = physicalOperator.getOperatorKey().toString();
+            Long calls = profile.get(getCounterName(key, CALLS));
+            if (calls == null) {
+                continue;
+            }
+            Long records = profile.get(getCounterName(key, RECORDS));
+            Long micros = profile.get(getCounterName(key, MICROSECS));
+            sb.append(physicalOperator.name())
+                .append(": calls=").append(calls)
+                .append(", records=").append(records == null ? 0 : records)
+                .append(", ms=").append(micros == null ? 0 : micros / 1000)
+                .append('\n');
+        }
+        return sb.toString();
+    }
+}
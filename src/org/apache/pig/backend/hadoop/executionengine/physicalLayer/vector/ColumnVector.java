@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pig.backend.hadoop.executionengine.physicalLayer.vector;
+
+import org.apache.pig.data.DataType;
+
+/**
+ * The values of a column or of an expression for the rows of a {@link TupleBatch}, indexed
+ * by row, as primitives with a null mask. Integers, longs and booleans (0 or 1) are held in
+ * {@link #longs}, floats and doubles in {@link #doubles}.
+ */
+public class ColumnVector {
+
+    private final byte type;
+    public final long[] longs;
+    public final double[] doubles;
+    public final boolean[] nulls;
+
+    public ColumnVector(byte type, int capacity) {
+        this.type = type;
+        boolean floatingPoint = type == DataType.FLOAT || type == DataType.DOUBLE;
+        this.longs = floatingPoint ? null : new long[capacity];
+        this.doubles = floatingPoint ? new double[capacity] : null;
+        this.nulls = new boolean[capacity];
+    }
+
+    /**
+     * @return whether the values of the type can be held in a column vector
+     */
+    public static boolean isSupported(byte type) {
+        switch (type) {
+        case DataType.BOOLEAN:
+        case DataType.INTEGER:
+        case DataType.LONG:
+        case DataType.FLOAT:
+        case DataType.DOUBLE:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public int getCapacity() {
+        return nulls.length;
+    }
+
+    /**
+     * @return the value of a row, boxed as the row path would return it
+     */
+    public Object get(int row) {
+        if (nulls[row]) {
+            return null;
+        }
+        switch (type) {
+        case DataType.BOOLEAN:
+            return Boolean.valueOf(longs[row] != 0);
+        case DataType.INTEGER:
+            return Integer.valueOf((int) longs[row]);
+        case DataType.LONG:
+            return Long.valueOf(longs[row]);
+        case DataType.FLOAT:
+            return Float.valueOf((float) doubles[row]);
+        default:
+            return Double.valueOf(doubles[row]);
+        }
+    }
+
+    /**
+     * Sets the value of a row
+     * @return false if the value is not of the type of the vector
+     */
+    public boolean set(int row, Object value) {
+        if (value == null) {
+            nulls[row] = true;
+            return true;
+        }
+        nulls[row] = false;
+        switch (type) {
+        case DataType.BOOLEAN:
+            if (!(value instanceof Boolean)) {
+                return false;
+            }
+            longs[row] = ((Boolean) value) ? 1 : 0;
+            return true;
+        case DataType.INTEGER:
+            if (!(value instanceof Integer)) {
+                return false;
+            }
+            longs[row] = (Integer) value;
+            return true;
+        case DataType.LONG:
+            if (!(value instanceof Long)) {
+                return false;
+            }
+            longs[row] = (Long) value;
+            return true;
+        case DataType.FLOAT:
+            if (!(value instanceof Float)) {
+                return false;
+            }
+            doubles[row] = (Float) value;
+            return true;
+        default:
+            if (!(value instanceof Double)) {
+                return false;
+            }
+            doubles[row] = (Double) value;
+            return true;
+        }
+    }
+}
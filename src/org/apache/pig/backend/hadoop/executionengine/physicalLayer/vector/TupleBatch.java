@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pig.backend.hadoop.executionengine.physicalLayer.vector;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.Tuple;
+
+/**
+ * A batch of tuples exchanged by the operators of a pipeline instead of one tuple at a time,
+ * see {@link org.apache.pig.backend.hadoop.executionengine.physicalLayer.PhysicalOperator#processBatch(TupleBatch)}.
+ *
+ * The fields of the tuples are read once into {@link ColumnVector}s by the operators that
+ * evaluate their expressions on whole columns. Filtering a batch only changes the selection
+ * of its rows, so the columns already read stay valid.
+ */
+public class TupleBatch {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private Tuple[] rows;
+    private int rowCount = 0;
+    // the indexes of the rows in the batch, in order
+    private int[] selected;
+    private int size = 0;
+    private final Map<Integer, ColumnVector> columns = new HashMap<Integer, ColumnVector>();
+
+    public TupleBatch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public TupleBatch(int capacity) {
+        rows = new Tuple[Math.max(1, capacity)];
+        selected = new int[rows.length];
+    }
+
+    /**
+     * Adds a row at the end of the batch
+     */
+    public void add(Tuple tuple) {
+        if (rowCount == rows.length) {
+            rows = Arrays.copyOf(rows, rowCount * 2);
+            selected = Arrays.copyOf(selected, rowCount * 2);
+        }
+        columns.clear();
+        selected[size++] = rowCount;
+        rows[rowCount++] = tuple;
+    }
+
+    /**
+     * @return the number of rows in the batch
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return rowCount >= rows.length;
+    }
+
+    /**
+     * @param i the position of the row in the batch, from 0 to size() - 1
+     */
+    public Tuple get(int i) {
+        return rows[selected[i]];
+    }
+
+    /**
+     * @return the indexes in the column vectors of the rows in the batch, the first size() are valid
+     */
+    public int[] getSelected() {
+        return selected;
+    }
+
+    /**
+     * @return the capacity the column vectors of the batch need
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @return the values of a field of the rows, null if a row is too short for the field or
+     * holds a value of another type
+     */
+    public ColumnVector getColumn(int column, byte type) throws ExecException {
+        ColumnVector vector = columns.get(column);
+        if (vector != null && vector.getType() == type) {
+            return vector;
+        }
+        vector = new ColumnVector(type, rowCount);
+        for (int j = 0; j < size; j++) {
+            int row = selected[j];
+            Tuple tuple = rows[row];
+            if (tuple == null || tuple.size() <= column || !vector.set(row, tuple.get(column))) {
+                return null;
+            }
+        }
+        columns.put(column, vector);
+        return vector;
+    }
+
+    /**
+     * Keeps the rows for which the condition is true, a null condition is false
+     */
+    public void retain(ColumnVector condition) {
+        int retained = 0;
+        for (int j = 0; j < size; j++) {
+            int row = selected[j];
+            if (!condition.nulls[row] && condition.longs[row] != 0) {
+                selected[retained++] = row;
+            }
+        }
+        size = retained;
+    }
+}
@@ -0,0 +1,642 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pig.backend.hadoop.executionengine.physicalLayer.vector;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.PhysicalOperator;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.expressionOperators.Add;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.expressionOperators.BinaryComparisonOperator;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.expressionOperators.BinaryExpressionOperator;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.expressionOperators.ConstantExpression;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.expressionOperators.Divide;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.expressionOperators.EqualToExpr;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.expressionOperators.GTOrEqualToExpr;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.expressionOperators.GreaterThanExpr;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.expressionOperators.LTOrEqualToExpr;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.expressionOperators.LessThanExpr;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.expressionOperators.Mod;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.expressionOperators.Multiply;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.expressionOperators.NotEqualToExpr;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.expressionOperators.POAnd;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.expressionOperators.POCast;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.expressionOperators.POIsNull;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.expressionOperators.PONegative;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.expressionOperators.PONot;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.expressionOperators.POOr;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.expressionOperators.POProject;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.expressionOperators.Subtract;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhysicalPlan;
+import org.apache.pig.data.DataType;
+
+/**
+ * An expression plan evaluated on whole columns of a {@link TupleBatch}, in loops over
+ * primitive arrays instead of one getNext() call per operator and per tuple.
+ *
+ * Only the projections of top level fields, the constants, the arithmetic, comparison,
+ * boolean and null operators and the casts between numbers are supported, on booleans,
+ * integers, longs, floats and doubles. The results are those of the expression operators
+ * of the plan, null propagation and division by zero included. Any other plan, UDFs in
+ * particular, is left to the operators evaluating it one tuple at a time.
+ */
+public abstract class VectorExpression {
+
+    protected final byte type;
+
+    protected VectorExpression(byte type) {
+        this.type = type;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    /**
+     * @return the values of the expression for the rows of the batch, or null if a row
+     * doesn't hold the types the expression was compiled for, the batch must then be
+     * processed one tuple at a time
+     */
+    public abstract ColumnVector evaluate(TupleBatch batch) throws ExecException;
+
+    /**
+     * @return the expression of the leaf of the plan, null if the plan isn't supported
+     */
+    public static VectorExpression compile(PhysicalPlan plan) throws ExecException {
+        List<PhysicalOperator> leaves = plan.getLeaves();
+        if (leaves == null || leaves.size() != 1) {
+            return null;
+        }
+        return compile(plan, leaves.get(0));
+    }
+
+    private static VectorExpression compile(PhysicalPlan plan, PhysicalOperator op) throws ExecException {
+        byte type = op.getResultType();
+        if (!ColumnVector.isSupported(type)) {
+            return null;
+        }
+        Class<? extends PhysicalOperator> clazz = op.getClass();
+        if (clazz.equals(POProject.class)) {
+            POProject project = (POProject) op;
+            List<PhysicalOperator> predecessors = plan.getPredecessors(op);
+            if (project.isStar() || project.isProjectToEnd() || project.getColumns().size() != 1
+                    || (predecessors != null && !predecessors.isEmpty())) {
+                return null;
+            }
+            return new Column(type, project.getColumn());
+        } else if (clazz.equals(ConstantExpression.class)) {
+            return Constant.create(type, ((ConstantExpression) op).getValue());
+        } else if (clazz.equals(Add.class) || clazz.equals(Subtract.class) || clazz.equals(Multiply.class)
+                || clazz.equals(Divide.class) || clazz.equals(Mod.class)) {
+            if (type == DataType.BOOLEAN) {
+                return null;
+            }
+            VectorExpression lhs = compile(plan, ((BinaryExpressionOperator) op).getLhs());
+            VectorExpression rhs = compile(plan, ((BinaryExpressionOperator) op).getRhs());
+            if (lhs == null || rhs == null || lhs.type != type || rhs.type != type) {
+                return null;
+            }
+            return new Arithmetic(type, Arithmetic.getOperator(clazz), lhs, rhs);
+        } else if (clazz.equals(PONegative.class)) {
+            VectorExpression expr = compile(plan, ((PONegative) op).getExpr());
+            if (type == DataType.BOOLEAN || expr == null || expr.type != type) {
+                return null;
+            }
+            return new Negative(type, expr);
+        } else if (clazz.equals(POCast.class)) {
+            List<PhysicalOperator> predecessors = plan.getPredecessors(op);
+            if (type == DataType.BOOLEAN || predecessors == null || predecessors.size() != 1) {
+                return null;
+            }
+            VectorExpression expr = compile(plan, predecessors.get(0));
+            if (expr == null || expr.type == DataType.BOOLEAN) {
+                return null;
+            }
+            return new Cast(type, expr);
+        } else if (clazz.equals(EqualToExpr.class) || clazz.equals(NotEqualToExpr.class)
+                || clazz.equals(LessThanExpr.class) || clazz.equals(LTOrEqualToExpr.class)
+                || clazz.equals(GreaterThanExpr.class) || clazz.equals(GTOrEqualToExpr.class)) {
+            byte operandType = ((BinaryComparisonOperator) op).getOperandType();
+            if (operandType == DataType.BOOLEAN) {
+                return null;
+            }
+            VectorExpression lhs = compile(plan, ((BinaryExpressionOperator) op).getLhs());
+            VectorExpression rhs = compile(plan, ((BinaryExpressionOperator) op).getRhs());
+            if (lhs == null || rhs == null || lhs.type != operandType || rhs.type != operandType) {
+                return null;
+            }
+            return new Comparison(Comparison.getOperator(clazz), lhs, rhs);
+        } else if (clazz.equals(POAnd.class) || clazz.equals(POOr.class)) {
+            VectorExpression lhs = compile(plan, ((BinaryExpressionOperator) op).getLhs());
+            VectorExpression rhs = compile(plan, ((BinaryExpressionOperator) op).getRhs());
+            if (lhs == null || rhs == null || lhs.type != DataType.BOOLEAN || rhs.type != DataType.BOOLEAN) {
+                return null;
+            }
+            return new Logical(clazz.equals(POAnd.class), lhs, rhs);
+        } else if (clazz.equals(PONot.class)) {
+            VectorExpression expr = compile(plan, ((PONot) op).getExpr());
+            if (expr == null || expr.type != DataType.BOOLEAN) {
+                return null;
+            }
+            return new Not(expr);
+        } else if (clazz.equals(POIsNull.class)) {
+            // the operators other than a projection may return a null status that POIsNull passes on
+            VectorExpression expr = compile(plan, ((POIsNull) op).getExpr());
+            if (!(expr instanceof Column)) {
+                return null;
+            }
+            return new IsNull(expr);
+        }
+        return null;
+    }
+
+    private static boolean isFloatingPoint(byte type) {
+        return type == DataType.FLOAT || type == DataType.DOUBLE;
+    }
+
+    /**
+     * A field of the input tuples
+     */
+    private static class Column extends VectorExpression {
+        private final int column;
+
+        private Column(byte type, int column) {
+            super(type);
+            this.column = column;
+        }
+
+        @Override
+        public ColumnVector evaluate(TupleBatch batch) throws ExecException {
+            return batch.getColumn(column, type);
+        }
+    }
+
+    private static class Constant extends VectorExpression {
+        private final Object value;
+        private final ColumnVector scalar;
+
+        private Constant(byte type, Object value, ColumnVector scalar) {
+            super(type);
+            this.value = value;
+            this.scalar = scalar;
+        }
+
+        private static Constant create(byte type, Object value) {
+            ColumnVector scalar = new ColumnVector(type, 1);
+            if (!scalar.set(0, value)) {
+                return null;
+            }
+            return new Constant(type, value, scalar);
+        }
+
+        @Override
+        public ColumnVector evaluate(TupleBatch batch) {
+            ColumnVector result = new ColumnVector(type, batch.getRowCount());
+            if (value == null) {
+                Arrays.fill(result.nulls, true);
+            } else if (isFloatingPoint(type)) {
+                Arrays.fill(result.doubles, scalar.doubles[0]);
+            } else {
+                Arrays.fill(result.longs, scalar.longs[0]);
+            }
+            return result;
+        }
+    }
+
+    private static class Arithmetic extends VectorExpression {
+        private static final int ADD = 0;
+        private static final int SUBTRACT = 1;
+        private static final int MULTIPLY = 2;
+        private static final int DIVIDE = 3;
+        private static final int MOD = 4;
+
+        private final int operator;
+        private final VectorExpression lhs;
+        private final VectorExpression rhs;
+
+        private Arithmetic(byte type, int operator, VectorExpression lhs, VectorExpression rhs) {
+            super(type);
+            this.operator = operator;
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        private static int getOperator(Class<? extends PhysicalOperator> clazz) {
+            if (clazz.equals(Add.class)) {
+                return ADD;
+            } else if (clazz.equals(Subtract.class)) {
+                return SUBTRACT;
+            } else if (clazz.equals(Multiply.class)) {
+                return MULTIPLY;
+            } else if (clazz.equals(Divide.class)) {
+                return DIVIDE;
+            }
+            return MOD;
+        }
+
+        @Override
+        public ColumnVector evaluate(TupleBatch batch) throws ExecException {
+            ColumnVector left = lhs.evaluate(batch);
+            if (left == null) {
+                return null;
+            }
+            ColumnVector right = rhs.evaluate(batch);
+            if (right == null) {
+                return null;
+            }
+            ColumnVector result = new ColumnVector(type, batch.getRowCount());
+            int[] selected = batch.getSelected();
+            int size = batch.size();
+            boolean[] nulls = result.nulls;
+            for (int j = 0; j < size; j++) {
+                int row = selected[j];
+                nulls[row] = left.nulls[row] || right.nulls[row];
+            }
+            if (isFloatingPoint(type)) {
+                if (operator == MOD) {
+                    return null;
+                }
+                evaluateDoubles(selected, size, left.doubles, right.doubles, result);
+                if (type == DataType.FLOAT) {
+                    // computed in double precision, the rounding to float gives the float result
+                    double[] values = result.doubles;
+                    for (int j = 0; j < size; j++) {
+                        int row = selected[j];
+                        values[row] = (float) values[row];
+                    }
+                }
+            } else {
+                if (!evaluateLongs(selected, size, left.longs, right.longs, result)) {
+                    return null;
+                }
+                if (type == DataType.INTEGER) {
+                    long[] values = result.longs;
+                    for (int j = 0; j < size; j++) {
+                        int row = selected[j];
+                        values[row] = (int) values[row];
+                    }
+                }
+            }
+            return result;
+        }
+
+        private void evaluateDoubles(int[] selected, int size, double[] a, double[] b, ColumnVector result) {
+            double[] values = result.doubles;
+            boolean[] nulls = result.nulls;
+            switch (operator) {
+            case ADD:
+                for (int j = 0; j < size; j++) {
+                    int row = selected[j];
+                    values[row] = a[row] + b[row];
+                }
+                break;
+            case SUBTRACT:
+                for (int j = 0; j < size; j++) {
+                    int row = selected[j];
+                    values[row] = a[row] - b[row];
+                }
+                break;
+            case MULTIPLY:
+                for (int j = 0; j < size; j++) {
+                    int row = selected[j];
+                    values[row] = a[row] * b[row];
+                }
+                break;
+            default:
+                boolean isFloat = type == DataType.FLOAT;
+                for (int j = 0; j < size; j++) {
+                    int row = selected[j];
+                    // as Divide, only a positive zero gives null
+                    if (isFloat ? Float.floatToIntBits((float) b[row]) == 0 : Double.doubleToLongBits(b[row]) == 0) {
+                        nulls[row] = true;
+                    } else {
+                        values[row] = a[row] / b[row];
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return false on a modulo by zero, which Mod doesn't handle
+         */
+        private boolean evaluateLongs(int[] selected, int size, long[] a, long[] b, ColumnVector result) {
+            long[] values = result.longs;
+            boolean[] nulls = result.nulls;
+            switch (operator) {
+            case ADD:
+                for (int j = 0; j < size; j++) {
+                    int row = selected[j];
+                    values[row] = a[row] + b[row];
+                }
+                break;
+            case SUBTRACT:
+                for (int j = 0; j < size; j++) {
+                    int row = selected[j];
+                    values[row] = a[row] - b[row];
+                }
+                break;
+            case MULTIPLY:
+                for (int j = 0; j < size; j++) {
+                    int row = selected[j];
+                    values[row] = a[row] * b[row];
+                }
+                break;
+            case DIVIDE:
+                for (int j = 0; j < size; j++) {
+                    int row = selected[j];
+                    if (b[row] == 0) {
+                        nulls[row] = true;
+                    } else if (!nulls[row]) {
+                        values[row] = a[row] / b[row];
+                    }
+                }
+                break;
+            default:
+                for (int j = 0; j < size; j++) {
+                    int row = selected[j];
+                    if (nulls[row]) {
+                        continue;
+                    }
+                    if (b[row] == 0) {
+                        return false;
+                    }
+                    values[row] = a[row] % b[row];
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class Negative extends VectorExpression {
+        private final VectorExpression expr;
+
+        private Negative(byte type, VectorExpression expr) {
+            super(type);
+            this.expr = expr;
+        }
+
+        @Override
+        public ColumnVector evaluate(TupleBatch batch) throws ExecException {
+            ColumnVector input = expr.evaluate(batch);
+            if (input == null) {
+                return null;
+            }
+            ColumnVector result = new ColumnVector(type, batch.getRowCount());
+            int[] selected = batch.getSelected();
+            int size = batch.size();
+            boolean floatingPoint = isFloatingPoint(type);
+            for (int j = 0; j < size; j++) {
+                int row = selected[j];
+                result.nulls[row] = input.nulls[row];
+                if (floatingPoint) {
+                    result.doubles[row] = -input.doubles[row];
+                } else {
+                    // as in Java, the negation of the smallest int is itself
+                    result.longs[row] = type == DataType.INTEGER ? -(int) input.longs[row] : -input.longs[row];
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * A cast between numbers, with the narrowing of the Java casts as POCast
+     */
+    private static class Cast extends VectorExpression {
+        private final VectorExpression expr;
+
+        private Cast(byte type, VectorExpression expr) {
+            super(type);
+            this.expr = expr;
+        }
+
+        @Override
+        public ColumnVector evaluate(TupleBatch batch) throws ExecException {
+            ColumnVector input = expr.evaluate(batch);
+            if (input == null) {
+                return null;
+            }
+            ColumnVector result = new ColumnVector(type, batch.getRowCount());
+            int[] selected = batch.getSelected();
+            int size = batch.size();
+            boolean fromFloatingPoint = isFloatingPoint(input.getType());
+            for (int j = 0; j < size; j++) {
+                int row = selected[j];
+                result.nulls[row] = input.nulls[row];
+                switch (type) {
+                case DataType.INTEGER:
+                    result.longs[row] = fromFloatingPoint ? (int) input.doubles[row] : (int) input.longs[row];
+                    break;
+                case DataType.LONG:
+                    result.longs[row] = fromFloatingPoint ? (long) input.doubles[row] : input.longs[row];
+                    break;
+                case DataType.FLOAT:
+                    result.doubles[row] = fromFloatingPoint ? (float) input.doubles[row] : (float) input.longs[row];
+                    break;
+                default:
+                    result.doubles[row] = fromFloatingPoint ? input.doubles[row] : (double) input.longs[row];
+                }
+            }
+            return result;
+        }
+    }
+
+    private static class Comparison extends VectorExpression {
+        private static final int EQUAL = 0;
+        private static final int NOT_EQUAL = 1;
+        private static final int LESS = 2;
+        private static final int LESS_OR_EQUAL = 3;
+        private static final int GREATER = 4;
+        private static final int GREATER_OR_EQUAL = 5;
+
+        private final int operator;
+        private final VectorExpression lhs;
+        private final VectorExpression rhs;
+
+        private Comparison(int operator, VectorExpression lhs, VectorExpression rhs) {
+            super(DataType.BOOLEAN);
+            this.operator = operator;
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        private static int getOperator(Class<? extends PhysicalOperator> clazz) {
+            if (clazz.equals(EqualToExpr.class)) {
+                return EQUAL;
+            } else if (clazz.equals(NotEqualToExpr.class)) {
+                return NOT_EQUAL;
+            } else if (clazz.equals(LessThanExpr.class)) {
+                return LESS;
+            } else if (clazz.equals(LTOrEqualToExpr.class)) {
+                return LESS_OR_EQUAL;
+            } else if (clazz.equals(GreaterThanExpr.class)) {
+                return GREATER;
+            }
+            return GREATER_OR_EQUAL;
+        }
+
+        @Override
+        public ColumnVector evaluate(TupleBatch batch) throws ExecException {
+            ColumnVector left = lhs.evaluate(batch);
+            if (left == null) {
+                return null;
+            }
+            ColumnVector right = rhs.evaluate(batch);
+            if (right == null) {
+                return null;
+            }
+            ColumnVector result = new ColumnVector(type, batch.getRowCount());
+            int[] selected = batch.getSelected();
+            int size = batch.size();
+            long[] values = result.longs;
+            boolean floatingPoint = isFloatingPoint(left.getType());
+            for (int j = 0; j < size; j++) {
+                int row = selected[j];
+                result.nulls[row] = left.nulls[row] || right.nulls[row];
+                // the order of compareTo(), NaN and -0.0 included
+                int cmp;
+                if (floatingPoint) {
+                    cmp = Double.compare(left.doubles[row], right.doubles[row]);
+                } else {
+                    long a = left.longs[row];
+                    long b = right.longs[row];
+                    cmp = a < b ? -1 : (a == b ? 0 : 1);
+                }
+                boolean value;
+                switch (operator) {
+                case EQUAL:
+                    value = cmp == 0;
+                    break;
+                case NOT_EQUAL:
+                    value = cmp != 0;
+                    break;
+                case LESS:
+                    value = cmp < 0;
+                    break;
+                case LESS_OR_EQUAL:
+                    value = cmp <= 0;
+                    break;
+                case GREATER:
+                    value = cmp > 0;
+                    break;
+                default:
+                    value = cmp >= 0;
+                }
+                values[row] = value ? 1 : 0;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * AND and OR, with the truth tables of POAnd and POOr for nulls
+     */
+    private static class Logical extends VectorExpression {
+        private final boolean and;
+        private final VectorExpression lhs;
+        private final VectorExpression rhs;
+
+        private Logical(boolean and, VectorExpression lhs, VectorExpression rhs) {
+            super(DataType.BOOLEAN);
+            this.and = and;
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        @Override
+        public ColumnVector evaluate(TupleBatch batch) throws ExecException {
+            ColumnVector left = lhs.evaluate(batch);
+            if (left == null) {
+                return null;
+            }
+            ColumnVector right = rhs.evaluate(batch);
+            if (right == null) {
+                return null;
+            }
+            ColumnVector result = new ColumnVector(type, batch.getRowCount());
+            int[] selected = batch.getSelected();
+            int size = batch.size();
+            // the value deciding the result whatever the other side is, false for AND, true for OR
+            long decisive = and ? 0 : 1;
+            for (int j = 0; j < size; j++) {
+                int row = selected[j];
+                if ((!left.nulls[row] && left.longs[row] == decisive)
+                        || (!right.nulls[row] && right.longs[row] == decisive)) {
+                    result.longs[row] = decisive;
+                } else if (left.nulls[row] || right.nulls[row]) {
+                    result.nulls[row] = true;
+                } else {
+                    result.longs[row] = 1 - decisive;
+                }
+            }
+            return result;
+        }
+    }
+
+    private static class Not extends VectorExpression {
+        private final VectorExpression expr;
+
+        private Not(VectorExpression expr) {
+            super(DataType.BOOLEAN);
+            this.expr = expr;
+        }
+
+        @Override
+        public ColumnVector evaluate(TupleBatch batch) throws ExecException {
+            ColumnVector input = expr.evaluate(batch);
+            if (input == null) {
+                return null;
+            }
+            ColumnVector result = new ColumnVector(type, batch.getRowCount());
+            int[] selected = batch.getSelected();
+            int size = batch.size();
+            for (int j = 0; j < size; j++) {
+                int row = selected[j];
+                result.nulls[row] = input.nulls[row];
+                result.longs[row] = 1 - input.longs[row];
+            }
+            return result;
+        }
+    }
+
+    private static class IsNull extends VectorExpression {
+        private final VectorExpression expr;
+
+        private IsNull(VectorExpression expr) {
+            super(DataType.BOOLEAN);
+            this.expr = expr;
+        }
+
+        @Override
+        public ColumnVector evaluate(TupleBatch batch) throws ExecException {
+            ColumnVector input = expr.evaluate(batch);
+            if (input == null) {
+                return null;
+            }
+            ColumnVector result = new ColumnVector(type, batch.getRowCount());
+            int[] selected = batch.getSelected();
+            int size = batch.size();
+            for (int j = 0; j < size; j++) {
+                int row = selected[j];
+                result.longs[row] = input.nulls[row] ? 1 : 0;
+            }
+            return result;
+        }
+    }
+}
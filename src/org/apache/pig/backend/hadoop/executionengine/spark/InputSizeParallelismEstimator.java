@@ -0,0 +1,128 @@
+package org.apache.pig.backend.hadoop.executionengine.spark;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.InputSizeReducerEstimator;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.PigReducerEstimator;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.PhysicalOperator;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhysicalPlan;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POFilter;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POLimit;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POLoad;
+import org.apache.pig.impl.plan.OperatorKey;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Estimates the number of partitions of a shuffle from the size of the data it receives,
+ * with the same properties as {@link InputSizeReducerEstimator}:
+ * <ul>
+ *     <li>pig.exec.reducers.bytes.per.reducer -
+ *     how many bytes of input per partition (default is 1000*1000*1000)</li>
+ *     <li>pig.exec.reducers.max -
+ *     constrain the maximum number of partitions (default is 999)</li>
+ * </ul>
+ * The size of the data is the size of the inputs loaded upstream of the shuffle, as reported by
+ * loaders implementing LoadMetadata or else by the filesystem, scaled down by the operators
+ * between the loads and the shuffle:
+ * <ul>
+ *     <li>pig.spark.parallelism.filter.selectivity -
+ *     fraction of its input kept by each FILTER (default is 0.5)</li>
+ *     <li>a LIMIT keeps a negligible part of its input</li>
+ * </ul>
+ * e.g. in
+ * <pre>
+ * a = load '/data/a';
+ * b = filter a by $1 > 0;
+ * c = group b by $0;
+ * </pre>
+ * if /data/a is 4*1000*1000*1000 bytes, the group gets 4*0.5=2 partitions.
+ */
+public class InputSizeParallelismEstimator implements SparkParallelismEstimator {
+    private static final Log log = LogFactory.getLog(InputSizeParallelismEstimator.class);
+
+    public static final String FILTER_SELECTIVITY_PARAM = "pig.spark.parallelism.filter.selectivity";
+    public static final float DEFAULT_FILTER_SELECTIVITY = 0.5f;
+
+    @Override
+    public int estimateParallelism(PhysicalPlan plan, PhysicalOperator shuffle, Configuration conf)
+            throws IOException {
+        long bytesPerPartition = conf.getLong(PigReducerEstimator.BYTES_PER_REDUCER_PARAM,
+                PigReducerEstimator.DEFAULT_BYTES_PER_REDUCER);
+        int maxPartitions = conf.getInt(PigReducerEstimator.MAX_REDUCER_COUNT_PARAM,
+                PigReducerEstimator.DEFAULT_MAX_REDUCER_COUNT_PARAM);
+        float filterSelectivity = conf.getFloat(FILTER_SELECTIVITY_PARAM, DEFAULT_FILTER_SELECTIVITY);
+
+        long inputSize = estimateOutputSize(plan, shuffle, conf, new Job(conf), filterSelectivity,
+                Maps.<OperatorKey, Long>newHashMap());
+
+        log.info("BytesPerPartition=" + bytesPerPartition + " maxPartitions=" + maxPartitions
+                + " estimatedInputSize=" + inputSize + " for " + shuffle);
+
+        // if inputSize == -1, we couldn't get the input size so we can't estimate.
+        if (inputSize == -1) { return -1; }
+
+        int partitions = (int)Math.ceil((double)inputSize / bytesPerPartition);
+        partitions = Math.max(1, partitions);
+        partitions = Math.min(maxPartitions, partitions);
+
+        return partitions;
+    }
+
+    /**
+     * @return the estimated size in bytes of the output of the operator, or -1 if none of the
+     * inputs it depends on has a known size. The sizes already estimated, e.g. of an operator
+     * upstream of a split read again by another of its branches, are taken from estimatedSizes.
+     */
+    private static long estimateOutputSize(PhysicalPlan plan, PhysicalOperator physicalOperator,
+            Configuration conf, Job job, float filterSelectivity, Map<OperatorKey, Long> estimatedSizes)
+            throws IOException {
+        Long estimatedSize = estimatedSizes.get(physicalOperator.getOperatorKey());
+        if (estimatedSize == null) {
+            estimatedSize = doEstimateOutputSize(plan, physicalOperator, conf, job, filterSelectivity,
+                    estimatedSizes);
+            estimatedSizes.put(physicalOperator.getOperatorKey(), estimatedSize);
+        }
+        return estimatedSize;
+    }
+
+    private static long doEstimateOutputSize(PhysicalPlan plan, PhysicalOperator physicalOperator,
+            Configuration conf, Job job, float filterSelectivity, Map<OperatorKey, Long> estimatedSizes)
+            throws IOException {
+        if (physicalOperator instanceof POLoad) {
+            return InputSizeReducerEstimator.getTotalInputFileSize(conf,
+                    Collections.singletonList((POLoad) physicalOperator), job);
+        }
+        List<PhysicalOperator> predecessors = plan.getPredecessors(physicalOperator);
+        if (predecessors == null) {
+            return -1;
+        }
+        if (physicalOperator instanceof POLimit) {
+            return 0;
+        }
+        long size = 0;
+        boolean foundSize = false;
+        for (PhysicalOperator predecessor : predecessors) {
+            long predecessorSize = estimateOutputSize(plan, predecessor, conf, job, filterSelectivity,
+                    estimatedSizes);
+            if (predecessorSize > -1) {
+                foundSize = true;
+                size += predecessorSize;
+            }
+        }
+        if (!foundSize) {
+            return -1;
+        }
+        if (physicalOperator instanceof POFilter) {
+            size = (long)(size * filterSelectivity);
+        }
+        return size;
+    }
+}
@@ -0,0 +1,134 @@
+package org.apache.pig.backend.hadoop.executionengine.spark;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.pig.backend.hadoop.executionengine.spark.converter.SerializedKey;
+import org.apache.pig.data.BinInterSedes;
+import org.apache.pig.data.BinSedesTuple;
+import org.apache.pig.data.DataByteArray;
+import org.apache.pig.data.DefaultTuple;
+
+import spark.KryoRegistrator;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.SerializationException;
+import com.esotericsoftware.kryo.Serializer;
+
+/**
+ * Registers Pig's data types with the Kryo serializer used by Spark for shuffles and
+ * serialized caches, so that they are written in the compact {@link BinInterSedes} format
+ * instead of field by field.
+ *
+ * Set up by {@link SparkLauncher} through the spark.serializer and spark.kryo.registrator
+ * properties.
+ */
+public class PigKryoRegistrator implements KryoRegistrator {
+
+    @Override
+    public void registerClasses(Kryo kryo) {
+        BinInterSedesSerializer serializer = new BinInterSedesSerializer();
+        kryo.register(BinSedesTuple.class, serializer);
+        kryo.register(DefaultTuple.class, serializer);
+        kryo.register(DataByteArray.class, serializer);
+        kryo.register(SerializedKey.class, new SerializedKeySerializer());
+    }
+
+    /**
+     * Writes a datum with BinInterSedes. Tuples are read back as BinSedesTuples or SchemaTuples.
+     */
+    private static class BinInterSedesSerializer extends Serializer {
+
+        private static final BinInterSedes bis = new BinInterSedes();
+
+        @Override
+        public void writeObjectData(ByteBuffer buffer, Object object) {
+            try {
+                bis.writeDatum(new DataOutputStream(new ByteBufferOutputStream(buffer)), object);
+            } catch (IOException e) {
+                throw new SerializationException("Couldn't serialize " + object, e);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public <T> T readObjectData(ByteBuffer buffer, Class<T> type) {
+            try {
+                return (T) bis.readDatum(new DataInputStream(new ByteBufferInputStream(buffer)));
+            } catch (IOException e) {
+                throw new SerializationException("Couldn't deserialize " + type.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * Keys that are already serialized, such as the ORDER BY keys, are written as is.
+     */
+    private static class SerializedKeySerializer extends Serializer {
+
+        @Override
+        public void writeObjectData(ByteBuffer buffer, Object object) {
+            byte[] bytes = ((SerializedKey) object).getBytes();
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public <T> T readObjectData(ByteBuffer buffer, Class<T> type) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            return (T) new SerializedKey(bytes);
+        }
+    }
+
+    private static class ByteBufferOutputStream extends OutputStream {
+
+        private final ByteBuffer buffer;
+
+        public ByteBufferOutputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void write(int b) {
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            buffer.put(b, off, len);
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            return buffer.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+    }
+}
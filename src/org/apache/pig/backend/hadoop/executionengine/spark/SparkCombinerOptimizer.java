@@ -0,0 +1,163 @@
+package org.apache.pig.backend.hadoop.executionengine.spark;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.pig.PigConfiguration;
+import org.apache.pig.PigException;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.CombinerOptimizer;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.MapReduceOper;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.plans.MROperPlan;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.PhysicalOperator;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhysicalPlan;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POCombinerPackage;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POGlobalRearrange;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POLocalRearrange;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POPackage;
+import org.apache.pig.impl.PigContext;
+import org.apache.pig.impl.plan.CompilationMessageCollector.MessageType;
+import org.apache.pig.impl.plan.OperatorKey;
+import org.apache.pig.impl.plan.PlanException;
+import org.apache.pig.impl.plan.VisitorException;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Introduces map-side combining of algebraic UDFs in the physical plan executed by Spark.
+ *
+ * The analysis itself is done by the MapReduce {@link CombinerOptimizer}: we run it over the
+ * MROperPlan compiled from the physical plan (the MR operators share their physical operators
+ * with it), then copy the resulting map and reduce side changes back into the physical plan.
+ * The combine plan of each job is returned keyed by the POGlobalRearrange it belongs to, so
+ * that the GlobalRearrangeConverter can run it with combineByKey.
+ */
+public class SparkCombinerOptimizer {
+
+    private static final Log LOG = LogFactory.getLog(SparkCombinerOptimizer.class);
+
+    private final PhysicalPlan physicalPlan;
+    private final MROperPlan mrPlan;
+    private final PigContext pigContext;
+
+    public SparkCombinerOptimizer(PhysicalPlan physicalPlan, MROperPlan mrPlan, PigContext pigContext) {
+        this.physicalPlan = physicalPlan;
+        this.mrPlan = mrPlan;
+        this.pigContext = pigContext;
+    }
+
+    /**
+     * Rewrites the physical plan to use combiners where possible. This must run before the
+     * POPackageAnnotator so that the new packages get their key info.
+     * @return the combine plans, keyed by the POGlobalRearrange they apply to
+     */
+    public Map<OperatorKey, PhysicalPlan> optimize() throws VisitorException, PlanException {
+        Map<OperatorKey, PhysicalPlan> combinePlans = Maps.newHashMap();
+        String noCombiner = pigContext.getProperties().getProperty(PigConfiguration.PROP_NO_COMBINER);
+        if (pigContext.inIllustrator || "true".equals(noCombiner)) {
+            return combinePlans;
+        }
+
+        // Only hand the jobs that map to a plain LR -> GR -> Package chain in the physical plan
+        // to the CombinerOptimizer: everything it modifies must be mirrored on our side.
+        MROperPlan combinable = new MROperPlan();
+        Map<MapReduceOper, POLocalRearrange> rearranges = Maps.newHashMap();
+        Map<MapReduceOper, POPackage> packages = Maps.newHashMap();
+        for (MapReduceOper mr : mrPlan) {
+            POLocalRearrange rearrange = getMapLeafRearrange(mr);
+            POPackage pack = getReduceRootPackage(mr);
+            if (rearrange != null && pack != null && isGroupChain(rearrange, pack)) {
+                combinable.add(mr);
+                rearranges.put(mr, rearrange);
+                packages.put(mr, pack);
+            }
+        }
+        if (combinable.size() == 0) {
+            return combinePlans;
+        }
+
+        // We do not have a converter for POPartialAgg, so in-map aggregation stays off
+        CombinerOptimizer co = new CombinerOptimizer(combinable, false);
+        co.visit();
+        co.getMessageCollector().logMessages(MessageType.Warning, false, LOG);
+
+        for (MapReduceOper mr : combinable) {
+            if (mr.combinePlan.isEmpty()) {
+                continue;
+            }
+            POGlobalRearrange globalRearrange = patchPhysicalPlan(mr, rearranges.get(mr), packages.get(mr));
+            LOG.info("Using combiner for " + globalRearrange);
+            combinePlans.put(globalRearrange.getOperatorKey(), mr.combinePlan);
+        }
+        return combinePlans;
+    }
+
+    private POLocalRearrange getMapLeafRearrange(MapReduceOper mr) {
+        List<PhysicalOperator> mapLeaves = mr.mapPlan.getLeaves();
+        if (mapLeaves == null || mapLeaves.size() != 1
+                || !POLocalRearrange.class.equals(mapLeaves.get(0).getClass())) {
+            return null;
+        }
+        return (POLocalRearrange) mapLeaves.get(0);
+    }
+
+    private POPackage getReduceRootPackage(MapReduceOper mr) {
+        if (mr.reducePlan.isEmpty() || !mr.combinePlan.isEmpty()) {
+            return null;
+        }
+        List<PhysicalOperator> reduceRoots = mr.reducePlan.getRoots();
+        if (reduceRoots.size() != 1 || !POPackage.class.equals(reduceRoots.get(0).getClass())) {
+            return null;
+        }
+        return (POPackage) reduceRoots.get(0);
+    }
+
+    private boolean isGroupChain(POLocalRearrange rearrange, POPackage pack) {
+        if (physicalPlan.getOperator(rearrange.getOperatorKey()) != rearrange) {
+            return false;
+        }
+        List<PhysicalOperator> lrSuccessors = physicalPlan.getSuccessors(rearrange);
+        if (lrSuccessors == null || lrSuccessors.size() != 1
+                || !(lrSuccessors.get(0) instanceof POGlobalRearrange)) {
+            return false;
+        }
+        PhysicalOperator globalRearrange = lrSuccessors.get(0);
+        if (physicalPlan.getPredecessors(globalRearrange).size() != 1) {
+            return false;
+        }
+        List<PhysicalOperator> grSuccessors = physicalPlan.getSuccessors(globalRearrange);
+        return grSuccessors != null && grSuccessors.size() == 1 && grSuccessors.get(0) == pack;
+    }
+
+    /**
+     * The CombinerOptimizer turned the map plan into ... -> preCombinerLR -> mapForEach -> mapLR
+     * and replaced the reduce package with a POCombinerPackage. Do the same in the physical plan.
+     */
+    private POGlobalRearrange patchPhysicalPlan(MapReduceOper mr, POLocalRearrange rearrange,
+            POPackage pack) throws PlanException {
+        POGlobalRearrange globalRearrange = (POGlobalRearrange) physicalPlan.getSuccessors(rearrange).get(0);
+
+        PhysicalOperator mapRearrange = mr.mapPlan.getLeaves().get(0);
+        PhysicalOperator mapForEach = mr.mapPlan.getPredecessors(mapRearrange).get(0);
+        PhysicalOperator preCombinerRearrange = mr.mapPlan.getPredecessors(mapForEach).get(0);
+
+        PhysicalOperator reducePack = mr.reducePlan.getRoots().get(0);
+        if (!(reducePack instanceof POCombinerPackage)) {
+            int errCode = 2018;
+            String msg = "Internal error. Unable to introduce the combiner for optimization.";
+            throw new PlanException(msg, errCode, PigException.BUG);
+        }
+
+        physicalPlan.replace(rearrange, preCombinerRearrange);
+        physicalPlan.disconnect(preCombinerRearrange, globalRearrange);
+        physicalPlan.add(mapForEach);
+        physicalPlan.add(mapRearrange);
+        physicalPlan.connect(preCombinerRearrange, mapForEach);
+        physicalPlan.connect(mapForEach, mapRearrange);
+        physicalPlan.connect(mapRearrange, globalRearrange);
+
+        physicalPlan.replace(pack, reducePack);
+        return globalRearrange;
+    }
+}
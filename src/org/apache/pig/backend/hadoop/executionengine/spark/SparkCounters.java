@@ -0,0 +1,449 @@
+package org.apache.pig.backend.hadoop.executionengine.spark;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.PhysicalOperator;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhysicalPlan;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.util.OperatorProfiler;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.util.PlanHelper;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.InterSedes;
+import org.apache.pig.data.InterSedesFactory;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.impl.plan.OperatorKey;
+import org.apache.pig.impl.plan.VisitorException;
+
+import scala.collection.Iterator;
+import scala.collection.JavaConversions;
+import scala.runtime.AbstractFunction1;
+import spark.Accumulator;
+import spark.AccumulatorParam;
+import spark.RDD;
+import spark.storage.StorageLevel;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Counts the records going through operators of the physical plan with Spark accumulators,
+ * the Spark counterpart of the record counters of a MapReduce job.
+ *
+ * Each task counts its records locally and adds the total to the accumulator when its
+ * partition is exhausted, the driver reads the totals once the job is done.
+ *
+ * The actions run while converting the plan, like the samples of ORDER BY or the replicated
+ * inputs of a fragment-replicate join, read their inputs through {@link #uncounted(RDD)}: the
+ * records are counted when the store jobs read them again, not once more for every action.
+ * Their shuffle outputs are reused by the store jobs, so the records counted before a shuffle
+ * are counted once either way. A persisted RDD is computed only once though, so it counts its
+ * inputs even inside these actions, see {@link #persist(RDD, StorageLevel)}.
+ *
+ * The records sent to a shuffle are counted with their size in the binary format of Pig, the
+ * size of the keys and values written by the map tasks of MapReduce. Measuring it serializes
+ * these records once more, so only the shuffles are measured.
+ *
+ * A stage is timed as the sum of the times its tasks take to go through their partition, from
+ * the start of the task to the last record sent to the shuffle or to the store ending the stage,
+ * as the slot time of the tasks of MapReduce.
+ *
+ * The operator profile is kept in accumulators as well, one per counter of each operator. The
+ * profilers are not serialized with the operators: the inputs of each converted operator set
+ * them on the operators of the task, see {@link #withProfilers(List)}, and they are flushed when
+ * these inputs or the stage are exhausted.
+ */
+@SuppressWarnings({ "serial"})
+public class SparkCounters {
+
+    // set in the task threads while an action run at conversion time pulls the records
+    private static final ThreadLocal<Boolean> UNCOUNTED = new ThreadLocal<Boolean>();
+
+    private final Map<OperatorKey, Accumulator<Long>> counters = Maps.newHashMap();
+    private final Map<OperatorKey, Accumulator<Long>> byteCounters = Maps.newHashMap();
+    private final Map<OperatorKey, Accumulator<Long>> stageCounters = Maps.newHashMap();
+    private final Map<String, Accumulator<Long>> profileCounters = Maps.newHashMap();
+    // the operators of the profiled plan and their accumulators by operator key
+    private final List<PhysicalOperator> profiledOperators = Lists.newArrayList();
+    private final HashMap<String, Map<String, Accumulator<Long>>> profileAccumulators = Maps.newHashMap();
+
+    // the profilers set on the operators of the task running in the thread
+    private static final ThreadLocal<List<OperatorProfiler>> TASK_PROFILERS = new ThreadLocal<List<OperatorProfiler>>();
+
+    /**
+     * @return the given RDD, counting its records for the operator
+     */
+    public RDD<Tuple> count(RDD<Tuple> rdd, PhysicalOperator physicalOperator) {
+        return rdd.mapPartitions(new CountFunction(getCounter(counters, physicalOperator), null, null),
+                SparkUtil.getManifest(Tuple.class));
+    }
+
+    /**
+     * @return the given RDDs read by the operator ending a stage, counting their records and the
+     * time of the stage for the operator
+     */
+    public List<RDD<Tuple>> countStage(List<RDD<Tuple>> rdds, PhysicalOperator physicalOperator) {
+        return count(rdds, physicalOperator, false);
+    }
+
+    /**
+     * @return the given RDDs shuffled by the operator, counting their records, their bytes and the
+     * time of the stage sending them to the shuffle for the operator
+     */
+    public List<RDD<Tuple>> countShuffle(List<RDD<Tuple>> rdds, PhysicalOperator physicalOperator) {
+        return count(rdds, physicalOperator, true);
+    }
+
+    private List<RDD<Tuple>> count(List<RDD<Tuple>> rdds, PhysicalOperator physicalOperator, boolean shuffle) {
+        CountFunction countFunction = new CountFunction(getCounter(counters, physicalOperator),
+                shuffle ? getCounter(byteCounters, physicalOperator) : null,
+                getCounter(stageCounters, physicalOperator));
+        List<RDD<Tuple>> counted = Lists.newArrayList();
+        for (RDD<Tuple> rdd : rdds) {
+            counted.add(rdd.mapPartitions(countFunction, SparkUtil.getManifest(Tuple.class)));
+        }
+        return counted;
+    }
+
+    /**
+     * @return the given RDD, for an action run while converting the plan: the records it reads
+     * are not counted, the store jobs count them
+     */
+    public static RDD<Tuple> uncounted(RDD<Tuple> rdd) {
+        return rdd.mapPartitions(new CountingScopeFunction(true), SparkUtil.getManifest(Tuple.class));
+    }
+
+    /**
+     * Persists the given RDD, counting its inputs when it is computed even inside an action run
+     * while converting the plan, as the store jobs will read the persisted records instead
+     * @return the persisted RDD
+     */
+    public static RDD<Tuple> persist(RDD<Tuple> rdd, StorageLevel storageLevel) {
+        RDD<Tuple> counted = rdd.mapPartitions(new CountingScopeFunction(false),
+                SparkUtil.getManifest(Tuple.class));
+        counted.persist(storageLevel);
+        return counted;
+    }
+
+    /**
+     * @return the number of records counted so far for the operator, 0 if it is not counted
+     */
+    public long getValue(PhysicalOperator physicalOperator) {
+        return getValue(counters, physicalOperator);
+    }
+
+    /**
+     * @return the bytes counted so far for the shuffle operator, 0 if it is not counted
+     */
+    public long getBytes(PhysicalOperator physicalOperator) {
+        return getValue(byteCounters, physicalOperator);
+    }
+
+    /**
+     * @return the time in milliseconds counted so far for the stage ending with the operator, 0
+     * if it is not counted
+     */
+    public long getStageMillis(PhysicalOperator physicalOperator) {
+        return getValue(stageCounters, physicalOperator);
+    }
+
+    /**
+     * Profiles the operators of the plan and of its nested plans, see {@link OperatorProfiler}.
+     * The tasks profile the operators once their inputs go through {@link #withProfilers(List)}.
+     */
+    public void profile(PhysicalPlan plan) throws VisitorException {
+        for (PhysicalOperator physicalOperator : PlanHelper.getPhysicalOperators(plan, PhysicalOperator.class)) {
+            String operatorKey = physicalOperator.getOperatorKey().toString();
+            Map<String, Accumulator<Long>> accumulators = Maps.newHashMap();
+            for (String counter : new String[] { OperatorProfiler.CALLS, OperatorProfiler.RECORDS,
+                    OperatorProfiler.MICROSECS }) {
+                String counterName = OperatorProfiler.getCounterName(operatorKey, counter);
+                Accumulator<Long> accumulator = new Accumulator<Long>(0L, LongAccumulatorParam.INSTANCE);
+                profileCounters.put(counterName, accumulator);
+                accumulators.put(counterName, accumulator);
+            }
+            profiledOperators.add(physicalOperator);
+            profileAccumulators.put(operatorKey, accumulators);
+        }
+    }
+
+    /**
+     * @return the given RDDs, read by an operator of the plan: when the plan is profiled, they
+     * set the profilers of the operators of the task before the operator reads them. The
+     * operators of a task are deserialized together, the ones the functions of the task run are
+     * the ones these RDDs profile.
+     */
+    public List<RDD<Tuple>> withProfilers(List<RDD<Tuple>> rdds) {
+        if (profiledOperators.isEmpty()) {
+            return rdds;
+        }
+        ProfileFunction profileFunction = new ProfileFunction(profiledOperators, profileAccumulators);
+        List<RDD<Tuple>> profiled = Lists.newArrayList();
+        for (RDD<Tuple> rdd : rdds) {
+            profiled.add(rdd.mapPartitions(profileFunction, SparkUtil.getManifest(Tuple.class)));
+        }
+        return profiled;
+    }
+
+    /**
+     * Adds the records counted by the profilers of the task since their last timed call
+     */
+    private static void flushProfilers() {
+        List<OperatorProfiler> profilers = TASK_PROFILERS.get();
+        if (profilers != null) {
+            for (OperatorProfiler profiler : profilers) {
+                profiler.flush();
+            }
+        }
+    }
+
+    /**
+     * @return the counters of the operator profile so far, empty if the plan is not profiled
+     */
+    public Map<String, Long> getProfile() {
+        Map<String, Long> profile = Maps.newTreeMap();
+        for (Map.Entry<String, Accumulator<Long>> counter : profileCounters.entrySet()) {
+            profile.put(counter.getKey(), counter.getValue().value());
+        }
+        return profile;
+    }
+
+    private static long getValue(Map<OperatorKey, Accumulator<Long>> counters, PhysicalOperator physicalOperator) {
+        Accumulator<Long> counter = counters.get(physicalOperator.getOperatorKey());
+        return counter == null ? 0 : counter.value();
+    }
+
+    private static Accumulator<Long> getCounter(Map<OperatorKey, Accumulator<Long>> counters,
+            PhysicalOperator physicalOperator) {
+        Accumulator<Long> counter = counters.get(physicalOperator.getOperatorKey());
+        if (counter == null) {
+            counter = new Accumulator<Long>(0L, LongAccumulatorParam.INSTANCE);
+            counters.put(physicalOperator.getOperatorKey(), counter);
+        }
+        return counter;
+    }
+
+    private static class LongAccumulatorParam implements AccumulatorParam<Long> {
+
+        private static final LongAccumulatorParam INSTANCE = new LongAccumulatorParam();
+
+        @Override
+        public Long addAccumulator(Long t1, Long t2) {
+            return t1 + t2;
+        }
+
+        @Override
+        public Long addInPlace(Long r1, Long r2) {
+            return r1 + r2;
+        }
+
+        @Override
+        public Long zero(Long initialValue) {
+            return 0L;
+        }
+    }
+
+    private static class AccumulatorProfiler extends OperatorProfiler {
+
+        private final Map<String, Accumulator<Long>> accumulators;
+
+        public AccumulatorProfiler(OperatorKey operatorKey, Map<String, Accumulator<Long>> accumulators) {
+            super(operatorKey);
+            this.accumulators = accumulators;
+        }
+
+        @Override
+        protected void increment(String counterName, long amount) {
+            accumulators.get(counterName).$plus$eq(amount);
+        }
+    }
+
+    /**
+     * Counts the records of a partition, and optionally their serialized bytes and the time taken
+     * to go through the partition, when the partition is exhausted
+     */
+    private static class CountFunction extends AbstractFunction1<Iterator<Tuple>, Iterator<Tuple>>
+            implements Serializable {
+
+        private final Accumulator<Long> counter;
+        private final Accumulator<Long> byteCounter;
+        private final Accumulator<Long> millisCounter;
+
+        public CountFunction(Accumulator<Long> counter, Accumulator<Long> byteCounter,
+                Accumulator<Long> millisCounter) {
+            this.counter = counter;
+            this.byteCounter = byteCounter;
+            this.millisCounter = millisCounter;
+        }
+
+        @Override
+        public Iterator<Tuple> apply(Iterator<Tuple> i) {
+            final java.util.Iterator<Tuple> input = JavaConversions.asJavaIterator(i);
+            final long start = System.currentTimeMillis();
+            return JavaConversions.asScalaIterator(new java.util.Iterator<Tuple>() {
+                private final ByteCountingStream bytes = byteCounter == null ? null : new ByteCountingStream();
+                private final DataOutputStream out = bytes == null ? null : new DataOutputStream(bytes);
+                private final InterSedes sedes = InterSedesFactory.getInterSedesInstance();
+                private long count = 0;
+                private boolean done = false;
+
+                public boolean hasNext() {
+                    boolean hasNext = input.hasNext();
+                    if (!hasNext && !done) {
+                        done = true;
+                        if (!Boolean.TRUE.equals(UNCOUNTED.get())) {
+                            counter.$plus$eq(count);
+                            if (byteCounter != null) {
+                                byteCounter.$plus$eq(bytes.count);
+                            }
+                            if (millisCounter != null) {
+                                millisCounter.$plus$eq(System.currentTimeMillis() - start);
+                            }
+                        }
+                        if (millisCounter != null) {
+                            // the end of the stage
+                            flushProfilers();
+                        }
+                    }
+                    return hasNext;
+                }
+
+                public Tuple next() {
+                    ++count;
+                    Tuple tuple = input.next();
+                    if (out != null) {
+                        try {
+                            sedes.writeDatum(out, tuple, DataType.TUPLE);
+                        } catch (IOException e) {
+                            throw new RuntimeException("Could not measure the size of " + tuple, e);
+                        }
+                    }
+                    return tuple;
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            });
+        }
+    }
+
+    /**
+     * Counts the bytes written to it and drops them
+     */
+    private static class ByteCountingStream extends OutputStream {
+
+        private long count = 0;
+
+        @Override
+        public void write(int b) {
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    /**
+     * Sets the profilers of the operators deserialized with the task, and flushes them when its
+     * partition is exhausted
+     */
+    private static class ProfileFunction extends AbstractFunction1<Iterator<Tuple>, Iterator<Tuple>>
+            implements Serializable {
+
+        private final List<PhysicalOperator> operators;
+        private final HashMap<String, Map<String, Accumulator<Long>>> accumulators;
+
+        public ProfileFunction(List<PhysicalOperator> operators,
+                HashMap<String, Map<String, Accumulator<Long>>> accumulators) {
+            this.operators = operators;
+            this.accumulators = accumulators;
+        }
+
+        @Override
+        public Iterator<Tuple> apply(Iterator<Tuple> i) {
+            List<OperatorProfiler> profilers = Lists.newArrayList();
+            for (PhysicalOperator physicalOperator : operators) {
+                if (physicalOperator.getProfiler() == null) {
+                    OperatorProfiler profiler = new AccumulatorProfiler(physicalOperator.getOperatorKey(),
+                            accumulators.get(physicalOperator.getOperatorKey().toString()));
+                    physicalOperator.setProfiler(profiler);
+                    profilers.add(profiler);
+                }
+            }
+            // the first input of a task sets the profilers of its operators, the next ones find them set
+            if (!profilers.isEmpty()) {
+                TASK_PROFILERS.set(profilers);
+            }
+            final java.util.Iterator<Tuple> input = JavaConversions.asJavaIterator(i);
+            return JavaConversions.asScalaIterator(new java.util.Iterator<Tuple>() {
+
+                public boolean hasNext() {
+                    boolean hasNext = input.hasNext();
+                    if (!hasNext) {
+                        flushProfilers();
+                    }
+                    return hasNext;
+                }
+
+                public Tuple next() {
+                    return input.next();
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            });
+        }
+    }
+
+    /**
+     * Pulls the records of its input with the records counted or not in the task thread
+     */
+    private static class CountingScopeFunction extends AbstractFunction1<Iterator<Tuple>, Iterator<Tuple>>
+            implements Serializable {
+
+        private final boolean uncounted;
+
+        public CountingScopeFunction(boolean uncounted) {
+            this.uncounted = uncounted;
+        }
+
+        @Override
+        public Iterator<Tuple> apply(Iterator<Tuple> i) {
+            final java.util.Iterator<Tuple> input = JavaConversions.asJavaIterator(i);
+            return JavaConversions.asScalaIterator(new java.util.Iterator<Tuple>() {
+
+                public boolean hasNext() {
+                    Boolean previous = UNCOUNTED.get();
+                    UNCOUNTED.set(uncounted);
+                    try {
+                        return input.hasNext();
+                    } finally {
+                        UNCOUNTED.set(previous);
+                    }
+                }
+
+                public Tuple next() {
+                    Boolean previous = UNCOUNTED.get();
+                    UNCOUNTED.set(uncounted);
+                    try {
+                        return input.next();
+                    } finally {
+                        UNCOUNTED.set(previous);
+                    }
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            });
+        }
+    }
+}
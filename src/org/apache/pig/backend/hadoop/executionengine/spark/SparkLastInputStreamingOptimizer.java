@@ -0,0 +1,93 @@
+package org.apache.pig.backend.hadoop.executionengine.spark;
+
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.MRCompiler.LastInputStreamingOptimizer;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.PhysicalOperator;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhysicalPlan;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POForEach;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POGlobalRearrange;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POJoinPackage;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POPackage;
+import org.apache.pig.impl.PigContext;
+import org.apache.pig.impl.plan.NodeIdGenerator;
+import org.apache.pig.impl.plan.OperatorKey;
+import org.apache.pig.impl.plan.PlanException;
+import org.apache.pig.impl.plan.VisitorException;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Replaces POPackage -> POForEach with a POJoinPackage in the physical plan executed by Spark,
+ * when the foreach only flattens the inputs of a join or cogroup.
+ *
+ * The POJoinPackage only materializes the first n-1 inputs of a key in spillable bags and
+ * streams the last one to the foreach in chunks, instead of building a bag for every input.
+ * The checks are the ones of the MapReduce {@link LastInputStreamingOptimizer}.
+ */
+public class SparkLastInputStreamingOptimizer {
+
+    private static final Log LOG = LogFactory.getLog(SparkLastInputStreamingOptimizer.class);
+
+    private final PhysicalPlan physicalPlan;
+    private final String chunkSize;
+
+    public SparkLastInputStreamingOptimizer(PhysicalPlan physicalPlan, PigContext pigContext) {
+        this.physicalPlan = physicalPlan;
+        this.chunkSize = pigContext.getProperties().getProperty(
+                "last.input.chunksize", POJoinPackage.DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Must run after the POPackageAnnotator, the POJoinPackage copies the key info of the package.
+     */
+    public void optimize() throws VisitorException, PlanException {
+        List<POPackage> packages = Lists.newArrayList();
+        for (PhysicalOperator op : physicalPlan) {
+            if (POPackage.class.equals(op.getClass())) {
+                packages.add((POPackage) op);
+            }
+        }
+        for (POPackage pack : packages) {
+            List<PhysicalOperator> predecessors = physicalPlan.getPredecessors(pack);
+            if (predecessors == null || predecessors.size() != 1
+                    || !(predecessors.get(0) instanceof POGlobalRearrange)) {
+                continue;
+            }
+            // only cogroups, a single input is not worth streaming
+            PhysicalOperator globalRearrange = predecessors.get(0);
+            List<PhysicalOperator> rearranges = physicalPlan.getPredecessors(globalRearrange);
+            if (rearranges == null || rearranges.size() < 2 || pack.getNumInps() != rearranges.size()) {
+                continue;
+            }
+            List<PhysicalOperator> successors = physicalPlan.getSuccessors(pack);
+            if (successors == null || successors.size() != 1
+                    || !POForEach.class.equals(successors.get(0).getClass())) {
+                continue;
+            }
+            POForEach forEach = (POForEach) successors.get(0);
+            List<PhysicalOperator> forEachSuccessors = physicalPlan.getSuccessors(forEach);
+            if (forEachSuccessors != null && forEachSuccessors.size() > 1) {
+                continue;
+            }
+            if (LastInputStreamingOptimizer.canStreamLastInput(pack, forEach)) {
+                replaceWithPOJoinPackage(globalRearrange, pack, forEach);
+            }
+        }
+    }
+
+    private void replaceWithPOJoinPackage(PhysicalOperator globalRearrange, POPackage pack,
+            POForEach forEach) throws PlanException {
+        String scope = pack.getOperatorKey().scope;
+        POJoinPackage joinPackage = new POJoinPackage(
+                new OperatorKey(scope, NodeIdGenerator.getGenerator().getNextNodeId(scope)),
+                pack.getRequestedParallelism(), pack, forEach);
+        joinPackage.setChunkSize(Long.parseLong(chunkSize));
+        physicalPlan.remove(pack);
+        physicalPlan.replace(forEach, joinPackage);
+        physicalPlan.connect(globalRearrange, joinPackage);
+        LOG.info("Rewrite: POPackage->POForEach to POJoinPackage for " + globalRearrange);
+    }
+}
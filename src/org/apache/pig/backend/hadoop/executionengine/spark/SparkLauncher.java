@@ -2,61 +2,107 @@ package org.apache.pig.backend.hadoop.executionengine.spark;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.pig.PigConfiguration;
 import org.apache.pig.PigConstants;
 import org.apache.pig.PigException;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.InputSizeReducerEstimator;
 import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.Launcher;
 import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.MRCompiler;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.MapReduceOper;
 import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.plans.MROperPlan;
 import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.plans.POPackageAnnotator;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.PhysicalOperator;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhysicalPlan;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POCache;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POCollectedGroup;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POCombinerPackage;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POCounter;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.PODistinct;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POFilter;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POFRJoin;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POForEach;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POGlobalRearrange;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POJoinPackage;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POLimit;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POLoad;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POLocalRearrange;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POMergeCogroup;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POMergeJoin;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.PONative;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POPackage;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POPreCombinerLocalRearrange;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.PORank;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POSkewedJoin;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POSort;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POSplit;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POStore;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POStream;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POUnion;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.util.OperatorProfiler;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.util.PlanHelper;
 import org.apache.pig.backend.hadoop.executionengine.spark.converter.CacheConverter;
+import org.apache.pig.backend.hadoop.executionengine.spark.converter.CollectedGroupConverter;
+import org.apache.pig.backend.hadoop.executionengine.spark.converter.CounterConverter;
 import org.apache.pig.backend.hadoop.executionengine.spark.converter.DistinctConverter;
+import org.apache.pig.backend.hadoop.executionengine.spark.converter.FRJoinConverter;
 import org.apache.pig.backend.hadoop.executionengine.spark.converter.FilterConverter;
 import org.apache.pig.backend.hadoop.executionengine.spark.converter.ForEachConverter;
 import org.apache.pig.backend.hadoop.executionengine.spark.converter.GlobalRearrangeConverter;
 import org.apache.pig.backend.hadoop.executionengine.spark.converter.LimitConverter;
 import org.apache.pig.backend.hadoop.executionengine.spark.converter.LoadConverter;
 import org.apache.pig.backend.hadoop.executionengine.spark.converter.LocalRearrangeConverter;
+import org.apache.pig.backend.hadoop.executionengine.spark.converter.MergeCogroupConverter;
+import org.apache.pig.backend.hadoop.executionengine.spark.converter.MergeJoinConverter;
+import org.apache.pig.backend.hadoop.executionengine.spark.converter.NativeConverter;
 import org.apache.pig.backend.hadoop.executionengine.spark.converter.POConverter;
+import org.apache.pig.backend.hadoop.executionengine.spark.converter.PipelineConverter;
 import org.apache.pig.backend.hadoop.executionengine.spark.converter.PackageConverter;
+import org.apache.pig.backend.hadoop.executionengine.spark.converter.PreCombinerLocalRearrangeConverter;
+import org.apache.pig.backend.hadoop.executionengine.spark.converter.RankConverter;
+import org.apache.pig.backend.hadoop.executionengine.spark.converter.SkewedJoinConverter;
 import org.apache.pig.backend.hadoop.executionengine.spark.converter.SortConverter;
 import org.apache.pig.backend.hadoop.executionengine.spark.converter.SplitConverter;
 import org.apache.pig.backend.hadoop.executionengine.spark.converter.StoreConverter;
+import org.apache.pig.backend.hadoop.executionengine.spark.converter.StoreConverter.StoreJob;
+import org.apache.pig.backend.hadoop.executionengine.spark.converter.StreamConverter;
 import org.apache.pig.backend.hadoop.executionengine.spark.converter.UnionConverter;
 import org.apache.pig.data.SchemaTupleBackend;
 import org.apache.pig.data.Tuple;
 import org.apache.pig.impl.PigContext;
+import org.apache.pig.impl.io.FileSpec;
 import org.apache.pig.impl.plan.OperatorKey;
+import org.apache.pig.tools.pigstats.JobStats;
 import org.apache.pig.tools.pigstats.PigStats;
+import org.apache.pig.tools.pigstats.ScriptState;
 import org.apache.pig.tools.pigstats.SparkStats;
 
+import scala.Tuple2;
 import spark.RDD;
 import spark.SparkContext;
+import spark.storage.StorageLevel;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 /**
  * @author billg
@@ -65,16 +111,29 @@ public class SparkLauncher extends Launcher {
 
     private static final Log LOG = LogFactory.getLog(SparkLauncher.class);
 
-    // Our connection to Spark. It needs to be static so that it can be reused across jobs, because a
-    // new SparkLauncher gets created for each job.
-    private static SparkContext sparkContext = null;
+    private static final int DEFAULT_STORE_CONCURRENCY = 4;
 
-    // An object that handle cache calls in the operator graph. This is again static because we want
-    // it to be shared across SparkLaunchers. It gets cleared whenever we close the SparkContext.
-    private static CacheConverter cacheConverter = null;
+    // the counts of an operator attributed to the jobs
+    private static final String COUNTED_RECORDS = "records";
+    private static final String COUNTED_BYTES = "bytes";
+    private static final String COUNTED_MILLIS = "millis";
+
+    private PipelineConverter pipelineConverter;
 
     @Override
     public PigStats launchPig(PhysicalPlan physicalPlan, String grpName, PigContext pigContext) throws Exception {
+        // Our connection to Spark, reused across jobs: a new SparkLauncher gets created for each job.
+        // It is kept until the script is done, even if another script asks for other settings.
+        SparkSession session = SparkSession.acquire(pigContext);
+        try {
+            return launchPig(physicalPlan, pigContext, session);
+        } finally {
+            session.release();
+        }
+    }
+
+    private PigStats launchPig(PhysicalPlan physicalPlan, PigContext pigContext, SparkSession session)
+            throws Exception {
         LOG.info("!!!!!!!!!!  Launching Spark (woot) !!!!!!!!!!!!");
         LOG.debug(physicalPlan);
         Configuration c = SparkUtil.newJobConf(pigContext);
@@ -84,134 +143,511 @@ public class SparkLauncher extends Launcher {
 /////////
 // stolen from MapReduceLauncher
         MRCompiler mrCompiler = new MRCompiler(physicalPlan, pigContext);
+        // the MRCompiler replaces the loader of the right input of a merge join by the indexer
+        // of an indexing job, Spark reads the sorted input itself
+        Map<POLoad, FileSpec> loadFiles = Maps.newHashMap();
+        for (POLoad poLoad : PlanHelper.getPhysicalOperators(physicalPlan, POLoad.class)) {
+            loadFiles.put(poLoad, poLoad.getLFile());
+        }
         mrCompiler.compile();
+        for (Map.Entry<POLoad, FileSpec> loadFile : loadFiles.entrySet()) {
+            loadFile.getKey().setLFile(loadFile.getValue());
+        }
         MROperPlan plan = mrCompiler.getMRPlan();
+        // must run before the POPackageAnnotator, which annotates the packages it introduces
+        Map<OperatorKey, PhysicalPlan> combinePlans =
+                new SparkCombinerOptimizer(physicalPlan, plan, pigContext).optimize();
+        // optimize to use secondary sort key if possible
+        Map<OperatorKey, boolean[]> secondarySortOrders =
+                new SparkSecondaryKeyOptimizer(physicalPlan, plan, pigContext).optimize();
         POPackageAnnotator pkgAnnotator = new POPackageAnnotator(plan);
         pkgAnnotator.visit();
+        // optimize joins
+        new SparkLastInputStreamingOptimizer(physicalPlan, pigContext).optimize();
+        estimateParallelism(physicalPlan, pigContext, c);
 //        // this one: not sure
 //        KeyTypeDiscoveryVisitor kdv = new KeyTypeDiscoveryVisitor(plan);
 //        kdv.visit();
 
 /////////
 
-        startSparkIfNeeded();
+        Set<String> udfs = Sets.newHashSet();
+        for (MapReduceOper mro : plan) {
+            udfs.addAll(mro.UDFs);
+        }
+        session.addJars(udfs, pigContext);
+        SparkContext sparkContext = session.getSparkContext();
+        CacheConverter cacheConverter = session.getCacheConverter();
+        cacheConverter.setConf(c);
 
         // initialize the supported converters
         Map<Class<? extends PhysicalOperator>, POConverter> convertMap =
                 new HashMap<Class<? extends PhysicalOperator>, POConverter>();
 
         convertMap.put(POLoad.class,    new LoadConverter(pigContext, physicalPlan, sparkContext));
-        convertMap.put(POStore.class,   new StoreConverter(pigContext));
-        convertMap.put(POForEach.class, new ForEachConverter());
+        convertMap.put(POForEach.class, new ForEachConverter(pigContext.getProperties()));
+        pipelineConverter = new PipelineConverter(pigContext.getProperties());
         convertMap.put(POFilter.class,  new FilterConverter());
         convertMap.put(POPackage.class, new PackageConverter());
+        convertMap.put(POCombinerPackage.class, new PackageConverter());
+        convertMap.put(POJoinPackage.class, new PackageConverter());
         convertMap.put(POCache.class,   cacheConverter);
         convertMap.put(POLocalRearrange.class,  new LocalRearrangeConverter());
-        convertMap.put(POGlobalRearrange.class, new GlobalRearrangeConverter());
+        convertMap.put(POPreCombinerLocalRearrange.class, new PreCombinerLocalRearrangeConverter());
+        convertMap.put(POGlobalRearrange.class, new GlobalRearrangeConverter(combinePlans, secondarySortOrders));
         convertMap.put(POLimit.class, new LimitConverter());
-        convertMap.put(PODistinct.class, new DistinctConverter());
+        convertMap.put(PODistinct.class, new DistinctConverter(pigContext));
         convertMap.put(POUnion.class, new UnionConverter(sparkContext));
         convertMap.put(POSort.class, new SortConverter());
         convertMap.put(POSplit.class, new SplitConverter());
+        convertMap.put(POFRJoin.class, new FRJoinConverter(sparkContext));
+        convertMap.put(POSkewedJoin.class, new SkewedJoinConverter(pigContext));
+        convertMap.put(POMergeJoin.class, new MergeJoinConverter(sparkContext));
+        convertMap.put(POMergeCogroup.class, new MergeCogroupConverter(sparkContext));
+        convertMap.put(POCollectedGroup.class, new CollectedGroupConverter());
+        convertMap.put(POCounter.class, new CounterConverter());
+        convertMap.put(PORank.class, new RankConverter(physicalPlan));
+        convertMap.put(POStream.class, new StreamConverter(pigContext));
+        convertMap.put(PONative.class, new NativeConverter(sparkContext));
+
+        StoreConverter storeConverter = new StoreConverter(pigContext);
 
         Map<OperatorKey, RDD<Tuple>> rdds = new HashMap<OperatorKey, RDD<Tuple>>();
+        boolean multiQuery = "true".equalsIgnoreCase(
+                pigContext.getProperties().getProperty("opt.multiquery", "true"));
+
+        boolean vectorized = c.getBoolean(PigConfiguration.SPARK_VECTORIZED, false);
 
-        SparkStats stats = new SparkStats();
+        SparkCounters counters = new SparkCounters();
+        boolean profile = OperatorProfiler.isEnabled(pigContext.getProperties());
+        if (profile) {
+            counters.profile(physicalPlan);
+        }
+        SparkStats stats = new SparkStats(pigContext);
+        stats.markStart();
         LinkedList<POStore> stores = PlanHelper.getPhysicalOperators(physicalPlan, POStore.class);
+        ScriptState.get().emitLaunchStartedNotification(stores.size());
+
+        // a store is run once the stores it reads the output of have succeeded, concurrently
+        // with the other stores ready to run
+        Map<POStore, List<POStore>> dependencies = Maps.newHashMap();
         for (POStore poStore : stores) {
-            physicalToRDD(physicalPlan, poStore, rdds, convertMap);
-            stats.addOutputInfo(poStore, 1, 1, true, c); // TODO: use real values
+            dependencies.put(poStore, getUpstreamStores(physicalPlan, poStore));
+        }
+        int concurrency = Math.max(1, Math.min(stores.size(),
+                c.getInt(PigConfiguration.SPARK_STORE_CONCURRENCY, DEFAULT_STORE_CONCURRENCY)));
+        LOG.info("Running " + stores.size() + " stores, " + concurrency + " at a time");
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        CompletionService<RDD<Tuple2<Text, Tuple>>> completionService =
+                new ExecutorCompletionService<RDD<Tuple2<Text, Tuple>>>(executor);
+        Map<Future<RDD<Tuple2<Text, Tuple>>>, RunningStore> running = Maps.newHashMap();
+        List<POStore> pending = Lists.newArrayList(stores);
+        Set<POStore> succeededStores = Sets.newHashSet();
+        // counters are shared by the jobs, each one only gets what wasn't attributed to another one
+        Map<String, Long> attributedCounts = Maps.newHashMap();
+        Map<String, Long> attributedProfile = Maps.newHashMap();
+        Exception exception = null;
+        try {
+            while (true) {
+                // the plan is converted by this thread, only the jobs saving the stores run in the pool
+                Iterator<POStore> it = pending.iterator();
+                while (exception == null && it.hasNext()) {
+                    POStore poStore = it.next();
+                    if (!succeededStores.containsAll(dependencies.get(poStore))) {
+                        continue;
+                    }
+                    it.remove();
+                    RunningStore runningStore = new RunningStore(poStore, stats.addJobStats(poStore));
+                    try {
+                        StoreJob storeJob = prepareStore(physicalPlan, poStore, rdds, convertMap,
+                                storeConverter, counters, multiQuery, vectorized);
+                        running.put(completionService.submit(storeJob), runningStore);
+                    } catch (Exception e) {
+                        exception = e;
+                        finishStore(physicalPlan, runningStore, stats, counters, attributedCounts,
+                                attributedProfile, multiQuery, c, e);
+                    }
+                }
+                if (running.isEmpty()) {
+                    break;
+                }
+
+                Future<RDD<Tuple2<Text, Tuple>>> future = completionService.take();
+                RunningStore runningStore = running.remove(future);
+                Exception failure = null;
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+                finishStore(physicalPlan, runningStore, stats, counters, attributedCounts,
+                        attributedProfile, multiQuery, c, failure);
+                if (failure == null) {
+                    succeededStores.add(runningStore.poStore);
+                    ScriptState.get().emitProgressUpdatedNotification(succeededStores.size() * 100 / stores.size());
+                } else if (exception == null) {
+                    // the running stores are left to finish, but no other store is started
+                    exception = failure;
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        if (exception == null && !pending.isEmpty()) {
+            exception = new PigException("The stores " + pending + " depend on stores that were never run");
+        }
+        stats.stop();
+        ScriptState.get().emitLaunchCompletedNotification(succeededStores.size());
+        if (exception != null) {
+            throw exception;
+        }
+        cacheConverter.logStats();
+        if (profile) {
+            LOG.info(OperatorProfiler.annotate(physicalPlan, stats.getOperatorProfile()));
         }
 
         return stats;
     }
 
-    private static void startSparkIfNeeded() throws PigException {
-        if (sparkContext == null) {
-            String master = System.getenv("SPARK_MASTER");
-            if (master == null) {
-                LOG.info("SPARK_MASTER not specified, using \"local\"");
-                master = "local";
+    /**
+     * Sets the parallelism of the shuffles that don't set PARALLEL to default_parallel, or else
+     * to the estimate of the {@link PigConfiguration#SPARK_PARALLELISM_ESTIMATOR}. The shuffles
+     * that can't be estimated use the default parallelism of Spark.
+     */
+    private static void estimateParallelism(PhysicalPlan plan, PigContext pigContext, Configuration conf)
+            throws IOException {
+        SparkParallelismEstimator estimator = conf.get(PigConfiguration.SPARK_PARALLELISM_ESTIMATOR) == null ?
+                new InputSizeParallelismEstimator() :
+                PigContext.instantiateObjectFromParams(conf, PigConfiguration.SPARK_PARALLELISM_ESTIMATOR,
+                        PigConfiguration.SPARK_PARALLELISM_ESTIMATOR_ARG, SparkParallelismEstimator.class);
+        LOG.info("Using parallelism estimator: " + estimator.getClass().getName());
+
+        for (PhysicalOperator physicalOperator : plan) {
+            if (!(physicalOperator instanceof POGlobalRearrange || physicalOperator instanceof POSort
+                    || physicalOperator instanceof PODistinct || physicalOperator instanceof POSkewedJoin)
+                    || physicalOperator.getRequestedParallelism() > 0) {
+                continue;
+            }
+            int parallelism = pigContext.defaultParallel > 0 ? pigContext.defaultParallel :
+                    estimator.estimateParallelism(plan, physicalOperator, conf);
+            if (parallelism > 0) {
+                LOG.info("Setting the parallelism of " + physicalOperator + " to " + parallelism);
+                physicalOperator.setRequestedParallelism(parallelism);
             }
+        }
+    }
 
-            String sparkHome = System.getenv("SPARK_HOME"); // It's okay if this is null for local mode
-            String sparkJarsSetting = System.getenv("SPARK_JARS");
-            String[] sparkJars = sparkJarsSetting == null ? new String[]{} : sparkJarsSetting.split(",");
+    /**
+     * Converts the plan of a store to RDDs and configures the job saving it.
+     */
+    private StoreJob prepareStore(PhysicalPlan plan, POStore poStore,
+                                  Map<OperatorKey, RDD<Tuple>> rdds,
+                                  Map<Class<? extends PhysicalOperator>, POConverter> convertMap,
+                                  StoreConverter storeConverter,
+                                  SparkCounters counters,
+                                  boolean multiQuery,
+                                  boolean vectorized)
+            throws IOException {
+        List<RDD<Tuple>> predecessorRdds = Lists.newArrayList();
+        for (PhysicalOperator predecessor : plan.getPredecessors(poStore)) {
+            physicalToRDD(plan, predecessor, rdds, convertMap, counters, multiQuery, vectorized);
+            predecessorRdds.add(rdds.get(predecessor.getOperatorKey()));
+        }
+        // count the records written, as the MapReduce counters do
+        predecessorRdds = counters.countStage(predecessorRdds, poStore);
+        LOG.info("Converting operator " + poStore.getClass().getSimpleName() + " " + poStore);
+        return storeConverter.prepare(predecessorRdds, poStore);
+    }
 
-            // TODO: Don't hardcode this JAR
-            List<String> jars = Lists.asList("build/pig-0.12.0-SNAPSHOT-withdependencies.jar", sparkJars);
+    /**
+     * Adds the inputs, output and counters of the job of a store to the stats, and notifies the
+     * listeners that it finished.
+     * @param exception the cause of the failure, null if the job succeeded
+     */
+    private static void finishStore(PhysicalPlan plan, RunningStore runningStore, SparkStats stats,
+            SparkCounters counters, Map<String, Long> attributedCounts,
+            Map<String, Long> attributedProfile, boolean multiQuery, Configuration conf, Exception exception) {
+        boolean success = exception == null;
+        POStore poStore = runningStore.poStore;
+        stats.addOutputInfo(runningStore.jobStats, poStore,
+                attributeCount(attributedCounts, COUNTED_RECORDS, poStore, counters.getValue(poStore)),
+                success, conf);
+        // with multiquery, a load read by several stores is read once for all of them, its records
+        // are not split between their jobs: each one reports all the records read so far, and
+        // counts them as shared
+        long sharedInputRecords = 0;
+        for (POLoad poLoad : getUpstream(plan, poStore, POLoad.class)) {
+            long records;
+            if (multiQuery && getDownstreamStoreCount(plan, poLoad) > 1) {
+                records = counters.getValue(poLoad);
+                sharedInputRecords += records;
+            } else {
+                records = attributeCount(attributedCounts, COUNTED_RECORDS, poLoad, counters.getValue(poLoad));
+            }
+            stats.addInputInfo(runningStore.jobStats, poLoad, getInputSize(poLoad, conf), records, success, conf);
+        }
+        // a shuffle and the stage before it are run by the first job reading them, the next ones
+        // reuse the shuffle output
+        long shuffleRecords = 0;
+        long shuffleBytes = 0;
+        Map<String, Long> stageMillis = Maps.newTreeMap();
+        for (PhysicalOperator shuffle : getUpstream(plan, poStore, PhysicalOperator.class)) {
+            if (!isCountedShuffle(shuffle)) {
+                continue;
+            }
+            shuffleRecords += attributeCount(attributedCounts, COUNTED_RECORDS, shuffle, counters.getValue(shuffle));
+            shuffleBytes += attributeCount(attributedCounts, COUNTED_BYTES, shuffle, counters.getBytes(shuffle));
+            long millis = attributeCount(attributedCounts, COUNTED_MILLIS, shuffle, counters.getStageMillis(shuffle));
+            if (millis > 0) {
+                stageMillis.put(shuffle.getOperatorKey().toString(), millis);
+            }
+        }
+        stageMillis.put(poStore.getOperatorKey().toString(),
+                attributeCount(attributedCounts, COUNTED_MILLIS, poStore, counters.getStageMillis(poStore)));
+        // as with the records, a job gets the profile counted since the previous job finished
+        Map<String, Long> operatorProfile = Maps.newTreeMap();
+        for (Map.Entry<String, Long> counter : counters.getProfile().entrySet()) {
+            Long attributed = attributedProfile.put(counter.getKey(), counter.getValue());
+            long value = attributed == null ? counter.getValue() : counter.getValue() - attributed;
+            if (value > 0) {
+                operatorProfile.put(counter.getKey(), value);
+            }
+        }
+        stats.finishJob(runningStore.jobStats, System.currentTimeMillis() - runningStore.startTime,
+                shuffleRecords, shuffleBytes, sharedInputRecords, stageMillis, operatorProfile, exception);
+    }
+
+    /**
+     * @return the count of the operator since it was last attributed to a job
+     */
+    private static long attributeCount(Map<String, Long> attributedCounts, String counter,
+            PhysicalOperator physicalOperator, long value) {
+        Long attributed = attributedCounts.put(physicalOperator.getOperatorKey() + "." + counter, value);
+        return attributed == null ? value : value - attributed;
+    }
 
-            if (!master.startsWith("local")) {
-                // Check that we have the Mesos native library and Spark home are set
-                if (sparkHome == null) {
-                    System.err.println("You need to set SPARK_HOME to run on a Mesos cluster!");
-                    throw new PigException("SPARK_HOME is not set");
+    /**
+     * @return whether the records sent to the shuffle of the operator are counted: the range
+     * partitioner of a sort with a comparator reads its input once more for its samples, which
+     * would count them twice
+     */
+    private static boolean isCountedShuffle(PhysicalOperator physicalOperator) {
+        if (physicalOperator instanceof POSort) {
+            POSort sort = (POSort) physicalOperator;
+            return !sort.isUDFComparatorUsed && sort.getMSortFunc() == null;
+        }
+        return physicalOperator instanceof POGlobalRearrange || physicalOperator instanceof PODistinct
+                || physicalOperator instanceof POSkewedJoin;
+    }
+
+    /**
+     * @return the number of stores reading the output of the operator, up to the stores that
+     * reload the output of other stores
+     */
+    private static int getDownstreamStoreCount(PhysicalPlan plan, PhysicalOperator physicalOperator) {
+        Set<PhysicalOperator> visited = Sets.newHashSet();
+        LinkedList<PhysicalOperator> toVisit = Lists.newLinkedList();
+        toVisit.add(physicalOperator);
+        int stores = 0;
+        while (!toVisit.isEmpty()) {
+            List<PhysicalOperator> successors = plan.getSuccessors(toVisit.removeFirst());
+            if (successors == null) {
+                continue;
+            }
+            for (PhysicalOperator successor : successors) {
+                if (!visited.add(successor)) {
+                    continue;
                 }
-                if (System.getenv("MESOS_NATIVE_LIBRARY") == null) {
-                    System.err.println("You need to set MESOS_NATIVE_LIBRARY to run on a Mesos cluster!");
-                    throw new PigException("MESOS_NATIVE_LIBRARY is not set");
+                if (successor instanceof POStore) {
+                    ++stores;
+                } else {
+                    toVisit.add(successor);
                 }
             }
+        }
+        return stores;
+    }
 
-            // Tell Spark to use Mesos in coarse-grained mode (only affects Spark 0.6+; no impact on others)
-            System.setProperty("spark.mesos.coarse", "true");
+    /**
+     * @return the operators of the given class the store depends on, up to the other stores
+     */
+    private static <T extends PhysicalOperator> List<T> getUpstream(PhysicalPlan plan, POStore poStore,
+            Class<T> clazz) {
+        List<T> upstream = Lists.newArrayList();
+        addUpstream(plan, poStore, clazz, upstream, Sets.<PhysicalOperator>newHashSet());
+        return upstream;
+    }
 
-            // For coarse-grained Mesos mode, tell it an upper bound on how many cores to grab in total;
-            // we conservatively set this to 32 unless the user set the SPARK_MAX_CPUS environment variable.
-            int maxCores = 32;
-            if (System.getenv("SPARK_MAX_CPUS") != null) {
-                maxCores = Integer.parseInt(System.getenv("SPARK_MAX_CPUS"));
+    private static <T extends PhysicalOperator> void addUpstream(PhysicalPlan plan,
+            PhysicalOperator physicalOperator, Class<T> clazz, List<T> upstream, Set<PhysicalOperator> visited) {
+        List<PhysicalOperator> predecessors = plan.getPredecessors(physicalOperator);
+        if (predecessors == null) {
+            return;
+        }
+        for (PhysicalOperator predecessor : predecessors) {
+            if (predecessor instanceof POStore || !visited.add(predecessor)) {
+                continue;
+            }
+            if (clazz.isInstance(predecessor)) {
+                upstream.add(clazz.cast(predecessor));
             }
-            System.setProperty("spark.cores.max", "" + maxCores);
+            addUpstream(plan, predecessor, clazz, upstream, visited);
+        }
+    }
 
-            sparkContext = new SparkContext(master, "Spork", sparkHome, SparkUtil.toScalaSeq(jars));
-            cacheConverter = new CacheConverter();
+    /**
+     * @return the stores whose output is read by the plan of the store, as an input or a scalar
+     */
+    private static List<POStore> getUpstreamStores(PhysicalPlan plan, POStore poStore) {
+        List<POStore> upstreamStores = Lists.newArrayList();
+        addUpstreamStores(plan, poStore, upstreamStores, Sets.<PhysicalOperator>newHashSet());
+        return upstreamStores;
+    }
+
+    private static void addUpstreamStores(PhysicalPlan plan, PhysicalOperator physicalOperator,
+            List<POStore> upstreamStores, Set<PhysicalOperator> visited) {
+        List<PhysicalOperator> predecessors = Lists.newArrayList();
+        if (plan.getPredecessors(physicalOperator) != null) {
+            predecessors.addAll(plan.getPredecessors(physicalOperator));
+        }
+        if (plan.getSoftLinkPredecessors(physicalOperator) != null) {
+            predecessors.addAll(plan.getSoftLinkPredecessors(physicalOperator));
+        }
+        for (PhysicalOperator predecessor : predecessors) {
+            if (!visited.add(predecessor)) {
+                continue;
+            }
+            if (predecessor instanceof POStore) {
+                upstreamStores.add((POStore) predecessor);
+            } else {
+                addUpstreamStores(plan, predecessor, upstreamStores, visited);
+            }
+        }
+    }
+
+    private static long getInputSize(POLoad poLoad, Configuration conf) {
+        try {
+            return InputSizeReducerEstimator.getTotalInputFileSize(conf,
+                    Collections.singletonList(poLoad), new Job(conf));
+        } catch (IOException e) {
+            LOG.warn("Couldn't get the size of input " + poLoad.getLFile().getFileName(), e);
+            return -1;
         }
     }
 
     // You can use this in unit tests to stop the SparkContext between tests.
     static void stopSpark() {
-        if (sparkContext != null) {
-            sparkContext.stop();
-            sparkContext = null;
-            cacheConverter = null;
-        }
+        SparkSession.stop();
     }
 
     private void physicalToRDD(PhysicalPlan plan, PhysicalOperator physicalOperator,
                                Map<OperatorKey, RDD<Tuple>> rdds,
-                               Map<Class<? extends PhysicalOperator>, POConverter> convertMap)
+                               Map<Class<? extends PhysicalOperator>, POConverter> convertMap,
+                               SparkCounters counters,
+                               boolean multiQuery,
+                               boolean vectorized)
             throws IOException {
 
+        // already converted for a previous store: the stores share this part of the plan
+        if (rdds.containsKey(physicalOperator.getOperatorKey())) {
+            return;
+        }
+
+        // a chain of operators processing one tuple at a time is converted all at once, from
+        // the predecessors of its first operator. When the operators exchange batches, a single
+        // operator is converted as a pipeline too.
+        List<PhysicalOperator> pipeline = getPipeline(plan, physicalOperator, rdds);
+        boolean usePipeline = pipeline.size() > 1 || (vectorized && !pipeline.isEmpty());
+        PhysicalOperator first = usePipeline ? pipeline.get(0) : physicalOperator;
+
         RDD<Tuple> nextRDD = null;
-        List<PhysicalOperator> predecessors = plan.getPredecessors(physicalOperator);
+        List<PhysicalOperator> predecessors = plan.getPredecessors(first);
         List<RDD<Tuple>> predecessorRdds = Lists.newArrayList();
         if (predecessors!=null) {
             for (PhysicalOperator predecessor : predecessors) {
-                physicalToRDD(plan, predecessor, rdds, convertMap);
+                // a load of the output of a store, the store is run before as a separate job
+                if (predecessor instanceof POStore) {
+                    continue;
+                }
+                physicalToRDD(plan, predecessor, rdds, convertMap, counters, multiQuery, vectorized);
                 predecessorRdds.add(rdds.get(predecessor.getOperatorKey()));
             }
         }
+        predecessorRdds = counters.withProfilers(predecessorRdds);
+
+        if (usePipeline) {
+            LOG.info("Converting " + (vectorized ? "vectorized " : "") + "pipeline " + pipeline);
+            nextRDD = pipelineConverter.convert(predecessorRdds, pipeline, vectorized);
+        } else {
+            POConverter converter = convertMap.get(physicalOperator.getClass());
+            if (converter == null) {
+                throw new IllegalArgumentException("Spork unsupported PhysicalOperator: " + physicalOperator);
+            }
 
-        POConverter converter = convertMap.get(physicalOperator.getClass());
-        if (converter == null) {
-            throw new IllegalArgumentException("Spork unsupported PhysicalOperator: " + physicalOperator);
-        }
-
-        LOG.info("Converting operator " + physicalOperator.getClass().getSimpleName()+" "+physicalOperator);
-        nextRDD = converter.convert(predecessorRdds, physicalOperator);
+            // count the records shuffled, as the MapReduce counters do
+            if (isCountedShuffle(physicalOperator)) {
+                predecessorRdds = counters.countShuffle(predecessorRdds, physicalOperator);
+            }
 
-        if (POStore.class.equals(physicalOperator.getClass())) {
-            return;
+            LOG.info("Converting operator " + physicalOperator.getClass().getSimpleName()+" "+physicalOperator);
+            nextRDD = converter.convert(predecessorRdds, physicalOperator);
         }
 
         if (nextRDD == null) {
             throw new IllegalArgumentException("RDD should not be null after PhysicalOperator: " + physicalOperator);
         }
 
+        if (physicalOperator instanceof POLoad) {
+            nextRDD = counters.count(nextRDD, physicalOperator);
+        }
+
+        // the output of an operator with several successors is computed once and
+        // kept for the others, instead of rescanning its inputs for each of them
+        List<PhysicalOperator> successors = plan.getSuccessors(physicalOperator);
+        if (multiQuery && successors != null && successors.size() > 1
+                && !(physicalOperator instanceof POCache)) {
+            LOG.info("Persisting the output of " + physicalOperator + " shared by " + successors.size() + " operators");
+            nextRDD = SparkCounters.persist(nextRDD, StorageLevel.MEMORY_AND_DISK_SER());
+        }
+
         rdds.put(physicalOperator.getOperatorKey(), nextRDD);
     }
 
+    /**
+     * @return the chain of operators ending with the given one that can be run as a single
+     * partition function, where every operator but the last has a single successor
+     */
+    private static List<PhysicalOperator> getPipeline(PhysicalPlan plan, PhysicalOperator physicalOperator,
+            Map<OperatorKey, RDD<Tuple>> rdds) {
+        LinkedList<PhysicalOperator> pipeline = Lists.newLinkedList();
+        PhysicalOperator current = physicalOperator;
+        while (PipelineConverter.canPipeline(current)) {
+            pipeline.addFirst(current);
+            List<PhysicalOperator> predecessors = plan.getPredecessors(current);
+            if (predecessors == null || predecessors.size() != 1) {
+                break;
+            }
+            PhysicalOperator predecessor = predecessors.get(0);
+            if (plan.getSuccessors(predecessor).size() != 1
+                    || rdds.containsKey(predecessor.getOperatorKey())) {
+                break;
+            }
+            current = predecessor;
+        }
+        return pipeline;
+    }
+
+    private static class RunningStore {
+        private final POStore poStore;
+        private final JobStats jobStats;
+        private final long startTime = System.currentTimeMillis();
+
+        public RunningStore(POStore poStore, JobStats jobStats) {
+            this.poStore = poStore;
+            this.jobStats = jobStats;
+        }
+    }
+
     @Override
     public void explain(PhysicalPlan pp, PigContext pc, PrintStream ps, String format, boolean verbose)
             throws IOException { }
@@ -0,0 +1,36 @@
+package org.apache.pig.backend.hadoop.executionengine.spark;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.pig.PigConfiguration;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.PhysicalOperator;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhysicalPlan;
+import org.apache.pig.classification.InterfaceAudience;
+import org.apache.pig.classification.InterfaceStability;
+
+/**
+ * Interface to implement when you want to use a custom approach to estimating the number of
+ * partitions of the Spark shuffles (group, cogroup, join, distinct and order by) that don't
+ * set PARALLEL. The Spark counterpart of
+ * {@link org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.PigReducerEstimator},
+ * set with {@link PigConfiguration#SPARK_PARALLELISM_ESTIMATOR}.
+ *
+ * @see InputSizeParallelismEstimator
+ */
+@InterfaceAudience.Public
+@InterfaceStability.Evolving
+public interface SparkParallelismEstimator {
+
+    /**
+     * Estimate the number of partitions of a shuffle.
+     *
+     * @param plan the physical plan being run
+     * @param shuffle the operator of the plan shuffling its input
+     * @param conf configuration of the script
+     * @return the number of partitions to use, or -1 if the count couldn't be estimated
+     * @throws IOException
+     */
+    public int estimateParallelism(PhysicalPlan plan, PhysicalOperator shuffle, Configuration conf)
+            throws IOException;
+}
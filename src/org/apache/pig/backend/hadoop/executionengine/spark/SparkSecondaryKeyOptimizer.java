@@ -0,0 +1,136 @@
+package org.apache.pig.backend.hadoop.executionengine.spark;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.MapReduceOper;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.SecondaryKeyOptimizer;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.plans.MROperPlan;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.PhysicalOperator;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhysicalPlan;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POGlobalRearrange;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POLocalRearrange;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POPackage;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POUnion;
+import org.apache.pig.impl.PigContext;
+import org.apache.pig.impl.plan.OperatorKey;
+import org.apache.pig.impl.plan.VisitorException;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Lets the shuffle of a group order the values of each key for the nested ORDER and DISTINCT
+ * of the foreach that follows it, instead of sorting the bags in memory.
+ *
+ * The analysis is done by the MapReduce {@link SecondaryKeyOptimizer}: it adds the secondary
+ * key plans to the local rearranges, marks the package and removes the nested sorts, all of which
+ * are shared with the physical plan. The sort order of the secondary key is returned keyed by
+ * the POGlobalRearrange it belongs to, for the GlobalRearrangeConverter.
+ */
+public class SparkSecondaryKeyOptimizer {
+
+    private static final Log LOG = LogFactory.getLog(SparkSecondaryKeyOptimizer.class);
+
+    private final PhysicalPlan physicalPlan;
+    private final MROperPlan mrPlan;
+    private final PigContext pigContext;
+
+    public SparkSecondaryKeyOptimizer(PhysicalPlan physicalPlan, MROperPlan mrPlan, PigContext pigContext) {
+        this.physicalPlan = physicalPlan;
+        this.mrPlan = mrPlan;
+        this.pigContext = pigContext;
+    }
+
+    /**
+     * Must run after the SparkCombinerOptimizer, jobs using a combiner are left alone,
+     * and before the POPackageAnnotator.
+     * @return the secondary sort orders, keyed by the POGlobalRearrange they apply to
+     */
+    public Map<OperatorKey, boolean[]> optimize() throws VisitorException {
+        Map<OperatorKey, boolean[]> secondarySortOrders = Maps.newHashMap();
+        String noSecondaryKey = pigContext.getProperties().getProperty("pig.exec.nosecondarykey");
+        if (pigContext.inIllustrator || "true".equals(noSecondaryKey)) {
+            return secondarySortOrders;
+        }
+
+        // Only hand the jobs whose rearranges and package are those of a single
+        // LR... -> GR -> Package in the physical plan to the SecondaryKeyOptimizer
+        MROperPlan optimizable = new MROperPlan();
+        Map<MapReduceOper, POGlobalRearrange> globalRearranges = Maps.newHashMap();
+        for (MapReduceOper mr : mrPlan) {
+            POGlobalRearrange globalRearrange = getGlobalRearrange(mr);
+            if (globalRearrange != null) {
+                optimizable.add(mr);
+                globalRearranges.put(mr, globalRearrange);
+            }
+        }
+        if (optimizable.size() == 0) {
+            return secondarySortOrders;
+        }
+
+        SecondaryKeyOptimizer skOptimizer = new SecondaryKeyOptimizer(optimizable);
+        skOptimizer.visit();
+
+        for (MapReduceOper mr : optimizable) {
+            if (mr.getUseSecondaryKey()) {
+                POGlobalRearrange globalRearrange = globalRearranges.get(mr);
+                LOG.info("Using secondary key for " + globalRearrange);
+                secondarySortOrders.put(globalRearrange.getOperatorKey(), mr.getSecondarySortOrder());
+            }
+        }
+        return secondarySortOrders;
+    }
+
+    private POGlobalRearrange getGlobalRearrange(MapReduceOper mr) {
+        if (mr.isGlobalSort() || mr.reducePlan.isEmpty() || !mr.combinePlan.isEmpty()) {
+            return null;
+        }
+        List<PhysicalOperator> reduceRoots = mr.reducePlan.getRoots();
+        if (reduceRoots.size() != 1 || !POPackage.class.equals(reduceRoots.get(0).getClass())) {
+            return null;
+        }
+        POPackage pack = (POPackage) reduceRoots.get(0);
+        if (physicalPlan.getOperator(pack.getOperatorKey()) != pack) {
+            return null;
+        }
+        List<PhysicalOperator> packPredecessors = physicalPlan.getPredecessors(pack);
+        if (packPredecessors == null || packPredecessors.size() != 1
+                || !(packPredecessors.get(0) instanceof POGlobalRearrange)) {
+            return null;
+        }
+        POGlobalRearrange globalRearrange = (POGlobalRearrange) packPredecessors.get(0);
+
+        // the rearranges the SecondaryKeyOptimizer changes must be the inputs of the global rearrange
+        List<PhysicalOperator> mapLeaves = mr.mapPlan.getLeaves();
+        if (mapLeaves == null || mapLeaves.size() != 1) {
+            return null;
+        }
+        PhysicalOperator mapLeaf = mapLeaves.get(0);
+        List<PhysicalOperator> rearranges;
+        if (mapLeaf instanceof POLocalRearrange) {
+            rearranges = mapLeaves;
+        } else if (mapLeaf instanceof POUnion) {
+            rearranges = mr.mapPlan.getPredecessors(mapLeaf);
+        } else {
+            return null;
+        }
+        List<PhysicalOperator> grPredecessors = physicalPlan.getPredecessors(globalRearrange);
+        if (rearranges == null || grPredecessors == null) {
+            return null;
+        }
+        Set<PhysicalOperator> rearrangeSet = Sets.newHashSet(rearranges);
+        for (PhysicalOperator rearrange : rearrangeSet) {
+            if (!POLocalRearrange.class.equals(rearrange.getClass())) {
+                return null;
+            }
+        }
+        if (!rearrangeSet.equals(Sets.newHashSet(grPredecessors))) {
+            return null;
+        }
+        return globalRearrange;
+    }
+}
@@ -0,0 +1,344 @@
+package org.apache.pig.backend.hadoop.executionengine.spark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.SortedMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.pig.PigConfiguration;
+import org.apache.pig.PigException;
+import org.apache.pig.backend.hadoop.executionengine.spark.converter.CacheConverter;
+import org.apache.pig.impl.PigContext;
+import org.apache.pig.impl.util.JarManager;
+
+import spark.SparkContext;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * The connection to Spark shared by the scripts run in this JVM, so that a PigServer or an
+ * embedded script only pays for starting the SparkContext and the executors once.
+ *
+ * The settings are read from the properties of the PigContext, with the environment variables
+ * used so far as defaults. A script asking for other settings restarts the session, once the
+ * scripts using it are done. The jars are sent to the executors by content: a jar already sent
+ * is not sent again, and a jar that changed is sent under a new name.
+ */
+public class SparkSession {
+
+    private static final Log LOG = LogFactory.getLog(SparkSession.class);
+
+    private static SparkSession session = null;
+
+    private static boolean shutdownHookAdded = false;
+
+    private final Settings settings;
+    private final SparkContext sparkContext;
+    // the values of the system properties before the session set them, null when they were unset
+    private final Map<String, String> replacedSystemProperties = Maps.newHashMap();
+    // the scripts running in the session, guarded by SparkSession.class
+    private int users = 0;
+    // An object that handle cache calls in the operator graph. It is shared across scripts and
+    // cleared with the session.
+    private final CacheConverter cacheConverter = new CacheConverter();
+
+    // content hashes of the jars sent to the executors
+    private final Set<String> shippedHashes = Sets.newHashSet();
+    // names of the jars sent to the executors, Spark serves them by name
+    private final Set<String> shippedNames = Sets.newHashSet();
+
+    private SparkSession(Settings settings) throws IOException {
+        this.settings = settings;
+        LOG.info("Starting Spark session on " + settings.master);
+        for (Map.Entry<String, String> property : settings.systemProperties.entrySet()) {
+            replacedSystemProperties.put(property.getKey(), System.getProperty(property.getKey()));
+            System.setProperty(property.getKey(), property.getValue());
+        }
+        try {
+            sparkContext = new SparkContext(settings.master, "Spork", settings.sparkHome,
+                    SparkUtil.toScalaSeq(Lists.<String>newArrayList()));
+        } catch (RuntimeException e) {
+            restoreSystemProperties();
+            throw e;
+        }
+        addJars(settings.jars);
+    }
+
+    /**
+     * @return the session with the settings of the PigContext, started if needed. It is not
+     * stopped for other settings until it is {@link #release()}d.
+     */
+    public static synchronized SparkSession acquire(PigContext pigContext) throws IOException {
+        Settings settings = new Settings(pigContext.getProperties());
+        while (session != null && !session.settings.equals(settings)) {
+            if (session.users == 0) {
+                LOG.info("The Spark settings changed, restarting the Spark session");
+                stop();
+            } else {
+                LOG.info("The Spark settings changed, waiting for the " + session.users
+                        + " scripts running in the Spark session to finish");
+                try {
+                    SparkSession.class.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the Spark session");
+                }
+            }
+        }
+        if (session == null) {
+            session = new SparkSession(settings);
+            if (!shutdownHookAdded) {
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    @Override
+                    public void run() {
+                        stop();
+                    }
+                });
+                shutdownHookAdded = true;
+            }
+        }
+        ++session.users;
+        return session;
+    }
+
+    /**
+     * Lets a session acquired by {@link #acquire(PigContext)} be stopped for other settings
+     */
+    public void release() {
+        synchronized (SparkSession.class) {
+            --users;
+            SparkSession.class.notifyAll();
+        }
+    }
+
+    /**
+     * Starts the session of the PigContext in the background if {@link PigConfiguration#SPARK_SESSION_WARM}
+     * is set, and runs a job on every core so that the executors are up before the script needs them.
+     */
+    public static void warmUp(final PigContext pigContext) {
+        if (!"true".equalsIgnoreCase(pigContext.getProperties().getProperty(PigConfiguration.SPARK_SESSION_WARM))) {
+            return;
+        }
+        Thread warmUp = new Thread("Spark session warm up") {
+            @Override
+            public void run() {
+                SparkSession warmSession = null;
+                try {
+                    warmSession = acquire(pigContext);
+                    SparkContext sparkContext = warmSession.getSparkContext();
+                    int parallelism = sparkContext.defaultParallelism();
+                    List<Integer> tasks = Lists.newArrayList();
+                    for (int i = 0; i < parallelism; i++) {
+                        tasks.add(i);
+                    }
+                    sparkContext.parallelize(SparkUtil.toScalaSeq(tasks), parallelism,
+                            SparkUtil.getManifest(Integer.class)).count();
+                    LOG.info("Spark session warmed up with " + parallelism + " tasks");
+                } catch (Exception e) {
+                    // the script will start the session itself, and fail there if it can't
+                    LOG.warn("Couldn't warm up the Spark session", e);
+                } finally {
+                    if (warmSession != null) {
+                        warmSession.release();
+                    }
+                }
+            }
+        };
+        warmUp.setDaemon(true);
+        warmUp.start();
+    }
+
+    /**
+     * Stops the session even if scripts are running in it, the next script starts a new one.
+     * The system properties set for the session get their previous values back.
+     */
+    public static synchronized void stop() {
+        if (session != null) {
+            LOG.info("Stopping Spark session");
+            try {
+                session.sparkContext.stop();
+            } finally {
+                session.cacheConverter.clear();
+                session.restoreSystemProperties();
+                session = null;
+                SparkSession.class.notifyAll();
+            }
+        }
+    }
+
+    private void restoreSystemProperties() {
+        for (Map.Entry<String, String> property : replacedSystemProperties.entrySet()) {
+            if (property.getValue() == null) {
+                System.clearProperty(property.getKey());
+            } else {
+                System.setProperty(property.getKey(), property.getValue());
+            }
+        }
+    }
+
+    public SparkContext getSparkContext() {
+        return sparkContext;
+    }
+
+    public CacheConverter getCacheConverter() {
+        return cacheConverter;
+    }
+
+    /**
+     * Sends the jars of the UDFs of a script to the executors, as JarManager would merge them in
+     * the job jar in MapReduce mode, and the jars registered in the PigContext.
+     */
+    public void addJars(Set<String> funcs, PigContext pigContext) throws IOException {
+        List<String> jars = JarManager.getFuncJars(funcs, pigContext);
+        for (URL extraJar : pigContext.extraJars) {
+            if ("file".equals(extraJar.getProtocol())) {
+                jars.add(extraJar.getPath());
+            }
+        }
+        addJars(jars);
+    }
+
+    private synchronized void addJars(Collection<String> jars) throws IOException {
+        if (settings.isLocal()) {
+            // the executors share the class loader of the driver
+            return;
+        }
+        for (String jar : jars) {
+            File file = new File(jar);
+            if (!file.isFile()) {
+                LOG.warn("Couldn't find jar " + jar + " to send to the Spark executors");
+                continue;
+            }
+            String hash = Files.hash(file, Hashing.md5()).toString();
+            if (!shippedHashes.add(hash)) {
+                continue;
+            }
+            if (!shippedNames.add(file.getName())) {
+                // another version of the jar was sent under this name
+                String name = file.getName().replaceAll("\\.jar$", "") + "-" + hash + ".jar";
+                File copy = new File(Files.createTempDir(), name);
+                Files.copy(file, copy);
+                copy.getParentFile().deleteOnExit();
+                copy.deleteOnExit();
+                shippedNames.add(name);
+                file = copy;
+            }
+            LOG.info("Sending jar " + file + " to the Spark executors");
+            sparkContext.addJar(file.getPath());
+        }
+    }
+
+    /**
+     * What a SparkContext is created from. A script with other settings needs a new session.
+     * They only depend on the properties of the script and on the environment, not on the
+     * system properties set by a session.
+     */
+    private static class Settings {
+
+        private final String master;
+        private final String sparkHome;
+        private final List<String> jars;
+        private final SortedMap<String, String> systemProperties = Maps.newTreeMap();
+
+        public Settings(Properties properties) throws PigException {
+            String masterSetting = getSetting(properties, PigConfiguration.SPARK_MASTER, "SPARK_MASTER");
+            if (masterSetting == null) {
+                LOG.info("SPARK_MASTER not specified, using \"local\"");
+                masterSetting = "local";
+            }
+            master = masterSetting;
+            // It's okay if this is null for local mode
+            sparkHome = getSetting(properties, PigConfiguration.SPARK_HOME, "SPARK_HOME");
+
+            jars = Lists.newArrayList();
+            String jarsSetting = getSetting(properties, PigConfiguration.SPARK_JARS, null);
+            if (jarsSetting == null) {
+                String pigJar = JarManager.findContainingJar(SparkLauncher.class);
+                if (pigJar != null) {
+                    jars.add(pigJar);
+                }
+                jarsSetting = System.getenv("SPARK_JARS");
+            }
+            if (jarsSetting != null) {
+                for (String jar : Splitter.on(',').trimResults().omitEmptyStrings().split(jarsSetting)) {
+                    jars.add(jar);
+                }
+            }
+
+            if (!isLocal()) {
+                // Check that we have the Mesos native library and Spark home are set
+                if (sparkHome == null) {
+                    throw new PigException("SPARK_HOME is not set, you need to set it to run on a Mesos cluster");
+                }
+                if (System.getenv("MESOS_NATIVE_LIBRARY") == null) {
+                    throw new PigException("MESOS_NATIVE_LIBRARY is not set, you need to set it to run on a Mesos cluster");
+                }
+            }
+
+            // Tell Spark to use Mesos in coarse-grained mode (only affects Spark 0.6+; no impact on others)
+            systemProperties.put("spark.mesos.coarse", "true");
+
+            // For coarse-grained Mesos mode, tell it an upper bound on how many cores to grab in total;
+            // we conservatively set this to 32 unless the user set it.
+            String maxCores = getSetting(properties, PigConfiguration.SPARK_MAX_CPUS, "SPARK_MAX_CPUS");
+            systemProperties.put("spark.cores.max", maxCores == null ? "32" : String.valueOf(Integer.parseInt(maxCores)));
+
+            // Serialize tuples with BinInterSedes in shuffles and serialized caches, unless
+            // another serializer was asked for
+            if (properties.getProperty("spark.serializer") == null) {
+                systemProperties.put("spark.serializer", "spark.KryoSerializer");
+                systemProperties.put("spark.kryo.registrator", PigKryoRegistrator.class.getName());
+            }
+
+            // Spark reads its own settings from the system properties
+            for (String name : properties.stringPropertyNames()) {
+                if (name.startsWith("spark.")) {
+                    systemProperties.put(name, properties.getProperty(name));
+                }
+            }
+        }
+
+        private static String getSetting(Properties properties, String property, String environmentVariable) {
+            String value = properties.getProperty(property);
+            if (value == null && environmentVariable != null) {
+                value = System.getenv(environmentVariable);
+            }
+            return value;
+        }
+
+        public boolean isLocal() {
+            return master.startsWith("local");
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Settings)) {
+                return false;
+            }
+            Settings other = (Settings) obj;
+            return master.equals(other.master)
+                    && (sparkHome == null ? other.sparkHome == null : sparkHome.equals(other.sparkHome))
+                    && jars.equals(other.jars)
+                    && systemProperties.equals(other.systemProperties);
+        }
+
+        @Override
+        public int hashCode() {
+            return Joiner.on('\n').useForNull("").join(master, sparkHome, jars, systemProperties).hashCode();
+        }
+    }
+}
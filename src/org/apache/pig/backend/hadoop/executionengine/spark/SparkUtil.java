@@ -2,6 +2,7 @@ package org.apache.pig.backend.hadoop.executionengine.spark;
 
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.pig.backend.hadoop.datastorage.ConfigurationUtil;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.PigMapReduce;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.PhysicalOperator;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POGlobalRearrange;
 import org.apache.pig.data.Tuple;
@@ -18,6 +19,7 @@ import spark.RDD;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Properties;
 
 /**
  * @author billg
@@ -41,6 +43,15 @@ public class SparkUtil {
         return jobConf;
     }
 
+    /**
+     * Sets the job configuration of the task thread to the properties of the script, as
+     * PigGenericMapBase does in MapReduce, for the operators and the bags reading their
+     * settings from it
+     */
+    public static void setJobConf(Properties properties) {
+        PigMapReduce.sJobConfInternal.set(ConfigurationUtil.toConfiguration(properties));
+    }
+
     public static <T> Seq<T> toScalaSeq(List<T> list) {
         return JavaConversions.asScalaBuffer(list);
     }
@@ -64,7 +75,7 @@ public class SparkUtil {
     public static  int getParallelism(List<RDD<Tuple>> predecessors, PhysicalOperator physicalOperator) {
         int parallelism = physicalOperator.getRequestedParallelism();
         if (parallelism <= 0) {
-            // Parallelism wasn't set in Pig, so set it to whatever Spark thinks is reasonable.
+            // Parallelism wasn't set in Pig nor estimated by SparkLauncher, so set it to whatever Spark thinks is reasonable.
             parallelism = predecessors.get(0).context().defaultParallelism();
         }
         return parallelism;
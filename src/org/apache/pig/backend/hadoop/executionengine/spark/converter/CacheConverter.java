@@ -1,37 +1,299 @@
 package org.apache.pig.backend.hadoop.executionengine.spark.converter;
 
 import java.io.IOException;
+import java.io.Serializable;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.pig.LoadFunc;
+import org.apache.pig.PigConfiguration;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.PhysicalOperator;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POCache;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POLoad;
+import org.apache.pig.backend.hadoop.executionengine.spark.SparkCounters;
+import org.apache.pig.backend.hadoop.executionengine.spark.SparkUtil;
 import org.apache.pig.data.Tuple;
+import org.apache.pig.impl.util.UriUtil;
+import org.apache.pig.impl.util.Utils;
+import org.apache.pig.newplan.logical.relational.LOCache;
 
+import scala.Tuple2;
+import scala.collection.Iterator;
+import scala.collection.JavaConversions;
+import scala.runtime.AbstractFunction2;
+import spark.Accumulable;
+import spark.AccumulableParam;
 import spark.RDD;
+import spark.storage.StorageLevel;
 
+/**
+ * Caches the relations marked with CACHE, for the scripts run by the same SparkContext.
+ *
+ * A cached relation is recomputed when the files it was computed from changed. A relation is
+ * cached once, with the storage level it was first cached with: caching it again with another
+ * level reuses it rather than persisting a second copy. The cached relations are dropped with the
+ * session, see {@link #clear()}.
+ *
+ * The memory used by the cached relations is bounded by the Spark block manager, which drops
+ * the least recently used blocks, or writes them to disk for the MEMORY_AND_DISK levels, when
+ * spark.storage.memoryFraction of the heap is used. Spark 0.6 can't remove the blocks of an RDD,
+ * so the relations replaced by a recomputed one are left to that LRU as well. The size of each
+ * cached relation is estimated from its records when they are cached, and logged at the end of
+ * each script, with a warning when it goes over {@link PigConfiguration#SPARK_CACHE_WARN_BYTES}.
+ */
 public class CacheConverter implements POConverter<Tuple, Tuple, POCache> {
 
     private static final Log LOG = LogFactory.getLog(CacheConverter.class);
 
-    private Map<String, RDD<Tuple>> cachedRdds = new HashMap<String, RDD<Tuple>>();
+    // 1 GB
+    private static final long DEFAULT_CACHE_WARN_BYTES = 1L << 30;
+
+    // the cached relations by the signature of their plan
+    private final Map<String, CachedRDD> cachedRdds = new HashMap<String, CachedRDD>();
+
+    private long hits = 0;
+    private long misses = 0;
+
+    private Configuration conf = new Configuration();
+
+    /**
+     * Sets the configuration of the script being run, to access the input files.
+     */
+    public void setConf(Configuration conf) {
+        this.conf = conf;
+    }
 
     @Override
     public RDD<Tuple> convert(List<RDD<Tuple>> predecessors, POCache physicalOperator) throws IOException {
         String key = physicalOperator.computeCacheKey();
-        if (key != null) {
-            if (cachedRdds.get(key) != null) {
-                return cachedRdds.get(key);
-            } else {
-                RDD<Tuple> rdd = predecessors.get(0);
-                rdd.cache();
-                cachedRdds.put(key, rdd);
-                return rdd;
-            }
-        } else {
+        if (key == null) {
             return predecessors.get(0);
         }
+        String storageLevel = physicalOperator.getStorageLevel() == null ?
+                LOCache.DEFAULT_STORAGE_LEVEL : physicalOperator.getStorageLevel();
+
+        CachedRDD input = new CachedRDD(null, storageLevel);
+        addInputs(physicalOperator, input);
+
+        CachedRDD cached = cachedRdds.get(key);
+        if (cached != null && cached.inputSignature.equals(input.inputSignature)) {
+            ++hits;
+            if (!cached.storageLevel.equals(storageLevel)) {
+                LOG.info(physicalOperator + " asks for storage level " + storageLevel
+                        + ", reusing it as cached with storage level " + cached.storageLevel);
+            }
+            LOG.info("Cache hit for " + physicalOperator + ", " + cached.getCachedBytes() + " bytes cached"
+                    + " (hits: " + hits + ", misses: " + misses + ")");
+            return cached.rdd;
+        }
+        if (cached != null) {
+            LOG.info("Inputs of " + physicalOperator + " changed since it was cached, recomputing it");
+            cachedRdds.remove(key);
+        }
+        ++misses;
+        LOG.info("Cache miss for " + physicalOperator + ", caching it with storage level " + storageLevel
+                + " (hits: " + hits + ", misses: " + misses + ")");
+
+        RDD<Tuple> measured = predecessors.get(0).mapPartitionsWithSplit(
+                new MeasureFunction(input.partitionBytes), SparkUtil.getManifest(Tuple.class));
+        RDD<Tuple> rdd = SparkCounters.persist(measured, toStorageLevel(storageLevel));
+        input.rdd = rdd;
+        cachedRdds.put(key, input);
+        return rdd;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Logs the hits, misses and size of the cache, and warns when the size is over
+     * {@link PigConfiguration#SPARK_CACHE_WARN_BYTES}.
+     */
+    public void logStats() {
+        long cachedBytes = getCachedBytes();
+        LOG.info("Cache hits: " + hits + ", misses: " + misses + ", cached relations: " + cachedRdds.size()
+                + ", cached bytes: " + cachedBytes);
+        long warnBytes = conf.getLong(PigConfiguration.SPARK_CACHE_WARN_BYTES, DEFAULT_CACHE_WARN_BYTES);
+        if (cachedBytes > warnBytes) {
+            LOG.warn("The " + cachedRdds.size() + " cached relations take an estimated " + cachedBytes
+                    + " bytes, more than " + PigConfiguration.SPARK_CACHE_WARN_BYTES + " = " + warnBytes
+                    + ": their blocks may be evicted by the other ones, consider caching fewer relations");
+        }
+    }
+
+    /**
+     * Forgets the cached relations, when the session they were cached in is stopped
+     */
+    public void clear() {
+        cachedRdds.clear();
+    }
+
+    /**
+     * @return the estimated size of the records of the cached relations computed so far
+     */
+    public long getCachedBytes() {
+        long cachedBytes = 0;
+        for (CachedRDD cached : cachedRdds.values()) {
+            cachedBytes += cached.getCachedBytes();
+        }
+        return cachedBytes;
+    }
+
+    /**
+     * Adds the size and modification times of the files loaded by the plan of the operator.
+     */
+    private void addInputs(PhysicalOperator physicalOperator, CachedRDD input) {
+        if (physicalOperator instanceof POLoad) {
+            String fileName = ((POLoad) physicalOperator).getLFile().getFileName();
+            try {
+                for (String location : LoadFunc.getPathStrings(fileName)) {
+                    if (!UriUtil.isHDFSFileOrLocalOrS3N(location)) {
+                        continue;
+                    }
+                    Path path = new Path(location);
+                    FileSystem fs = path.getFileSystem(conf);
+                    FileStatus[] statuses = fs.globStatus(path);
+                    if (statuses == null) {
+                        continue;
+                    }
+                    for (FileStatus status : statuses) {
+                        long length = Utils.getPathLength(fs, status);
+                        input.inputSignature += status.getPath() + ":" + length + ":"
+                                + getModificationTime(fs, status) + ";";
+                    }
+                }
+            } catch (IOException e) {
+                LOG.warn("Couldn't get the status of input " + fileName, e);
+            }
+        }
+        List<PhysicalOperator> inputs = physicalOperator.getInputs();
+        if (inputs != null) {
+            for (PhysicalOperator in : inputs) {
+                addInputs(in, input);
+            }
+        }
+    }
+
+    private static long getModificationTime(FileSystem fs, FileStatus status) throws IOException {
+        long modificationTime = status.getModificationTime();
+        if (status.isDir()) {
+            for (FileStatus child : fs.listStatus(status.getPath())) {
+                modificationTime = Math.max(modificationTime, getModificationTime(fs, child));
+            }
+        }
+        return modificationTime;
+    }
+
+    private static StorageLevel toStorageLevel(String storageLevel) {
+        if ("MEMORY_ONLY_SER".equals(storageLevel)) {
+            return StorageLevel.MEMORY_ONLY_SER();
+        } else if ("MEMORY_AND_DISK".equals(storageLevel)) {
+            return StorageLevel.MEMORY_AND_DISK();
+        } else if ("MEMORY_AND_DISK_SER".equals(storageLevel)) {
+            return StorageLevel.MEMORY_AND_DISK_SER();
+        } else if ("DISK_ONLY".equals(storageLevel)) {
+            return StorageLevel.DISK_ONLY();
+        }
+        return StorageLevel.MEMORY_ONLY();
+    }
+
+    private static class CachedRDD {
+        private RDD<Tuple> rdd;
+        private final String storageLevel;
+        private String inputSignature = "";
+        // the estimated size of each partition, the last computation of a partition wins
+        private final Accumulable<HashMap<Integer, Long>, Tuple2<Integer, Long>> partitionBytes =
+                new Accumulable<HashMap<Integer, Long>, Tuple2<Integer, Long>>(
+                        new HashMap<Integer, Long>(), PartitionBytesParam.INSTANCE);
+
+        public CachedRDD(RDD<Tuple> rdd, String storageLevel) {
+            this.rdd = rdd;
+            this.storageLevel = storageLevel;
+        }
+
+        private long getCachedBytes() {
+            long cachedBytes = 0;
+            for (Long bytes : partitionBytes.value().values()) {
+                cachedBytes += bytes;
+            }
+            return cachedBytes;
+        }
+    }
+
+    private static class PartitionBytesParam
+            implements AccumulableParam<HashMap<Integer, Long>, Tuple2<Integer, Long>>, Serializable {
+
+        private static final PartitionBytesParam INSTANCE = new PartitionBytesParam();
+
+        @Override
+        public HashMap<Integer, Long> addAccumulator(HashMap<Integer, Long> sizes, Tuple2<Integer, Long> size) {
+            sizes.put(size._1(), size._2());
+            return sizes;
+        }
+
+        @Override
+        public HashMap<Integer, Long> addInPlace(HashMap<Integer, Long> sizes1, HashMap<Integer, Long> sizes2) {
+            sizes1.putAll(sizes2);
+            return sizes1;
+        }
+
+        @Override
+        public HashMap<Integer, Long> zero(HashMap<Integer, Long> initialValue) {
+            return new HashMap<Integer, Long>();
+        }
+    }
+
+    /**
+     * Adds the estimated memory size of the records of each partition to the sizes of the relation
+     * when the partition is exhausted, that is when it was cached
+     */
+    private static class MeasureFunction extends AbstractFunction2<Object, Iterator<Tuple>, Iterator<Tuple>>
+            implements Serializable {
+
+        private final Accumulable<HashMap<Integer, Long>, Tuple2<Integer, Long>> partitionBytes;
+
+        private MeasureFunction(Accumulable<HashMap<Integer, Long>, Tuple2<Integer, Long>> partitionBytes) {
+            this.partitionBytes = partitionBytes;
+        }
+
+        @Override
+        public Iterator<Tuple> apply(final Object partition, Iterator<Tuple> i) {
+            final java.util.Iterator<Tuple> input = JavaConversions.asJavaIterator(i);
+            return JavaConversions.asScalaIterator(new java.util.Iterator<Tuple>() {
+                private long bytes = 0;
+                private boolean done = false;
+
+                public boolean hasNext() {
+                    boolean hasNext = input.hasNext();
+                    if (!hasNext && !done) {
+                        done = true;
+                        partitionBytes.$plus$eq(new Tuple2<Integer, Long>((Integer) partition, bytes));
+                    }
+                    return hasNext;
+                }
+
+                public Tuple next() {
+                    Tuple tuple = input.next();
+                    bytes += tuple.getMemorySize();
+                    return tuple;
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            });
+        }
     }
 }
@@ -0,0 +1,67 @@
+package org.apache.pig.backend.hadoop.executionengine.spark.converter;
+
+import java.io.Serializable;
+import java.util.List;
+
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.Result;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhysicalPlan;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POCollectedGroup;
+import org.apache.pig.backend.hadoop.executionengine.spark.SparkUtil;
+import org.apache.pig.data.Tuple;
+
+import scala.collection.Iterator;
+import scala.collection.JavaConversions;
+import scala.runtime.AbstractFunction1;
+import spark.RDD;
+
+/**
+ * Converter for GROUP ... USING 'collected'. The loader of the input is a CollectableLoadFunc
+ * that keeps all the tuples of a key in the same split, so each partition is grouped on its
+ * own, without a shuffle.
+ */
+@SuppressWarnings({ "serial"})
+public class CollectedGroupConverter implements POConverter<Tuple, Tuple, POCollectedGroup> {
+
+    @Override
+    public RDD<Tuple> convert(List<RDD<Tuple>> predecessors, POCollectedGroup physicalOperator) {
+        SparkUtil.assertPredecessorSize(predecessors, physicalOperator, 1);
+        RDD<Tuple> rdd = predecessors.get(0);
+        return rdd.mapPartitions(new CollectedGroupFunction(physicalOperator),
+                SparkUtil.getManifest(Tuple.class));
+    }
+
+    private static class CollectedGroupFunction extends AbstractFunction1<Iterator<Tuple>, Iterator<Tuple>>
+            implements Serializable {
+
+        private final POCollectedGroup poCollectedGroup;
+
+        private CollectedGroupFunction(POCollectedGroup poCollectedGroup) {
+            this.poCollectedGroup = poCollectedGroup;
+        }
+
+        @Override
+        public Iterator<Tuple> apply(Iterator<Tuple> i) {
+            // the group of the last key is output once the parent plan is marked as done
+            final PhysicalPlan parentPlan = new PhysicalPlan();
+            poCollectedGroup.setParentPlan(parentPlan);
+            poCollectedGroup.setInputs(null);
+
+            final java.util.Iterator<Tuple> input = JavaConversions.asJavaIterator(i);
+            return JavaConversions.asScalaIterator(new POOutputConsumerIterator(input) {
+                protected void attach(Tuple tuple) {
+                    poCollectedGroup.attachInput(tuple);
+                }
+
+                protected Result getNextResult() throws ExecException {
+                    return poCollectedGroup.getNextTupleProfiled();
+                }
+
+                protected boolean endOfInput() {
+                    parentPlan.endOfAllInput = true;
+                    return true;
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.apache.pig.backend.hadoop.executionengine.spark.converter;
+
+import java.io.Serializable;
+import java.util.List;
+
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.Result;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POCounter;
+import org.apache.pig.backend.hadoop.executionengine.spark.SparkUtil;
+import org.apache.pig.data.Tuple;
+
+import scala.collection.Iterator;
+import scala.collection.JavaConversions;
+import scala.runtime.AbstractFunction2;
+import spark.RDD;
+
+/**
+ * Converter for the first step of a RANK: numbers the tuples of each partition, the partition
+ * index taking the place of the task id of the MapReduce plan. See {@link RankConverter}.
+ */
+@SuppressWarnings({ "serial"})
+public class CounterConverter implements POConverter<Tuple, Tuple, POCounter> {
+
+    @Override
+    public RDD<Tuple> convert(List<RDD<Tuple>> predecessors, POCounter physicalOperator) {
+        SparkUtil.assertPredecessorSize(predecessors, physicalOperator, 1);
+        RDD<Tuple> rdd = predecessors.get(0);
+        return rdd.mapPartitionsWithSplit(new CounterFunction(physicalOperator),
+                SparkUtil.getManifest(Tuple.class));
+    }
+
+    private static class CounterFunction extends AbstractFunction2<Object, Iterator<Tuple>, Iterator<Tuple>>
+            implements Serializable {
+
+        private final POCounter poCounter;
+
+        private CounterFunction(POCounter poCounter) {
+            this.poCounter = poCounter;
+        }
+
+        @Override
+        public Iterator<Tuple> apply(Object partition, Iterator<Tuple> i) {
+            poCounter.setTaskId(String.valueOf(partition));
+            poCounter.resetLocalCounter();
+            final java.util.Iterator<Tuple> input = JavaConversions.asJavaIterator(i);
+            return JavaConversions.asScalaIterator(new POOutputConsumerIterator(input) {
+                protected void attach(Tuple tuple) {
+                    poCounter.setInputs(null);
+                    poCounter.attachInput(tuple);
+                }
+
+                protected Result getNextResult() throws ExecException {
+                    return poCounter.getNextTupleProfiled();
+                }
+            });
+        }
+    }
+}
@@ -1,73 +1,217 @@
 package org.apache.pig.backend.hadoop.executionengine.spark.converter;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.pig.PigConfiguration;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.PODistinct;
 import org.apache.pig.backend.hadoop.executionengine.spark.SparkUtil;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.InterSedes;
+import org.apache.pig.data.InterSedesFactory;
 import org.apache.pig.data.Tuple;
+import org.apache.pig.impl.PigContext;
 
-import scala.Function1;
-import scala.Function2;
 import scala.Tuple2;
-import scala.reflect.ClassManifest;
+import scala.collection.Iterator;
+import scala.collection.JavaConversions;
 import scala.runtime.AbstractFunction1;
 import scala.runtime.AbstractFunction2;
 import spark.PairRDDFunctions;
 import spark.RDD;
 
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Sets;
+
+/**
+ * Converter for DISTINCT. Each partition drops the duplicates it has seen recently before the
+ * shuffle, and the tuples are shuffled as their BinInterSedes bytes, so that the shuffle hashes
+ * and compares bytes instead of deserialized tuples. The shuffle combines the keys with a
+ * constant value, keeping one value per key on both sides of the shuffle.
+ *
+ * Tuples holding a map or a bag are shuffled as they are: two equal maps or bags don't always
+ * serialize to the same bytes.
+ */
 @SuppressWarnings({ "serial"})
 public class DistinctConverter implements POConverter<Tuple, Tuple, PODistinct> {
     private static final Log LOG = LogFactory.getLog(DistinctConverter.class);
 
-    private static final Function1<Tuple, Tuple2<Tuple, Object>> TO_KEY_VALUE_FUNCTION = new ToKeyValueFunction();
-    private static final Function2<Object, Object, Object> MERGE_VALUES_FUNCTION = new MergeValuesFunction();
-    private static final Function1<Tuple2<Tuple, Object>, Tuple> TO_VALUE_FUNCTION = new ToValueFunction();
+    private static final ToTupleFunction TO_TUPLE_FUNCTION = new ToTupleFunction();
+    private static final KeepValueFunction KEEP_VALUE_FUNCTION = new KeepValueFunction();
+    private static final KeepFirstFunction KEEP_FIRST_FUNCTION = new KeepFirstFunction();
+
+    // the value of every key, not null: combineByKey would take a key combined to null for a new one
+    private static final Object PRESENT = Boolean.TRUE;
+
+    private final float memUsage;
+
+    public DistinctConverter(PigContext pigContext) {
+        // same share of the heap as the InternalDistinctBag of a MapReduce distinct
+        String usage = pigContext.getProperties().getProperty(PigConfiguration.PROP_CACHEDBAG_MEMUSAGE);
+        this.memUsage = usage == null ? 0.2F : Float.parseFloat(usage);
+    }
 
     @Override
     public RDD<Tuple> convert(List<RDD<Tuple>> predecessors, PODistinct poDistinct)
             throws IOException {
         SparkUtil.assertPredecessorSize(predecessors, poDistinct, 1);
         RDD<Tuple> rdd = predecessors.get(0);
+        int parallelism = SparkUtil.getParallelism(predecessors, poDistinct);
 
-        ClassManifest<Tuple2<Tuple, Object>> tuple2ClassManifest = SparkUtil.<Tuple, Object>getTuple2Manifest();
+        RDD<Tuple2<Object, Object>> rddPairs = rdd.mapPartitions(new MapSideDistinctFunction(memUsage),
+                SparkUtil.<Object, Object>getTuple2Manifest());
+        PairRDDFunctions<Object, Object> pairRDDFunctions = new PairRDDFunctions<Object, Object>(rddPairs,
+                SparkUtil.getManifest(Object.class), SparkUtil.getManifest(Object.class));
+        RDD<Tuple2<Object, Object>> combined = pairRDDFunctions.combineByKey(
+                KEEP_VALUE_FUNCTION,
+                KEEP_FIRST_FUNCTION,
+                KEEP_FIRST_FUNCTION,
+                parallelism);
+        return combined.mapPartitions(TO_TUPLE_FUNCTION, SparkUtil.getManifest(Tuple.class));
+    }
 
-        RDD<Tuple2<Tuple, Object>> rddPairs = rdd.map(TO_KEY_VALUE_FUNCTION, tuple2ClassManifest);
-        PairRDDFunctions<Tuple, Object> pairRDDFunctions =
-                new PairRDDFunctions<Tuple, Object>(rddPairs, SparkUtil.getManifest(Tuple.class), SparkUtil.getManifest(Object.class));
-        int parallelism = SparkUtil.getParallelism(predecessors, poDistinct);
-        return pairRDDFunctions.reduceByKey(MERGE_VALUES_FUNCTION, parallelism).map(TO_VALUE_FUNCTION, SparkUtil.getManifest(Tuple.class));
+    /**
+     * @return whether the tuple holds a map or a bag, at any depth
+     */
+    private static boolean hasUnorderedField(Tuple t) throws IOException {
+        for (int i = 0; i < t.size(); i++) {
+            Object field = t.get(i);
+            switch (DataType.findType(field)) {
+            case DataType.MAP:
+            case DataType.BAG:
+                return true;
+            case DataType.TUPLE:
+                if (hasUnorderedField((Tuple) field)) {
+                    return true;
+                }
+                break;
+            default:
+                break;
+            }
+        }
+        return false;
     }
 
-    private static final class ToKeyValueFunction extends AbstractFunction1<Tuple,Tuple2<Tuple, Object>> implements Serializable {
+    /**
+     * Outputs the shuffle key of each tuple of a partition not seen before. The keys seen are
+     * kept until they use up their share of the heap, then forgotten: the duplicates let
+     * through are dropped after the shuffle.
+     */
+    private static class MapSideDistinctFunction
+            extends AbstractFunction1<Iterator<Tuple>, Iterator<Tuple2<Object, Object>>>
+            implements Serializable {
+
+        // estimated size of a seen key besides its bytes: the SerializedKey, the array header
+        // and the entry in the set
+        private static final int KEY_OVERHEAD = 80;
+
+        private final float memUsage;
+
+        public MapSideDistinctFunction(float memUsage) {
+            this.memUsage = memUsage;
+        }
+
+        @Override
+        public Iterator<Tuple2<Object, Object>> apply(final Iterator<Tuple> input) {
+            final long maxSeenBytes = (long) (Runtime.getRuntime().maxMemory() * memUsage);
+            final InterSedes sedes = InterSedesFactory.getInterSedesInstance();
+            return JavaConversions.asScalaIterator(new AbstractIterator<Tuple2<Object, Object>>() {
+                private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                private final DataOutputStream out = new DataOutputStream(bytes);
+                private final Set<Object> seen = Sets.newHashSet();
+                private long seenBytes = 0;
+                private long inputCount = 0;
+                private long outputCount = 0;
+
+                @Override
+                protected Tuple2<Object, Object> computeNext() {
+                    try {
+                        while (input.hasNext()) {
+                            Tuple t = input.next();
+                            ++inputCount;
+                            Object key;
+                            long size;
+                            if (hasUnorderedField(t)) {
+                                key = t;
+                                size = t.getMemorySize();
+                            } else {
+                                bytes.reset();
+                                sedes.writeDatum(out, t, DataType.TUPLE);
+                                out.flush();
+                                key = new SerializedKey(bytes.toByteArray());
+                                size = bytes.size() + KEY_OVERHEAD;
+                            }
+                            if (seen.add(key)) {
+                                seenBytes += size;
+                                if (seenBytes > maxSeenBytes) {
+                                    seen.clear();
+                                    seenBytes = 0;
+                                }
+                                ++outputCount;
+                                return new Tuple2<Object, Object>(key, PRESENT);
+                            }
+                        }
+                        if (LOG.isDebugEnabled()) {
+                            LOG.debug("Map side distinct kept " + outputCount + " of " + inputCount + " tuples");
+                        }
+                        return endOfData();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        }
+    }
+
+    private static class KeepValueFunction extends AbstractFunction1<Object, Object> implements Serializable {
+
         @Override
-        public Tuple2<Tuple, Object> apply(Tuple t) {
-            if (LOG.isDebugEnabled())
-                LOG.debug("DistinctConverter.ToKeyValueFunction in "+t);
-            Tuple key = t;
-            Object value = null; //value
-            // (key, value)
-            Tuple2<Tuple, Object> out = new Tuple2<Tuple, Object>(key, value);
-            if (LOG.isDebugEnabled())
-                LOG.debug("DistinctConverter.ToKeyValueFunction out "+out);
-            return out;
+        public Object apply(Object value) {
+            return value;
         }
     }
 
-    private static final class MergeValuesFunction extends AbstractFunction2<Object,Object,Object> implements Serializable {
+    private static class KeepFirstFunction extends AbstractFunction2<Object, Object, Object> implements Serializable {
+
         @Override
-        public Object apply(Object arg0, Object arg1) {
-            return null;
+        public Object apply(Object value1, Object value2) {
+            return value1;
         }
     }
 
-    private static final class ToValueFunction extends AbstractFunction1<Tuple2<Tuple, Object>, Tuple> implements Serializable {
+    /**
+     * Turns the distinct shuffle keys back into tuples
+     */
+    private static class ToTupleFunction
+            extends AbstractFunction1<Iterator<Tuple2<Object, Object>>, Iterator<Tuple>>
+            implements Serializable {
         @Override
-        public Tuple apply(Tuple2<Tuple, Object> input) {
-            return input._1;
+        public Iterator<Tuple> apply(Iterator<Tuple2<Object, Object>> input) {
+            final InterSedes sedes = InterSedesFactory.getInterSedesInstance();
+            return JavaConversions.asScalaIterator(new IteratorTransform<Tuple2<Object, Object>, Tuple>(
+                    JavaConversions.asJavaIterator(input)) {
+                @Override
+                protected Tuple transform(Tuple2<Object, Object> next) {
+                    Object key = next._1();
+                    if (!(key instanceof SerializedKey)) {
+                        return (Tuple) key;
+                    }
+                    byte[] bytes = ((SerializedKey) key).getBytes();
+                    try {
+                        return (Tuple) sedes.readDatum(new DataInputStream(new ByteArrayInputStream(bytes)));
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
         }
     }
 }
@@ -0,0 +1,126 @@
+package org.apache.pig.backend.hadoop.executionengine.spark.converter;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.Result;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POFRJoin;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POFRJoin.TupleToMapKey;
+import org.apache.pig.backend.hadoop.executionengine.spark.SparkCounters;
+import org.apache.pig.backend.hadoop.executionengine.spark.SparkUtil;
+import org.apache.pig.data.Tuple;
+
+import scala.collection.Iterator;
+import scala.collection.JavaConversions;
+import scala.runtime.AbstractFunction1;
+import spark.RDD;
+import spark.SparkContext;
+import spark.broadcast.Broadcast;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Converter for replicated joins.
+ *
+ * The replicated inputs are collected on the driver and broadcast, so that each executor
+ * receives them once. The first task of an executor builds the POFRJoin hash tables from
+ * them and the other tasks of that executor reuse these tables. The fragmented input is
+ * then streamed through the join without being shuffled.
+ */
+@SuppressWarnings({ "serial"})
+public class FRJoinConverter implements POConverter<Tuple, Tuple, POFRJoin> {
+    private static final Log LOG = LogFactory.getLog(FRJoinConverter.class);
+
+    private final SparkContext sparkContext;
+
+    public FRJoinConverter(SparkContext sparkContext) {
+        this.sparkContext = sparkContext;
+    }
+
+    @Override
+    public RDD<Tuple> convert(List<RDD<Tuple>> predecessors, POFRJoin poFRJoin)
+            throws IOException {
+        SparkUtil.assertPredecessorSizeGreaterThan(predecessors, poFRJoin, 1);
+        int fragment = poFRJoin.getFragment();
+
+        List<List<Tuple>> replicated = Lists.newArrayList();
+        for (int i = 0; i < predecessors.size(); i++) {
+            if (i == fragment) {
+                replicated.add(null);
+                continue;
+            }
+            Tuple[] tuples = (Tuple[]) SparkCounters.uncounted(predecessors.get(i)).collect();
+            LOG.info("Broadcasting " + tuples.length + " tuples of input " + i + " of " + poFRJoin);
+            replicated.add(Lists.newArrayList(Arrays.asList(tuples)));
+        }
+        Broadcast<ReplicatedInputs> broadcast = sparkContext.broadcast(new ReplicatedInputs(replicated));
+
+        return predecessors.get(fragment).mapPartitions(new FRJoinFunction(poFRJoin, broadcast),
+                SparkUtil.getManifest(Tuple.class));
+    }
+
+    /**
+     * The replicated inputs as shipped to the executors, along with the hash tables built
+     * from them. These are not serialized: they are built on each executor.
+     */
+    private static class ReplicatedInputs implements Serializable {
+        private final List<List<Tuple>> inputs;
+        private transient TupleToMapKey[] replicates;
+
+        public ReplicatedInputs(List<List<Tuple>> inputs) {
+            this.inputs = inputs;
+        }
+
+        public synchronized TupleToMapKey[] getReplicates(POFRJoin poFRJoin) throws ExecException {
+            if (replicates == null) {
+                long start = System.currentTimeMillis();
+                TupleToMapKey[] built = new TupleToMapKey[inputs.size()];
+                for (int i = 0; i < inputs.size(); i++) {
+                    if (inputs.get(i) != null) {
+                        built[i] = poFRJoin.buildReplicate(i, inputs.get(i).iterator());
+                    }
+                }
+                replicates = built;
+                LOG.info("Built replicated join hash tables in " + (System.currentTimeMillis() - start) + " ms");
+            }
+            return replicates;
+        }
+    }
+
+    private static class FRJoinFunction extends AbstractFunction1<Iterator<Tuple>, Iterator<Tuple>>
+            implements Serializable {
+
+        private final POFRJoin poFRJoin;
+        private final Broadcast<ReplicatedInputs> broadcast;
+
+        public FRJoinFunction(POFRJoin poFRJoin, Broadcast<ReplicatedInputs> broadcast) {
+            this.poFRJoin = poFRJoin;
+            this.broadcast = broadcast;
+        }
+
+        @Override
+        public Iterator<Tuple> apply(Iterator<Tuple> i) {
+            try {
+                poFRJoin.setReplicates(broadcast.value().getReplicates(poFRJoin));
+            } catch (ExecException e) {
+                throw new RuntimeException(e);
+            }
+            final java.util.Iterator<Tuple> input = JavaConversions.asJavaIterator(i);
+            return JavaConversions.asScalaIterator(new POOutputConsumerIterator(input) {
+                protected void attach(Tuple tuple) {
+                    poFRJoin.setInputs(null);
+                    poFRJoin.attachInput(tuple);
+                }
+
+                protected Result getNextResult() throws ExecException {
+                    return poFRJoin.getNextTupleProfiled();
+                }
+            });
+        }
+    }
+}
@@ -43,7 +43,7 @@ public class FilterConverter implements POConverter<Tuple, Tuple, POFilter> {
             try {
                 poFilter.setInputs(null);
                 poFilter.attachInput(v1);
-                result = poFilter.getNextTuple();
+                result = poFilter.getNextTupleProfiled();
             } catch (ExecException e) {
                 throw new RuntimeException("Couldn't filter tuple", e);
             }
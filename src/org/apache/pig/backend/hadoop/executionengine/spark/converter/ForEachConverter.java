@@ -2,6 +2,7 @@ package org.apache.pig.backend.hadoop.executionengine.spark.converter;
 
 import java.io.Serializable;
 import java.util.List;
+import java.util.Properties;
 
 import org.apache.pig.backend.executionengine.ExecException;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.Result;
@@ -21,11 +22,17 @@ import spark.RDD;
 @SuppressWarnings({ "serial"})
 public class ForEachConverter implements POConverter<Tuple, Tuple, POForEach> {
 
+    private final Properties properties;
+
+    public ForEachConverter(Properties properties) {
+        this.properties = properties;
+    }
+
     @Override
     public RDD<Tuple> convert(List<RDD<Tuple>> predecessors, POForEach physicalOperator) {
         SparkUtil.assertPredecessorSize(predecessors, physicalOperator, 1);
         RDD<Tuple> rdd = predecessors.get(0);
-        ForEachFunction forEachFunction = new ForEachFunction(physicalOperator);
+        ForEachFunction forEachFunction = new ForEachFunction(physicalOperator, properties);
         return rdd.mapPartitions(forEachFunction, SparkUtil.getManifest(Tuple.class));
     }
 
@@ -33,12 +40,16 @@ public class ForEachConverter implements POConverter<Tuple, Tuple, POForEach> {
             implements Serializable {
 
         private POForEach poForEach;
+        private final Properties properties;
 
-        private ForEachFunction(POForEach poForEach) {
+        private ForEachFunction(POForEach poForEach, Properties properties) {
             this.poForEach = poForEach;
+            this.properties = properties;
         }
 
         public Iterator<Tuple> apply(Iterator<Tuple> i) {
+            // the nested operators read their settings from the job configuration
+            SparkUtil.setJobConf(properties);
             final java.util.Iterator<Tuple> input = JavaConversions.asJavaIterator(i);
             Iterator<Tuple> output = JavaConversions.asScalaIterator(new POOutputConsumerIterator(input) {
                 protected void attach(Tuple tuple) {
@@ -47,7 +58,7 @@ public class ForEachConverter implements POConverter<Tuple, Tuple, POForEach> {
                 }
 
                 protected Result getNextResult() throws ExecException {
-                    return poForEach.getNextTuple();
+                    return poForEach.getNextTupleProfiled();
                 }
             });
             return output;
@@ -2,24 +2,40 @@ package org.apache.pig.backend.hadoop.executionengine.spark.converter;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.pig.PigException;
 import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.POStatus;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.PhysicalOperator;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.Result;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhysicalPlan;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POGlobalRearrange;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POPackage;
 import org.apache.pig.backend.hadoop.executionengine.spark.SparkUtil;
+import org.apache.pig.data.DataType;
 import org.apache.pig.data.Tuple;
 import org.apache.pig.data.TupleFactory;
+import org.apache.pig.data.TupleSorter;
+import org.apache.pig.impl.io.NullableTuple;
+import org.apache.pig.impl.io.PigNullableWritable;
+import org.apache.pig.impl.plan.OperatorKey;
 
 import scala.Tuple2;
 import scala.collection.JavaConversions;
 import scala.collection.Seq;
 import scala.reflect.ClassManifest;
 import scala.runtime.AbstractFunction1;
+import scala.runtime.AbstractFunction2;
 import spark.CoGroupedRDD;
 import spark.HashPartitioner;
+import spark.PairRDDFunctions;
 import spark.RDD;
 
 import com.google.common.collect.Lists;
@@ -36,6 +52,27 @@ public class GlobalRearrangeConverter implements POConverter<Tuple, Tuple, POGlo
     // COGROUP FUNCTIONS
     private static final GroupTupleFunction GROUP_TUPLE_FUNCTION = new GroupTupleFunction();
     private static final ToGroupKeyValueFunction TO_GROUP_KEY_VALUE_FUNCTION = new ToGroupKeyValueFunction();
+    // COMBINE FUNCTIONS
+    private static final ToKeyTupleFunction TO_KEY_TUPLE_FUNCTION = new ToKeyTupleFunction();
+    private static final CreateCombinerFunction CREATE_COMBINER_FUNCTION = new CreateCombinerFunction();
+    private static final CombinedGroupTupleFunction COMBINED_GROUP_TUPLE_FUNCTION = new CombinedGroupTupleFunction();
+    // SECONDARY KEY FUNCTIONS
+    private static final ToMainKeyTupleFunction TO_MAIN_KEY_TUPLE_FUNCTION = new ToMainKeyTupleFunction();
+
+    // Number of partial results buffered for a key before the combine plan is run over them
+    private static final int COMBINE_BATCH_SIZE = 100;
+
+    // combine plans set up by the SparkCombinerOptimizer, keyed by POGlobalRearrange
+    private final Map<OperatorKey, PhysicalPlan> combinePlans;
+
+    // secondary sort orders set up by the SparkSecondaryKeyOptimizer, keyed by POGlobalRearrange
+    private final Map<OperatorKey, boolean[]> secondarySortOrders;
+
+    public GlobalRearrangeConverter(Map<OperatorKey, PhysicalPlan> combinePlans,
+            Map<OperatorKey, boolean[]> secondarySortOrders) {
+        this.combinePlans = combinePlans;
+        this.secondarySortOrders = secondarySortOrders;
+    }
 
     @Override
     public RDD<Tuple> convert(List<RDD<Tuple>> predecessors,
@@ -44,7 +81,15 @@ public class GlobalRearrangeConverter implements POConverter<Tuple, Tuple, POGlo
         int parallelism = SparkUtil.getParallelism(predecessors, physicalOperator);
         if (LOG.isDebugEnabled())
             LOG.info("Parallelism for Spark groupBy: " + parallelism);
-        if (predecessors.size() == 1) {
+        PhysicalPlan combinePlan = combinePlans.get(physicalOperator.getOperatorKey());
+        boolean[] secondarySortOrder = secondarySortOrders.get(physicalOperator.getOperatorKey());
+        if (secondarySortOrder != null) {
+            //GROUP or COGROUP followed by nested ORDER/DISTINCT: values sorted on the secondary key
+            return groupSortedBySecondaryKey(predecessors, secondarySortOrder, parallelism);
+        } else if (predecessors.size() == 1 && combinePlan != null) {
+            //GROUP with algebraic functions: shuffle partial results
+            return combine(predecessors.get(0), combinePlan, parallelism);
+        } else if (predecessors.size() == 1) {
             //GROUP
             return predecessors.get(0)
                 // group by key
@@ -73,6 +118,45 @@ public class GlobalRearrangeConverter implements POConverter<Tuple, Tuple, POGlo
         }
     }
 
+    private RDD<Tuple> combine(RDD<Tuple> rdd, PhysicalPlan combinePlan, int parallelism) {
+        Combiner combiner = new Combiner(combinePlan);
+        // each tuple is (index, key, value) as output by the map side POLocalRearrange
+        RDD<Tuple2<Object, Tuple>> rddPairs = rdd.map(TO_KEY_TUPLE_FUNCTION, SparkUtil.<Object, Tuple>getTuple2Manifest());
+        PairRDDFunctions<Object, Tuple> pairRDDFunctions = new PairRDDFunctions<Object, Tuple>(rddPairs,
+                SparkUtil.getManifest(Object.class), SparkUtil.getManifest(Tuple.class));
+        RDD<Tuple2<Object, List<Tuple>>> combined = pairRDDFunctions.combineByKey(
+                CREATE_COMBINER_FUNCTION,
+                new MergeValueFunction(combiner),
+                new MergeCombinersFunction(combiner),
+                parallelism);
+        return combined.map(COMBINED_GROUP_TUPLE_FUNCTION, SparkUtil.getManifest(Tuple.class));
+    }
+
+    /**
+     * The local rearranges output (index, (main key, secondary key), value): groups on the main
+     * key and sorts the values of each input on the secondary key, as the PigSecondaryKeyComparator
+     * does in the shuffle of MapReduce. The package then streams them in that order to the nested
+     * plans, where the sorts were removed and the distincts became POSortedDistinct.
+     *
+     * Spark 0.6 can't sort within the shuffle, and the CoGroupedRDD already holds all the values
+     * of a key in memory, so they are sorted there with a {@link TupleSorter}, through an array
+     * of references to them.
+     */
+    private RDD<Tuple> groupSortedBySecondaryKey(List<RDD<Tuple>> predecessors, boolean[] secondarySortOrder,
+            int parallelism) {
+        ClassManifest<Tuple2<Object, Tuple>> tuple2ClassManifest = SparkUtil.<Object, Tuple>getTuple2Manifest();
+        List<RDD<Tuple2<Object, Tuple>>> rddPairs = Lists.newArrayList();
+        for (RDD<Tuple> rdd : predecessors) {
+            rddPairs.add(rdd.map(TO_MAIN_KEY_TUPLE_FUNCTION, tuple2ClassManifest));
+        }
+        CoGroupedRDD<Object> coGroupedRDD = new CoGroupedRDD<Object>(
+                (Seq<RDD<Tuple2<?, ?>>>)(Object)JavaConversions.asScalaBuffer(rddPairs),
+                new HashPartitioner(parallelism));
+        RDD<Tuple2<Object,Seq<Seq<Tuple>>>> rdd = (RDD<Tuple2<Object,Seq<Seq<Tuple>>>>)(Object)coGroupedRDD;
+        return rdd.map(new SortedGroupTupleFunction(new SecondaryKeyComparator(secondarySortOrder)),
+                SparkUtil.getManifest(Tuple.class));
+    }
+
     private static class GetKeyFunction extends AbstractFunction1<Tuple, Object> implements Serializable {
 
         @Override
@@ -138,14 +222,15 @@ public class GlobalRearrangeConverter implements POConverter<Tuple, Tuple, POGlo
                 List<Iterator<Tuple>> tupleIterators = Lists.newArrayList();
                 for (Seq<Tuple> bag : bagsList) {
                     Iterator<Tuple> iterator = JavaConversions.asJavaCollection(bag).iterator();
-                    final int index = i;
+                    // the package reads each (index, key, value) as it goes,
+                    // a single tuple per input is enough
+                    final Tuple tuple = tf.newTuple(3);
+                    tuple.set(0, i);
+                    tuple.set(1, key);
                     tupleIterators.add(new IteratorTransform<Tuple, Tuple>(iterator) {
                         @Override
                         protected Tuple transform(Tuple next) {
                             try {
-                                Tuple tuple = tf.newTuple(3);
-                                tuple.set(0, index);
-                                tuple.set(1, key);
                                 tuple.set(2, next);
                                 return tuple;
                             } catch (ExecException e) {
@@ -166,6 +251,251 @@ public class GlobalRearrangeConverter implements POConverter<Tuple, Tuple, POGlo
         }
     }
 
+    private static class ToKeyTupleFunction extends AbstractFunction1<Tuple, Tuple2<Object, Tuple>> implements Serializable {
+
+        @Override
+        public Tuple2<Object, Tuple> apply(Tuple t) {
+            try {
+                // (key, (index, key, value))
+                return new Tuple2<Object, Tuple>(t.get(1), t);
+            } catch (ExecException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private static class CreateCombinerFunction extends AbstractFunction1<Tuple, List<Tuple>> implements Serializable {
+
+        @Override
+        public List<Tuple> apply(Tuple t) {
+            List<Tuple> combined = Lists.newArrayList();
+            combined.add(t);
+            return combined;
+        }
+    }
+
+    private static class MergeValueFunction extends AbstractFunction2<List<Tuple>, Tuple, List<Tuple>> implements Serializable {
+
+        private final Combiner combiner;
+
+        public MergeValueFunction(Combiner combiner) {
+            this.combiner = combiner;
+        }
+
+        @Override
+        public List<Tuple> apply(List<Tuple> combined, Tuple t) {
+            combined.add(t);
+            if (combined.size() < COMBINE_BATCH_SIZE) {
+                return combined;
+            }
+            return combiner.combine(combined);
+        }
+    }
+
+    private static class MergeCombinersFunction extends AbstractFunction2<List<Tuple>, List<Tuple>, List<Tuple>> implements Serializable {
+
+        private final Combiner combiner;
+
+        public MergeCombinersFunction(Combiner combiner) {
+            this.combiner = combiner;
+        }
+
+        @Override
+        public List<Tuple> apply(List<Tuple> combined1, List<Tuple> combined2) {
+            combined1.addAll(combined2);
+            return combiner.combine(combined1);
+        }
+    }
+
+    private static class CombinedGroupTupleFunction extends AbstractFunction1<Tuple2<Object, List<Tuple>>, Tuple> implements Serializable {
+
+        @Override
+        public Tuple apply(Tuple2<Object, List<Tuple>> v1) {
+            try {
+                Tuple tuple = tf.newTuple(2);
+                tuple.set(0, v1._1()); // the key
+                tuple.set(1, v1._2().iterator()); // the partial results as (index, key, value)
+                return tuple;
+            } catch (ExecException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private static class ToMainKeyTupleFunction extends AbstractFunction1<Tuple, Tuple2<Object, Tuple>> implements Serializable {
+
+        @Override
+        public Tuple2<Object, Tuple> apply(Tuple t) {
+            try {
+                // (main key, (index, (main key, secondary key), value))
+                return new Tuple2<Object, Tuple>(((Tuple)t.get(1)).get(0), t);
+            } catch (ExecException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private static class SortedGroupTupleFunction extends AbstractFunction1<Tuple2<Object,Seq<Seq<Tuple>>>,Tuple> implements Serializable {
+
+        private final SecondaryKeyComparator comparator;
+
+        public SortedGroupTupleFunction(SecondaryKeyComparator comparator) {
+            this.comparator = comparator;
+        }
+
+        @Override
+        public Tuple apply(Tuple2<Object, Seq<Seq<Tuple>>> input) {
+            try {
+                List<Iterator<Tuple>> tupleIterators = Lists.newArrayList();
+                for (Seq<Tuple> bag : JavaConversions.asJavaIterable(input._2())) {
+                    tupleIterators.add(sort(bag));
+                }
+                // the package only reads the main key of the compound key
+                Tuple key = tf.newTuple(2);
+                key.set(0, input._1());
+                Tuple out = tf.newTuple(2);
+                out.set(0, key);
+                out.set(1, new IteratorUnion<Tuple>(tupleIterators.iterator()));
+                return out;
+            } catch (ExecException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * @return the values sorted
+         */
+        private Iterator<Tuple> sort(Seq<Tuple> values) {
+            Tuple[] sorted = new Tuple[values.size()];
+            int i = 0;
+            for (Tuple value : JavaConversions.asJavaIterable(values)) {
+                sorted[i++] = value;
+            }
+            TupleSorter.sort(sorted, comparator);
+            return Arrays.asList(sorted).iterator();
+        }
+    }
+
+    /**
+     * Compares (index, (main key, secondary key), value) tuples on their secondary key,
+     * with the sort order of each of its fields as BinInterSedesTupleRawComparator.compareDatum()
+     */
+    private static class SecondaryKeyComparator implements Comparator<Tuple>, Serializable {
+
+        private final boolean[] asc;
+
+        public SecondaryKeyComparator(boolean[] asc) {
+            this.asc = asc;
+        }
+
+        @Override
+        public int compare(Tuple t1, Tuple t2) {
+            try {
+                Object o1 = ((Tuple)t1.get(1)).get(1);
+                Object o2 = ((Tuple)t2.get(1)).get(1);
+                int rc = 0;
+                if (o1 instanceof Tuple && o2 instanceof Tuple
+                        && ((Tuple)o1).size() == ((Tuple)o2).size()) {
+                    Tuple k1 = (Tuple)o1;
+                    Tuple k2 = (Tuple)o2;
+                    for (int i = 0; i < k1.size() && rc == 0; i++) {
+                        rc = DataType.compare(k1.get(i), k2.get(i));
+                        if (rc != 0 && asc != null && asc.length > 1 && !asc[i]) {
+                            rc = -rc;
+                        }
+                    }
+                } else {
+                    rc = DataType.compare(o1, o2);
+                }
+                if (asc != null && asc.length == 1 && !asc[0]) {
+                    rc = -rc;
+                }
+                return rc;
+            } catch (ExecException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Runs the combine plan (POCombinerPackage -> foreach with Intermediate functions -> local
+     * rearrange) over the buffered partial results of a key, the same way PigCombiner does.
+     */
+    private static class Combiner implements Serializable {
+
+        private final POPackage pack;
+        private final List<PhysicalOperator> roots;
+        private final PhysicalOperator leaf;
+
+        public Combiner(PhysicalPlan combinePlan) {
+            this.pack = (POPackage)combinePlan.getRoots().get(0);
+            this.roots = Lists.newArrayList(combinePlan.getSuccessors(pack));
+            this.leaf = combinePlan.getLeaves().get(0);
+        }
+
+        public List<Tuple> combine(List<Tuple> values) {
+            if (values.size() < 2) {
+                return values;
+            }
+            try {
+                final Object key = values.get(0).get(1);
+                final Iterator<Tuple> valueIterator = values.iterator();
+                PigNullableWritable nullableKey = new PigNullableWritable() {
+                    public Object getValueAsPigType() {
+                        return key;
+                    }
+                };
+                Iterator<NullableTuple> iterator = new IteratorTransform<Tuple, NullableTuple>(valueIterator) {
+                    @Override
+                    protected NullableTuple transform(Tuple next) {
+                        try {
+                            NullableTuple nullableTuple = new NullableTuple((Tuple)next.get(2));
+                            nullableTuple.setIndex(((Number)next.get(0)).byteValue());
+                            return nullableTuple;
+                        } catch (ExecException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                };
+                pack.setInputs(null);
+                pack.attachInput(nullableKey, iterator);
+                Result res = pack.getNextTupleProfiled();
+                if (res.returnStatus != POStatus.STATUS_OK) {
+                    int errCode = 2091;
+                    String msg = "Packaging error while processing group.";
+                    throw new ExecException(msg, errCode, PigException.BUG);
+                }
+
+                for (PhysicalOperator root : roots) {
+                    root.setInputs(null);
+                    root.attachInput((Tuple)res.result);
+                }
+                List<Tuple> combined = Lists.newArrayList();
+                while (true) {
+                    Result redRes = leaf.getNextTupleProfiled();
+                    switch (redRes.returnStatus) {
+                    case POStatus.STATUS_OK:
+                        combined.add((Tuple)redRes.result);
+                        break;
+                    case POStatus.STATUS_NULL:
+                        break;
+                    case POStatus.STATUS_EOP:
+                        return combined;
+                    default:
+                        int errCode = 2090;
+                        String msg = "Received Error while processing the combine plan.";
+                        if (redRes.result != null) {
+                            msg += redRes.result;
+                        }
+                        throw new ExecException(msg, errCode, PigException.BUG);
+                    }
+                }
+            } catch (ExecException e) {
+                throw new RuntimeException("Couldn't combine values", e);
+            }
+        }
+    }
+
     private static class IteratorUnion<T> implements Iterator<T> {
 
         private final Iterator<Iterator<T>> iterators;
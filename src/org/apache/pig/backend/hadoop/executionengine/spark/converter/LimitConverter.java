@@ -2,19 +2,36 @@ package org.apache.pig.backend.hadoop.executionengine.spark.converter;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.POStatus;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.Result;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POLimit;
 import org.apache.pig.backend.hadoop.executionengine.spark.SparkUtil;
 import org.apache.pig.data.Tuple;
 
+import scala.Tuple2;
 import scala.collection.Iterator;
 import scala.collection.JavaConversions;
+import scala.collection.Seq;
 import scala.runtime.AbstractFunction1;
+import scala.runtime.AbstractFunction2;
+import spark.CoGroupedRDD;
+import spark.HashPartitioner;
 import spark.RDD;
 
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+
+/**
+ * Converter for a global LIMIT. Each partition is first cut down to the limit, and stops
+ * pulling tuples from upstream as soon as it is reached. The remaining tuples are then
+ * shuffled to a single partition, in the order of their partitions, and limited again.
+ * All of this runs lazily in the job of the store.
+ */
 @SuppressWarnings({ "serial"})
 public class LimitConverter implements POConverter<Tuple, Tuple, POLimit> {
 
@@ -23,8 +40,66 @@ public class LimitConverter implements POConverter<Tuple, Tuple, POLimit> {
             throws IOException {
         SparkUtil.assertPredecessorSize(predecessors, poLimit, 1);
         RDD<Tuple> rdd = predecessors.get(0);
-        LimitFunction limitFunction = new LimitFunction(poLimit);
-        return rdd.mapPartitions(limitFunction, SparkUtil.getManifest(Tuple.class));
+        // top-n per partition, in the tasks of the upstream operators
+        RDD<Tuple> partitionLimited = rdd.mapPartitions(new LimitFunction(poLimit), SparkUtil.getManifest(Tuple.class));
+
+        // a shuffle rather than a coalesce, which would run all of the upstream in a single task
+        List<RDD<Tuple2<Object, Tuple>>> rddPairs = Lists.newArrayList();
+        rddPairs.add(partitionLimited.mapPartitionsWithSplit(new ToPartitionKeyFunction(),
+                SparkUtil.<Object, Tuple>getTuple2Manifest()));
+        CoGroupedRDD<Object> gathered = new CoGroupedRDD<Object>(
+                (Seq<RDD<Tuple2<?, ?>>>)(Object)JavaConversions.asScalaBuffer(rddPairs),
+                new HashPartitioner(1));
+        RDD<Tuple2<Object, Seq<Seq<Tuple>>>> grouped = (RDD<Tuple2<Object, Seq<Seq<Tuple>>>>)(Object)gathered;
+
+        // final limit on a single partition
+        return grouped.mapPartitions(new InPartitionOrderFunction(), SparkUtil.getManifest(Tuple.class))
+                .mapPartitions(new LimitFunction(poLimit), SparkUtil.getManifest(Tuple.class));
+    }
+
+    /**
+     * Keys the tuples by the index of their partition
+     */
+    private static class ToPartitionKeyFunction
+            extends AbstractFunction2<Object, Iterator<Tuple>, Iterator<Tuple2<Object, Tuple>>>
+            implements Serializable {
+
+        @Override
+        public Iterator<Tuple2<Object, Tuple>> apply(final Object partition, Iterator<Tuple> input) {
+            return JavaConversions.asScalaIterator(new IteratorTransform<Tuple, Tuple2<Object, Tuple>>(
+                    JavaConversions.asJavaIterator(input)) {
+                @Override
+                protected Tuple2<Object, Tuple> transform(Tuple next) {
+                    return new Tuple2<Object, Tuple>(partition, next);
+                }
+            });
+        }
+    }
+
+    /**
+     * Outputs the tuples of the partitions in the order of the partitions
+     */
+    private static class InPartitionOrderFunction
+            extends AbstractFunction1<Iterator<Tuple2<Object, Seq<Seq<Tuple>>>>, Iterator<Tuple>>
+            implements Serializable {
+
+        @Override
+        public Iterator<Tuple> apply(Iterator<Tuple2<Object, Seq<Seq<Tuple>>>> input) {
+            List<Tuple2<Object, Seq<Seq<Tuple>>>> partitions =
+                    Lists.newArrayList(JavaConversions.asJavaIterator(input));
+            Collections.sort(partitions, new Comparator<Tuple2<Object, Seq<Seq<Tuple>>>>() {
+                @Override
+                public int compare(Tuple2<Object, Seq<Seq<Tuple>>> o1, Tuple2<Object, Seq<Seq<Tuple>>> o2) {
+                    return ((Integer) o1._1()).compareTo((Integer) o2._1());
+                }
+            });
+            List<java.util.Iterator<Tuple>> values = Lists.newArrayListWithCapacity(partitions.size());
+            for (Tuple2<Object, Seq<Seq<Tuple>>> partition : partitions) {
+                // there is only one input to the CoGroupedRDD
+                values.add(JavaConversions.asJavaIterable(partition._2().apply(0)).iterator());
+            }
+            return JavaConversions.asScalaIterator(Iterators.concat(values.iterator()));
+        }
     }
 
     private static class LimitFunction extends AbstractFunction1<Iterator<Tuple>, Iterator<Tuple>> implements Serializable {
@@ -37,9 +112,15 @@ public class LimitConverter implements POConverter<Tuple, Tuple, POLimit> {
 
         @Override
         public Iterator<Tuple> apply(Iterator<Tuple> i) {
-            final java.util.Iterator<Tuple> tuples = JavaConversions.asJavaIterator(i);
+            poLimit.reset();
+            final StoppableIterator tuples = new StoppableIterator(JavaConversions.asJavaIterator(i));
+            if (poLimit.getLimit() == 0) {
+                // nothing to pull at all
+                tuples.stop();
+            }
 
             return JavaConversions.asScalaIterator(new POOutputConsumerIterator(tuples) {
+                private long produced = 0;
 
                 protected void attach(Tuple tuple) {
                     poLimit.setInputs(null);
@@ -47,11 +128,44 @@ public class LimitConverter implements POConverter<Tuple, Tuple, POLimit> {
                 }
 
                 protected Result getNextResult() throws ExecException {
-                    return poLimit.getNextTuple();
+                    Result result = poLimit.getNextTupleProfiled();
+                    if (result.returnStatus == POStatus.STATUS_OK && ++produced >= poLimit.getLimit()) {
+                        // we have all we need, don't pull the rest of the partition
+                        tuples.stop();
+                    }
+                    return result;
                 }
             });
         }
 
     }
 
+    private static class StoppableIterator implements java.util.Iterator<Tuple> {
+        private final java.util.Iterator<Tuple> delegate;
+        private boolean stopped = false;
+
+        public StoppableIterator(java.util.Iterator<Tuple> delegate) {
+            this.delegate = delegate;
+        }
+
+        public void stop() {
+            stopped = true;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !stopped && delegate.hasNext();
+        }
+
+        @Override
+        public Tuple next() {
+            return delegate.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
 }
@@ -5,6 +5,8 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapreduce.Job;
@@ -12,13 +14,21 @@ import org.apache.pig.LoadFunc;
 import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.PigInputFormat;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.PhysicalOperator;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhysicalPlan;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POCollectedGroup;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POGlobalRearrange;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POLoad;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POLocalRearrange;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POMergeCogroup;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POMergeJoin;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POSort;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POStore;
 import org.apache.pig.backend.hadoop.executionengine.spark.SparkUtil;
 import org.apache.pig.data.Tuple;
 import org.apache.pig.impl.PigContext;
 import org.apache.pig.impl.io.FileSpec;
 import org.apache.pig.impl.plan.OperatorKey;
 import org.apache.pig.impl.util.ObjectSerializer;
+import org.apache.pig.impl.util.UDFContext;
 
 import scala.Function1;
 import scala.Tuple2;
@@ -38,6 +48,8 @@ import com.google.common.collect.Lists;
 @SuppressWarnings({ "serial"})
 public class LoadConverter implements POConverter<Tuple, Tuple, POLoad> {
 
+    private static final Log LOG = LogFactory.getLog(LoadConverter.class);
+
     private static final ToTupleFunction TO_TUPLE_FUNCTION = new ToTupleFunction();
 
     private PigContext pigContext;
@@ -56,13 +68,15 @@ public class LoadConverter implements POConverter<Tuple, Tuple, POLoad> {
 //            throw new RuntimeException("Should not have predecessors for Load. Got : "+predecessors);
 //        }
 
-        JobConf loadJobConf = SparkUtil.newJobConf(pigContext);
-        configureLoader(physicalPlan, poLoad, loadJobConf);
+        JobConf loadJobConf = configureLoader(physicalPlan, poLoad, SparkUtil.newJobConf(pigContext));
+        configureSplitCombination(physicalPlan, poLoad, pigContext, loadJobConf);
 
         // don't know why but just doing this cast for now
         RDD<Tuple2<Text, Tuple>> hadoopRDD = sparkContext.newAPIHadoopFile(
                 poLoad.getLFile().getFileName(), PigInputFormat.class,
                 Text.class, Tuple.class, loadJobConf);
+        if (LOG.isDebugEnabled())
+            LOG.debug("Reading " + poLoad.getLFile().getFileName() + " in " + hadoopRDD.splits().length + " partitions");
 
         // map to get just RDD<Tuple>
         return hadoopRDD.map(TO_TUPLE_FUNCTION, SparkUtil.getManifest(Tuple.class));
@@ -77,6 +91,56 @@ public class LoadConverter implements POConverter<Tuple, Tuple, POLoad> {
         }
     }
 
+    /**
+     * Small splits are combined by PigInputFormat as for MapReduce, up to pig.maxCombinedSplitSize
+     * bytes (the block size by default), unless pig.splitCombination is false. See
+     * JobControlCompiler.getJob().
+     *
+     * The splits of the inputs of a merge join, merge cogroup or collected group are kept as they
+     * are, as MRCompiler.noCombineSmallSplits() does: each one is a sorted range of keys, a combined
+     * split is not.
+     */
+    private static void configureSplitCombination(PhysicalPlan physicalPlan, POLoad poLoad,
+            PigContext pigContext, JobConf jobConf) {
+        if ("false".equals(pigContext.getProperties().getProperty("pig.splitCombination", "true"))
+                || feedsSortedSplitOperator(physicalPlan, poLoad)) {
+            jobConf.setBoolean("pig.noSplitCombination", true);
+            return;
+        }
+        String maxCombinedSplitSize = pigContext.getProperties().getProperty("pig.maxCombinedSplitSize");
+        if (maxCombinedSplitSize != null) {
+            try {
+                jobConf.setLong("pig.maxCombinedSplitSize", Long.parseLong(maxCombinedSplitSize));
+            } catch (NumberFormatException e) {
+                LOG.warn("Invalid numeric format for pig.maxCombinedSplitSize; use the default maximum combined split size");
+                jobConf.setLong("pig.maxCombinedSplitSize", 0);
+            }
+        }
+    }
+
+    /**
+     * @return whether the partitions of the load reach a merge join, merge cogroup or collected group
+     * without a shuffle
+     */
+    private static boolean feedsSortedSplitOperator(PhysicalPlan physicalPlan, PhysicalOperator physicalOperator) {
+        List<PhysicalOperator> successors = physicalPlan.getSuccessors(physicalOperator);
+        if (successors == null) {
+            return false;
+        }
+        for (PhysicalOperator successor : successors) {
+            if (successor instanceof POMergeJoin || successor instanceof POMergeCogroup
+                    || successor instanceof POCollectedGroup) {
+                return true;
+            }
+            if (!(successor instanceof POLocalRearrange || successor instanceof POGlobalRearrange
+                    || successor instanceof POSort || successor instanceof POStore)
+                    && feedsSortedSplitOperator(physicalPlan, successor)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * stolen from JobControlCompiler
      * TODO: refactor it to share this
@@ -93,6 +157,8 @@ public class LoadConverter implements POConverter<Tuple, Tuple, POLoad> {
         LoadFunc loadFunc = poLoad.getLoadFunc();
 
         loadFunc.setLocation(poLoad.getLFile().getFileName(), job);
+        // keep what the loader set up in setLocation(), like the partition filter of a LoadMetadata
+        jobConf = new JobConf(job.getConfiguration());
 
         // stolen from JobControlCompiler
         ArrayList<FileSpec> pigInputs = new ArrayList<FileSpec>();
@@ -119,6 +185,8 @@ public class LoadConverter implements POConverter<Tuple, Tuple, POLoad> {
         jobConf.set("pig.inpTargets", ObjectSerializer.serialize(inpTargets));
         jobConf.set("pig.inpSignatures", ObjectSerializer.serialize(inpSignatures));
         jobConf.set("pig.inpLimits", ObjectSerializer.serialize(inpLimits));
+        // Serialize the UDF specific context info, the loader may have added to it
+        UDFContext.getUDFContext().serialize(jobConf);
 
         return jobConf;
     }
@@ -0,0 +1,119 @@
+package org.apache.pig.backend.hadoop.executionengine.spark.converter;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhysicalPlan;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POMergeCogroup;
+import org.apache.pig.backend.hadoop.executionengine.spark.SparkUtil;
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+
+import spark.RDD;
+import spark.SparkContext;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+import com.google.common.collect.PeekingIterator;
+
+/**
+ * Converter for COGROUP ... USING 'merge'. The base input is loaded by a CollectableLoadFunc
+ * that keeps all the tuples of a key in the same split, so each of its partitions is
+ * cogrouped with the tuples of the other inputs in its range of keys, without a shuffle.
+ * See {@link SortedPartitionsRDD}.
+ */
+@SuppressWarnings({ "serial"})
+public class MergeCogroupConverter implements POConverter<Tuple, Tuple, POMergeCogroup> {
+
+    private final SparkContext sparkContext;
+
+    public MergeCogroupConverter(SparkContext sparkContext) {
+        this.sparkContext = sparkContext;
+    }
+
+    @Override
+    public RDD<Tuple> convert(List<RDD<Tuple>> predecessors, POMergeCogroup poMergeCogroup) throws IOException {
+        SparkUtil.assertPredecessorSizeGreaterThan(predecessors, poMergeCogroup, 1);
+        List<List<PhysicalPlan>> keyPlans = Lists.newArrayList();
+        for (int i = 0; i < predecessors.size(); i++) {
+            keyPlans.add(poMergeCogroup.getLRInnerPlansOf(i));
+        }
+        return new MergeCogroupRDD(sparkContext, predecessors, keyPlans);
+    }
+
+    private static class MergeCogroupRDD extends SortedPartitionsRDD {
+
+        private static final TupleFactory tf = TupleFactory.getInstance();
+
+        public MergeCogroupRDD(SparkContext sparkContext, List<RDD<Tuple>> inputs, List<List<PhysicalPlan>> keyPlans) {
+            super(sparkContext, inputs, keyPlans, false);
+        }
+
+        @Override
+        protected java.util.Iterator<Tuple> merge(final List<PeekingIterator<KeyedTuple>> inputs) {
+            return new AbstractIterator<Tuple>() {
+                @Override
+                protected Tuple computeNext() {
+                    try {
+                        // null keys are not grouped across inputs
+                        for (int i = 0; i < inputs.size(); i++) {
+                            PeekingIterator<KeyedTuple> input = inputs.get(i);
+                            if (input.hasNext() && input.peek().key == null) {
+                                DataBag[] bags = newBags();
+                                while (input.hasNext() && input.peek().key == null) {
+                                    bags[i].add(input.next().tuple);
+                                }
+                                return group(null, bags);
+                            }
+                        }
+
+                        Object key = null;
+                        for (PeekingIterator<KeyedTuple> input : inputs) {
+                            if (input.hasNext() && (key == null || DataType.compare(input.peek().key, key) < 0)) {
+                                key = input.peek().key;
+                            }
+                        }
+                        if (key == null) {
+                            return endOfData();
+                        }
+                        DataBag[] bags = newBags();
+                        for (int i = 0; i < inputs.size(); i++) {
+                            PeekingIterator<KeyedTuple> input = inputs.get(i);
+                            while (input.hasNext() && input.peek().key != null
+                                    && DataType.compare(input.peek().key, key) == 0) {
+                                bags[i].add(input.next().tuple);
+                            }
+                        }
+                        return group(key, bags);
+                    } catch (ExecException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+
+                private DataBag[] newBags() {
+                    DataBag[] bags = new DataBag[inputs.size()];
+                    for (int i = 0; i < bags.length; i++) {
+                        bags[i] = BagFactory.getInstance().newDefaultBag();
+                    }
+                    return bags;
+                }
+            };
+        }
+
+        /**
+         * @return the (key, bag of each input) tuple of a cogroup
+         */
+        private static Tuple group(Object key, DataBag[] bags) throws ExecException {
+            Tuple group = tf.newTuple(bags.length + 1);
+            group.set(0, key);
+            for (int i = 0; i < bags.length; i++) {
+                group.set(i + 1, bags[i]);
+            }
+            return group;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package org.apache.pig.backend.hadoop.executionengine.spark.converter;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhysicalPlan;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POMergeJoin;
+import org.apache.pig.backend.hadoop.executionengine.spark.SparkUtil;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+
+import spark.RDD;
+import spark.SparkContext;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+import com.google.common.collect.PeekingIterator;
+
+/**
+ * Converter for merge joins. Both inputs are sorted on the join key, so each partition of the
+ * left input is joined with the tuples of the right input in its range of keys, read from the
+ * right partitions holding them, without a shuffle. See {@link SortedPartitionsRDD}.
+ *
+ * Unlike POMergeJoin, the right input is not read through an index: it is converted like any
+ * other input, the SparkLauncher undoes the replacement of its loader by the MRCompiler.
+ */
+@SuppressWarnings({ "serial"})
+public class MergeJoinConverter implements POConverter<Tuple, Tuple, POMergeJoin> {
+
+    private final SparkContext sparkContext;
+
+    public MergeJoinConverter(SparkContext sparkContext) {
+        this.sparkContext = sparkContext;
+    }
+
+    @Override
+    public RDD<Tuple> convert(List<RDD<Tuple>> predecessors, POMergeJoin poMergeJoin) throws IOException {
+        SparkUtil.assertPredecessorSize(predecessors, poMergeJoin, 2);
+        List<List<PhysicalPlan>> keyPlans = Lists.newArrayList();
+        keyPlans.add(poMergeJoin.getInnerPlansOf(0));
+        keyPlans.add(poMergeJoin.getInnerPlansOf(1));
+        return new MergeJoinRDD(sparkContext, predecessors, keyPlans);
+    }
+
+    private static class MergeJoinRDD extends SortedPartitionsRDD {
+
+        private static final TupleFactory tf = TupleFactory.getInstance();
+
+        public MergeJoinRDD(SparkContext sparkContext, List<RDD<Tuple>> inputs, List<List<PhysicalPlan>> keyPlans) {
+            // a key can span two splits of the left input
+            super(sparkContext, inputs, keyPlans, true);
+        }
+
+        @Override
+        protected java.util.Iterator<Tuple> merge(List<PeekingIterator<KeyedTuple>> inputs) {
+            final PeekingIterator<KeyedTuple> left = inputs.get(0);
+            final PeekingIterator<KeyedTuple> right = inputs.get(1);
+            return new AbstractIterator<Tuple>() {
+                // the right tuples with the key of the current left tuple
+                private final List<Tuple> rightTuples = Lists.newArrayList();
+                private Object rightKey = null;
+                private Tuple leftTuple = null;
+                private int rightIndex = 0;
+
+                @Override
+                protected Tuple computeNext() {
+                    try {
+                        while (true) {
+                            if (leftTuple != null && rightIndex < rightTuples.size()) {
+                                return join(leftTuple, rightTuples.get(rightIndex++));
+                            }
+                            if (!left.hasNext()) {
+                                return endOfData();
+                            }
+                            KeyedTuple next = left.next();
+                            rightIndex = 0;
+                            if (next.key == null) {
+                                // null keys don't join
+                                leftTuple = null;
+                                continue;
+                            }
+                            leftTuple = next.tuple;
+                            if (rightKey != null && DataType.compare(next.key, rightKey) == 0) {
+                                continue;
+                            }
+                            rightTuples.clear();
+                            rightKey = next.key;
+                            while (right.hasNext() && (right.peek().key == null
+                                    || DataType.compare(right.peek().key, rightKey) < 0)) {
+                                right.next();
+                            }
+                            while (right.hasNext() && DataType.compare(right.peek().key, rightKey) == 0) {
+                                rightTuples.add(right.next().tuple);
+                            }
+                        }
+                    } catch (ExecException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+        }
+
+        /**
+         * @return the fields of the left tuple followed by the fields of the right one,
+         * as POMergeJoin does
+         */
+        private static Tuple join(Tuple left, Tuple right) throws ExecException {
+            Tuple joined = tf.newTuple(left.size() + right.size());
+            for (int i = 0; i < left.size(); i++) {
+                joined.set(i, left.get(i));
+            }
+            for (int i = 0; i < right.size(); i++) {
+                joined.set(left.size() + i, right.get(i));
+            }
+            return joined;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package org.apache.pig.backend.hadoop.executionengine.spark.converter;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.util.RunJar;
+import org.apache.pig.PigException;
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.RunJarSecurityManager;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.PONative;
+import org.apache.pig.backend.hadoop.executionengine.spark.SparkUtil;
+import org.apache.pig.data.Tuple;
+
+import spark.RDD;
+import spark.SparkContext;
+
+/**
+ * Converter for MAPREDUCE. The native job is run when the operator is converted: the store of
+ * its input is run before, and the load of its output reads the files it wrote, so the RDD of
+ * the operator itself is empty. See NativeMapReduceOper.runJob().
+ */
+public class NativeConverter implements POConverter<Tuple, Tuple, PONative> {
+    private static final Log LOG = LogFactory.getLog(NativeConverter.class);
+
+    private final SparkContext sparkContext;
+
+    public NativeConverter(SparkContext sparkContext) {
+        this.sparkContext = sparkContext;
+    }
+
+    @Override
+    public RDD<Tuple> convert(List<RDD<Tuple>> predecessors, PONative poNative) throws IOException {
+        String[] params = poNative.getParams();
+        String[] args = new String[params.length + 1];
+        args[0] = poNative.getNativeMRjar();
+        System.arraycopy(params, 0, args, 1, params.length);
+        LOG.info("Running native MapReduce job: hadoop jar " + Arrays.toString(args));
+
+        RunJarSecurityManager secMan = new RunJarSecurityManager();
+        try {
+            RunJar.main(args);
+        } catch (SecurityException se) {
+            // RunJar exits when the job is done
+            if (!secMan.getExitInvoked() || secMan.getExitCode() != 0) {
+                int errCode = 6017;
+                String msg = "Native job " + poNative.getNativeMRjar() + " returned with non-zero return code";
+                throw new ExecException(msg, errCode, PigException.REMOTE_ENVIRONMENT, se);
+            }
+        } catch (Throwable t) {
+            int errCode = 6017;
+            String msg = "Cannot run native mapreduce job " + poNative.getNativeMRjar() + ": " + t.getMessage();
+            throw new ExecException(msg, errCode, PigException.REMOTE_ENVIRONMENT, t);
+        } finally {
+            secMan.retire();
+        }
+
+        return sparkContext.parallelize(SparkUtil.toScalaSeq(Collections.<Tuple>emptyList()), 1,
+                SparkUtil.getManifest(Tuple.class));
+    }
+}
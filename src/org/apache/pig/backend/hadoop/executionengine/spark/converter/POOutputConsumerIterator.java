@@ -11,6 +11,7 @@ abstract class POOutputConsumerIterator implements
     private Result result = null;
     private boolean returned = true;
     private boolean finished = false;
+    private boolean endOfAllInput = false;
 
     POOutputConsumerIterator(java.util.Iterator<Tuple> input) {
         this.input = input;
@@ -20,6 +21,15 @@ abstract class POOutputConsumerIterator implements
 
     abstract protected Result getNextResult() throws ExecException;
 
+    /**
+     * Called once the input is exhausted, for the operators that buffer their output and
+     * flush it when the parent plan is marked as done, see PigGenericMapBase.cleanup().
+     * @return true to keep reading results after the end of the input
+     */
+    protected boolean endOfInput() {
+        return false;
+    }
+
     private void readNext() {
         try {
             if (result != null && !returned) {
@@ -27,12 +37,13 @@ abstract class POOutputConsumerIterator implements
             }
             // see PigGenericMapBase
             if (result == null) {
-                if (!input.hasNext()) {
+                if (input.hasNext()) {
+                    Tuple v1 = input.next();
+                    attach(v1);
+                } else if (endOfAllInput || !flush()) {
                     finished = true;
                     return;
                 }
-                Tuple v1 = input.next();
-                attach(v1);
             }
             result = getNextResult();
             returned = false;
@@ -45,7 +56,7 @@ abstract class POOutputConsumerIterator implements
                 readNext();
                 break;
             case POStatus.STATUS_EOP:
-                finished = !input.hasNext();
+                finished = endOfAllInput;
                 if (!finished) {
                     result = null;
                     readNext();
@@ -59,6 +70,11 @@ abstract class POOutputConsumerIterator implements
         }
     }
 
+    private boolean flush() {
+        endOfAllInput = true;
+        return endOfInput();
+    }
+
     @Override
     public boolean hasNext() {
         readNext();
@@ -10,12 +10,14 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.pig.backend.executionengine.ExecException;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.POStatus;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.Result;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POJoinPackage;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POPackage;
 import org.apache.pig.backend.hadoop.executionengine.spark.SparkUtil;
 import org.apache.pig.data.Tuple;
 import org.apache.pig.impl.io.NullableTuple;
 import org.apache.pig.impl.io.PigNullableWritable;
 
+import scala.collection.JavaConversions;
 import scala.runtime.AbstractFunction1;
 import spark.RDD;
 
@@ -28,10 +30,65 @@ public class PackageConverter implements POConverter<Tuple, Tuple, POPackage> {
             throws IOException {
         SparkUtil.assertPredecessorSize(predecessors, physicalOperator, 1);
         RDD<Tuple> rdd = predecessors.get(0);
+        if (physicalOperator instanceof POJoinPackage) {
+            // the join package streams the last input through its foreach
+            // and returns several tuples for a key
+            return rdd.mapPartitions(new JoinPackageFunction((POJoinPackage)physicalOperator),
+                    SparkUtil.getManifest(Tuple.class));
+        }
         // package will generate the group from the result of the local rearrange
         return rdd.map(new PackageFunction(physicalOperator), SparkUtil.getManifest(Tuple.class));
     }
 
+    /**
+     * Attaches a (key, Iterator:{(index, key, value without key)}) tuple to the package.
+     * The values are wrapped in a single NullableTuple, as in Hadoop the package
+     * copies each value it keeps.
+     */
+    private static void attach(POPackage physicalOperator, final Tuple t) throws ExecException {
+        PigNullableWritable key = new PigNullableWritable() {
+
+            public Object getValueAsPigType() {
+                try {
+                    Object keyTuple = t.get(0);
+                    return keyTuple;
+                } catch (ExecException e) {
+                   throw new RuntimeException(e);
+                }
+            }
+        };
+        final Iterator<Tuple> bagIterator = (Iterator<Tuple>)t.get(1);
+        final ReusableNullableTuple nullableTuple = new ReusableNullableTuple();
+        Iterator<NullableTuple> iterator = new Iterator<NullableTuple>() {
+            public boolean hasNext() {
+                return bagIterator.hasNext();
+            }
+            public NullableTuple next() {
+                try {
+                    // we want the value and index only
+                    Tuple next = bagIterator.next();
+                    nullableTuple.set((Tuple)next.get(2), ((Number)next.get(0)).byteValue());
+                    return nullableTuple;
+                } catch (ExecException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        physicalOperator.setInputs(null);
+        physicalOperator.attachInput(key, iterator);
+    }
+
+    private static class ReusableNullableTuple extends NullableTuple {
+
+        public void set(Tuple value, byte index) {
+            mValue = value;
+            setIndex(index);
+        }
+    }
+
     private static class PackageFunction extends AbstractFunction1<Tuple, Tuple> implements Serializable {
 
         private final POPackage physicalOperator;
@@ -47,40 +104,8 @@ public class PackageConverter implements POConverter<Tuple, Tuple, POPackage> {
                 LOG.debug("PackageFunction in "+t);
             Result result;
             try {
-                PigNullableWritable key = new PigNullableWritable() {
-
-                    public Object getValueAsPigType() {
-                        try {
-                            Object keyTuple = t.get(0);
-                            return keyTuple;
-                        } catch (ExecException e) {
-                           throw new RuntimeException(e);
-                        }
-                    }
-                };
-                final Iterator<Tuple> bagIterator = (Iterator<Tuple>)t.get(1);
-                Iterator<NullableTuple> iterator = new Iterator<NullableTuple>() {
-                    public boolean hasNext() {
-                        return bagIterator.hasNext();
-                    }
-                    public NullableTuple next() {
-                        try {
-                            // we want the value and index only
-                            Tuple next = bagIterator.next();
-                            NullableTuple nullableTuple = new NullableTuple((Tuple)next.get(2));
-                            nullableTuple.setIndex(((Number)next.get(0)).byteValue());
-                            return nullableTuple;
-                        } catch (ExecException e) {
-                            throw new RuntimeException(e);
-                        }
-                    }
-                    public void remove() {
-                        throw new UnsupportedOperationException();
-                    }
-                };
-                physicalOperator.setInputs(null);
-                physicalOperator.attachInput(key, iterator);
-                result = physicalOperator.getNextTuple();
+                attach(physicalOperator, t);
+                result = physicalOperator.getNextTupleProfiled();
             } catch (ExecException e) {
                 throw new RuntimeException("Couldn't do Package on tuple: " + t, e);
             }
@@ -109,4 +134,33 @@ public class PackageConverter implements POConverter<Tuple, Tuple, POPackage> {
 
     }
 
+    private static class JoinPackageFunction extends
+            AbstractFunction1<scala.collection.Iterator<Tuple>, scala.collection.Iterator<Tuple>>
+            implements Serializable {
+
+        private final POJoinPackage physicalOperator;
+
+        public JoinPackageFunction(POJoinPackage physicalOperator) {
+            this.physicalOperator = physicalOperator;
+        }
+
+        @Override
+        public scala.collection.Iterator<Tuple> apply(scala.collection.Iterator<Tuple> i) {
+            final Iterator<Tuple> input = JavaConversions.asJavaIterator(i);
+            return JavaConversions.asScalaIterator(new POOutputConsumerIterator(input) {
+                protected void attach(Tuple tuple) {
+                    try {
+                        PackageConverter.attach(physicalOperator, tuple);
+                    } catch (ExecException e) {
+                        throw new RuntimeException("Couldn't do Package on tuple: " + tuple, e);
+                    }
+                }
+
+                protected Result getNextResult() throws ExecException {
+                    return physicalOperator.getNextTupleProfiled();
+                }
+            });
+        }
+    }
+
 }
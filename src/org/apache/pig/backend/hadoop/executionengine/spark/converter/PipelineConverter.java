@@ -0,0 +1,156 @@
+package org.apache.pig.backend.hadoop.executionengine.spark.converter;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.PhysicalOperator;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.Result;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POFilter;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POForEach;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POLocalRearrange;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.vector.TupleBatch;
+import org.apache.pig.backend.hadoop.executionengine.spark.SparkUtil;
+import org.apache.pig.data.Tuple;
+
+import scala.collection.Iterator;
+import scala.collection.JavaConversions;
+import scala.runtime.AbstractFunction1;
+import spark.RDD;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+
+/**
+ * Converter that runs a chain of operators processing their input one tuple at a time
+ * (FOREACH, FILTER and the local rearrange before a shuffle) as a single partition function,
+ * instead of one RDD per operator.
+ *
+ * As in PigGenericMapBase, the input tuples are attached to the first operator of the chain
+ * and the results are pulled from the last one, which pulls them from its predecessors.
+ *
+ * When vectorized, the input is read in batches of {@link TupleBatch#DEFAULT_CAPACITY} tuples
+ * instead, and each batch goes through the operators one after the other, see
+ * {@link PhysicalOperator#processBatch(TupleBatch)}.
+ */
+@SuppressWarnings({ "serial"})
+public class PipelineConverter {
+
+    private final Properties properties;
+
+    /**
+     * @param properties the job configuration of the tasks
+     */
+    public PipelineConverter(Properties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * @return true if the operator can be part of a pipeline
+     */
+    public static boolean canPipeline(PhysicalOperator physicalOperator) {
+        Class<? extends PhysicalOperator> clazz = physicalOperator.getClass();
+        return clazz.equals(POForEach.class) || clazz.equals(POFilter.class)
+                || clazz.equals(POLocalRearrange.class);
+    }
+
+    /**
+     * @param pipeline the operators of the chain, each one the only successor of the previous one
+     * @param vectorized whether the operators exchange batches of tuples
+     */
+    public RDD<Tuple> convert(List<RDD<Tuple>> predecessors, List<PhysicalOperator> pipeline,
+            boolean vectorized) {
+        PhysicalOperator first = pipeline.get(0);
+        PhysicalOperator last = pipeline.get(pipeline.size() - 1);
+        SparkUtil.assertPredecessorSize(predecessors, first, 1);
+        // the inputs may have been changed by the MRCompiler, link the operators as in the plan
+        for (int i = 1; i < pipeline.size(); i++) {
+            pipeline.get(i).setInputs(Lists.newArrayList(pipeline.get(i - 1)));
+        }
+        RDD<Tuple> rdd = predecessors.get(0);
+        if (vectorized) {
+            return rdd.mapPartitions(new BatchPipelineFunction(pipeline, properties), SparkUtil.getManifest(Tuple.class));
+        }
+        return rdd.mapPartitions(new PipelineFunction(first, last, properties), SparkUtil.getManifest(Tuple.class));
+    }
+
+    private static class PipelineFunction extends AbstractFunction1<Iterator<Tuple>, Iterator<Tuple>>
+            implements Serializable {
+
+        // serialized together, last still reaches first through its inputs once deserialized
+        private final PhysicalOperator first;
+        private final PhysicalOperator last;
+        private final Properties properties;
+
+        private PipelineFunction(PhysicalOperator first, PhysicalOperator last, Properties properties) {
+            this.first = first;
+            this.last = last;
+            this.properties = properties;
+        }
+
+        public Iterator<Tuple> apply(Iterator<Tuple> i) {
+            // the nested operators read their settings from the job configuration
+            SparkUtil.setJobConf(properties);
+            final java.util.Iterator<Tuple> input = JavaConversions.asJavaIterator(i);
+            first.setInputs(null);
+            return JavaConversions.asScalaIterator(new POOutputConsumerIterator(input) {
+                protected void attach(Tuple tuple) {
+                    first.attachInput(tuple);
+                }
+
+                protected Result getNextResult() throws ExecException {
+                    return last.getNextTupleProfiled();
+                }
+            });
+        }
+    }
+
+    private static class BatchPipelineFunction extends AbstractFunction1<Iterator<Tuple>, Iterator<Tuple>>
+            implements Serializable {
+
+        private final List<PhysicalOperator> pipeline;
+        private final Properties properties;
+
+        private BatchPipelineFunction(List<PhysicalOperator> pipeline, Properties properties) {
+            this.pipeline = Lists.newArrayList(pipeline);
+            this.properties = properties;
+        }
+
+        public Iterator<Tuple> apply(Iterator<Tuple> i) {
+            SparkUtil.setJobConf(properties);
+            final java.util.Iterator<Tuple> input = JavaConversions.asJavaIterator(i);
+            // each operator gets its batches from the previous one, not from its inputs
+            for (PhysicalOperator physicalOperator : pipeline) {
+                physicalOperator.setInputs(null);
+            }
+            return JavaConversions.asScalaIterator(new AbstractIterator<Tuple>() {
+                private TupleBatch output = null;
+                private int position = 0;
+
+                @Override
+                protected Tuple computeNext() {
+                    while (output == null || position == output.size()) {
+                        if (!input.hasNext()) {
+                            return endOfData();
+                        }
+                        TupleBatch batch = new TupleBatch();
+                        while (!batch.isFull() && input.hasNext()) {
+                            batch.add(input.next());
+                        }
+                        try {
+                            for (PhysicalOperator physicalOperator : pipeline) {
+                                batch = physicalOperator.processBatch(batch);
+                            }
+                        } catch (ExecException e) {
+                            throw new RuntimeException(e);
+                        }
+                        output = batch;
+                        position = 0;
+                    }
+                    return output.get(position++);
+                }
+            });
+        }
+    }
+}
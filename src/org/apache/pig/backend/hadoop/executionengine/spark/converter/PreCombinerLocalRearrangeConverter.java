@@ -0,0 +1,58 @@
+package org.apache.pig.backend.hadoop.executionengine.spark.converter;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.Result;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POPreCombinerLocalRearrange;
+import org.apache.pig.backend.hadoop.executionengine.spark.SparkUtil;
+import org.apache.pig.data.Tuple;
+
+import scala.collection.Iterator;
+import scala.collection.JavaConversions;
+import scala.runtime.AbstractFunction1;
+import spark.RDD;
+
+/**
+ * Converter for the POPreCombinerLocalRearrange the combiner optimization puts in front of the
+ * map side foreach. It turns each tuple into (key, {(value)}).
+ */
+@SuppressWarnings({ "serial"})
+public class PreCombinerLocalRearrangeConverter implements POConverter<Tuple, Tuple, POPreCombinerLocalRearrange> {
+
+    @Override
+    public RDD<Tuple> convert(List<RDD<Tuple>> predecessors, POPreCombinerLocalRearrange physicalOperator)
+            throws IOException {
+        SparkUtil.assertPredecessorSize(predecessors, physicalOperator, 1);
+        RDD<Tuple> rdd = predecessors.get(0);
+        return rdd.mapPartitions(new PreCombinerLocalRearrangeFunction(physicalOperator),
+                SparkUtil.getManifest(Tuple.class));
+    }
+
+    private static class PreCombinerLocalRearrangeFunction extends AbstractFunction1<Iterator<Tuple>, Iterator<Tuple>>
+            implements Serializable {
+
+        private final POPreCombinerLocalRearrange physicalOperator;
+
+        public PreCombinerLocalRearrangeFunction(POPreCombinerLocalRearrange physicalOperator) {
+            this.physicalOperator = physicalOperator;
+        }
+
+        @Override
+        public Iterator<Tuple> apply(Iterator<Tuple> i) {
+            final java.util.Iterator<Tuple> input = JavaConversions.asJavaIterator(i);
+            return JavaConversions.asScalaIterator(new POOutputConsumerIterator(input) {
+                protected void attach(Tuple tuple) {
+                    physicalOperator.setInputs(null);
+                    physicalOperator.attachInput(tuple);
+                }
+
+                protected Result getNextResult() throws ExecException {
+                    return physicalOperator.getNextTupleProfiled();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.apache.pig.backend.hadoop.executionengine.spark.converter;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.partitioners.DiscreteProbabilitySampleGenerator;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.InternalMap;
+import org.apache.pig.data.NonSpillableDataBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.builtin.FindQuantiles;
+
+import spark.Partitioner;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Range partitioner for ORDER BY, the Spark counterpart of the WeightedRangePartitioner.
+ *
+ * Quantiles are computed from a sample of the sort keys with {@link FindQuantiles}, exactly as
+ * for a MapReduce order by. Keys that span several partitions in the sample are spread over
+ * those partitions according to their weight, so that a skewed key does not end up in a
+ * single partition.
+ */
+@SuppressWarnings({ "serial"})
+class QuantilePartitioner extends Partitioner {
+
+    private final int numPartitions;
+    private final SerializedKey[] quantiles;
+    private final Map<SerializedKey, float[]> weightedParts;
+    private final Comparator<SerializedKey> comparator;
+
+    // DiscreteProbabilitySampleGenerator is not serializable, built lazily on the workers
+    private transient Map<SerializedKey, DiscreteProbabilitySampleGenerator> generators;
+
+    /**
+     * @param samples key tuples, as returned by {@link SortKeyExtractor#getKeyTuple(Tuple)}
+     * @param numPartitions the requested number of partitions
+     * @param extractor used to serialize and compare the keys
+     */
+    @SuppressWarnings("unchecked")
+    public QuantilePartitioner(List<Tuple> samples, int numPartitions, final SortKeyExtractor extractor)
+            throws IOException {
+        this.numPartitions = numPartitions;
+        this.comparator = extractor;
+        this.weightedParts = Maps.newHashMap();
+        if (samples.isEmpty()) {
+            this.quantiles = new SerializedKey[0];
+            return;
+        }
+
+        // FindQuantiles expects the samples in sort order
+        final Map<Tuple, SerializedKey> serialized = Maps.newHashMap();
+        for (Tuple sample : samples) {
+            serialized.put(sample, extractor.serialize(sample));
+        }
+        List<Tuple> sorted = Lists.newArrayList(samples);
+        Collections.sort(sorted, new Comparator<Tuple>() {
+            @Override
+            public int compare(Tuple o1, Tuple o2) {
+                return extractor.compare(serialized.get(o1), serialized.get(o2));
+            }
+        });
+
+        boolean[] asc = extractor.getAsc();
+        String[] ascFlags = new String[asc.length];
+        for (int i = 0; i < asc.length; i++) {
+            ascFlags[i] = String.valueOf(asc[i]);
+        }
+        Tuple input = TupleFactory.getInstance().newTuple(2);
+        input.set(0, numPartitions);
+        input.set(1, new NonSpillableDataBag(sorted));
+        Map<String, Object> quantileMap = new FindQuantiles(ascFlags).exec(input);
+
+        DataBag quantilesList = (DataBag) quantileMap.get(FindQuantiles.QUANTILES_LIST);
+        List<SerializedKey> quantileKeys = Lists.newArrayList();
+        for (Tuple quantile : quantilesList) {
+            quantileKeys.add(extractor.serialize(quantile));
+        }
+        this.quantiles = quantileKeys.toArray(new SerializedKey[quantileKeys.size()]);
+
+        InternalMap weightedPartsData = (InternalMap) quantileMap.get(FindQuantiles.WEIGHTED_PARTS);
+        for (Entry<Object, Object> ent : weightedPartsData.entrySet()) {
+            Tuple probVecTuple = (Tuple) ent.getValue();
+            float[] probVec = new float[probVecTuple.size()];
+            for (int i = 0; i < probVec.length; i++) {
+                probVec[i] = (Float) probVecTuple.get(i);
+            }
+            weightedParts.put(extractor.serialize((Tuple) ent.getKey()), probVec);
+        }
+    }
+
+    @Override
+    public int numPartitions() {
+        return numPartitions;
+    }
+
+    @Override
+    public int getPartition(Object key) {
+        SerializedKey serializedKey = (SerializedKey) key;
+        if (generators == null) {
+            generators = Maps.newHashMap();
+            for (Entry<SerializedKey, float[]> ent : weightedParts.entrySet()) {
+                generators.put(ent.getKey(), new DiscreteProbabilitySampleGenerator(ent.getValue()));
+            }
+        }
+        DiscreteProbabilitySampleGenerator gen = generators.get(serializedKey);
+        if (gen != null) {
+            return gen.getNext();
+        }
+        int index = Arrays.binarySearch(quantiles, serializedKey, comparator);
+        if (index < 0) {
+            index = -index - 1;
+        } else {
+            index = index + 1;
+        }
+        return Math.min(index, numPartitions - 1);
+    }
+}
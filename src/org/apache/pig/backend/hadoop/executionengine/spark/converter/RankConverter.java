@@ -0,0 +1,174 @@
+package org.apache.pig.backend.hadoop.executionengine.spark.converter;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.pig.PigException;
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.JobControlCompiler;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.PigMapReduce;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.PhysicalOperator;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.Result;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhysicalPlan;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POCounter;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.PORank;
+import org.apache.pig.backend.hadoop.executionengine.spark.SparkCounters;
+import org.apache.pig.backend.hadoop.executionengine.spark.SparkUtil;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.plan.PlanException;
+
+import scala.collection.Iterator;
+import scala.collection.JavaConversions;
+import scala.runtime.AbstractFunction1;
+import spark.RDD;
+import spark.storage.StorageLevel;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Converter for the second step of a RANK. Where MapReduce reads the counters of the job
+ * running the POCounter, the number of ranked values in each partition is counted by a Spark
+ * job and the rank of the first tuple of each partition is the sum of the counts of the
+ * partitions before it.
+ */
+@SuppressWarnings({ "serial"})
+public class RankConverter implements POConverter<Tuple, Tuple, PORank> {
+    private static final Log LOG = LogFactory.getLog(RankConverter.class);
+
+    private static final TupleFactory tf = TupleFactory.getInstance();
+
+    private final PhysicalPlan physicalPlan;
+
+    public RankConverter(PhysicalPlan physicalPlan) {
+        this.physicalPlan = physicalPlan;
+    }
+
+    @Override
+    public RDD<Tuple> convert(List<RDD<Tuple>> predecessors, PORank poRank) throws IOException {
+        SparkUtil.assertPredecessorSize(predecessors, poRank, 1);
+        POCounter poCounter = getCounter(poRank);
+
+        // the counted tuples are read twice
+        RDD<Tuple> rdd = SparkCounters.persist(predecessors.get(0), StorageLevel.MEMORY_AND_DISK_SER());
+
+        boolean countTuples = poCounter.isRowNumber() || poCounter.isDenseRank();
+        Tuple[] counts = (Tuple[]) SparkCounters.uncounted(rdd).mapPartitions(new CountFunction(countTuples),
+                SparkUtil.getManifest(Tuple.class)).collect();
+        SortedMap<Integer, Long> sortedCounts = Maps.newTreeMap();
+        for (Tuple count : counts) {
+            sortedCounts.put(Integer.valueOf((String) count.get(0)), (Long) count.get(1));
+        }
+
+        // see JobControlCompiler.saveCounters()
+        HashMap<String, Long> offsets = Maps.newHashMap();
+        long offset = 0;
+        for (Map.Entry<Integer, Long> count : sortedCounts.entrySet()) {
+            offsets.put(JobControlCompiler.PIG_MAP_COUNTER + poRank.getOperationID()
+                    + JobControlCompiler.PIG_MAP_SEPARATOR + count.getKey(), offset);
+            offset += count.getValue();
+        }
+        LOG.info("Ranking " + offset + " values in " + sortedCounts.size() + " partitions for " + poRank);
+
+        return rdd.mapPartitions(new RankFunction(poRank, offsets), SparkUtil.getManifest(Tuple.class));
+    }
+
+    private POCounter getCounter(PORank poRank) throws PlanException {
+        List<PhysicalOperator> predecessors = physicalPlan.getPredecessors(poRank);
+        if (predecessors == null || predecessors.size() != 1 || !(predecessors.get(0) instanceof POCounter)) {
+            int errCode = 2171;
+            String msg = "Expected a POCounter before " + poRank + ", found " + predecessors;
+            throw new PlanException(msg, errCode, PigException.BUG);
+        }
+        return (POCounter) predecessors.get(0);
+    }
+
+    /**
+     * Counts the values ranked in a partition of the output of a POCounter: its tuples for a
+     * row number or a dense rank, the tuples of their bags for a rank by.
+     * @return a (task id, count) tuple, none if the partition is empty
+     */
+    private static class CountFunction extends AbstractFunction1<Iterator<Tuple>, Iterator<Tuple>>
+            implements Serializable {
+
+        private final boolean countTuples;
+
+        private CountFunction(boolean countTuples) {
+            this.countTuples = countTuples;
+        }
+
+        @Override
+        public Iterator<Tuple> apply(Iterator<Tuple> input) {
+            List<Tuple> result = Lists.newArrayList();
+            try {
+                String taskId = null;
+                long count = 0;
+                while (input.hasNext()) {
+                    Tuple t = input.next();
+                    taskId = (String) t.get(0);
+                    if (countTuples) {
+                        ++count;
+                    } else if (t.getType(t.size() - 1) == DataType.BAG) {
+                        count += ((DataBag) t.get(t.size() - 1)).size();
+                    }
+                }
+                if (taskId != null) {
+                    Tuple t = tf.newTuple(2);
+                    t.set(0, taskId);
+                    t.set(1, count);
+                    result.add(t);
+                }
+            } catch (ExecException e) {
+                throw new RuntimeException(e);
+            }
+            return JavaConversions.asScalaIterator(result.iterator());
+        }
+    }
+
+    private static class RankFunction extends AbstractFunction1<Iterator<Tuple>, Iterator<Tuple>>
+            implements Serializable {
+
+        private final PORank poRank;
+        private final HashMap<String, Long> offsets;
+
+        private RankFunction(PORank poRank, HashMap<String, Long> offsets) {
+            this.poRank = poRank;
+            this.offsets = offsets;
+        }
+
+        @Override
+        public Iterator<Tuple> apply(Iterator<Tuple> i) {
+            // PORank reads the rank of the first tuple of its task from the job configuration
+            Configuration conf = PigMapReduce.sJobConfInternal.get();
+            if (conf == null) {
+                conf = new Configuration(false);
+                PigMapReduce.sJobConfInternal.set(conf);
+            }
+            for (Map.Entry<String, Long> offset : offsets.entrySet()) {
+                conf.setLong(offset.getKey(), offset.getValue());
+            }
+
+            final java.util.Iterator<Tuple> input = JavaConversions.asJavaIterator(i);
+            return JavaConversions.asScalaIterator(new POOutputConsumerIterator(input) {
+                protected void attach(Tuple tuple) {
+                    poRank.setInputs(null);
+                    poRank.attachInput(tuple);
+                }
+
+                protected Result getNextResult() throws ExecException {
+                    return poRank.getNextTupleProfiled();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package org.apache.pig.backend.hadoop.executionengine.spark.converter;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A shuffle key held in its serialized form, so that it can be hashed, checked for equality and
+ * compared by a raw comparator without deserializing it.
+ */
+@SuppressWarnings({ "serial"})
+public final class SerializedKey implements Serializable {
+
+    private final byte[] bytes;
+
+    public SerializedKey(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(bytes);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof SerializedKey)) {
+            return false;
+        }
+        return Arrays.equals(bytes, ((SerializedKey)obj).bytes);
+    }
+}
@@ -0,0 +1,480 @@
+package org.apache.pig.backend.hadoop.executionengine.spark.converter;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.pig.PigException;
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.PhysicalOperator;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.expressionOperators.POProject;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhysicalPlan;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POForEach;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POLocalRearrange;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POPackage;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POSkewedJoin;
+import org.apache.pig.backend.hadoop.executionengine.spark.SparkCounters;
+import org.apache.pig.backend.hadoop.executionengine.spark.SparkUtil;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.NonSpillableDataBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.PigContext;
+import org.apache.pig.impl.builtin.PartitionSkewedKeys;
+import org.apache.pig.impl.plan.NodeIdGenerator;
+import org.apache.pig.impl.plan.OperatorKey;
+import org.apache.pig.impl.plan.PlanException;
+import org.apache.pig.impl.util.CompilerUtils;
+import org.apache.pig.impl.util.MultiMap;
+import org.apache.pig.impl.util.Pair;
+
+import scala.Tuple2;
+import scala.collection.Iterator;
+import scala.collection.JavaConversions;
+import scala.collection.Seq;
+import scala.runtime.AbstractFunction1;
+import spark.CoGroupedRDD;
+import spark.Partitioner;
+import spark.RDD;
+
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Converter for skewed joins.
+ *
+ * Like the MapReduce skewed join, the keys of the first input are sampled and
+ * {@link PartitionSkewedKeys} decides how many partitions each hot key needs. The rows of the
+ * first input with a hot key are spread round robin over these partitions, and the rows of the
+ * second input with that key are copied to each of them. Other keys are hash partitioned.
+ * Each partition is then joined with the same package and foreach as the MapReduce plan.
+ */
+@SuppressWarnings({ "serial"})
+public class SkewedJoinConverter implements POConverter<Tuple, Tuple, POSkewedJoin> {
+    private static final Log LOG = LogFactory.getLog(SkewedJoinConverter.class);
+
+    private static final TupleFactory tf = TupleFactory.getInstance();
+
+    private static final ToGroupTupleFunction TO_GROUP_TUPLE_FUNCTION = new ToGroupTupleFunction();
+
+    // number of rows sampled from each partition of the first input
+    private static final int SAMPLES_PER_PARTITION = 1000;
+
+    private final PigContext pigContext;
+
+    public SkewedJoinConverter(PigContext pigContext) {
+        this.pigContext = pigContext;
+    }
+
+    @Override
+    public RDD<Tuple> convert(List<RDD<Tuple>> predecessors, POSkewedJoin poSkewedJoin)
+            throws IOException {
+        SparkUtil.assertPredecessorSize(predecessors, poSkewedJoin, 2);
+        int parallelism = SparkUtil.getParallelism(predecessors, poSkewedJoin);
+
+        // the same rearranges, package and foreach as MRCompiler.visitSkewedJoin()
+        POLocalRearrange[] rearranges = new POLocalRearrange[2];
+        MultiMap<PhysicalOperator, PhysicalPlan> joinPlans = poSkewedJoin.getJoinPlans();
+        List<PhysicalPlan> groups = joinPlans.get(poSkewedJoin.getInputs().get(0));
+        byte keyType = DataType.TUPLE;
+        if (groups.size() == 1) {
+            keyType = groups.get(0).getLeaves().get(0).getResultType();
+        }
+        for (int i = 0; i < 2; i++) {
+            rearranges[i] = newLocalRearrange(poSkewedJoin, i,
+                    joinPlans.get(poSkewedJoin.getInputs().get(i)), keyType);
+        }
+        POPackage pkg = newPackage(poSkewedJoin, rearranges, keyType);
+        POForEach forEach = newForEach(poSkewedJoin);
+
+        LocalRearrangeConverter localRearrangeConverter = new LocalRearrangeConverter();
+        RDD<Tuple> left = localRearrangeConverter.convert(
+                Collections.singletonList(predecessors.get(0)), rearranges[0]);
+        RDD<Tuple> right = localRearrangeConverter.convert(
+                Collections.singletonList(predecessors.get(1)), rearranges[1]);
+
+        // a key made of several columns is a tuple of them, a single column is the key even if it is a tuple
+        boolean compoundKey = rearranges[0].isKeyCompound();
+        Map<Object, Pair<Integer, Integer>> skewedKeys = getSkewedKeys(left, parallelism, compoundKey, poSkewedJoin);
+        SkewedJoinPartitioner partitioner = new SkewedJoinPartitioner(parallelism);
+
+        List<RDD<Tuple2<SkewedJoinKey, Tuple>>> rddPairs = Lists.newArrayList();
+        rddPairs.add(left.mapPartitions(new ToPartitionKeyFunction(skewedKeys, parallelism, false),
+                SparkUtil.<SkewedJoinKey, Tuple>getTuple2Manifest()));
+        rddPairs.add(right.mapPartitions(new ToPartitionKeyFunction(skewedKeys, parallelism, true),
+                SparkUtil.<SkewedJoinKey, Tuple>getTuple2Manifest()));
+        CoGroupedRDD<Object> coGroupedRDD = new CoGroupedRDD<Object>(
+                (Seq<RDD<Tuple2<?, ?>>>)(Object)JavaConversions.asScalaBuffer(rddPairs),
+                partitioner);
+        RDD<Tuple2<SkewedJoinKey, Seq<Seq<Tuple>>>> grouped =
+                (RDD<Tuple2<SkewedJoinKey, Seq<Seq<Tuple>>>>)(Object)coGroupedRDD;
+
+        RDD<Tuple> packageInput = grouped.map(TO_GROUP_TUPLE_FUNCTION, SparkUtil.getManifest(Tuple.class));
+        RDD<Tuple> packaged = new PackageConverter().convert(Collections.singletonList(packageInput), pkg);
+        return new ForEachConverter(pigContext.getProperties()).convert(Collections.singletonList(packaged), forEach);
+    }
+
+    /**
+     * Samples the keys of the first input and computes the partitions of its hot keys
+     * @return the first partition and the number of extra partitions of each hot key
+     */
+    private Map<Object, Pair<Integer, Integer>> getSkewedKeys(RDD<Tuple> rdd, int parallelism,
+            boolean compoundKey, POSkewedJoin poSkewedJoin) throws IOException {
+        Tuple[] partitionSamples = (Tuple[]) SparkCounters.uncounted(rdd).mapPartitions(
+                new SampleFunction(compoundKey), SparkUtil.getManifest(Tuple.class)).collect();
+        // PartitionSkewedKeys expects the samples grouped by key
+        List<Tuple> sorted = getProportionalSamples(partitionSamples);
+        Collections.sort(sorted, new Comparator<Tuple>() {
+            @Override
+            public int compare(Tuple o1, Tuple o2) {
+                try {
+                    for (int i = 0; i < o1.size() - 2; i++) {
+                        int c = DataType.compare(o1.get(i), o2.get(i));
+                        if (c != 0) {
+                            return c;
+                        }
+                    }
+                    return 0;
+                } catch (ExecException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+
+        String per = pigContext.getProperties().getProperty("pig.skewedjoin.reduce.memusage",
+                String.valueOf(PartitionSkewedKeys.DEFAULT_PERCENT_MEMUSAGE));
+        String mc = pigContext.getProperties().getProperty("pig.skewedjoin.reduce.maxtuple", "0");
+        Tuple input = tf.newTuple(2);
+        input.set(0, parallelism);
+        input.set(1, new NonSpillableDataBag(sorted));
+        Map<String, Object> distMap =
+                new PartitionSkewedKeys(new String[] { per, mc, poSkewedJoin.getAlias() }).exec(input);
+
+        // see MapRedUtil.loadPartitionFileFromLocalCache()
+        Map<Object, Pair<Integer, Integer>> skewedKeys = Maps.newHashMap();
+        int totalReducers = (Integer) distMap.get(PartitionSkewedKeys.TOTAL_REDUCERS);
+        for (Tuple idxTuple : (Iterable<Tuple>) distMap.get(PartitionSkewedKeys.PARTITION_LIST)) {
+            Integer maxIndex = (Integer) idxTuple.get(idxTuple.size() - 1);
+            Integer minIndex = (Integer) idxTuple.get(idxTuple.size() - 2);
+            if (maxIndex < minIndex) {
+                maxIndex = totalReducers + maxIndex;
+            }
+            Object key;
+            if (compoundKey) {
+                Tuple keyTuple = tf.newTuple(idxTuple.size() - 2);
+                for (int i = 0; i < idxTuple.size() - 2; i++) {
+                    keyTuple.set(i, idxTuple.get(i));
+                }
+                key = keyTuple;
+            } else {
+                key = idxTuple.get(0);
+            }
+            skewedKeys.put(key, new Pair<Integer, Integer>(minIndex, maxIndex - minIndex));
+        }
+        LOG.info("Found " + skewedKeys.size() + " skewed keys for " + poSkewedJoin);
+        return skewedKeys;
+    }
+
+    /**
+     * PartitionSkewedKeys weighs every sample the same, as the samples of the MapReduce sampler
+     * are taken at the same rate from every input split. Each partition samples up to
+     * {@link #SAMPLES_PER_PARTITION} rows whatever its size though, so the samples are taken down
+     * to the lowest sampling rate of the partitions: otherwise the keys of the small partitions
+     * would look as frequent as the keys of the large ones.
+     * @param partitionSamples the row count and samples of each partition, see {@link SampleFunction}
+     * @return samples taken at the same rate from every partition, with the row count of the input
+     * on the last one
+     */
+    private static List<Tuple> getProportionalSamples(Tuple[] partitionSamples) throws ExecException {
+        long totalRows = 0;
+        double rate = 1;
+        for (Tuple partition : partitionSamples) {
+            long rows = (Long) partition.get(0);
+            long sampled = ((DataBag) partition.get(1)).size();
+            totalRows += rows;
+            if (sampled > 0) {
+                rate = Math.min(rate, (double) sampled / rows);
+            }
+        }
+        List<Tuple> samples = Lists.newArrayList();
+        Random random = new Random();
+        for (Tuple partition : partitionSamples) {
+            List<Tuple> sampled = Lists.newArrayList((DataBag) partition.get(1));
+            // the reservoir is a uniform sample of the partition, any subset of it as well
+            Collections.shuffle(sampled, random);
+            long kept = Math.min(sampled.size(), Math.round((Long) partition.get(0) * rate));
+            samples.addAll(sampled.subList(0, (int) kept));
+        }
+        if (!samples.isEmpty()) {
+            Tuple last = samples.get(samples.size() - 1);
+            last.set(last.size() - 1, totalRows);
+        }
+        LOG.info("Kept " + samples.size() + " samples of " + totalRows + " rows at a rate of " + rate);
+        return samples;
+    }
+
+    private static OperatorKey genKey(OperatorKey old) {
+        return new OperatorKey(old.scope, NodeIdGenerator.getGenerator().getNextNodeId(old.scope));
+    }
+
+    private static POLocalRearrange newLocalRearrange(POSkewedJoin poSkewedJoin, int index,
+            List<PhysicalPlan> plans, byte keyType) throws PlanException {
+        POLocalRearrange lr = new POLocalRearrange(genKey(poSkewedJoin.getOperatorKey()));
+        try {
+            lr.setIndex(index);
+        } catch (ExecException e) {
+            int errCode = 2058;
+            String msg = "Unable to set index on newly created POLocalRearrange.";
+            throw new PlanException(msg, errCode, PigException.BUG, e);
+        }
+        lr.setKeyType(keyType);
+        lr.setPlans(plans);
+        lr.setResultType(DataType.TUPLE);
+        return lr;
+    }
+
+    private static POPackage newPackage(POSkewedJoin poSkewedJoin, POLocalRearrange[] rearranges,
+            byte keyType) {
+        POPackage pkg = new POPackage(genKey(poSkewedJoin.getOperatorKey()));
+        pkg.setKeyType(keyType);
+        pkg.setResultType(DataType.TUPLE);
+        pkg.setNumInps(2);
+        pkg.setInner(poSkewedJoin.getInnerFlags());
+        // what the POPackageAnnotator does for the MapReduce plan
+        Map<Integer, Pair<Boolean, Map<Integer, Integer>>> keyInfo = Maps.newHashMap();
+        for (POLocalRearrange lr : rearranges) {
+            keyInfo.put(Integer.valueOf(lr.getIndex()),
+                    new Pair<Boolean, Map<Integer, Integer>>(lr.isProjectStar(), lr.getProjectedColsMap()));
+        }
+        pkg.setKeyInfo(keyInfo);
+        pkg.setKeyTuple(rearranges[0].isKeyTuple());
+        pkg.setKeyCompound(rearranges[0].isKeyCompound());
+        return pkg;
+    }
+
+    private static POForEach newForEach(POSkewedJoin poSkewedJoin) throws PlanException {
+        List<PhysicalPlan> eps = Lists.newArrayList();
+        List<Boolean> flat = Lists.newArrayList();
+        boolean[] inner = poSkewedJoin.getInnerFlags();
+        for (int i = 0; i < 2; i++) {
+            PhysicalPlan ep = new PhysicalPlan();
+            POProject prj = new POProject(genKey(poSkewedJoin.getOperatorKey()));
+            prj.setColumn(i + 1);
+            prj.setOverloaded(false);
+            prj.setResultType(DataType.BAG);
+            ep.add(prj);
+            eps.add(ep);
+            if (!inner[i]) {
+                // Add an empty bag for outer join
+                CompilerUtils.addEmptyBagOuterJoin(ep, poSkewedJoin.getSchema(i));
+            }
+            flat.add(true);
+        }
+        POForEach fe = new POForEach(genKey(poSkewedJoin.getOperatorKey()), -1, eps, flat);
+        fe.setResultType(DataType.TUPLE);
+        return fe;
+    }
+
+    /**
+     * Reservoir sample of the keys of a partition of (index, key, value) tuples, output as a
+     * single (row count, bag of samples) tuple. The samples are in the format of the
+     * PoissonSampleLoader: (key fields, memory size, row count), with a row count of 0.
+     */
+    private static class SampleFunction extends AbstractFunction1<Iterator<Tuple>, Iterator<Tuple>> implements Serializable {
+        private final boolean compoundKey;
+
+        public SampleFunction(boolean compoundKey) {
+            this.compoundKey = compoundKey;
+        }
+
+        @Override
+        public Iterator<Tuple> apply(Iterator<Tuple> input) {
+            List<Tuple> samples = Lists.newArrayListWithCapacity(SAMPLES_PER_PARTITION);
+            Random random = new Random();
+            long rows = 0;
+            Tuple partition = tf.newTuple(2);
+            try {
+                while (input.hasNext()) {
+                    Tuple t = input.next();
+                    if (samples.size() < SAMPLES_PER_PARTITION) {
+                        samples.add(toSample(t));
+                    } else {
+                        long index = (long) (random.nextDouble() * (rows + 1));
+                        if (index < SAMPLES_PER_PARTITION) {
+                            samples.set((int) index, toSample(t));
+                        }
+                    }
+                    ++rows;
+                }
+                partition.set(0, rows);
+                partition.set(1, new NonSpillableDataBag(samples));
+            } catch (ExecException e) {
+                throw new RuntimeException(e);
+            }
+            return JavaConversions.asScalaIterator(Collections.singletonList(partition).iterator());
+        }
+
+        private Tuple toSample(Tuple t) throws ExecException {
+            Object key = t.get(1);
+            Tuple sample;
+            if (compoundKey) {
+                Tuple keyTuple = (Tuple) key;
+                sample = tf.newTuple(keyTuple.size() + 2);
+                for (int i = 0; i < keyTuple.size(); i++) {
+                    sample.set(i, keyTuple.get(i));
+                }
+            } else {
+                sample = tf.newTuple(3);
+                sample.set(0, key);
+            }
+            sample.set(sample.size() - 2, ((Tuple) t.get(2)).getMemorySize());
+            sample.set(sample.size() - 1, 0L);
+            return sample;
+        }
+    }
+
+    /**
+     * Key of the shuffle: the join key along with the partition it is sent to.
+     * Null keys also carry the input index, so that they do not join.
+     */
+    private static class SkewedJoinKey implements Serializable {
+        private final int partition;
+        private final Object key;
+        private final int nullIndex;
+
+        public SkewedJoinKey(int partition, Object key, int nullIndex) {
+            this.partition = partition;
+            this.key = key;
+            this.nullIndex = nullIndex;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * partition + nullIndex) + (key == null ? 0 : key.hashCode());
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof SkewedJoinKey)) {
+                return false;
+            }
+            SkewedJoinKey other = (SkewedJoinKey) obj;
+            return partition == other.partition && nullIndex == other.nullIndex
+                    && (key == null ? other.key == null : key.equals(other.key));
+        }
+    }
+
+    private static class SkewedJoinPartitioner extends Partitioner {
+        private final int numPartitions;
+
+        public SkewedJoinPartitioner(int numPartitions) {
+            this.numPartitions = numPartitions;
+        }
+
+        @Override
+        public int numPartitions() {
+            return numPartitions;
+        }
+
+        @Override
+        public int getPartition(Object key) {
+            return ((SkewedJoinKey) key).partition;
+        }
+    }
+
+    /**
+     * Keys each (index, key, value) tuple with its partition. Rows of the first input with a
+     * skewed key go round robin to the partitions of the key, rows of the second input are
+     * copied to all of them. Rows with a null key never join, so they are hash partitioned on
+     * their value rather than all sent to the same partition.
+     */
+    private static class ToPartitionKeyFunction
+            extends AbstractFunction1<Iterator<Tuple>, Iterator<Tuple2<SkewedJoinKey, Tuple>>>
+            implements Serializable {
+        private final Map<Object, Pair<Integer, Integer>> skewedKeys;
+        private final int numPartitions;
+        private final boolean replicate;
+
+        public ToPartitionKeyFunction(Map<Object, Pair<Integer, Integer>> skewedKeys, int numPartitions,
+                boolean replicate) {
+            this.skewedKeys = skewedKeys;
+            this.numPartitions = numPartitions;
+            this.replicate = replicate;
+        }
+
+        @Override
+        public Iterator<Tuple2<SkewedJoinKey, Tuple>> apply(Iterator<Tuple> input) {
+            final java.util.Iterator<Tuple> tuples = JavaConversions.asJavaIterator(input);
+            final Map<Object, Integer> currentIndexes = Maps.newHashMap();
+            return JavaConversions.asScalaIterator(Iterators.concat(
+                    new IteratorTransform<Tuple, java.util.Iterator<Tuple2<SkewedJoinKey, Tuple>>>(tuples) {
+                @Override
+                protected java.util.Iterator<Tuple2<SkewedJoinKey, Tuple>> transform(Tuple t) {
+                    try {
+                        Object key = t.get(1);
+                        if (key == null) {
+                            int index = ((Number) t.get(0)).intValue();
+                            Object value = t.get(2);
+                            int partition = value == null ? 0 : Math.abs(value.hashCode() % numPartitions);
+                            return Iterators.singletonIterator(
+                                    new Tuple2<SkewedJoinKey, Tuple>(new SkewedJoinKey(partition, null, index), t));
+                        }
+                        Pair<Integer, Integer> indexes = skewedKeys.get(key);
+                        if (indexes == null) {
+                            int partition = Math.abs(key.hashCode() % numPartitions);
+                            return Iterators.singletonIterator(
+                                    new Tuple2<SkewedJoinKey, Tuple>(new SkewedJoinKey(partition, key, -1), t));
+                        }
+                        if (!replicate) {
+                            Integer current = currentIndexes.get(key);
+                            current = (current == null || current >= indexes.first + indexes.second)
+                                    ? indexes.first : current + 1;
+                            currentIndexes.put(key, current);
+                            return Iterators.singletonIterator(new Tuple2<SkewedJoinKey, Tuple>(
+                                    new SkewedJoinKey(current % numPartitions, key, -1), t));
+                        }
+                        List<Tuple2<SkewedJoinKey, Tuple>> copies = Lists.newArrayList();
+                        for (int i = 0; i <= indexes.second; i++) {
+                            int partition = (indexes.first + i) % numPartitions;
+                            copies.add(new Tuple2<SkewedJoinKey, Tuple>(new SkewedJoinKey(partition, key, -1), t));
+                        }
+                        return copies.iterator();
+                    } catch (ExecException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }));
+        }
+    }
+
+    /**
+     * Turns a group into the (key, iterator of (index, key, value)) tuple the PackageConverter expects
+     */
+    private static class ToGroupTupleFunction extends AbstractFunction1<Tuple2<SkewedJoinKey, Seq<Seq<Tuple>>>, Tuple>
+            implements Serializable {
+
+        @Override
+        public Tuple apply(Tuple2<SkewedJoinKey, Seq<Seq<Tuple>>> input) {
+            try {
+                List<java.util.Iterator<Tuple>> bags = Lists.newArrayList();
+                for (Seq<Tuple> bag : JavaConversions.asJavaIterable(input._2())) {
+                    bags.add(JavaConversions.asJavaIterable(bag).iterator());
+                }
+                Tuple out = tf.newTuple(2);
+                out.set(0, input._1().key);
+                out.set(1, Iterators.concat(bags.iterator()));
+                return out;
+            } catch (ExecException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
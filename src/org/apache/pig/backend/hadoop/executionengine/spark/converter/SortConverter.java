@@ -2,34 +2,79 @@ package org.apache.pig.backend.hadoop.executionengine.spark.converter;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Random;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.pig.backend.executionengine.ExecException;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POSort;
+import org.apache.pig.backend.hadoop.executionengine.spark.SparkCounters;
 import org.apache.pig.backend.hadoop.executionengine.spark.SparkUtil;
 import org.apache.pig.data.Tuple;
 
 import scala.Tuple2;
 import scala.collection.Iterator;
 import scala.collection.JavaConversions;
+import scala.collection.Seq;
 import scala.math.Ordered;
 import scala.runtime.AbstractFunction1;
+import spark.CoGroupedRDD;
 import spark.OrderedRDDFunctions;
 import spark.RDD;
 
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+
+/**
+ * Converter for ORDER BY.
+ *
+ * The input is sampled to compute the quantiles of the sort keys, rows are range partitioned
+ * on their serialized key with a {@link QuantilePartitioner} and each partition is then sorted
+ * with the raw comparator MapReduce uses for the same key type.
+ * Sorts with a user defined comparison function compare deserialized tuples instead.
+ */
 @SuppressWarnings("serial")
 public class SortConverter implements POConverter<Tuple, Tuple, POSort> {
     private static final Log LOG = LogFactory.getLog(SortConverter.class);
 
     private static final ToValueFuction TO_VALUE_FUCTION = new ToValueFuction();
 
+    // same as the MapReduce sampler, see MRCompiler.getSamplingJob()
+    private static final int SAMPLES_PER_PARTITION = 100;
+
     @Override
     public RDD<Tuple> convert(List<RDD<Tuple>> predecessors, POSort sortOperator)
             throws IOException {
         SparkUtil.assertPredecessorSize(predecessors, sortOperator, 1);
         RDD<Tuple> rdd = predecessors.get(0);
+        if (sortOperator.isUDFComparatorUsed || sortOperator.getMSortFunc() != null) {
+            return sortWithComparator(rdd, sortOperator);
+        }
+
+        int parallelism = SparkUtil.getParallelism(predecessors, sortOperator);
+        SortKeyExtractor extractor = new SortKeyExtractor(sortOperator);
+
+        Tuple[] samples = (Tuple[]) SparkCounters.uncounted(rdd).mapPartitions(new SampleFunction(extractor),
+                SparkUtil.getManifest(Tuple.class)).collect();
+        LOG.info("Computing quantiles for " + parallelism + " partitions from " + samples.length + " samples");
+        QuantilePartitioner partitioner = new QuantilePartitioner(Arrays.asList(samples), parallelism, extractor);
+
+        List<RDD<Tuple2<SerializedKey, Tuple>>> rddPairs = Lists.newArrayList();
+        rddPairs.add(rdd.map(new ToSortKeyValueFunction(extractor),
+                SparkUtil.<SerializedKey, Tuple>getTuple2Manifest()));
+        CoGroupedRDD<Object> partitioned = new CoGroupedRDD<Object>(
+                (Seq<RDD<Tuple2<?, ?>>>)(Object)JavaConversions.asScalaBuffer(rddPairs),
+                partitioner);
+        RDD<Tuple2<SerializedKey, Seq<Seq<Tuple>>>> grouped =
+                (RDD<Tuple2<SerializedKey, Seq<Seq<Tuple>>>>)(Object)partitioned;
+        return grouped.mapPartitions(new SortPartitionFunction(extractor), SparkUtil.getManifest(Tuple.class));
+    }
+
+    private RDD<Tuple> sortWithComparator(RDD<Tuple> rdd, POSort sortOperator) {
         RDD<Tuple2<Tuple, Object>> rddPair =
                 rdd.map(new ToKeyValueFunction(),
                         SparkUtil.<Tuple, Object>getTuple2Manifest());
@@ -43,6 +88,90 @@ public class SortConverter implements POConverter<Tuple, Tuple, POSort> {
         return sorted.mapPartitions(TO_VALUE_FUCTION, SparkUtil.getManifest(Tuple.class));
     }
 
+    /**
+     * Reservoir sample of the sort keys of a partition
+     */
+    private static class SampleFunction extends AbstractFunction1<Iterator<Tuple>, Iterator<Tuple>> implements Serializable {
+        private final SortKeyExtractor extractor;
+
+        public SampleFunction(SortKeyExtractor extractor) {
+            this.extractor = extractor;
+        }
+
+        @Override
+        public Iterator<Tuple> apply(Iterator<Tuple> input) {
+            List<Tuple> samples = Lists.newArrayListWithCapacity(SAMPLES_PER_PARTITION);
+            Random random = new Random();
+            long seen = 0;
+            try {
+                while (input.hasNext()) {
+                    Tuple t = input.next();
+                    if (samples.size() < SAMPLES_PER_PARTITION) {
+                        samples.add(extractor.getKeyTuple(t));
+                    } else {
+                        long index = (long) (random.nextDouble() * (seen + 1));
+                        if (index < SAMPLES_PER_PARTITION) {
+                            samples.set((int) index, extractor.getKeyTuple(t));
+                        }
+                    }
+                    ++seen;
+                }
+            } catch (ExecException e) {
+                throw new RuntimeException(e);
+            }
+            return JavaConversions.asScalaIterator(samples.iterator());
+        }
+    }
+
+    private static class ToSortKeyValueFunction extends AbstractFunction1<Tuple, Tuple2<SerializedKey, Tuple>> implements Serializable {
+        private final SortKeyExtractor extractor;
+
+        public ToSortKeyValueFunction(SortKeyExtractor extractor) {
+            this.extractor = extractor;
+        }
+
+        @Override
+        public Tuple2<SerializedKey, Tuple> apply(Tuple t) {
+            try {
+                return new Tuple2<SerializedKey, Tuple>(extractor.serialize(extractor.getKeyTuple(t)), t);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Sorts the keys of a range partition and outputs the rows of each key in order
+     */
+    private static class SortPartitionFunction
+            extends AbstractFunction1<Iterator<Tuple2<SerializedKey, Seq<Seq<Tuple>>>>, Iterator<Tuple>>
+            implements Serializable {
+        private final SortKeyExtractor extractor;
+
+        public SortPartitionFunction(SortKeyExtractor extractor) {
+            this.extractor = extractor;
+        }
+
+        @Override
+        public Iterator<Tuple> apply(Iterator<Tuple2<SerializedKey, Seq<Seq<Tuple>>>> input) {
+            List<Tuple2<SerializedKey, Seq<Seq<Tuple>>>> groups =
+                    Lists.newArrayList(JavaConversions.asJavaIterator(input));
+            Collections.sort(groups, new Comparator<Tuple2<SerializedKey, Seq<Seq<Tuple>>>>() {
+                @Override
+                public int compare(Tuple2<SerializedKey, Seq<Seq<Tuple>>> o1,
+                        Tuple2<SerializedKey, Seq<Seq<Tuple>>> o2) {
+                    return extractor.compare(o1._1(), o2._1());
+                }
+            });
+            List<java.util.Iterator<Tuple>> values = Lists.newArrayListWithCapacity(groups.size());
+            for (Tuple2<SerializedKey, Seq<Seq<Tuple>>> group : groups) {
+                // there is only one input to the CoGroupedRDD
+                values.add(JavaConversions.asJavaIterable(group._2().apply(0)).iterator());
+            }
+            return JavaConversions.asScalaIterator(Iterators.concat(values.iterator()));
+        }
+    }
+
     private static class SortFunction extends AbstractFunction1<Tuple, Ordered<Tuple>> implements Serializable {
         private final Comparator<Tuple> comparator;
 
@@ -0,0 +1,137 @@
+package org.apache.pig.backend.hadoop.executionengine.spark.converter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.pig.PigException;
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.backend.hadoop.HDataType;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.JobControlCompiler;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.PigTupleSortComparator;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.POStatus;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.Result;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.expressionOperators.ExpressionOperator;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhysicalPlan;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POSort;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.io.NullableTuple;
+import org.apache.pig.impl.io.PigNullableWritable;
+import org.apache.pig.impl.util.ObjectSerializer;
+
+/**
+ * Computes the sort key of a tuple for a POSort and serializes it the way the MapReduce
+ * shuffle does, so that the Pig raw comparators of an order by job can be used to compare
+ * keys without deserializing them.
+ */
+@SuppressWarnings({ "serial", "rawtypes", "unchecked" })
+class SortKeyExtractor implements Comparator<SerializedKey>, Serializable {
+
+    private static final TupleFactory tf = TupleFactory.getInstance();
+
+    private final List<PhysicalPlan> sortPlans;
+    private final byte[] resultTypes;
+    private final boolean[] asc;
+    // type of the shuffle key, see MRCompiler.getSortJob()
+    private final byte keyType;
+    private final Class<? extends RawComparator> comparatorClass;
+
+    private transient RawComparator comparator;
+
+    public SortKeyExtractor(POSort sort) throws IOException {
+        this.sortPlans = sort.getSortPlans();
+        this.resultTypes = new byte[sortPlans.size()];
+        for (int i = 0; i < resultTypes.length; i++) {
+            resultTypes[i] = sortPlans.get(i).getLeaves().get(0).getResultType();
+        }
+        List<Boolean> ascCols = sort.getMAscCols();
+        this.asc = new boolean[ascCols.size()];
+        for (int i = 0; i < asc.length; i++) {
+            asc[i] = ascCols.get(i);
+        }
+
+        Class<? extends RawComparator> cls = null;
+        if (resultTypes.length == 1) {
+            cls = JobControlCompiler.getSortComparatorClass(resultTypes[0]);
+        }
+        if (cls == null) {
+            // several sort columns, or a type with no raw comparator:
+            // compare the tuple of sort columns
+            this.keyType = DataType.TUPLE;
+            this.comparatorClass = PigTupleSortComparator.class;
+        } else {
+            this.keyType = resultTypes[0];
+            this.comparatorClass = cls;
+        }
+    }
+
+    public boolean[] getAsc() {
+        return asc;
+    }
+
+    /**
+     * @return a tuple holding the value of each sort column of t
+     */
+    public Tuple getKeyTuple(Tuple t) throws ExecException {
+        Tuple key = tf.newTuple(sortPlans.size());
+        for (int i = 0; i < sortPlans.size(); i++) {
+            PhysicalPlan plan = sortPlans.get(i);
+            plan.attachInput(t);
+            ExpressionOperator leaf = (ExpressionOperator) plan.getLeaves().get(0);
+            Result res = leaf.getNext(resultTypes[i]);
+            if (res.returnStatus != POStatus.STATUS_OK && res.returnStatus != POStatus.STATUS_NULL) {
+                int errCode = 2081;
+                String msg = "Unable to compute the sort key of " + t + " with plan " + plan;
+                throw new ExecException(msg, errCode, PigException.BUG);
+            }
+            key.set(i, res.result);
+        }
+        return key;
+    }
+
+    /**
+     * @param keyTuple a tuple returned by {@link #getKeyTuple(Tuple)}
+     * @return the key in the serialized form read by the raw comparator
+     */
+    public SerializedKey serialize(Tuple keyTuple) throws IOException {
+        PigNullableWritable writable;
+        if (keyType == DataType.TUPLE && (resultTypes.length > 1 || resultTypes[0] != DataType.TUPLE)) {
+            writable = new NullableTuple(keyTuple);
+        } else {
+            writable = HDataType.getWritableComparableTypes(keyTuple.get(0), keyType);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writable.write(out);
+        out.flush();
+        return new SerializedKey(bytes.toByteArray());
+    }
+
+    @Override
+    public int compare(SerializedKey o1, SerializedKey o2) {
+        byte[] b1 = o1.getBytes();
+        byte[] b2 = o2.getBytes();
+        return getComparator().compare(b1, 0, b1.length, b2, 0, b2.length);
+    }
+
+    private RawComparator getComparator() {
+        if (comparator == null) {
+            JobConf jobConf = new JobConf(false);
+            try {
+                jobConf.set("pig.sortOrder", ObjectSerializer.serialize(asc));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            comparator = ReflectionUtils.newInstance(comparatorClass, jobConf);
+        }
+        return comparator;
+    }
+}
@@ -0,0 +1,416 @@
+package org.apache.pig.backend.hadoop.executionengine.spark.converter;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.pig.PigException;
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.POStatus;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.Result;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.expressionOperators.ExpressionOperator;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhysicalPlan;
+import org.apache.pig.backend.hadoop.executionengine.spark.SparkCounters;
+import org.apache.pig.backend.hadoop.executionengine.spark.SparkUtil;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+
+import scala.collection.Iterator;
+import scala.collection.JavaConversions;
+import scala.collection.Seq;
+import scala.runtime.AbstractFunction2;
+import spark.Dependency;
+import spark.NarrowDependency;
+import spark.RDD;
+import spark.SparkContext;
+import spark.Split;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.PeekingIterator;
+
+/**
+ * Lines up the partitions of inputs sorted on the same key, to merge them without a shuffle.
+ *
+ * A first job reads the first key of every partition, the partitions of each input are then
+ * ordered by their first key. Each partition of the first input is read along with the
+ * partitions of the other inputs that may hold keys of its range, from its first key to the
+ * first key of the next partition, and the tuples of the other inputs out of this range are
+ * skipped. The tuples of the other inputs with a null key are sent to the first partition.
+ *
+ * The last key of a range is part of it when the keys of the first input can span two
+ * partitions, as the splits of a merge join do.
+ */
+@SuppressWarnings({ "serial"})
+abstract class SortedPartitionsRDD extends RDD<Tuple> {
+    private static final Log LOG = LogFactory.getLog(SortedPartitionsRDD.class);
+
+    private static final TupleFactory tf = TupleFactory.getInstance();
+
+    private final List<RDD<Tuple>> inputs;
+    private final List<KeyExtractor> keyExtractors;
+    private final Split[] splits;
+    private final transient scala.collection.immutable.List<Dependency<?>> dependencies;
+
+    protected SortedPartitionsRDD(SparkContext sparkContext, List<RDD<Tuple>> inputs,
+            List<List<PhysicalPlan>> keyPlans, boolean keysSpanPartitions) {
+        super(sparkContext, SparkUtil.getManifest(Tuple.class));
+        this.inputs = Lists.newArrayList(inputs);
+        this.keyExtractors = Lists.newArrayList();
+        for (List<PhysicalPlan> plans : keyPlans) {
+            keyExtractors.add(new KeyExtractor(plans));
+        }
+
+        List<List<PartitionSummary>> summaries = Lists.newArrayList();
+        for (int i = 0; i < inputs.size(); i++) {
+            summaries.add(summarize(inputs.get(i), keyExtractors.get(i)));
+        }
+
+        List<PartitionSummary> base = summaries.get(0);
+        List<MergedSplit> mergedSplits = Lists.newArrayList();
+        int firstKeyed = firstKeyed(base);
+        for (int k = 0; k < base.size(); k++) {
+            PartitionSummary partition = base.get(k);
+            MergedSplit split = new MergedSplit(k, inputs.get(0).splits()[partition.index], inputs.size() - 1);
+            split.hasRange = partition.hasKeys;
+            split.lowerBounded = k > firstKeyed;
+            split.lower = partition.firstKey;
+            split.upperBounded = k < base.size() - 1;
+            split.upper = split.upperBounded ? base.get(k + 1).firstKey : null;
+            split.upperIncluded = keysSpanPartitions;
+            split.includeNulls = k == 0;
+            for (int i = 1; i < inputs.size(); i++) {
+                List<PartitionSummary> side = summaries.get(i);
+                List<Integer> parents = Lists.newArrayList();
+                for (int j = 0; j < side.size(); j++) {
+                    if (split.overlaps(side, j)) {
+                        parents.add(side.get(j).index);
+                    }
+                }
+                split.sideParents[i - 1] = parents;
+            }
+            mergedSplits.add(split);
+        }
+        this.splits = mergedSplits.toArray(new Split[mergedSplits.size()]);
+        LOG.info("Merging " + inputs.size() + " sorted inputs in " + splits.length + " partitions");
+
+        List<Dependency<?>> deps = Lists.newArrayList();
+        for (int i = 0; i < inputs.size(); i++) {
+            deps.add(new MergedDependency(inputs.get(i), mergedSplits, i));
+        }
+        this.dependencies = JavaConversions.asScalaBuffer(deps).toList();
+    }
+
+    /**
+     * Merges the tuples of a partition, along with their keys, sorted on their key.
+     * @param inputs the tuples of each input
+     */
+    protected abstract java.util.Iterator<Tuple> merge(List<PeekingIterator<KeyedTuple>> inputs);
+
+    @Override
+    public Split[] splits() {
+        return splits;
+    }
+
+    @Override
+    public scala.collection.immutable.List<Dependency<?>> dependencies() {
+        return dependencies;
+    }
+
+    @Override
+    public Seq<String> preferredLocations(Split split) {
+        return inputs.get(0).preferredLocations(((MergedSplit) split).baseSplit);
+    }
+
+    @Override
+    public Iterator<Tuple> compute(Split split) {
+        final MergedSplit mergedSplit = (MergedSplit) split;
+        List<PeekingIterator<KeyedTuple>> merged = Lists.newArrayList();
+        merged.add(Iterators.peekingIterator(withKeys(
+                JavaConversions.asJavaIterator(inputs.get(0).iterator(mergedSplit.baseSplit)),
+                keyExtractors.get(0))));
+        for (int i = 1; i < inputs.size(); i++) {
+            final RDD<Tuple> input = inputs.get(i);
+            final Split[] parentSplits = input.splits();
+            java.util.Iterator<Tuple> tuples = Iterators.concat(Iterators.transform(
+                    mergedSplit.sideParents[i - 1].iterator(),
+                    new Function<Integer, java.util.Iterator<Tuple>>() {
+                        @Override
+                        public java.util.Iterator<Tuple> apply(Integer index) {
+                            return JavaConversions.asJavaIterator(input.iterator(parentSplits[index]));
+                        }
+                    }));
+            merged.add(Iterators.peekingIterator(Iterators.filter(
+                    withKeys(tuples, keyExtractors.get(i)),
+                    new Predicate<KeyedTuple>() {
+                        @Override
+                        public boolean apply(KeyedTuple keyedTuple) {
+                            return mergedSplit.contains(keyedTuple.key);
+                        }
+                    })));
+        }
+        return JavaConversions.asScalaIterator(merge(merged));
+    }
+
+    private static java.util.Iterator<KeyedTuple> withKeys(java.util.Iterator<Tuple> tuples,
+            final KeyExtractor keyExtractor) {
+        return Iterators.transform(tuples, new Function<Tuple, KeyedTuple>() {
+            @Override
+            public KeyedTuple apply(Tuple tuple) {
+                try {
+                    return new KeyedTuple(keyExtractor.getKey(tuple), tuple);
+                } catch (ExecException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the first key and the null keys of each non empty partition of the input,
+     * the partitions with only null keys first, the others ordered by their first key
+     */
+    private static List<PartitionSummary> summarize(RDD<Tuple> input, KeyExtractor keyExtractor) {
+        Tuple[] summaries = (Tuple[]) SparkCounters.uncounted(input).mapPartitionsWithSplit(
+                new SummaryFunction(keyExtractor),
+                SparkUtil.getManifest(Tuple.class)).collect();
+        List<PartitionSummary> partitions = Lists.newArrayList();
+        try {
+            for (Tuple summary : summaries) {
+                partitions.add(new PartitionSummary((Integer) summary.get(0), summary.get(1),
+                        (Boolean) summary.get(2), (Boolean) summary.get(3)));
+            }
+        } catch (ExecException e) {
+            throw new RuntimeException(e);
+        }
+        Collections.sort(partitions, new Comparator<PartitionSummary>() {
+            @Override
+            public int compare(PartitionSummary o1, PartitionSummary o2) {
+                if (o1.hasKeys != o2.hasKeys) {
+                    return o1.hasKeys ? 1 : -1;
+                }
+                int c = o1.hasKeys ? DataType.compare(o1.firstKey, o2.firstKey) : 0;
+                return c != 0 ? c : o1.index - o2.index;
+            }
+        });
+        return partitions;
+    }
+
+    private static int firstKeyed(List<PartitionSummary> partitions) {
+        for (int i = 0; i < partitions.size(); i++) {
+            if (partitions.get(i).hasKeys) {
+                return i;
+            }
+        }
+        return partitions.size();
+    }
+
+    /**
+     * A tuple along with its key, null if the key is null.
+     */
+    static class KeyedTuple {
+        final Object key;
+        final Tuple tuple;
+
+        KeyedTuple(Object key, Tuple tuple) {
+            this.key = key;
+            this.tuple = tuple;
+        }
+    }
+
+    /**
+     * Computes the key of a tuple with the plans of a merge join or cogroup input: the value of
+     * the plan, or a tuple of the values of the plans if there are several.
+     */
+    static class KeyExtractor implements Serializable {
+        private final List<PhysicalPlan> plans;
+        private final byte[] resultTypes;
+
+        KeyExtractor(List<PhysicalPlan> plans) {
+            this.plans = plans;
+            this.resultTypes = new byte[plans.size()];
+            for (int i = 0; i < resultTypes.length; i++) {
+                resultTypes[i] = plans.get(i).getLeaves().get(0).getResultType();
+            }
+        }
+
+        Object getKey(Tuple t) throws ExecException {
+            if (plans.size() == 1) {
+                return getKey(t, 0);
+            }
+            Tuple key = tf.newTuple(plans.size());
+            for (int i = 0; i < plans.size(); i++) {
+                key.set(i, getKey(t, i));
+            }
+            return key;
+        }
+
+        private Object getKey(Tuple t, int i) throws ExecException {
+            PhysicalPlan plan = plans.get(i);
+            plan.attachInput(t);
+            ExpressionOperator leaf = (ExpressionOperator) plan.getLeaves().get(0);
+            Result res = leaf.getNext(resultTypes[i]);
+            if (res.returnStatus != POStatus.STATUS_OK && res.returnStatus != POStatus.STATUS_NULL) {
+                int errCode = 2081;
+                String msg = "Unable to compute the key of " + t + " with plan " + plan;
+                throw new ExecException(msg, errCode, PigException.BUG);
+            }
+            return res.result;
+        }
+    }
+
+    private static class PartitionSummary {
+        private final int index;
+        private final Object firstKey;
+        private final boolean hasNulls;
+        private final boolean hasKeys;
+
+        public PartitionSummary(int index, Object firstKey, boolean hasNulls, boolean hasKeys) {
+            this.index = index;
+            this.firstKey = firstKey;
+            this.hasNulls = hasNulls;
+            this.hasKeys = hasKeys;
+        }
+    }
+
+    /**
+     * Reads the tuples of a partition up to its first non null key.
+     * @return a (partition index, first key, has null keys, has non null keys) tuple, none
+     * if the partition is empty
+     */
+    private static class SummaryFunction extends AbstractFunction2<Object, Iterator<Tuple>, Iterator<Tuple>>
+            implements Serializable {
+
+        private final KeyExtractor keyExtractor;
+
+        private SummaryFunction(KeyExtractor keyExtractor) {
+            this.keyExtractor = keyExtractor;
+        }
+
+        @Override
+        public Iterator<Tuple> apply(Object index, Iterator<Tuple> input) {
+            if (!input.hasNext()) {
+                return JavaConversions.asScalaIterator(Collections.<Tuple>emptyList().iterator());
+            }
+            try {
+                Tuple summary = tf.newTuple(4);
+                summary.set(0, index);
+                summary.set(2, false);
+                summary.set(3, false);
+                while (input.hasNext()) {
+                    Object key = keyExtractor.getKey(input.next());
+                    if (key == null) {
+                        summary.set(2, true);
+                    } else {
+                        summary.set(1, key);
+                        summary.set(3, true);
+                        break;
+                    }
+                }
+                return JavaConversions.asScalaIterator(Collections.singletonList(summary).iterator());
+            } catch (ExecException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * A partition of the first input, with the partitions of the other inputs to read and the
+     * range of keys to keep from them.
+     */
+    private static class MergedSplit implements Split {
+        private final int index;
+        private final Split baseSplit;
+        private final List<Integer>[] sideParents;
+
+        private boolean hasRange;
+        private boolean lowerBounded;
+        private Object lower;
+        private boolean upperBounded;
+        private Object upper;
+        private boolean upperIncluded;
+        private boolean includeNulls;
+
+        @SuppressWarnings("unchecked")
+        public MergedSplit(int index, Split baseSplit, int sides) {
+            this.index = index;
+            this.baseSplit = baseSplit;
+            this.sideParents = new List[sides];
+        }
+
+        @Override
+        public int index() {
+            return index;
+        }
+
+        @Override
+        public int hashCode() {
+            return 41 * (41 + index);
+        }
+
+        private boolean contains(Object key) {
+            if (key == null) {
+                return includeNulls;
+            }
+            if (!hasRange || (lowerBounded && DataType.compare(key, lower) < 0)) {
+                return false;
+            }
+            if (!upperBounded) {
+                return true;
+            }
+            int c = DataType.compare(key, upper);
+            return c < 0 || (c == 0 && upperIncluded);
+        }
+
+        /**
+         * @return whether the j-th partition of the ordered partitions of another input may
+         * hold keys of this split
+         */
+        private boolean overlaps(List<PartitionSummary> side, int j) {
+            PartitionSummary partition = side.get(j);
+            if (partition.hasNulls && includeNulls) {
+                return true;
+            }
+            if (!partition.hasKeys || !hasRange) {
+                return false;
+            }
+            // the keys of the partition go from its first key to the first key of the next one
+            if (upperBounded) {
+                int c = DataType.compare(partition.firstKey, upper);
+                if (c > 0 || (c == 0 && !upperIncluded)) {
+                    return false;
+                }
+            }
+            return !lowerBounded || j == side.size() - 1
+                    || DataType.compare(side.get(j + 1).firstKey, lower) >= 0;
+        }
+    }
+
+    /**
+     * The dependency of the merged partitions on the partitions of one of the inputs.
+     */
+    private static class MergedDependency extends NarrowDependency<Tuple> {
+        private final List<List<Integer>> parents = Lists.newArrayList();
+
+        public MergedDependency(RDD<Tuple> rdd, List<MergedSplit> splits, int input) {
+            super(rdd);
+            for (MergedSplit split : splits) {
+                parents.add(input == 0 ? Arrays.asList(split.baseSplit.index())
+                        : split.sideParents[input - 1]);
+            }
+        }
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        @Override
+        public Seq<Object> getParents(int outputPartition) {
+            return (Seq<Object>) (Seq) JavaConversions.asScalaBuffer(parents.get(outputPartition));
+        }
+    }
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.JobConf;
@@ -42,20 +43,49 @@ public class StoreConverter implements POConverter<Tuple, Tuple2<Text, Tuple>, P
 
     @Override
     public RDD<Tuple2<Text, Tuple>> convert(List<RDD<Tuple>> predecessors, POStore physicalOperator) throws IOException {
+        return prepare(predecessors, physicalOperator).call();
+    }
+
+    /**
+     * Configures the storer of the POStore and returns the job saving the content of its
+     * predecessor, without running it. The job can then be run by another thread than the one
+     * which configured it, concurrently with the jobs of other stores.
+     */
+    public StoreJob prepare(List<RDD<Tuple>> predecessors, POStore physicalOperator) throws IOException {
         SparkUtil.assertPredecessorSize(predecessors, physicalOperator, 1);
         RDD<Tuple> rdd = predecessors.get(0);
         // convert back to KV pairs
         RDD<Tuple2<Text, Tuple>> rddPairs = rdd.map(FROM_TUPLE_FUNCTION, SparkUtil.<Text, Tuple>getTuple2Manifest());
-        PairRDDFunctions<Text, Tuple> pairRDDFunctions = new PairRDDFunctions<Text, Tuple>(rddPairs,
-                SparkUtil.getManifest(Text.class), SparkUtil.getManifest(Tuple.class));
 
         JobConf storeJobConf = SparkUtil.newJobConf(pigContext);
         POStore poStore = configureStorer(storeJobConf, physicalOperator);
 
-        pairRDDFunctions.saveAsNewAPIHadoopFile(poStore.getSFile().getFileName(),
-                    Text.class, Tuple.class, PigOutputFormat.class, storeJobConf);
+        return new StoreJob(rddPairs, poStore.getSFile().getFileName(), storeJobConf);
+    }
+
+    /**
+     * Saves an RDD with the storer configured in its JobConf.
+     */
+    public static class StoreJob implements Callable<RDD<Tuple2<Text, Tuple>>> {
 
-        return rddPairs;
+        private final RDD<Tuple2<Text, Tuple>> rddPairs;
+        private final String location;
+        private final JobConf storeJobConf;
+
+        private StoreJob(RDD<Tuple2<Text, Tuple>> rddPairs, String location, JobConf storeJobConf) {
+            this.rddPairs = rddPairs;
+            this.location = location;
+            this.storeJobConf = storeJobConf;
+        }
+
+        @Override
+        public RDD<Tuple2<Text, Tuple>> call() {
+            PairRDDFunctions<Text, Tuple> pairRDDFunctions = new PairRDDFunctions<Text, Tuple>(rddPairs,
+                    SparkUtil.getManifest(Text.class), SparkUtil.getManifest(Tuple.class));
+            pairRDDFunctions.saveAsNewAPIHadoopFile(location,
+                    Text.class, Tuple.class, PigOutputFormat.class, storeJobConf);
+            return rddPairs;
+        }
     }
 
     private static POStore configureStorer(JobConf jobConf,
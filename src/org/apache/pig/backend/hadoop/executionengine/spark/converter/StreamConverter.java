@@ -0,0 +1,96 @@
+package org.apache.pig.backend.hadoop.executionengine.spark.converter;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.backend.hadoop.datastorage.ConfigurationUtil;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.JobControlCompiler;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.PigMapReduce;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.Result;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhysicalPlan;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POStream;
+import org.apache.pig.backend.hadoop.executionengine.spark.SparkUtil;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.impl.PigContext;
+import org.apache.pig.impl.io.FileLocalizer;
+
+import scala.collection.Iterator;
+import scala.collection.JavaConversions;
+import scala.runtime.AbstractFunction2;
+import spark.RDD;
+
+/**
+ * Converter for STREAM. Each partition is streamed through its own process, with the
+ * configuration the HadoopExecutableManager expects from a map task.
+ */
+@SuppressWarnings({ "serial"})
+public class StreamConverter implements POConverter<Tuple, Tuple, POStream> {
+
+    private final PigContext pigContext;
+
+    public StreamConverter(PigContext pigContext) {
+        this.pigContext = pigContext;
+    }
+
+    @Override
+    public RDD<Tuple> convert(List<RDD<Tuple>> predecessors, POStream physicalOperator) throws IOException {
+        SparkUtil.assertPredecessorSize(predecessors, physicalOperator, 1);
+        RDD<Tuple> rdd = predecessors.get(0);
+
+        // the secondary outputs and the logs of the command, see JobControlCompiler.getJob()
+        Properties properties = new Properties();
+        properties.putAll(pigContext.getProperties());
+        Path outputDir = FileLocalizer.getTemporaryPath(pigContext);
+        properties.setProperty("pig.streaming.task.output.dir", outputDir.toString());
+        properties.setProperty("pig.streaming.log.dir", new Path(outputDir, JobControlCompiler.LOG_DIR).toString());
+
+        return rdd.mapPartitionsWithSplit(new StreamFunction(physicalOperator, properties),
+                SparkUtil.getManifest(Tuple.class));
+    }
+
+    private static class StreamFunction extends AbstractFunction2<Object, Iterator<Tuple>, Iterator<Tuple>>
+            implements Serializable {
+
+        private final POStream poStream;
+        private final Properties properties;
+
+        private StreamFunction(POStream poStream, Properties properties) {
+            this.poStream = poStream;
+            this.properties = properties;
+        }
+
+        @Override
+        public Iterator<Tuple> apply(Object partition, Iterator<Tuple> i) {
+            Configuration conf = ConfigurationUtil.toConfiguration(properties);
+            conf.set("mapred.task.id", String.format("attempt_spark_0001_m_%06d_0", partition));
+            conf.setInt("mapred.task.partition", (Integer) partition);
+            PigMapReduce.sJobConfInternal.set(conf);
+
+            // the output still in the process is read once the parent plan is marked as done
+            final PhysicalPlan parentPlan = new PhysicalPlan();
+            poStream.setParentPlan(parentPlan);
+            poStream.setInputs(null);
+
+            final java.util.Iterator<Tuple> input = JavaConversions.asJavaIterator(i);
+            return JavaConversions.asScalaIterator(new POOutputConsumerIterator(input) {
+                protected void attach(Tuple tuple) {
+                    poStream.attachInput(tuple);
+                }
+
+                protected Result getNextResult() throws ExecException {
+                    return poStream.getNextTupleProfiled();
+                }
+
+                protected boolean endOfInput() {
+                    parentPlan.endOfAllInput = true;
+                    return true;
+                }
+            });
+        }
+    }
+}
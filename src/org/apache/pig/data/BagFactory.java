@@ -116,6 +116,15 @@ public abstract class BagFactory {
      */
     public abstract DataBag newDistinctBag();
 
+    /**
+     * Get an unordered, not distinct, data bag keeping its tuples serialized outside of
+     * the heap, see {@link SerializedDataBag}. Tuples must not be added while iterating.
+     * @return serialized data bag
+     */
+    public DataBag newSerializedBag() {
+        return new SerializedDataBag();
+    }
+
     /**
      * Construct a new BagFactory
      */
@@ -36,6 +36,7 @@ import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.PigHadoopLog
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.PhysicalOperator;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.PigLogger;
 import org.apache.pig.impl.util.BagFormat;
+import org.apache.pig.impl.util.MemoryBroker;
 import org.apache.pig.impl.util.SpillableMemoryManager;
 import org.apache.pig.tools.pigstats.PigStatusReporter;
 
@@ -97,9 +98,14 @@ public abstract class DefaultAbstractBag implements DataBag {
      * should call this method after every time they add an element.
      */
     protected void markSpillableIfNecessary() {
-        if (!spillableRegistered && getMemorySize() >= SPILL_REGISTER_THRESHOLD) {
-            SpillableMemoryManager.getInstance().registerSpillable(this);
-            spillableRegistered = true;
+        if (!spillableRegistered) {
+            if (getMemorySize() >= SPILL_REGISTER_THRESHOLD) {
+                SpillableMemoryManager.getInstance().registerSpillable(this);
+                spillableRegistered = true;
+            }
+        } else if (MemoryBroker.isEnabled() && (mSize & 0x3ff) == 0) {
+            // report the growth every 1024 tuples
+            MemoryBroker.getInstance().update(this, getMemorySize());
         }
     }
 
@@ -228,6 +234,9 @@ public abstract class DefaultAbstractBag implements DataBag {
             }
             mSize = 0;
         }
+        if (spillableRegistered && MemoryBroker.isEnabled()) {
+            MemoryBroker.getInstance().update(this, getMemorySize());
+        }
     }
 
     /**
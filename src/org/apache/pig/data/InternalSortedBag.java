@@ -17,21 +17,17 @@
  */
 package org.apache.pig.data;
 
-import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.ListIterator;
-import java.util.PriorityQueue;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -63,12 +59,8 @@ public class InternalSortedBag extends SortedSpillBag{
     private transient Comparator<Tuple> mComp;
     private transient boolean mReadStarted = false;
 
-    static private class DefaultComparator implements Comparator<Tuple> {
-        @Override
-        @SuppressWarnings("unchecked")
-		public int compare(Tuple t1, Tuple t2) {
-            return t1.compareTo(t2);
-        }
+    static private class DefaultComparator extends NormalizedKeyComparator.TupleComparator {
+        private static final long serialVersionUID = 1L;
 
         @Override
         public boolean equals(Object o) {
@@ -129,8 +121,9 @@ public class InternalSortedBag extends SortedSpillBag{
 	        }
 	                
 	        mSize++;
-	        markSpillableIfNecessary();
     	}
+    	// outside of the lock, the spills of the other bags may be waiting for it
+    	markSpillableIfNecessary();
     }
     
     @Override
@@ -155,32 +148,12 @@ public class InternalSortedBag extends SortedSpillBag{
     private class SortedDataBagIterator implements Iterator<Tuple> {
 
         /**
-         * A container to hold tuples in a priority queue.  Stores the
-         * file number the tuple came from, so that when the tuple is read
-         * out of the queue, we know which file to read its replacement
-         * tuple from.
+         * The tuples of the bag in memory, sorted, as a run of the merge.
          */
-        private class PQContainer implements Comparable<PQContainer> {
-            public Tuple tuple;
-            public int fileNum;
-
-            @Override
-            public int compareTo(PQContainer other) {
-                return mComp.compare(tuple, other.tuple);
-            }
-            
-            @Override
-            public boolean equals(Object obj) {
-            	if (obj instanceof PQContainer) {
-            		return compareTo((PQContainer)obj) == 0;
-            	}
-            	
-            	return false;
-            }
-            
+        private class MemoryRun implements TupleSorter.Run {
             @Override
-            public int hashCode() {
-            	return tuple.hashCode();
+            public Tuple next() {
+                return readFromMemory();
             }
         }
 
@@ -189,8 +162,7 @@ public class InternalSortedBag extends SortedSpillBag{
         // than to read it.
         private Tuple mBuf = null;
         private int mMemoryPtr = 0;
-        private PriorityQueue<PQContainer> mMergeQ = null;
-        private ArrayList<DataInputStream> mStreams = null;
+        private TupleSorter.Merger mMerger = null;
         private int mCntr = 0;
 
         SortedDataBagIterator() {
@@ -198,7 +170,7 @@ public class InternalSortedBag extends SortedSpillBag{
         	synchronized(mContents) {
 	        	if (!mReadStarted) {
 	                preMerge();
-	                Collections.sort((ArrayList<Tuple>)mContents, mComp);
+	                TupleSorter.sort((ArrayList<Tuple>)mContents, mComp);
 	                mReadStarted = true;
 	            }            
         	}
@@ -230,7 +202,7 @@ public class InternalSortedBag extends SortedSpillBag{
 
             // We have spill files, so we need to read the next tuple from
             // one of those files or from memory.
-            return readFromPriorityQ();
+            return readFromMerger();
         }
 
         /**
@@ -239,96 +211,21 @@ public class InternalSortedBag extends SortedSpillBag{
         @Override
         public void remove() {}
 
-        private Tuple readFromPriorityQ() {
-            if (mMergeQ == null) {
-                // First read, we need to set up the queue and the array of
-                // file streams
+        private Tuple readFromMerger() {
+            if (mMerger == null) {
+                // First read, we need to set up the merge of the files
                 // Add one to the size for the list in memory.
-                mMergeQ =
-                    new PriorityQueue<PQContainer>(mSpillFiles.size() + 1);
-
-                // Add one to the size in case we spill later.
-                mStreams =
-                    new ArrayList<DataInputStream>(mSpillFiles.size() + 1);
-
-                Iterator<File> i = mSpillFiles.iterator();
-                while (i.hasNext()) {
-                    try {
-                        DataInputStream in = 
-                            new DataInputStream(new BufferedInputStream(
-                                new FileInputStream(i.next())));
-                        mStreams.add(in);
-                        // Add the first tuple from this file into the
-                        // merge queue.
-                        addToQueue(null, mStreams.size() - 1);
-                    } catch (FileNotFoundException fnfe) {
-                        // We can't find our own spill file?  That should
-                        // never happen.
-                        String msg = "Unable to find our spill file."; 
-                        log.fatal(msg, fnfe);
-                        throw new RuntimeException(msg, fnfe);
-                    }
+                List<TupleSorter.Run> runs =
+                    new ArrayList<TupleSorter.Run>(mSpillFiles.size() + 1);
+                for (File f : mSpillFiles) {
+                    runs.add(new FileRun(f));
                 }
-
-                // Prime one from memory too
                 if (mContents.size() > 0) {
-                    addToQueue(null, -1);
-                }
-            }
-
-            // Pop the top one off the queue
-            PQContainer c = mMergeQ.poll();
-            if (c == null) return null;
-
-            // Add the next tuple from whereever we read from into the
-            // queue.  Buffer the tuple we're returning, as we'll be
-            // reusing c.
-            Tuple t = c.tuple;
-            addToQueue(c, c.fileNum);
-
-            return t;
-        }
-
-        private void addToQueue(PQContainer c, int fileNum) {
-            if (c == null) {
-                c = new PQContainer();
-            }
-            c.fileNum = fileNum;
-
-            if (fileNum == -1) {
-                // Need to read from memory.  
-                 c.tuple = readFromMemory();
-                if (c.tuple != null) {
-                    mMergeQ.add(c);
-                }
-                return;
-            }
-
-            // Read the next tuple from the indicated file
-            DataInputStream in = mStreams.get(fileNum);
-            if (in != null) {
-                // There's still data in this file
-                c.tuple = gTupleFactory.newTuple();
-                try {
-                    c.tuple.readFields(in);
-                    mMergeQ.add(c);
-                } catch (EOFException eof) {
-                    // Out of tuples in this file.  Set our slot in the
-                    // array to null so we don't keep trying to read from
-                    // this file.
-                    try {
-                        in.close();
-                    }catch(IOException e) {
-                        log.warn("Failed to close spill file.", e);
-                    }
-                    mStreams.set(fileNum, null);
-                } catch (IOException ioe) {
-                    String msg = "Unable to find our spill file.";
-                    log.fatal(msg, ioe);
-                    throw new RuntimeException(msg, ioe);
+                    runs.add(new MemoryRun());
                 }
-
+                mMerger = new TupleSorter.Merger(runs, mComp);
             }
+            return mMerger.next();
         }
 
         // Function assumes that the reader lock is already held before we enter
@@ -368,72 +265,89 @@ public class InternalSortedBag extends SortedSpillBag{
             // size merges.  Convert mSpillFiles to a linked list since
             // we'll be removing pieces from the middle and we want to do
             // it efficiently.
-            try {
-                LinkedList<File> ll = new LinkedList<File>(mSpillFiles);
-                LinkedList<File> filesToDelete = new LinkedList<File>();
-                while (ll.size() > MAX_SPILL_FILES) {
-                    ListIterator<File> i = ll.listIterator();
-                    mStreams =
-                        new ArrayList<DataInputStream>(MAX_SPILL_FILES);
-                    mMergeQ = new PriorityQueue<PQContainer>(MAX_SPILL_FILES);
-
-                    for (int j = 0; j < MAX_SPILL_FILES; j++) {
-                        try {
-                            File f = i.next();
-                            DataInputStream in =
-                                new DataInputStream(new BufferedInputStream(
-                                    new FileInputStream(f)));
-                            mStreams.add(in);
-                            addToQueue(null, mStreams.size() - 1);
-                            i.remove();
-                            filesToDelete.add(f);
-                            
-                        } catch (FileNotFoundException fnfe) {
-                            // We can't find our own spill file?  That should
-                            // neer happen.
-                            String msg = "Unable to find our spill file.";
-                            log.fatal(msg, fnfe);
-                            throw new RuntimeException(msg, fnfe);
-                        }
-                    }
+            LinkedList<File> ll = new LinkedList<File>(mSpillFiles);
+            LinkedList<File> filesToDelete = new LinkedList<File>();
+            while (ll.size() > MAX_SPILL_FILES) {
+                ListIterator<File> i = ll.listIterator();
+                List<TupleSorter.Run> runs =
+                    new ArrayList<TupleSorter.Run>(MAX_SPILL_FILES);
+
+                for (int j = 0; j < MAX_SPILL_FILES; j++) {
+                    File f = i.next();
+                    runs.add(new FileRun(f));
+                    i.remove();
+                    filesToDelete.add(f);
+                }
+                TupleSorter.Merger merger = new TupleSorter.Merger(runs, mComp);
 
-                    // Get a new spill file.  This adds one to the end of
-                    // the spill files list.  So I need to append it to my
-                    // linked list as well so that it's still there when I
-                    // move my linked list back to the spill files.
-                    try {
-                        DataOutputStream out = getSpillFile();
-                        ll.add(mSpillFiles.get(mSpillFiles.size() - 1));
-                        Tuple t;
-                        while ((t = readFromPriorityQ()) != null) {
-                            t.write(out);
-                        }
-                        out.flush();
-                        out.close();
-                    } catch (IOException ioe) {
-                        String msg = "Unable to find our spill file.";
-                        log.fatal(msg, ioe);
-                        throw new RuntimeException(msg, ioe);
+                // Get a new spill file.  This adds one to the end of
+                // the spill files list.  So I need to append it to my
+                // linked list as well so that it's still there when I
+                // move my linked list back to the spill files.
+                try {
+                    DataOutputStream out = getSpillFile();
+                    ll.add(mSpillFiles.get(mSpillFiles.size() - 1));
+                    Tuple t;
+                    while ((t = merger.next()) != null) {
+                        t.write(out);
                     }
+                    out.flush();
+                    out.close();
+                } catch (IOException ioe) {
+                    String msg = "Unable to find our spill file.";
+                    log.fatal(msg, ioe);
+                    throw new RuntimeException(msg, ioe);
                 }
-                // delete files that have been merged into new files
-                for(File f : filesToDelete){
-                    if( f.delete() == false){
-                        log.warn("Failed to delete spill file: " + f.getPath());
-                    }
+            }
+            // delete files that have been merged into new files
+            for(File f : filesToDelete){
+                if( f.delete() == false){
+                    log.warn("Failed to delete spill file: " + f.getPath());
                 }
-                
-                // clear the list, so that finalize does not delete any files,
-                // when mSpillFiles is assigned a new value
-                mSpillFiles.clear();
-
-                // Now, move our new list back to the spill files array.
-                mSpillFiles = new FileList(ll);
-            } finally {
-                // Reset mStreams and mMerge so that they'll be allocated
-                // properly for regular merging.
-                mStreams = null;
-                mMergeQ = null;
+            }
+            
+            // clear the list, so that finalize does not delete any files,
+            // when mSpillFiles is assigned a new value
+            mSpillFiles.clear();
+
+            // Now, move our new list back to the spill files array.
+            mSpillFiles = new FileList(ll);
+        }
+    }
+
+    /**
+     * The tuples of a spill file as a run of the merge.
+     */
+    private static class FileRun implements TupleSorter.Run {
+        private DataInputStream in;
+
+        FileRun(File f) {
+            in = TupleSorter.openRun(f);
+        }
+
+        @Override
+        public Tuple next() {
+            if (in == null) {
+                return null;
+            }
+            // Read the next tuple from the file
+            Tuple t = gTupleFactory.newTuple();
+            try {
+                t.readFields(in);
+                return t;
+            } catch (EOFException eof) {
+                // Out of tuples in this file.
+                try {
+                    in.close();
+                }catch(IOException e) {
+                    log.warn("Failed to close spill file.", e);
+                }
+                in = null;
+                return null;
+            } catch (IOException ioe) {
+                String msg = "Unable to find our spill file.";
+                log.fatal(msg, ioe);
+                throw new RuntimeException(msg, ioe);
             }
         }
     }
@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pig.data;
+
+import java.io.Serializable;
+import java.util.Comparator;
+
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.classification.InterfaceAudience;
+import org.apache.pig.classification.InterfaceStability;
+import org.joda.time.DateTime;
+
+/**
+ * A comparator of tuples by a key that can be computed once per tuple, and whose start can
+ * be normalized into a prefix of 64 bits. The {@link TupleSorter} sorts tuples by comparing
+ * their prefixes as unsigned longs, and only compares their keys when the prefixes are
+ * equal. Computing the keys is left to one thread, comparing them must be thread-safe.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public abstract class NormalizedKeyComparator implements Comparator<Tuple>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @return the key the tuple is sorted by
+     */
+    public abstract Object getKey(Tuple t);
+
+    /**
+     * Compares two keys returned by {@link #getKey(Tuple)}, from any thread.
+     */
+    public abstract int compareKeys(Object key1, Object key2);
+
+    /**
+     * @return whether {@link #getPrefix(Object)} is valid for the key. If it isn't for one
+     * of the keys sorted together, none of the prefixes are used.
+     */
+    public boolean hasPrefix(Object key) {
+        return true;
+    }
+
+    /**
+     * @return a prefix of the key such that if the prefix of key1 is lower than the one of
+     * key2, compared as unsigned longs, key1 is lower than key2. Keys with equal prefixes
+     * are compared with {@link #compareKeys(Object, Object)}.
+     */
+    public abstract long getPrefix(Object key);
+
+    @Override
+    public int compare(Tuple t1, Tuple t2) {
+        return compareKeys(getKey(t1), getKey(t2));
+    }
+
+    /**
+     * Normalizes a value into a prefix consistent with {@link DataType#compare(Object, Object)}:
+     * the type of the value in the highest byte, then the highest bits of an encoding of the
+     * value in which the unsigned order of the bits is the order of the values.
+     * @param value the value
+     * @param ascending false to reverse the order
+     * @return the prefix
+     */
+    public static long getPrefix(Object value, boolean ascending) {
+        byte type = DataType.findType(value);
+        long bits = 0;
+        switch (type) {
+        case DataType.BOOLEAN:
+            bits = ((Boolean) value) ? Long.MIN_VALUE : 0;
+            break;
+        case DataType.BYTE:
+            bits = ((((Byte) value) ^ 0x80) & 0xffL) << 56;
+            break;
+        case DataType.INTEGER:
+            bits = ((((Integer) value) ^ Integer.MIN_VALUE) & 0xffffffffL) << 32;
+            break;
+        case DataType.LONG:
+            bits = ((Long) value) ^ Long.MIN_VALUE;
+            break;
+        case DataType.FLOAT: {
+            int f = Float.floatToIntBits((Float) value);
+            f ^= (f >> 31) | Integer.MIN_VALUE;
+            bits = (f & 0xffffffffL) << 32;
+            break;
+        }
+        case DataType.DOUBLE: {
+            long d = Double.doubleToLongBits((Double) value);
+            bits = d ^ ((d >> 63) | Long.MIN_VALUE);
+            break;
+        }
+        case DataType.DATETIME:
+            bits = ((DateTime) value).getMillis() ^ Long.MIN_VALUE;
+            break;
+        case DataType.CHARARRAY: {
+            String s = (String) value;
+            int length = Math.min(4, s.length());
+            for (int i = 0; i < length; i++) {
+                bits |= ((long) s.charAt(i)) << (48 - 16 * i);
+            }
+            break;
+        }
+        case DataType.BYTEARRAY: {
+            byte[] b = ((DataByteArray) value).get();
+            int length = Math.min(8, b.length);
+            for (int i = 0; i < length; i++) {
+                bits |= (b[i] & 0xffL) << (56 - 8 * i);
+            }
+            break;
+        }
+        default:
+            // only the type is normalized
+        }
+        long prefix = ((type & 0xffL) << 56) | (bits >>> 8);
+        return ascending ? prefix : ~prefix;
+    }
+
+    /**
+     * Compares tuples with {@link Tuple#compareTo(Object)}, the default order of the sorted bags.
+     */
+    static class TupleComparator extends NormalizedKeyComparator {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Object getKey(Tuple t) {
+            return t;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public int compareKeys(Object key1, Object key2) {
+            return ((Tuple) key1).compareTo(key2);
+        }
+
+        /**
+         * Only the tuples known to compare their sizes, then their fields with
+         * {@link DataType#compare(Object, Object)}, have a prefix.
+         */
+        @Override
+        public boolean hasPrefix(Object key) {
+            return key != null && (key.getClass() == BinSedesTuple.class || key.getClass() == DefaultTuple.class);
+        }
+
+        @Override
+        public long getPrefix(Object key) {
+            Tuple t = (Tuple) key;
+            long prefix = ((long) Math.min(t.size(), 0xff)) << 56;
+            if (t.size() > 0) {
+                try {
+                    prefix |= getPrefix(t.get(0), true) >>> 8;
+                } catch (ExecException e) {
+                    throw new RuntimeException("Unable to compare tuples", e);
+                }
+            }
+            return prefix;
+        }
+    }
+}
@@ -0,0 +1,1371 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pig.data;
+
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_PRIVATE;
+import static org.objectweb.asm.Opcodes.ACC_PROTECTED;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_STATIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ACONST_NULL;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ARETURN;
+import static org.objectweb.asm.Opcodes.ARRAYLENGTH;
+import static org.objectweb.asm.Opcodes.ASTORE;
+import static org.objectweb.asm.Opcodes.ATHROW;
+import static org.objectweb.asm.Opcodes.BALOAD;
+import static org.objectweb.asm.Opcodes.BASTORE;
+import static org.objectweb.asm.Opcodes.BIPUSH;
+import static org.objectweb.asm.Opcodes.CHECKCAST;
+import static org.objectweb.asm.Opcodes.DCONST_0;
+import static org.objectweb.asm.Opcodes.DUP;
+import static org.objectweb.asm.Opcodes.FCONST_0;
+import static org.objectweb.asm.Opcodes.GETFIELD;
+import static org.objectweb.asm.Opcodes.GETSTATIC;
+import static org.objectweb.asm.Opcodes.GOTO;
+import static org.objectweb.asm.Opcodes.I2L;
+import static org.objectweb.asm.Opcodes.IADD;
+import static org.objectweb.asm.Opcodes.ICONST_0;
+import static org.objectweb.asm.Opcodes.ICONST_1;
+import static org.objectweb.asm.Opcodes.ICONST_5;
+import static org.objectweb.asm.Opcodes.ICONST_M1;
+import static org.objectweb.asm.Opcodes.IFEQ;
+import static org.objectweb.asm.Opcodes.IFNE;
+import static org.objectweb.asm.Opcodes.IFNONNULL;
+import static org.objectweb.asm.Opcodes.IF_ICMPEQ;
+import static org.objectweb.asm.Opcodes.IF_ICMPGE;
+import static org.objectweb.asm.Opcodes.ILOAD;
+import static org.objectweb.asm.Opcodes.INSTANCEOF;
+import static org.objectweb.asm.Opcodes.INVOKEINTERFACE;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+import static org.objectweb.asm.Opcodes.IRETURN;
+import static org.objectweb.asm.Opcodes.ISTORE;
+import static org.objectweb.asm.Opcodes.LADD;
+import static org.objectweb.asm.Opcodes.LCONST_0;
+import static org.objectweb.asm.Opcodes.LMUL;
+import static org.objectweb.asm.Opcodes.LRETURN;
+import static org.objectweb.asm.Opcodes.NEW;
+import static org.objectweb.asm.Opcodes.NEWARRAY;
+import static org.objectweb.asm.Opcodes.PUTFIELD;
+import static org.objectweb.asm.Opcodes.PUTSTATIC;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.SIPUSH;
+import static org.objectweb.asm.Opcodes.T_BOOLEAN;
+import static org.objectweb.asm.Opcodes.V1_5;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.pig.classification.InterfaceAudience;
+import org.apache.pig.classification.InterfaceStability;
+import org.apache.pig.data.SchemaTupleClassGenerator.GenContext;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+import org.objectweb.asm.ClassAdapter;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodAdapter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.Remapper;
+import org.objectweb.asm.commons.RemappingClassAdapter;
+
+import com.google.common.collect.Lists;
+
+/**
+ * This class writes the bytecode of SchemaTuples directly, in memory, so that no compiler
+ * is needed on the client. The classes generated are the same as the ones compiled from the
+ * code produced by the string generators of {@link SchemaTupleClassGenerator}: each class has
+ * the typed fields, the setPos_/getPos_/checkIfNull_/setNull_/getDummy_ methods for every field,
+ * and implements the generatedCode* methods of {@link SchemaTuple} on top of them. Each class
+ * also comes with a SchemaTuple_id$Generator class, which is its SchemaTupleQuickGenerator.
+ * <p>
+ * The classes target Java 5, so they do not need stack map frames, and are verified by type
+ * inference when they are loaded.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Unstable
+class SchemaTupleBytecodeGenerator {
+    private static final String SCHEMA_TUPLE = "org/apache/pig/data/SchemaTuple";
+    private static final String APPENDABLE_SCHEMA_TUPLE = "org/apache/pig/data/AppendableSchemaTuple";
+    private static final String QUICK_GENERATOR = "org/apache/pig/data/SchemaTuple$SchemaTupleQuickGenerator";
+    private static final String TUPLE = "org/apache/pig/data/Tuple";
+    private static final String SCHEMA = "org/apache/pig/impl/logicalLayer/schema/Schema";
+    private static final String FIELD_SCHEMA = "org/apache/pig/impl/logicalLayer/schema/Schema$FieldSchema";
+    private static final String EXEC_EXCEPTION = "org/apache/pig/backend/executionengine/ExecException";
+    private static final String BYTES_HELPER = "org/apache/pig/data/utils/BytesHelper";
+    private static final String SIZE_UTIL = "org/apache/pig/data/SizeUtil";
+    private static final String STRING_BUILDER = "java/lang/StringBuilder";
+
+    private static final String SCHEMA_TUPLE_DESC = "L" + SCHEMA_TUPLE + ";";
+    private static final String TUPLE_DESC = "L" + TUPLE + ";";
+    private static final String SCHEMA_DESC = "L" + SCHEMA + ";";
+    private static final String OBJECT_DESC = "Ljava/lang/Object;";
+    private static final String STRING_DESC = "Ljava/lang/String;";
+
+    private static final String[] EXEC_EXCEPTIONS = { EXEC_EXCEPTION };
+    private static final String[] IO_EXCEPTIONS = { "java/io/IOException" };
+
+    // the maximum length of a string constant is 65535 bytes of modified UTF-8
+    private static final int MAX_CONSTANT_LENGTH = 16384;
+
+    // the types of the TypeAwareTuple getters and setters, in the order of the generated source
+    private static final byte[] TYPE_AWARE_TYPES = { DataType.INTEGER, DataType.LONG, DataType.FLOAT,
+            DataType.DOUBLE, DataType.BYTEARRAY, DataType.CHARARRAY, DataType.BOOLEAN, DataType.DATETIME,
+            DataType.BIGDECIMAL, DataType.BIGINTEGER, DataType.TUPLE, DataType.BAG, DataType.MAP };
+
+    private final String className;
+    private final String superName;
+    private final String serializedSchema;
+    private final int id;
+    private final GenContext[] contexts;
+    private final List<Field> fields = Lists.newArrayList();
+    private int isNullBytes = 0;
+    private int booleanBytes = 0;
+
+    private ClassWriter cw;
+
+    /**
+     * A field of the Schema, and where its value and null bit are stored.
+     */
+    private static class Field {
+        private final int pos;
+        private final byte type;
+        private final String name;
+        // the descriptor of the field, the class of the nested SchemaTuple for tuples
+        private final String desc;
+        private final String nestedClassName;
+        private int nullByte = -1;
+        private int nullBit;
+        private int booleanByte = -1;
+        private int booleanBit;
+
+        Field(int pos, byte type, String nestedClassName) {
+            this.pos = pos;
+            this.type = type;
+            this.name = "pos_" + pos;
+            this.nestedClassName = nestedClassName;
+            this.desc = nestedClassName == null ? descriptor(type) : "L" + nestedClassName + ";";
+        }
+
+        boolean isPrimitive() {
+            return type == DataType.INTEGER || type == DataType.LONG || type == DataType.FLOAT
+                    || type == DataType.DOUBLE || type == DataType.BOOLEAN;
+        }
+
+        boolean isTuple() {
+            return type == DataType.TUPLE;
+        }
+
+        /**
+         * @return the descriptor of the values of the field in the Tuple API
+         */
+        String apiDesc() {
+            return descriptor(type);
+        }
+    }
+
+    private SchemaTupleBytecodeGenerator(Schema s, String serializedSchema, boolean appendable, int id,
+            List<Integer> nestedIds, GenContext... contexts) {
+        this.className = "SchemaTuple_" + id;
+        this.superName = appendable ? APPENDABLE_SCHEMA_TUPLE : SCHEMA_TUPLE;
+        this.serializedSchema = serializedSchema;
+        this.id = id;
+        this.contexts = contexts;
+
+        int primitives = 0;
+        int booleans = 0;
+        int nested = 0;
+        for (Schema.FieldSchema fs : s.getFields()) {
+            // fails on the types that can't be generated
+            descriptor(fs.type);
+            Field field = new Field(fields.size(), fs.type,
+                    fs.type == DataType.TUPLE ? "SchemaTuple_" + nestedIds.get(nested++) : null);
+            if (field.isPrimitive()) {
+                field.nullByte = primitives / 8;
+                field.nullBit = primitives % 8;
+                primitives++;
+            }
+            if (fs.type == DataType.BOOLEAN) {
+                field.booleanByte = booleans / 8;
+                field.booleanBit = booleans % 8;
+                booleans++;
+            }
+            fields.add(field);
+        }
+        isNullBytes = (primitives + 7) / 8;
+        booleanBytes = (booleans + 7) / 8;
+    }
+
+    /**
+     * Generates the SchemaTuple of the given Schema, and its SchemaTupleQuickGenerator.
+     * @param s the Schema
+     * @param serializedSchema the Schema serialized with ObjectSerializer, which the class keeps
+     * @param appendable whether the SchemaTuple should be appendable
+     * @param id the identifier of the SchemaTuple
+     * @param nestedIds the identifiers of the SchemaTuples already generated for the tuple fields,
+     * in the order of the fields
+     * @param contexts the contexts in which the SchemaTuple is intended to be instantiated
+     * @return the bytecode of the classes, by class name
+     */
+    static Map<String, byte[]> generate(Schema s, String serializedSchema, boolean appendable, int id,
+            List<Integer> nestedIds, GenContext... contexts) {
+        SchemaTupleBytecodeGenerator generator =
+            new SchemaTupleBytecodeGenerator(s, serializedSchema, appendable, id, nestedIds, contexts);
+        Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+        classes.put(generator.className, generator.generateSchemaTuple());
+        classes.put(generator.className + "$Generator", generator.generateQuickGenerator());
+        return classes;
+    }
+
+    /**
+     * Renames the classes generated by {@link #generate} for other identifiers: the classes of
+     * the SchemaTuple and of its tuple fields are renamed, and the SchemaTuple returns its new
+     * identifier.
+     * @param classes the bytecode of the classes, by class name
+     * @param oldId the identifier the classes were generated with
+     * @param oldNestedIds the identifiers of the tuple fields the classes were generated with
+     * @param id the new identifier
+     * @param nestedIds the new identifiers of the tuple fields, in the same order
+     * @return the bytecode of the renamed classes, by class name
+     */
+    static Map<String, byte[]> renumber(Map<String, byte[]> classes, int oldId, List<Integer> oldNestedIds,
+            final int id, List<Integer> nestedIds) {
+        final Map<String, String> names = new HashMap<String, String>();
+        names.put("SchemaTuple_" + oldId, "SchemaTuple_" + id);
+        for (int i = 0; i < oldNestedIds.size(); i++) {
+            names.put("SchemaTuple_" + oldNestedIds.get(i), "SchemaTuple_" + nestedIds.get(i));
+        }
+        Remapper remapper = new Remapper() {
+            @Override
+            public String map(String typeName) {
+                // the SchemaTupleQuickGenerator is named after its SchemaTuple
+                int dollar = typeName.indexOf('$');
+                String outer = dollar < 0 ? typeName : typeName.substring(0, dollar);
+                String renamed = names.get(outer);
+                return renamed == null ? typeName : renamed + typeName.substring(outer.length());
+            }
+        };
+        Map<String, byte[]> renumbered = new LinkedHashMap<String, byte[]>();
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+            ClassVisitor cv = new ClassAdapter(new RemappingClassAdapter(cw, remapper)) {
+                @Override
+                public MethodVisitor visitMethod(int access, String name, String desc, String signature,
+                        String[] exceptions) {
+                    MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+                    if (!"getSchemaTupleIdentifier".equals(name)) {
+                        return mv;
+                    }
+                    // the method only returns the identifier, see addIntConstant()
+                    return new MethodAdapter(mv) {
+                        @Override
+                        public void visitInsn(int opcode) {
+                            if (opcode >= ICONST_M1 && opcode <= ICONST_5) {
+                                push(mv, id);
+                            } else {
+                                super.visitInsn(opcode);
+                            }
+                        }
+
+                        @Override
+                        public void visitIntInsn(int opcode, int operand) {
+                            if (opcode == BIPUSH || opcode == SIPUSH) {
+                                push(mv, id);
+                            } else {
+                                super.visitIntInsn(opcode, operand);
+                            }
+                        }
+
+                        @Override
+                        public void visitLdcInsn(Object cst) {
+                            if (cst instanceof Integer) {
+                                push(mv, id);
+                            } else {
+                                super.visitLdcInsn(cst);
+                            }
+                        }
+                    };
+                }
+            };
+            new ClassReader(entry.getValue()).accept(cv, 0);
+            renumbered.put(remapper.map(entry.getKey()), cw.toByteArray());
+        }
+        return renumbered;
+    }
+
+    private byte[] generateSchemaTuple() {
+        cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_5, ACC_PUBLIC | ACC_SUPER, className, "L" + superName + "<L" + className + ";>;",
+                superName, null);
+        for (GenContext context : contexts) {
+            cw.visitAnnotation(Type.getDescriptor(context.getAnnotation()), true).visitEnd();
+        }
+
+        cw.visitField(ACC_PRIVATE | ACC_STATIC, "schema", SCHEMA_DESC, null, null).visitEnd();
+        for (int i = 0; i < isNullBytes; i++) {
+            cw.visitField(ACC_PRIVATE, "isNull_" + i, "B", null, null).visitEnd();
+        }
+        for (int i = 0; i < booleanBytes; i++) {
+            cw.visitField(ACC_PRIVATE, "booleanByte_" + i, "B", null, null).visitEnd();
+        }
+        for (Field f : fields) {
+            if (f.type != DataType.BOOLEAN) {
+                cw.visitField(ACC_PRIVATE, f.name, f.desc, null, null).visitEnd();
+            }
+        }
+
+        addStaticInitializer();
+        addConstructor();
+        for (Field f : fields) {
+            addSetPos(f);
+            addGetPos(f);
+            addGetDummy(f);
+            addCheckIfNull(f);
+            addSetNull(f);
+        }
+        addGetSchema();
+        addGenericSet();
+        addGenericGet();
+        addGeneralIsNull();
+        addSetSpecific();
+        addNullsArray();
+        addReadFields();
+        addWriteElements();
+        addIntConstant(ACC_PROTECTED, "generatedCodeSize", fields.size());
+        addMemorySize();
+        addIntConstant(ACC_PUBLIC, "getSchemaTupleIdentifier", id);
+        addHashCode();
+        addIntConstant(ACC_PROTECTED, "schemaSize", fields.size());
+        addGetType();
+        addCompareTo();
+        addCompareToSpecific();
+        addSet();
+        addIsSpecificSchemaTuple();
+        for (byte type : TYPE_AWARE_TYPES) {
+            addTypeAwareSet(type);
+        }
+        for (byte type : TYPE_AWARE_TYPES) {
+            addTypeAwareGet(type);
+        }
+        addSetIterator();
+        addGetQuickGenerator();
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private byte[] generateQuickGenerator() {
+        String name = className + "$Generator";
+        ClassWriter gw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        gw.visit(V1_5, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, name,
+                "L" + QUICK_GENERATOR + "<L" + className + ";>;", QUICK_GENERATOR, null);
+
+        MethodVisitor mv = gw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, QUICK_GENERATOR, "<init>", "()V");
+        mv.visitInsn(RETURN);
+        end(mv);
+
+        mv = gw.visitMethod(ACC_PUBLIC, "make", "()" + OBJECT_DESC, null, null);
+        mv.visitCode();
+        newInstance(mv, className);
+        mv.visitInsn(ARETURN);
+        end(mv);
+
+        gw.visitEnd();
+        return gw.toByteArray();
+    }
+
+    private void addStaticInitializer() {
+        MethodVisitor mv = cw.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
+        mv.visitCode();
+        pushString(mv, serializedSchema);
+        mv.visitMethodInsn(INVOKESTATIC, SCHEMA_TUPLE, "staticSchemaGen", "(" + STRING_DESC + ")" + SCHEMA_DESC);
+        mv.visitFieldInsn(PUTSTATIC, className, "schema", SCHEMA_DESC);
+        mv.visitInsn(RETURN);
+        end(mv);
+    }
+
+    private void addConstructor() {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, superName, "<init>", "()V");
+        for (int i = 0; i < isNullBytes; i++) {
+            mv.visitVarInsn(ALOAD, 0);
+            push(mv, (byte) 0xFF);
+            mv.visitFieldInsn(PUTFIELD, className, "isNull_" + i, "B");
+        }
+        mv.visitInsn(RETURN);
+        end(mv);
+    }
+
+    private void addSetPos(Field f) {
+        if (!f.isTuple()) {
+            MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "setPos_" + f.pos, "(" + f.desc + ")V", null, null);
+            mv.visitCode();
+            if (f.isPrimitive()) {
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitInsn(ICONST_0);
+                mv.visitMethodInsn(INVOKEVIRTUAL, className, "setNull_" + f.pos, "(Z)V");
+            }
+            mv.visitVarInsn(ALOAD, 0);
+            if (f.type != DataType.BOOLEAN) {
+                load(mv, f.desc, 1);
+                mv.visitFieldInsn(PUTFIELD, className, f.name, f.desc);
+            } else {
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitFieldInsn(GETFIELD, className, "booleanByte_" + f.booleanByte, "B");
+                mv.visitVarInsn(ILOAD, 1);
+                push(mv, f.booleanBit);
+                mv.visitMethodInsn(INVOKESTATIC, BYTES_HELPER, "setBitByPos", "(BZI)B");
+                mv.visitFieldInsn(PUTFIELD, className, "booleanByte_" + f.booleanByte, "B");
+            }
+            mv.visitInsn(RETURN);
+            end(mv);
+            return;
+        }
+
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "setPos_" + f.pos, "(" + f.desc + ")V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitFieldInsn(PUTFIELD, className, f.name, f.desc);
+        mv.visitInsn(RETURN);
+        end(mv);
+
+        // setPos_(SchemaTuple) and setPos_(Tuple) copy the given tuple into the nested SchemaTuple
+        for (String desc : new String[] { SCHEMA_TUPLE_DESC, TUPLE_DESC }) {
+            mv = cw.visitMethod(ACC_PUBLIC, "setPos_" + f.pos, "(" + desc + ")V", null, null);
+            mv.visitCode();
+            Label set = new Label();
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, className, f.name, f.desc);
+            mv.visitJumpInsn(IFNONNULL, set);
+            mv.visitVarInsn(ALOAD, 0);
+            newInstance(mv, f.nestedClassName);
+            mv.visitFieldInsn(PUTFIELD, className, f.name, f.desc);
+            mv.visitLabel(set);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, className, f.name, f.desc);
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitMethodInsn(INVOKEVIRTUAL, f.nestedClassName, "setAndCatch", "(" + desc + ")V");
+            mv.visitInsn(RETURN);
+            end(mv);
+        }
+    }
+
+    private void addGetPos(Field f) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "getPos_" + f.pos, "()" + f.desc, null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        if (f.type == DataType.BOOLEAN) {
+            mv.visitFieldInsn(GETFIELD, className, "booleanByte_" + f.booleanByte, "B");
+            push(mv, f.booleanBit);
+            mv.visitMethodInsn(INVOKESTATIC, BYTES_HELPER, "getBitByPos", "(BI)Z");
+        } else {
+            mv.visitFieldInsn(GETFIELD, className, f.name, f.desc);
+        }
+        mv.visitInsn(Type.getType(f.desc).getOpcode(IRETURN));
+        end(mv);
+    }
+
+    private void addGetDummy(Field f) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "getDummy_" + f.pos, "()" + f.apiDesc(), null, null);
+        mv.visitCode();
+        switch (f.type) {
+        case DataType.INTEGER: mv.visitInsn(ICONST_0); break;
+        case DataType.LONG: mv.visitInsn(LCONST_0); break;
+        case DataType.FLOAT: mv.visitInsn(FCONST_0); break;
+        case DataType.DOUBLE: mv.visitInsn(DCONST_0); break;
+        case DataType.BOOLEAN: mv.visitInsn(ICONST_1); break;
+        case DataType.DATETIME: newInstance(mv, "org/joda/time/DateTime"); break;
+        default: mv.visitInsn(ACONST_NULL);
+        }
+        mv.visitInsn(Type.getType(f.apiDesc()).getOpcode(IRETURN));
+        end(mv);
+    }
+
+    private void addCheckIfNull(Field f) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "checkIfNull_" + f.pos, "()Z", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        if (f.isPrimitive()) {
+            mv.visitFieldInsn(GETFIELD, className, "isNull_" + f.nullByte, "B");
+            push(mv, f.nullBit);
+            mv.visitMethodInsn(INVOKESTATIC, BYTES_HELPER, "getBitByPos", "(BI)Z");
+            mv.visitInsn(IRETURN);
+        } else {
+            Label notNull = new Label();
+            mv.visitFieldInsn(GETFIELD, className, f.name, f.desc);
+            mv.visitJumpInsn(IFNONNULL, notNull);
+            mv.visitInsn(ICONST_1);
+            mv.visitInsn(IRETURN);
+            mv.visitLabel(notNull);
+            mv.visitInsn(ICONST_0);
+            mv.visitInsn(IRETURN);
+        }
+        end(mv);
+    }
+
+    private void addSetNull(Field f) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "setNull_" + f.pos, "(Z)V", null, null);
+        mv.visitCode();
+        if (f.isPrimitive()) {
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, className, "isNull_" + f.nullByte, "B");
+            mv.visitVarInsn(ILOAD, 1);
+            push(mv, f.nullBit);
+            mv.visitMethodInsn(INVOKESTATIC, BYTES_HELPER, "setBitByPos", "(BZI)B");
+            mv.visitFieldInsn(PUTFIELD, className, "isNull_" + f.nullByte, "B");
+        } else {
+            Label done = new Label();
+            mv.visitVarInsn(ILOAD, 1);
+            mv.visitJumpInsn(IFEQ, done);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitInsn(ACONST_NULL);
+            mv.visitFieldInsn(PUTFIELD, className, f.name, f.desc);
+            mv.visitLabel(done);
+        }
+        mv.visitInsn(RETURN);
+        end(mv);
+    }
+
+    private void addGetSchema() {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "getSchema", "()" + SCHEMA_DESC, null, null);
+        mv.visitCode();
+        mv.visitFieldInsn(GETSTATIC, className, "schema", SCHEMA_DESC);
+        mv.visitInsn(ARETURN);
+        end(mv);
+    }
+
+    /**
+     * setPos_(unbox(value, getDummy_())), the value being on the stack above this twice
+     */
+    private void setUnboxed(MethodVisitor mv, Field f) {
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKEVIRTUAL, className, "getDummy_" + f.pos, "()" + f.apiDesc());
+        mv.visitMethodInsn(INVOKEVIRTUAL, className, "unbox",
+                "(" + OBJECT_DESC + f.apiDesc() + ")" + f.apiDesc());
+        mv.visitMethodInsn(INVOKEVIRTUAL, className, "setPos_" + f.pos, "(" + f.apiDesc() + ")V");
+    }
+
+    private void addSetIterator() {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "generatedCodeSetIterator", "(Ljava/util/Iterator;)V",
+                null, EXEC_EXCEPTIONS);
+        mv.visitCode();
+        for (Field f : fields) {
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitMethodInsn(INVOKEINTERFACE, "java/util/Iterator", "next", "()" + OBJECT_DESC);
+            setUnboxed(mv, f);
+        }
+        mv.visitInsn(RETURN);
+        end(mv);
+    }
+
+    private void addGenericSet() {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "generatedCodeSetField", "(I" + OBJECT_DESC + ")V",
+                null, EXEC_EXCEPTIONS);
+        mv.visitCode();
+        Label dflt = new Label();
+        Label[] cases = switchOnFields(mv, fields, dflt);
+        for (Field f : fields) {
+            Label set = new Label();
+            mv.visitLabel(cases[f.pos]);
+            mv.visitVarInsn(ALOAD, 2);
+            mv.visitJumpInsn(IFNONNULL, set);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitInsn(ICONST_1);
+            mv.visitMethodInsn(INVOKEVIRTUAL, className, "setNull_" + f.pos, "(Z)V");
+            mv.visitInsn(RETURN);
+            mv.visitLabel(set);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitVarInsn(ALOAD, 2);
+            setUnboxed(mv, f);
+            mv.visitInsn(RETURN);
+        }
+        mv.visitLabel(dflt);
+        throwInvalidIndex(mv, "Invalid index given to set: ");
+        end(mv);
+    }
+
+    private void addGenericGet() {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "generatedCodeGetField", "(I)" + OBJECT_DESC,
+                null, EXEC_EXCEPTIONS);
+        mv.visitCode();
+        Label dflt = new Label();
+        Label[] cases = switchOnFields(mv, fields, dflt);
+        for (Field f : fields) {
+            Label notNull = new Label();
+            mv.visitLabel(cases[f.pos]);
+            checkIfNull(mv, f);
+            mv.visitJumpInsn(IFEQ, notNull);
+            mv.visitInsn(ACONST_NULL);
+            mv.visitInsn(ARETURN);
+            mv.visitLabel(notNull);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitVarInsn(ALOAD, 0);
+            getPos(mv, f);
+            String boxed;
+            switch (f.type) {
+            case DataType.INTEGER: boxed = "Ljava/lang/Integer;"; break;
+            case DataType.LONG: boxed = "Ljava/lang/Long;"; break;
+            case DataType.FLOAT: boxed = "Ljava/lang/Float;"; break;
+            case DataType.DOUBLE: boxed = "Ljava/lang/Double;"; break;
+            case DataType.BOOLEAN: boxed = "Ljava/lang/Boolean;"; break;
+            case DataType.BYTEARRAY: boxed = "Lorg/apache/pig/data/DataByteArray;"; break;
+            default: boxed = f.apiDesc();
+            }
+            mv.visitMethodInsn(INVOKEVIRTUAL, className, "box", "(" + f.apiDesc() + ")" + boxed);
+            mv.visitInsn(ARETURN);
+        }
+        mv.visitLabel(dflt);
+        throwInvalidIndex(mv, "Invalid index given to get: ");
+        end(mv);
+    }
+
+    private void addGeneralIsNull() {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "isGeneratedCodeFieldNull", "(I)Z", null, EXEC_EXCEPTIONS);
+        mv.visitCode();
+        Label dflt = new Label();
+        Label[] cases = switchOnFields(mv, fields, dflt);
+        for (Field f : fields) {
+            mv.visitLabel(cases[f.pos]);
+            checkIfNull(mv, f);
+            mv.visitInsn(IRETURN);
+        }
+        mv.visitLabel(dflt);
+        throwInvalidIndex(mv, "Invalid index given: ");
+        end(mv);
+    }
+
+    private void addGetType() {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "getGeneratedCodeFieldType", "(I)B", null, EXEC_EXCEPTIONS);
+        mv.visitCode();
+        Label dflt = new Label();
+        Label[] cases = switchOnFields(mv, fields, dflt);
+        for (Field f : fields) {
+            mv.visitLabel(cases[f.pos]);
+            push(mv, f.type);
+            mv.visitInsn(IRETURN);
+        }
+        mv.visitLabel(dflt);
+        throwInvalidIndex(mv, "Invalid index given: ");
+        end(mv);
+    }
+
+    private void addSetSpecific() {
+        MethodVisitor mv = cw.visitMethod(ACC_PROTECTED, "generatedCodeSetSpecific",
+                "(" + SCHEMA_TUPLE_DESC + ")" + SCHEMA_TUPLE_DESC, null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitTypeInsn(CHECKCAST, className);
+        mv.visitVarInsn(ASTORE, 2);
+        for (Field f : fields) {
+            Label notNull = new Label();
+            Label done = new Label();
+            mv.visitVarInsn(ALOAD, 2);
+            mv.visitMethodInsn(INVOKEVIRTUAL, className, "checkIfNull_" + f.pos, "()Z");
+            mv.visitJumpInsn(IFEQ, notNull);
+            setNull(mv, f);
+            mv.visitJumpInsn(GOTO, done);
+            mv.visitLabel(notNull);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitVarInsn(ALOAD, 2);
+            getPos(mv, f);
+            mv.visitMethodInsn(INVOKEVIRTUAL, className, "setPos_" + f.pos, "(" + f.desc + ")V");
+            mv.visitLabel(done);
+        }
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitInsn(ARETURN);
+        end(mv);
+    }
+
+    private void addNullsArray() {
+        MethodVisitor mv = cw.visitMethod(ACC_PROTECTED, "generatedCodeNullsArray", "()[Z", null, IO_EXCEPTIONS);
+        mv.visitCode();
+        push(mv, fields.size());
+        mv.visitIntInsn(NEWARRAY, T_BOOLEAN);
+        for (Field f : fields) {
+            mv.visitInsn(DUP);
+            push(mv, f.pos);
+            checkIfNull(mv, f);
+            mv.visitInsn(BASTORE);
+        }
+        mv.visitInsn(ARETURN);
+        end(mv);
+    }
+
+    private void addReadFields() {
+        MethodVisitor mv = cw.visitMethod(ACC_PROTECTED, "generatedCodeReadFields", "(Ljava/io/DataInput;[Z)V",
+                null, IO_EXCEPTIONS);
+        mv.visitCode();
+        for (Field f : fields) {
+            Label notNull = new Label();
+            Label done = new Label();
+            mv.visitVarInsn(ALOAD, 2);
+            push(mv, f.pos);
+            mv.visitInsn(BALOAD);
+            mv.visitJumpInsn(IFEQ, notNull);
+            setNull(mv, f);
+            mv.visitJumpInsn(GOTO, done);
+            mv.visitLabel(notNull);
+            if (f.type == DataType.BOOLEAN) {
+                // the values of the booleans are read at the end
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitInsn(ICONST_0);
+                mv.visitMethodInsn(INVOKEVIRTUAL, className, "setNull_" + f.pos, "(Z)V");
+            } else if (!f.isTuple()) {
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitVarInsn(ALOAD, 1);
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitFieldInsn(GETFIELD, className, f.name, f.desc);
+                mv.visitMethodInsn(INVOKESTATIC, SCHEMA_TUPLE, "read",
+                        "(Ljava/io/DataInput;" + f.desc + ")" + f.desc);
+                mv.visitMethodInsn(INVOKEVIRTUAL, className, "setPos_" + f.pos, "(" + f.desc + ")V");
+            } else {
+                newInstance(mv, f.nestedClassName);
+                mv.visitVarInsn(ASTORE, 3);
+                mv.visitVarInsn(ALOAD, 3);
+                mv.visitVarInsn(ALOAD, 1);
+                mv.visitMethodInsn(INVOKEVIRTUAL, f.nestedClassName, "readFields", "(Ljava/io/DataInput;)V");
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitVarInsn(ALOAD, 3);
+                mv.visitMethodInsn(INVOKEVIRTUAL, className, "setPos_" + f.pos, "(" + f.desc + ")V");
+            }
+            mv.visitLabel(done);
+        }
+        for (int i = 0; i < booleanBytes; i++) {
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitMethodInsn(INVOKEINTERFACE, "java/io/DataInput", "readByte", "()B");
+            mv.visitFieldInsn(PUTFIELD, className, "booleanByte_" + i, "B");
+        }
+        mv.visitInsn(RETURN);
+        end(mv);
+    }
+
+    private void addWriteElements() {
+        MethodVisitor mv = cw.visitMethod(ACC_PROTECTED, "generatedCodeWriteElements", "(Ljava/io/DataOutput;)V",
+                null, IO_EXCEPTIONS);
+        mv.visitCode();
+        for (Field f : fields) {
+            if (f.type == DataType.BOOLEAN) {
+                continue;
+            }
+            Label isNull = new Label();
+            checkIfNull(mv, f);
+            mv.visitJumpInsn(IFNE, isNull);
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, className, f.name, f.desc);
+            mv.visitMethodInsn(INVOKESTATIC, SCHEMA_TUPLE, "write",
+                    "(Ljava/io/DataOutput;" + (f.isTuple() ? SCHEMA_TUPLE_DESC : f.desc) + ")V");
+            mv.visitLabel(isNull);
+        }
+        for (int i = 0; i < booleanBytes; i++) {
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, className, "booleanByte_" + i, "B");
+            mv.visitMethodInsn(INVOKEINTERFACE, "java/io/DataOutput", "writeByte", "(I)V");
+        }
+        mv.visitInsn(RETURN);
+        end(mv);
+    }
+
+    /**
+     * The same estimate as the one of the generated source: the fields, the null and boolean bytes,
+     * and the objects referenced, rounded to eight bytes.
+     */
+    private void addMemorySize() {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "getGeneratedCodeMemorySize", "()J", null, null);
+        mv.visitCode();
+        int size = 0;
+        int booleans = 0;
+        int primitives = 0;
+        mv.visitInsn(LCONST_0);
+        for (Field f : fields) {
+            switch (f.type) {
+            case DataType.INTEGER:
+            case DataType.FLOAT:
+                size += 4;
+                break;
+            case DataType.LONG:
+            case DataType.DOUBLE:
+                size += 8;
+                break;
+            case DataType.BOOLEAN:
+                if (booleans++ % 8 == 0) {
+                    size++;
+                }
+                break;
+            case DataType.DATETIME:
+                size += 10;
+                break;
+            case DataType.BYTEARRAY: {
+                // pos_ == null ? 0 : SizeUtil.roundToEight(12 + pos_.length) * 8
+                size += 8;
+                Label end = skipIfNull(mv, f, false);
+                mv.visitIntInsn(BIPUSH, 12);
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitFieldInsn(GETFIELD, className, f.name, f.desc);
+                mv.visitInsn(ARRAYLENGTH);
+                mv.visitInsn(IADD);
+                mv.visitInsn(I2L);
+                mv.visitMethodInsn(INVOKESTATIC, SIZE_UTIL, "roundToEight", "(J)J");
+                mv.visitLdcInsn(Long.valueOf(8));
+                mv.visitInsn(LMUL);
+                mv.visitInsn(LADD);
+                mv.visitLabel(end);
+                break;
+            }
+            case DataType.BAG: {
+                size += 8;
+                Label end = skipIfNull(mv, f, false);
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitFieldInsn(GETFIELD, className, f.name, f.desc);
+                mv.visitMethodInsn(INVOKEINTERFACE, "org/apache/pig/data/DataBag", "getMemorySize", "()J");
+                mv.visitInsn(LADD);
+                mv.visitLabel(end);
+                break;
+            }
+            case DataType.MAP:
+            case DataType.CHARARRAY:
+            case DataType.BIGDECIMAL:
+            case DataType.BIGINTEGER: {
+                size += 8;
+                Label end = skipIfNull(mv, f, false);
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitFieldInsn(GETFIELD, className, f.name, f.desc);
+                mv.visitMethodInsn(INVOKESTATIC, SIZE_UTIL, "getPigObjMemSize", "(" + OBJECT_DESC + ")J");
+                mv.visitInsn(LADD);
+                mv.visitLabel(end);
+                break;
+            }
+            case DataType.TUPLE: {
+                // pos_ == null ? 8 : pos_.getMemorySize()
+                size += 8;
+                Label end = skipIfNull(mv, f, true);
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitFieldInsn(GETFIELD, className, f.name, f.desc);
+                mv.visitMethodInsn(INVOKEVIRTUAL, f.nestedClassName, "getMemorySize", "()J");
+                mv.visitInsn(LADD);
+                mv.visitLabel(end);
+                break;
+            }
+            default:
+                throw new RuntimeException("Unsupported type found: " + DataType.findTypeName(f.type));
+            }
+            if (f.isPrimitive() && primitives++ % 8 == 0) {
+                size++;
+            }
+        }
+        mv.visitLdcInsn(Long.valueOf(size));
+        mv.visitInsn(LADD);
+        mv.visitMethodInsn(INVOKESTATIC, SIZE_UTIL, "roundToEight", "(J)J");
+        mv.visitInsn(LRETURN);
+        end(mv);
+    }
+
+    /**
+     * Skips to the returned label if the field is null, after adding 8 to the size on the
+     * stack if the null field should be counted as a pointer.
+     */
+    private Label skipIfNull(MethodVisitor mv, Field f, boolean countNull) {
+        Label notNull = new Label();
+        Label end = new Label();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitFieldInsn(GETFIELD, className, f.name, f.desc);
+        mv.visitJumpInsn(IFNONNULL, notNull);
+        if (countNull) {
+            mv.visitLdcInsn(Long.valueOf(8));
+            mv.visitInsn(LADD);
+        }
+        mv.visitJumpInsn(GOTO, end);
+        mv.visitLabel(notNull);
+        return end;
+    }
+
+    private void addHashCode() {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "generatedCodeHashCode", "()I", null, null);
+        mv.visitCode();
+        mv.visitIntInsn(BIPUSH, 17);
+        mv.visitVarInsn(ISTORE, 1);
+        for (Field f : fields) {
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitVarInsn(ILOAD, 1);
+            mv.visitVarInsn(ALOAD, 0);
+            getPos(mv, f);
+            checkIfNull(mv, f);
+            mv.visitMethodInsn(INVOKEVIRTUAL, className, "hashCodePiece", "(I" + f.apiDesc() + "Z)I");
+            mv.visitVarInsn(ISTORE, 1);
+        }
+        mv.visitVarInsn(ILOAD, 1);
+        mv.visitInsn(IRETURN);
+        end(mv);
+    }
+
+    private void addCompareTo() {
+        MethodVisitor mv = cw.visitMethod(ACC_PROTECTED, "generatedCodeCompareTo", "(" + SCHEMA_TUPLE_DESC + "Z)I",
+                null, null);
+        mv.visitCode();
+        for (Field f : fields) {
+            mv.visitVarInsn(ALOAD, 0);
+            checkIfNull(mv, f);
+            mv.visitVarInsn(ALOAD, 0);
+            getPos(mv, f);
+            mv.visitVarInsn(ALOAD, 1);
+            push(mv, f.pos);
+            String desc = f.isTuple() ? SCHEMA_TUPLE_DESC : f.desc;
+            mv.visitMethodInsn(INVOKEVIRTUAL, className, "compareWithElementAtPos",
+                    "(Z" + desc + SCHEMA_TUPLE_DESC + "I)I");
+            returnIfNotZero(mv, 3);
+        }
+        mv.visitInsn(ICONST_0);
+        mv.visitInsn(IRETURN);
+        end(mv);
+    }
+
+    private void addCompareToSpecific() {
+        MethodVisitor mv = cw.visitMethod(ACC_PROTECTED, "generatedCodeCompareToSpecific",
+                "(" + SCHEMA_TUPLE_DESC + ")I", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitTypeInsn(CHECKCAST, className);
+        mv.visitVarInsn(ASTORE, 2);
+        for (Field f : fields) {
+            mv.visitVarInsn(ALOAD, 0);
+            checkIfNull(mv, f);
+            mv.visitVarInsn(ALOAD, 0);
+            getPos(mv, f);
+            mv.visitVarInsn(ALOAD, 2);
+            mv.visitMethodInsn(INVOKEVIRTUAL, className, "checkIfNull_" + f.pos, "()Z");
+            mv.visitVarInsn(ALOAD, 2);
+            getPos(mv, f);
+            String desc = f.isTuple() ? "Z" + SCHEMA_TUPLE_DESC + "Z" + OBJECT_DESC : "Z" + f.desc + "Z" + f.desc;
+            mv.visitMethodInsn(INVOKEVIRTUAL, className, "compare", "(" + desc + ")I");
+            returnIfNotZero(mv, 3);
+        }
+        mv.visitInsn(ICONST_0);
+        mv.visitInsn(IRETURN);
+        end(mv);
+    }
+
+    private void addSet() {
+        MethodVisitor mv = cw.visitMethod(ACC_PROTECTED, "generatedCodeSet",
+                "(" + SCHEMA_TUPLE_DESC + "Z)" + SCHEMA_TUPLE_DESC, null, EXEC_EXCEPTIONS);
+        mv.visitCode();
+        Label notSpecific = new Label();
+        mv.visitVarInsn(ILOAD, 2);
+        mv.visitJumpInsn(IFEQ, notSpecific);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitTypeInsn(INSTANCEOF, className);
+        mv.visitJumpInsn(IFEQ, notSpecific);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitTypeInsn(CHECKCAST, className);
+        mv.visitMethodInsn(INVOKEVIRTUAL, className, "setSpecific", "(" + SCHEMA_TUPLE_DESC + ")" + SCHEMA_TUPLE_DESC);
+        mv.visitInsn(ARETURN);
+        mv.visitLabel(notSpecific);
+
+        // throw new ExecException("Given SchemaTuple does not have as many fields as " + getClass()
+        //         + " (" + t.size() + " vs " + schemaSize() + ")");
+        Label bigEnough = new Label();
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitMethodInsn(INVOKEVIRTUAL, SCHEMA_TUPLE, "size", "()I");
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKEVIRTUAL, className, "schemaSize", "()I");
+        mv.visitJumpInsn(IF_ICMPGE, bigEnough);
+        newExecException(mv, "Given SchemaTuple does not have as many fields as ");
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Object", "getClass", "()Ljava/lang/Class;");
+        append(mv, OBJECT_DESC);
+        mv.visitLdcInsn(" (");
+        append(mv, STRING_DESC);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitMethodInsn(INVOKEVIRTUAL, SCHEMA_TUPLE, "size", "()I");
+        append(mv, "I");
+        mv.visitLdcInsn(" vs ");
+        append(mv, STRING_DESC);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKEVIRTUAL, className, "schemaSize", "()I");
+        append(mv, "I");
+        mv.visitLdcInsn(")");
+        append(mv, STRING_DESC);
+        throwExecException(mv);
+        mv.visitLabel(bigEnough);
+
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitMethodInsn(INVOKEVIRTUAL, SCHEMA_TUPLE, "getSchema", "()" + SCHEMA_DESC);
+        mv.visitMethodInsn(INVOKEVIRTUAL, SCHEMA, "getFields", "()Ljava/util/List;");
+        mv.visitVarInsn(ASTORE, 3);
+
+        for (Field f : fields) {
+            Label typeMatches = new Label();
+            push(mv, f.type);
+            theirFieldType(mv, f);
+            mv.visitJumpInsn(IF_ICMPEQ, typeMatches);
+            newExecException(mv, "Given SchemaTuple does not match current in field " + f.pos
+                    + ". Expected type: " + f.type + ", found: ");
+            theirFieldType(mv, f);
+            append(mv, "I");
+            throwExecException(mv);
+            mv.visitLabel(typeMatches);
+
+            Label notNull = new Label();
+            Label done = new Label();
+            mv.visitVarInsn(ALOAD, 1);
+            push(mv, f.pos);
+            mv.visitMethodInsn(INVOKEVIRTUAL, SCHEMA_TUPLE, "isNull", "(I)Z");
+            mv.visitJumpInsn(IFEQ, notNull);
+            setNull(mv, f);
+            mv.visitJumpInsn(GOTO, done);
+            mv.visitLabel(notNull);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitVarInsn(ALOAD, 1);
+            push(mv, f.pos);
+            if (f.isTuple()) {
+                mv.visitMethodInsn(INVOKEVIRTUAL, SCHEMA_TUPLE, "get", "(I)" + OBJECT_DESC);
+                mv.visitTypeInsn(CHECKCAST, TUPLE);
+            } else {
+                mv.visitMethodInsn(INVOKEVIRTUAL, SCHEMA_TUPLE, "get" + properName(f.type), "(I)" + f.apiDesc());
+            }
+            mv.visitMethodInsn(INVOKEVIRTUAL, className, "setPos_" + f.pos, "(" + f.apiDesc() + ")V");
+            mv.visitLabel(done);
+        }
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitInsn(ARETURN);
+        end(mv);
+    }
+
+    /**
+     * theirFS.get(pos).type, theirFS being in local 3
+     */
+    private void theirFieldType(MethodVisitor mv, Field f) {
+        mv.visitVarInsn(ALOAD, 3);
+        push(mv, f.pos);
+        mv.visitMethodInsn(INVOKEINTERFACE, "java/util/List", "get", "(I)" + OBJECT_DESC);
+        mv.visitTypeInsn(CHECKCAST, FIELD_SCHEMA);
+        mv.visitFieldInsn(GETFIELD, FIELD_SCHEMA, "type", "B");
+    }
+
+    private void addIsSpecificSchemaTuple() {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "isSpecificSchemaTuple", "(" + OBJECT_DESC + ")Z", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitTypeInsn(INSTANCEOF, className);
+        mv.visitInsn(IRETURN);
+        end(mv);
+    }
+
+    private void addTypeAwareSet(byte type) {
+        String desc = descriptor(type);
+        MethodVisitor mv = cw.visitMethod(ACC_PROTECTED, "generatedCodeSet" + properName(type),
+                "(I" + desc + ")V", null, EXEC_EXCEPTIONS);
+        mv.visitCode();
+        Label dflt = new Label();
+        List<Field> typed = fieldsOfType(type);
+        Label[] cases = switchOnFields(mv, typed, dflt);
+        for (int i = 0; i < typed.size(); i++) {
+            mv.visitLabel(cases[i]);
+            mv.visitVarInsn(ALOAD, 0);
+            load(mv, desc, 2);
+            mv.visitMethodInsn(INVOKEVIRTUAL, className, "setPos_" + typed.get(i).pos, "(" + desc + ")V");
+            mv.visitInsn(RETURN);
+        }
+        mv.visitLabel(dflt);
+        // setTypeAwareBase(fieldNum, val, "type")
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ILOAD, 1);
+        load(mv, desc, 2);
+        box(mv, type);
+        mv.visitLdcInsn(typeName(type));
+        mv.visitMethodInsn(INVOKEVIRTUAL, className, "setTypeAwareBase", "(I" + OBJECT_DESC + STRING_DESC + ")V");
+        mv.visitInsn(RETURN);
+        end(mv);
+    }
+
+    private void addTypeAwareGet(byte type) {
+        String desc = descriptor(type);
+        int returnOpcode = Type.getType(desc).getOpcode(IRETURN);
+        MethodVisitor mv = cw.visitMethod(ACC_PROTECTED, "generatedCodeGet" + properName(type),
+                "(I)" + desc, null, EXEC_EXCEPTIONS);
+        mv.visitCode();
+        Label dflt = new Label();
+        List<Field> typed = fieldsOfType(type);
+        Label[] cases = switchOnFields(mv, typed, dflt);
+        for (int i = 0; i < typed.size(); i++) {
+            Field f = typed.get(i);
+            mv.visitLabel(cases[i]);
+            mv.visitVarInsn(ALOAD, 0);
+            checkIfNull(mv, f);
+            mv.visitVarInsn(ALOAD, 0);
+            getPos(mv, f);
+            mv.visitMethodInsn(INVOKEVIRTUAL, className, "returnUnlessNull", "(Z" + desc + ")" + desc);
+            mv.visitInsn(returnOpcode);
+        }
+        mv.visitLabel(dflt);
+        // return unboxType(getTypeAwareBase(fieldNum, "type"))
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ILOAD, 1);
+        mv.visitLdcInsn(typeName(type));
+        mv.visitMethodInsn(INVOKEVIRTUAL, className, "getTypeAwareBase", "(I" + STRING_DESC + ")" + OBJECT_DESC);
+        mv.visitMethodInsn(INVOKEVIRTUAL, className, "unbox" + properName(type), "(" + OBJECT_DESC + ")" + desc);
+        mv.visitInsn(returnOpcode);
+        end(mv);
+    }
+
+    private void addGetQuickGenerator() {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "getQuickGenerator", "()L" + QUICK_GENERATOR + ";",
+                "()L" + QUICK_GENERATOR + "<L" + className + ";>;", null);
+        mv.visitCode();
+        newInstance(mv, className + "$Generator");
+        mv.visitInsn(ARETURN);
+        end(mv);
+    }
+
+    private void addIntConstant(int access, String name, int value) {
+        MethodVisitor mv = cw.visitMethod(access, name, "()I", null, null);
+        mv.visitCode();
+        push(mv, value);
+        mv.visitInsn(IRETURN);
+        end(mv);
+    }
+
+    private List<Field> fieldsOfType(byte type) {
+        List<Field> typed = Lists.newArrayList();
+        for (Field f : fields) {
+            if (f.type == type) {
+                typed.add(f);
+            }
+        }
+        return typed;
+    }
+
+    /**
+     * Switches on the field number in local 1.
+     * @return the labels of the given fields, in the same order
+     */
+    private static Label[] switchOnFields(MethodVisitor mv, List<Field> cases, Label dflt) {
+        Label[] labels = new Label[cases.size()];
+        int[] keys = new int[cases.size()];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = new Label();
+            keys[i] = cases.get(i).pos;
+        }
+        mv.visitVarInsn(ILOAD, 1);
+        if (labels.length > 0 && keys[labels.length - 1] - keys[0] == labels.length - 1) {
+            mv.visitTableSwitchInsn(keys[0], keys[labels.length - 1], dflt, labels);
+        } else {
+            mv.visitLookupSwitchInsn(dflt, keys, labels);
+        }
+        return labels;
+    }
+
+    private void checkIfNull(MethodVisitor mv, Field f) {
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKEVIRTUAL, className, "checkIfNull_" + f.pos, "()Z");
+    }
+
+    /**
+     * getPos_ on the SchemaTuple on the stack
+     */
+    private void getPos(MethodVisitor mv, Field f) {
+        mv.visitMethodInsn(INVOKEVIRTUAL, className, "getPos_" + f.pos, "()" + f.desc);
+    }
+
+    private void setNull(MethodVisitor mv, Field f) {
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitInsn(ICONST_1);
+        mv.visitMethodInsn(INVOKEVIRTUAL, className, "setNull_" + f.pos, "(Z)V");
+    }
+
+    /**
+     * if (i != 0) { return i; } for the int on the stack, using the given local
+     */
+    private static void returnIfNotZero(MethodVisitor mv, int local) {
+        Label zero = new Label();
+        mv.visitVarInsn(ISTORE, local);
+        mv.visitVarInsn(ILOAD, local);
+        mv.visitJumpInsn(IFEQ, zero);
+        mv.visitVarInsn(ILOAD, local);
+        mv.visitInsn(IRETURN);
+        mv.visitLabel(zero);
+    }
+
+    private static void throwInvalidIndex(MethodVisitor mv, String message) {
+        newExecException(mv, message);
+        mv.visitVarInsn(ILOAD, 1);
+        append(mv, "I");
+        throwExecException(mv);
+    }
+
+    /**
+     * Pushes a new ExecException, and a StringBuilder for its message starting with the given string
+     */
+    private static void newExecException(MethodVisitor mv, String message) {
+        mv.visitTypeInsn(NEW, EXEC_EXCEPTION);
+        mv.visitInsn(DUP);
+        mv.visitTypeInsn(NEW, STRING_BUILDER);
+        mv.visitInsn(DUP);
+        mv.visitLdcInsn(message);
+        mv.visitMethodInsn(INVOKESPECIAL, STRING_BUILDER, "<init>", "(" + STRING_DESC + ")V");
+    }
+
+    private static void throwExecException(MethodVisitor mv) {
+        mv.visitMethodInsn(INVOKEVIRTUAL, STRING_BUILDER, "toString", "()" + STRING_DESC);
+        mv.visitMethodInsn(INVOKESPECIAL, EXEC_EXCEPTION, "<init>", "(" + STRING_DESC + ")V");
+        mv.visitInsn(ATHROW);
+    }
+
+    private static void append(MethodVisitor mv, String desc) {
+        mv.visitMethodInsn(INVOKEVIRTUAL, STRING_BUILDER, "append", "(" + desc + ")L" + STRING_BUILDER + ";");
+    }
+
+    private static void newInstance(MethodVisitor mv, String internalName) {
+        mv.visitTypeInsn(NEW, internalName);
+        mv.visitInsn(DUP);
+        mv.visitMethodInsn(INVOKESPECIAL, internalName, "<init>", "()V");
+    }
+
+    private static void load(MethodVisitor mv, String desc, int local) {
+        mv.visitVarInsn(Type.getType(desc).getOpcode(ILOAD), local);
+    }
+
+    private static void box(MethodVisitor mv, byte type) {
+        switch (type) {
+        case DataType.INTEGER:
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;");
+            break;
+        case DataType.LONG:
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/Long", "valueOf", "(J)Ljava/lang/Long;");
+            break;
+        case DataType.FLOAT:
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/Float", "valueOf", "(F)Ljava/lang/Float;");
+            break;
+        case DataType.DOUBLE:
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "valueOf", "(D)Ljava/lang/Double;");
+            break;
+        case DataType.BOOLEAN:
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;");
+            break;
+        default:
+            // already an object
+        }
+    }
+
+    private static void push(MethodVisitor mv, int i) {
+        if (i >= -1 && i <= 5) {
+            mv.visitInsn(ICONST_0 + i);
+        } else if (i >= Byte.MIN_VALUE && i <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(BIPUSH, i);
+        } else if (i >= Short.MIN_VALUE && i <= Short.MAX_VALUE) {
+            mv.visitIntInsn(SIPUSH, i);
+        } else {
+            mv.visitLdcInsn(Integer.valueOf(i));
+        }
+    }
+
+    /**
+     * Pushes a string, concatenating it if it is too long for a constant
+     */
+    private static void pushString(MethodVisitor mv, String s) {
+        if (s.length() <= MAX_CONSTANT_LENGTH) {
+            mv.visitLdcInsn(s);
+            return;
+        }
+        mv.visitTypeInsn(NEW, STRING_BUILDER);
+        mv.visitInsn(DUP);
+        mv.visitMethodInsn(INVOKESPECIAL, STRING_BUILDER, "<init>", "()V");
+        for (int i = 0; i < s.length(); i += MAX_CONSTANT_LENGTH) {
+            mv.visitLdcInsn(s.substring(i, Math.min(s.length(), i + MAX_CONSTANT_LENGTH)));
+            append(mv, STRING_DESC);
+        }
+        mv.visitMethodInsn(INVOKEVIRTUAL, STRING_BUILDER, "toString", "()" + STRING_DESC);
+    }
+
+    private static void end(MethodVisitor mv) {
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private static String descriptor(byte type) {
+        switch (type) {
+        case DataType.INTEGER: return "I";
+        case DataType.LONG: return "J";
+        case DataType.FLOAT: return "F";
+        case DataType.DOUBLE: return "D";
+        case DataType.BOOLEAN: return "Z";
+        case DataType.BYTEARRAY: return "[B";
+        case DataType.CHARARRAY: return STRING_DESC;
+        case DataType.DATETIME: return "Lorg/joda/time/DateTime;";
+        case DataType.BIGDECIMAL: return "Ljava/math/BigDecimal;";
+        case DataType.BIGINTEGER: return "Ljava/math/BigInteger;";
+        case DataType.TUPLE: return TUPLE_DESC;
+        case DataType.BAG: return "Lorg/apache/pig/data/DataBag;";
+        case DataType.MAP: return "Ljava/util/Map;";
+        default: throw new RuntimeException("Can't generate code for given type " + DataType.findTypeName(type));
+        }
+    }
+
+    /**
+     * @return the name of the type in the messages of SchemaTuple
+     */
+    private static String typeName(byte type) {
+        switch (type) {
+        case DataType.INTEGER: return "int";
+        case DataType.LONG: return "long";
+        case DataType.FLOAT: return "float";
+        case DataType.DOUBLE: return "double";
+        case DataType.BOOLEAN: return "boolean";
+        case DataType.BYTEARRAY: return "byte[]";
+        case DataType.CHARARRAY: return "String";
+        case DataType.DATETIME: return "DateTime";
+        case DataType.BIGDECIMAL: return "BigDecimal";
+        case DataType.BIGINTEGER: return "BigInteger";
+        case DataType.TUPLE: return "Tuple";
+        case DataType.BAG: return "DataBag";
+        case DataType.MAP: return "Map";
+        default: throw new RuntimeException("Can't return String for given type " + DataType.findTypeName(type));
+        }
+    }
+
+    /**
+     * @return the suffix of the typed getters and setters of SchemaTuple
+     */
+    private static String properName(byte type) {
+        if (type == DataType.BYTEARRAY) {
+            return "Bytes";
+        }
+        String s = typeName(type);
+        return s.substring(0, 1).toUpperCase() + s.substring(1);
+    }
+}
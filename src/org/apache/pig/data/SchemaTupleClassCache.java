@@ -0,0 +1,337 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pig.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsAction;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.pig.PigConfiguration;
+import org.apache.pig.classification.InterfaceAudience;
+import org.apache.pig.classification.InterfaceStability;
+import org.apache.pig.data.SchemaTupleClassGenerator.GenContext;
+
+/**
+ * A cache of the bytecode of generated SchemaTuples on the local disk, shared by all the
+ * scripts of the user. Entries are addressed by a digest of everything the bytecode depends
+ * on: the classes of SchemaTuple, of the generator and of the cache, and the Schema,
+ * appendability and contexts of the SchemaTuple. The identifiers are not part of the key,
+ * since they depend on the Schemas registered before in the JVM: an entry keeps the
+ * identifiers it was generated with, and its classes are renamed for the identifiers they
+ * are loaded with. Entries are never modified; since they are written to a temporary file and
+ * renamed, concurrent clients at worst generate the same entry twice.
+ * <p>
+ * The classes found in the cache are loaded by the scripts, so the directory must be private
+ * to the user: it is created with owner only permissions, and a directory owned by another
+ * user or writable by others is not used. The least recently used entries are deleted when
+ * there are more than {@link PigConfiguration#SCHEMA_TUPLE_CLASS_CACHE_MAX_ENTRIES}, an entry
+ * being touched every time it is read; the directory can also be deleted at any time, the
+ * classes are then generated again.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Unstable
+class SchemaTupleClassCache {
+    private static final Log LOG = LogFactory.getLog(SchemaTupleClassCache.class);
+
+    /**
+     * The classes the generated bytecode depends on. Any change to them changes the keys.
+     */
+    private static final Class<?>[] CODE_DEPENDENCIES = {
+        SchemaTuple.class, AppendableSchemaTuple.class, SchemaTupleBytecodeGenerator.class,
+        SchemaTupleClassCache.class };
+
+    // the suffix of the files being written
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    private static final FsPermission DIR_PERMISSION = new FsPermission((short) 0700);
+
+    private static byte[] codeDigest;
+
+    // the directories already checked to be private to the user
+    private static final Set<File> checkedDirs = new HashSet<File>();
+
+    private final File dir;
+
+    private final int maxEntries;
+
+    private SchemaTupleClassCache(File dir, int maxEntries) {
+        this.dir = dir;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @param conf the job configuration
+     * @return the cache, or null if it is turned off or can't be used
+     */
+    static SchemaTupleClassCache getInstance(Configuration conf) {
+        if (!conf.getBoolean(PigConfiguration.SCHEMA_TUPLE_CLASS_CACHE, true)) {
+            LOG.debug("Key [" + PigConfiguration.SCHEMA_TUPLE_CLASS_CACHE + "] is false, will not cache generated code.");
+            return null;
+        }
+        String path = conf.get(PigConfiguration.SCHEMA_TUPLE_CLASS_CACHE_DIR);
+        File dir = path != null ? new File(path)
+                : new File(System.getProperty("user.home"), ".pig" + File.separator + "schematuple-cache");
+        if (!checkDir(dir.getAbsoluteFile(), conf)) {
+            return null;
+        }
+        if (getCodeDigest() == null) {
+            return null;
+        }
+        return new SchemaTupleClassCache(dir,
+                conf.getInt(PigConfiguration.SCHEMA_TUPLE_CLASS_CACHE_MAX_ENTRIES, DEFAULT_MAX_ENTRIES));
+    }
+
+    /**
+     * Creates the directory with owner only permissions if it doesn't exist, or checks that it
+     * is owned by the user and not writable by others
+     * @return whether the directory can be used
+     */
+    private static boolean checkDir(File dir, Configuration conf) {
+        synchronized (checkedDirs) {
+            if (checkedDirs.contains(dir)) {
+                return true;
+            }
+            try {
+                FileSystem fs = FileSystem.getLocal(conf);
+                Path p = new Path(dir.getPath());
+                if (!dir.isDirectory() && !fs.mkdirs(p, DIR_PERMISSION)) {
+                    LOG.warn("Unable to create the directory of the SchemaTuple class cache: " + dir);
+                    return false;
+                }
+                FileStatus status = fs.getFileStatus(p);
+                String user = System.getProperty("user.name");
+                if (!user.equals(status.getOwner())) {
+                    LOG.warn("The directory of the SchemaTuple class cache " + dir + " is owned by "
+                            + status.getOwner() + " instead of " + user + ", will not cache generated code.");
+                    return false;
+                }
+                FsPermission permission = status.getPermission();
+                if (permission.getGroupAction().implies(FsAction.WRITE)
+                        || permission.getOtherAction().implies(FsAction.WRITE)) {
+                    LOG.warn("The directory of the SchemaTuple class cache " + dir + " is writable by others ("
+                            + permission + "), will not cache generated code.");
+                    return false;
+                }
+            } catch (IOException e) {
+                LOG.warn("Unable to check the directory of the SchemaTuple class cache " + dir
+                        + ", will not cache generated code.", e);
+                return false;
+            }
+            checkedDirs.add(dir);
+            return true;
+        }
+    }
+
+    private static synchronized byte[] getCodeDigest() {
+        if (codeDigest == null) {
+            try {
+                MessageDigest md = MessageDigest.getInstance("SHA-1");
+                byte[] buf = new byte[8192];
+                for (Class<?> clazz : CODE_DEPENDENCIES) {
+                    InputStream in = clazz.getResourceAsStream(clazz.getSimpleName() + ".class");
+                    if (in == null) {
+                        LOG.warn("Unable to find the bytecode of " + clazz.getName()
+                                + ", will not cache generated code.");
+                        return null;
+                    }
+                    try {
+                        int read;
+                        while ((read = in.read(buf)) != -1) {
+                            md.update(buf, 0, read);
+                        }
+                    } finally {
+                        in.close();
+                    }
+                }
+                codeDigest = md.digest();
+            } catch (IOException e) {
+                LOG.warn("Unable to read the bytecode of SchemaTuple, will not cache generated code.", e);
+            } catch (NoSuchAlgorithmException e) {
+                LOG.warn("SHA-1 is not available, will not cache generated code.", e);
+            }
+        }
+        return codeDigest;
+    }
+
+    /**
+     * @return the key of the classes generated for a SchemaTuple
+     */
+    String key(String serializedSchema, boolean appendable, GenContext... contexts) {
+        StringBuilder sb = new StringBuilder()
+            .append("appendable=").append(appendable)
+            .append(";contexts=");
+        for (GenContext context : contexts) {
+            sb.append(context).append(",");
+        }
+        sb.append(";schema=").append(serializedSchema);
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update(codeDigest);
+            md.update(sb.toString().getBytes("UTF-8"));
+            return String.format("%040x", new BigInteger(1, md.digest()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-1 is not available", e);
+        } catch (IOException e) {
+            throw new RuntimeException("UTF-8 is not available", e);
+        }
+    }
+
+    /**
+     * @param id the identifier of the SchemaTuple
+     * @param nestedIds the identifiers of the SchemaTuples of its tuple fields
+     * @return the bytecode of the classes by class name, renamed for the given identifiers, null
+     * if they are not in the cache
+     */
+    Map<String, byte[]> get(String key, int id, List<Integer> nestedIds) {
+        File file = new File(dir, key);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                int cachedId = in.readInt();
+                List<Integer> cachedNestedIds = new ArrayList<Integer>();
+                int nestedCount = in.readInt();
+                for (int i = 0; i < nestedCount; i++) {
+                    cachedNestedIds.add(in.readInt());
+                }
+                if (nestedCount != nestedIds.size()) {
+                    LOG.warn("Cache file " + file + " has " + nestedCount + " nested SchemaTuples instead of "
+                            + nestedIds.size() + ", generating the classes again.");
+                    return null;
+                }
+                int count = in.readInt();
+                Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+                for (int i = 0; i < count; i++) {
+                    String name = in.readUTF();
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    classes.put(name, bytes);
+                }
+                // the entries read last are the last to be evicted
+                file.setLastModified(System.currentTimeMillis());
+                if (cachedId == id && cachedNestedIds.equals(nestedIds)) {
+                    return classes;
+                }
+                return SchemaTupleBytecodeGenerator.renumber(classes, cachedId, cachedNestedIds, id, nestedIds);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("Unable to read SchemaTuple classes from cache file " + file + ", generating them again.", e);
+            return null;
+        }
+    }
+
+    /**
+     * @param id the identifier the classes were generated with
+     * @param nestedIds the identifiers of the SchemaTuples of the tuple fields
+     */
+    void put(String key, int id, List<Integer> nestedIds, Map<String, byte[]> classes) {
+        File tmp = null;
+        try {
+            tmp = File.createTempFile(key, TMP_SUFFIX, dir);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(id);
+                out.writeInt(nestedIds.size());
+                for (int nestedId : nestedIds) {
+                    out.writeInt(nestedId);
+                }
+                out.writeInt(classes.size());
+                for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(entry.getValue().length);
+                    out.write(entry.getValue());
+                }
+            } finally {
+                out.close();
+            }
+            if (tmp.renameTo(new File(dir, key))) {
+                tmp = null;
+                evict();
+            }
+        } catch (IOException e) {
+            LOG.warn("Unable to write SchemaTuple classes to cache directory " + dir, e);
+        } finally {
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries while there are more than the maximum. The files
+     * other clients are writing are left alone.
+     */
+    private void evict() {
+        File[] entries = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return !file.getName().endsWith(TMP_SUFFIX);
+            }
+        });
+        if (entries == null || entries.length <= maxEntries) {
+            return;
+        }
+        Arrays.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long m1 = f1.lastModified();
+                long m2 = f2.lastModified();
+                return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+            }
+        });
+        int deleted = 0;
+        for (int i = 0; i < entries.length - maxEntries; i++) {
+            if (entries[i].delete()) {
+                deleted++;
+            }
+        }
+        LOG.debug("Deleted " + deleted + " entries of the SchemaTuple class cache " + dir);
+    }
+}
@@ -23,7 +23,9 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 
 import org.apache.commons.logging.Log;
@@ -37,6 +39,7 @@ import org.apache.pig.impl.util.JavaCompilerHelper;
 import org.apache.pig.impl.util.ObjectSerializer;
 
 import com.google.common.collect.Lists;
+import com.google.common.io.Files;
 
 /**
  * This class encapsulates the generation of SchemaTuples, as well as some logic
@@ -126,6 +129,10 @@ public class SchemaTupleClassGenerator {
             return annotation.getCanonicalName();
         }
 
+        Class<?> getAnnotation() {
+            return annotation;
+        }
+
         /**
          * Checks the generated class to see if the annotation
          * associated with this enum is present.
@@ -164,13 +171,80 @@ public class SchemaTupleClassGenerator {
     }
 
     /**
-     * This class actually generates the code for a given Schema.
+     * This class actually generates the code for a given Schema. The bytecode of the SchemaTuple
+     * is written directly, unless {@link PigConfiguration#SCHEMA_TUPLE_USE_JAVAC} is set, in which
+     * case Java code is generated and compiled.
      * @param   s as Schema
      * @param   appendable as boolean, true or false depending on whether it should be appendable
      * @param   id as int, id means identifier
+     * @param   codeDir the directory the classes are generated in
+     * @param   conf the job configuration
      * @param   contexts which are a list of contexts in which the SchemaTuple is intended to be instantiated
      */
-    protected static void generateSchemaTuple(Schema s, boolean appendable, int id, File codeDir, GenContext... contexts) {
+    protected static void generateSchemaTuple(Schema s, boolean appendable, int id, File codeDir,
+            Configuration conf, GenContext... contexts) {
+        if (conf.getBoolean(PigConfiguration.SCHEMA_TUPLE_USE_JAVAC, false)) {
+            compileSchemaTuple(s, appendable, id, codeDir, contexts);
+        } else {
+            writeSchemaTuple(s, appendable, id, codeDir, SchemaTupleClassCache.getInstance(conf), contexts);
+        }
+    }
+
+    /**
+     * This method writes the bytecode of the SchemaTuple for the given Schema, and of the
+     * SchemaTuples of its tuple fields, to the code directory. The classes found in the
+     * cache are not generated again.
+     */
+    private static void writeSchemaTuple(Schema s, boolean appendable, int id, File codeDir,
+            SchemaTupleClassCache cache, GenContext... contexts) {
+        // the nested SchemaTuples get their identifiers in the same order as with javac
+        List<Integer> nestedIds = Lists.newArrayList();
+        for (Schema.FieldSchema fs : s.getFields()) {
+            if (fs.type == DataType.TUPLE) {
+                int nestedId = getNextGlobalClassIdentifier();
+                writeSchemaTuple(fs.schema, appendable, nestedId, codeDir, cache);
+                nestedIds.add(nestedId);
+            }
+        }
+
+        String serializedSchema;
+        try {
+            serializedSchema = ObjectSerializer.serialize(s);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to serialize schema: " + s, e);
+        }
+        contexts = contexts.clone();
+        Arrays.sort(contexts);
+
+        String name = "SchemaTuple_" + id;
+        String key = null;
+        Map<String, byte[]> classes = null;
+        if (cache != null) {
+            key = cache.key(serializedSchema, appendable, contexts);
+            classes = cache.get(key, id, nestedIds);
+        }
+        if (classes != null) {
+            LOG.info("Found class " + name + " in cache for Schema: " + s + ", and appendability: " + appendable);
+        } else {
+            LOG.info("Generating class " + name + " for Schema: " + s + ", and appendability: " + appendable
+                    + ", in contexts: " + Arrays.toString(contexts));
+            classes = SchemaTupleBytecodeGenerator.generate(s, serializedSchema, appendable, id, nestedIds, contexts);
+            if (cache != null) {
+                cache.put(key, id, nestedIds, classes);
+            }
+        }
+
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            File classFile = new File(codeDir, entry.getKey() + ".class");
+            try {
+                Files.write(entry.getValue(), classFile);
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to write class file: " + classFile, e);
+            }
+        }
+    }
+
+    private static void compileSchemaTuple(Schema s, boolean appendable, int id, File codeDir, GenContext... contexts) {
         StringBuilder contextAnnotations = new StringBuilder();
         for (GenContext context : contexts) {
             LOG.info("Including context: " + context);
@@ -186,10 +260,10 @@ public class SchemaTupleClassGenerator {
         compileCodeString(name, codeString, codeDir);
     }
 
-    private static int generateSchemaTuple(Schema s, boolean appendable, File codeDir, GenContext... contexts) {
+    private static int compileSchemaTuple(Schema s, boolean appendable, File codeDir, GenContext... contexts) {
         int id = SchemaTupleClassGenerator.getNextGlobalClassIdentifier();
 
-        generateSchemaTuple(s, appendable, id, codeDir, contexts);
+        compileSchemaTuple(s, appendable, id, codeDir, contexts);
 
         return id;
     }
@@ -224,7 +298,6 @@ public class SchemaTupleClassGenerator {
      * @param String of generated code
      * @param name of class
      */
-    //TODO in the future, we can use ASM to generate the bytecode directly.
     private static void compileCodeString(String className, String generatedCodeString, File codeDir) {
         JavaCompilerHelper compiler = new JavaCompilerHelper(); 
         String tempDir = codeDir.getAbsolutePath();
@@ -347,7 +420,7 @@ public class SchemaTupleClassGenerator {
                     add("private "+typeName()+" pos_"+fieldPos+";");
                 }
             } else {
-                int id = SchemaTupleClassGenerator.generateSchemaTuple(fs.schema, isAppendable(), codeDir());
+                int id = SchemaTupleClassGenerator.compileSchemaTuple(fs.schema, isAppendable(), codeDir());
 
                 for (Queue<Integer> q : listOfQueuesForIds) {
                     q.add(id);
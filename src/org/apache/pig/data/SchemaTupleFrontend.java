@@ -200,7 +200,8 @@ public class SchemaTupleFrontend {
                 }
                 int id = valuePair.getFirst();
                 boolean isAppendable = keyPair.getSecond();
-                SchemaTupleClassGenerator.generateSchemaTuple(s, isAppendable, id, codeDir, contextsToInclude.toArray(new GenContext[0]));
+                SchemaTupleClassGenerator.generateSchemaTuple(s, isAppendable, id, codeDir, conf,
+                        contextsToInclude.toArray(new GenContext[0]));
                 filesToShip = true;
             }
             return filesToShip;
@@ -0,0 +1,546 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pig.data;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.SequenceInputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.pig.PigConfiguration;
+import org.apache.pig.PigCounters;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.PigMapReduce;
+import org.apache.pig.classification.InterfaceAudience;
+import org.apache.pig.classification.InterfaceStability;
+
+/**
+ * An unordered bag keeping its tuples serialized with the {@link InterSedes}, in pages of
+ * direct memory instead of Java objects, so that large bags neither weigh on the garbage
+ * collector nor need the memory size of their tuples to be estimated. The first page of a bag
+ * is small, the next ones are twice as large up to 64KB.
+ *
+ * The pages of all the serialized bags of the JVM share a budget of
+ * {@link PigConfiguration#PROP_CACHEDBAG_MEMUSAGE} of the maximum heap size, the JVM limiting
+ * the direct memory to the heap size by default. When a bag needs a new page and the budget is
+ * used, the bags that were already read to the end, like the bags of the previous keys of a
+ * package, write their pages to their spill files first. If that isn't enough the bag writes
+ * its own pages to its spill file. The pages are written as they are, without serializing the
+ * tuples again, and reused. The bag is therefore not registered with the
+ * {@link org.apache.pig.impl.util.SpillableMemoryManager}. The pages of the bags collected by
+ * the GC are released the next time a page is needed.
+ *
+ * The tuples are returned in the order they were added. As with {@link InternalCachedBag},
+ * tuples must not be added while iterating.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class SerializedDataBag extends DefaultAbstractBag {
+    private static final long serialVersionUID = 1L;
+
+    private static final Log log = LogFactory.getLog(SerializedDataBag.class);
+
+    private static final InterSedes SEDES = InterSedesFactory.getInterSedesInstance();
+
+    static final int MIN_PAGE_SIZE = 1024;
+    static final int PAGE_SIZE = 64 * 1024;
+
+    // free pages kept for the next bags instead of waiting for the GC to release them,
+    // by size from MIN_PAGE_SIZE to PAGE_SIZE
+    private static final int MAX_FREE_PAGES = 64;
+    private static final List<ConcurrentLinkedQueue<ByteBuffer>> freePages =
+            new ArrayList<ConcurrentLinkedQueue<ByteBuffer>>();
+    static {
+        for (int size = MIN_PAGE_SIZE; size <= PAGE_SIZE; size *= 2) {
+            freePages.add(new ConcurrentLinkedQueue<ByteBuffer>());
+        }
+    }
+
+    // bytes of the pages held by the bags of the JVM
+    private static final AtomicLong allocatedBytes = new AtomicLong();
+    private static volatile long maxAllocatedBytes = -1;
+
+    // the bags holding pages, true for those read to the end, and the queue of those collected
+    private static final ConcurrentHashMap<PagesReference, Boolean> bagsWithPages =
+            new ConcurrentHashMap<PagesReference, Boolean>();
+    private static final ReferenceQueue<SerializedDataBag> collectedBags = new ReferenceQueue<SerializedDataBag>();
+    private static final AtomicInteger readBags = new AtomicInteger();
+
+    // the pages of the tuples not spilled, the last one is being filled
+    private transient List<ByteBuffer> pages;
+    private transient PagesReference reference;
+    private transient int nextPageSize;
+    private transient long pageBytes;
+    private transient SerializationBuffer buffer;
+    private transient DataOutputStream bufferOut;
+    private transient DataOutputStream spillOut;
+    private transient long numTuplesInPages;
+    // the iterators not read to the end, the pages they read are not reused
+    private transient int openIterators;
+
+    public SerializedDataBag() {
+        init();
+    }
+
+    private void init() {
+        mContents = new ArrayList<Tuple>(0);
+        pages = new ArrayList<ByteBuffer>();
+        reference = null;
+        nextPageSize = MIN_PAGE_SIZE;
+        pageBytes = 0;
+        buffer = new SerializationBuffer();
+        bufferOut = new DataOutputStream(buffer);
+        spillOut = null;
+        numTuplesInPages = 0;
+        openIterators = 0;
+    }
+
+    /**
+     * @return the bytes of direct memory held by the serialized bags of the JVM
+     */
+    public static long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    private static long getMaxAllocatedBytes() {
+        if (maxAllocatedBytes < 0) {
+            float percent = 0.2F;
+            if (PigMapReduce.sJobConfInternal.get() != null) {
+                String usage = PigMapReduce.sJobConfInternal.get().get(
+                        PigConfiguration.PROP_CACHEDBAG_MEMUSAGE);
+                if (usage != null) {
+                    percent = Float.parseFloat(usage);
+                }
+            }
+            maxAllocatedBytes = (long) (Runtime.getRuntime().maxMemory() * percent);
+        }
+        return maxAllocatedBytes;
+    }
+
+    @Override
+    public void add(Tuple t) {
+        // done without holding the lock of this bag, which the other bags don't take
+        releaseCollectedPages();
+        if (readBags.get() > 0 && allocatedBytes.get() + PAGE_SIZE > getMaxAllocatedBytes()) {
+            spillReadBags();
+        }
+        synchronized (mContents) {
+            buffer.reset();
+            try {
+                SEDES.writeDatum(bufferOut, t, DataType.TUPLE);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            int length = buffer.size();
+            ByteBuffer page = pages.isEmpty() ? null : pages.get(pages.size() - 1);
+            if (page == null || page.remaining() < length) {
+                page = newPage(length);
+            }
+            page.put(buffer.getBytes(), 0, length);
+            numTuplesInPages++;
+            mSize++;
+        }
+    }
+
+    /**
+     * Adds a page able to hold a record of the given length, after spilling the pages
+     * of the bag if the budget of the JVM is used.
+     */
+    private ByteBuffer newPage(int length) {
+        int capacity = Math.max(nextPageSize, length);
+        if (!pages.isEmpty() && allocatedBytes.get() + capacity > getMaxAllocatedBytes()) {
+            spillPages();
+        }
+        int sizeClass = getSizeClass(capacity);
+        ByteBuffer page = sizeClass < 0 ? null : freePages.get(sizeClass).poll();
+        if (page == null) {
+            page = ByteBuffer.allocateDirect(capacity);
+        }
+        page.clear();
+        allocatedBytes.addAndGet(capacity);
+        pageBytes += capacity;
+        pages.add(page);
+        if (reference == null) {
+            reference = new PagesReference(this, pages);
+            bagsWithPages.put(reference, Boolean.FALSE);
+        }
+        nextPageSize = Math.min(PAGE_SIZE, nextPageSize * 2);
+        return page;
+    }
+
+    /**
+     * @return the index of the free pages of the capacity, -1 if such pages are not kept
+     */
+    private static int getSizeClass(int capacity) {
+        int sizeClass = 0;
+        for (int size = MIN_PAGE_SIZE; size <= PAGE_SIZE; size *= 2) {
+            if (size == capacity) {
+                return sizeClass;
+            }
+            sizeClass++;
+        }
+        return -1;
+    }
+
+    private void releasePages() {
+        releasePages(pages, openIterators == 0);
+        pageBytes = 0;
+    }
+
+    private static void releasePages(List<ByteBuffer> pages, boolean reuse) {
+        synchronized (pages) {
+            for (ByteBuffer page : pages) {
+                allocatedBytes.addAndGet(-page.capacity());
+                int sizeClass = getSizeClass(page.capacity());
+                if (reuse && sizeClass >= 0 && freePages.get(sizeClass).size() < MAX_FREE_PAGES) {
+                    freePages.get(sizeClass).offer(page);
+                }
+            }
+            pages.clear();
+        }
+    }
+
+    /**
+     * Releases the pages of the bags collected by the GC, no iterator can read them anymore
+     */
+    private static void releaseCollectedPages() {
+        Reference<? extends SerializedDataBag> collected;
+        while ((collected = collectedBags.poll()) != null) {
+            PagesReference pagesReference = (PagesReference) collected;
+            if (Boolean.TRUE.equals(bagsWithPages.remove(pagesReference))) {
+                readBags.decrementAndGet();
+            }
+            releasePages(pagesReference.pages, true);
+        }
+    }
+
+    /**
+     * Spills the pages of the other bags read to the end until the budget has room for a page
+     */
+    private void spillReadBags() {
+        for (PagesReference pagesReference : bagsWithPages.keySet()) {
+            if (allocatedBytes.get() + PAGE_SIZE <= getMaxAllocatedBytes()) {
+                return;
+            }
+            if (!Boolean.TRUE.equals(bagsWithPages.get(pagesReference))) {
+                continue;
+            }
+            SerializedDataBag bag = pagesReference.get();
+            if (bag != null && bag != this) {
+                bag.spillRead();
+            }
+        }
+    }
+
+    private void spillRead() {
+        synchronized (mContents) {
+            spillPages();
+            unregister();
+        }
+    }
+
+    /**
+     * Marks the bag read to the end, its pages are then spilled first when the budget is used
+     */
+    private void markRead() {
+        synchronized (mContents) {
+            if (reference != null && Boolean.FALSE.equals(bagsWithPages.replace(reference, Boolean.TRUE))) {
+                readBags.incrementAndGet();
+            }
+        }
+    }
+
+    private void unregister() {
+        if (reference != null) {
+            if (Boolean.TRUE.equals(bagsWithPages.remove(reference))) {
+                readBags.decrementAndGet();
+            }
+            reference.clear();
+            reference = null;
+        }
+    }
+
+    /**
+     * Appends the pages to the spill file, the bytes of a page are those of its records.
+     * @return the number of tuples spilled
+     */
+    private long spillPages() {
+        if (pages.isEmpty()) {
+            return 0;
+        }
+        try {
+            if (spillOut == null) {
+                spillOut = getSpillFile();
+                incSpillCount(PigCounters.PROACTIVE_SPILL_COUNT_BAGS);
+            }
+            byte[] bytes = new byte[8192];
+            for (ByteBuffer page : pages) {
+                ByteBuffer records = page.duplicate();
+                records.flip();
+                while (records.hasRemaining()) {
+                    int length = Math.min(bytes.length, records.remaining());
+                    records.get(bytes, 0, length);
+                    spillOut.write(bytes, 0, length);
+                }
+            }
+            spillOut.flush();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to spill the pages of a serialized bag", e);
+        }
+        long spilled = numTuplesInPages;
+        if (log.isDebugEnabled()) {
+            log.debug("Spilled " + pages.size() + " pages, " + spilled + " records");
+        }
+        incSpillCount(PigCounters.PROACTIVE_SPILL_COUNT_RECS, spilled);
+        releasePages();
+        numTuplesInPages = 0;
+        return spilled;
+    }
+
+    @Override
+    public long spill() {
+        synchronized (mContents) {
+            return spillPages();
+        }
+    }
+
+    /**
+     * @return the exact bytes held by the bag, the pages of direct memory included
+     */
+    @Override
+    public long getMemorySize() {
+        synchronized (mContents) {
+            return pageBytes + buffer.capacity();
+        }
+    }
+
+    @Override
+    public void clear() {
+        synchronized (mContents) {
+            if (spillOut != null) {
+                try {
+                    spillOut.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                spillOut = null;
+            }
+            releasePages();
+            unregister();
+            numTuplesInPages = 0;
+            nextPageSize = MIN_PAGE_SIZE;
+            super.clear();
+        }
+    }
+
+    @Override
+    public boolean isSorted() {
+        return false;
+    }
+
+    @Override
+    public boolean isDistinct() {
+        return false;
+    }
+
+    @Override
+    public Iterator<Tuple> iterator() {
+        synchronized (mContents) {
+            return new SerializedBagIterator();
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        SEDES.writeDatum(out, this, DataType.BAG);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        init();
+        // the fields of DefaultAbstractBag were read as written, the tuples are added again
+        mSize = 0;
+        mSpillFiles = null;
+        addAll((DataBag) SEDES.readDatum(in));
+    }
+
+    /**
+     * The reference to a bag holding pages, to release them once the bag is collected
+     */
+    private static class PagesReference extends WeakReference<SerializedDataBag> {
+        private final List<ByteBuffer> pages;
+
+        PagesReference(SerializedDataBag bag, List<ByteBuffer> pages) {
+            super(bag, collectedBags);
+            this.pages = pages;
+        }
+    }
+
+    /**
+     * Reads the records spilled when it was created, then those of the pages. The records
+     * are counted, a page or a spill file only holds whole records.
+     */
+    private class SerializedBagIterator implements Iterator<Tuple> {
+        private DataInputStream in;
+        private long fileRemaining;
+        private InputStream pagesIn;
+        private long remaining;
+        private long numTuplesRead = 0;
+
+        SerializedBagIterator() {
+            remaining = mSize;
+            fileRemaining = mSize - numTuplesInPages;
+            Vector<InputStream> records = new Vector<InputStream>(pages.size());
+            for (ByteBuffer page : pages) {
+                ByteBuffer pageRecords = page.duplicate();
+                pageRecords.flip();
+                records.add(new ByteBufferInputStream(pageRecords));
+            }
+            pagesIn = new SequenceInputStream(records.elements());
+            if (fileRemaining > 0) {
+                try {
+                    in = new DataInputStream(new BufferedInputStream(
+                            new FileInputStream(mSpillFiles.get(0))));
+                } catch (FileNotFoundException e) {
+                    throw new RuntimeException("Unable to find our spill file.", e);
+                }
+            } else {
+                in = new DataInputStream(pagesIn);
+                pagesIn = null;
+            }
+            if (remaining > 0) {
+                openIterators++;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        @Override
+        public Tuple next() {
+            if (remaining <= 0) {
+                throw new NoSuchElementException("No more elements from iterator");
+            }
+            try {
+                if (fileRemaining == 0 && pagesIn != null) {
+                    in.close();
+                    in = new DataInputStream(pagesIn);
+                    pagesIn = null;
+                }
+                Tuple t = (Tuple) SEDES.readDatum(in);
+                if (fileRemaining > 0) {
+                    fileRemaining--;
+                }
+                remaining--;
+                if (remaining == 0) {
+                    in.close();
+                    done();
+                }
+                // This will report progress every 16383 records.
+                if ((++numTuplesRead & 0x3fff) == 0) reportProgress();
+                return t;
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to read a serialized bag.", e);
+            }
+        }
+
+        private void done() {
+            synchronized (mContents) {
+                openIterators--;
+            }
+            markRead();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("remove is not supported for SerializedBagIterator");
+        }
+    }
+
+    /**
+     * Reads the records of a page
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer records;
+
+        ByteBufferInputStream(ByteBuffer records) {
+            this.records = records;
+        }
+
+        @Override
+        public int read() {
+            return records.hasRemaining() ? records.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!records.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, records.remaining());
+            records.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return records.remaining();
+        }
+    }
+
+    /**
+     * The buffer a tuple is serialized to before being copied to a page
+     */
+    private static class SerializationBuffer extends ByteArrayOutputStream {
+        SerializationBuffer() {
+            super(1024);
+        }
+
+        byte[] getBytes() {
+            return buf;
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+    }
+}
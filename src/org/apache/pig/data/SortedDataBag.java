@@ -17,21 +17,17 @@
  */
 package org.apache.pig.data;
 
-import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.ListIterator;
-import java.util.PriorityQueue;
   
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -62,12 +58,8 @@ public class SortedDataBag extends DefaultAbstractBag{
     transient private Comparator<Tuple> mComp;
     private boolean mReadStarted = false;
 
-    private static class DefaultComparator implements Comparator<Tuple> {
-        @Override
-        @SuppressWarnings("unchecked")
-        public int compare(Tuple t1, Tuple t2) {
-            return t1.compareTo(t2);
-        }
+    private static class DefaultComparator extends NormalizedKeyComparator.TupleComparator {
+        private static final long serialVersionUID = 1L;
 
         @Override
         public boolean equals(Object o) {
@@ -135,7 +127,7 @@ public class SortedDataBag extends DefaultAbstractBag{
                 // phase, in which case more (unsorted) will be added
                 // later.
                 if (!mReadStarted) {
-                    Collections.sort((ArrayList<Tuple>)mContents, mComp);
+                    TupleSorter.sort((ArrayList<Tuple>)mContents, mComp);
                 }
                 Iterator<Tuple> i = mContents.iterator();
                 while (i.hasNext()) {
@@ -179,31 +171,25 @@ public class SortedDataBag extends DefaultAbstractBag{
     private class SortedDataBagIterator implements Iterator<Tuple> {
 
         /**
-         * A container to hold tuples in a priority queue.  Stores the
-         * file number the tuple came from, so that when the tuple is read
-         * out of the queue, we know which file to read its replacement
-         * tuple from.
+         * The tuples of the bag in memory, sorted, as a run of the merge.
+         * If the bag spills while they are read, the run switches to the
+         * spill file they were written to.
          */
-        private class PQContainer implements Comparable<PQContainer> {
-            public Tuple tuple;
-            public int fileNum;
-
-            @Override
-            public int compareTo(PQContainer other) {
-                return mComp.compare(tuple, other.tuple);
-            }
+        private class MemoryRun implements TupleSorter.Run {
+            private FileRun mFileRun = null;
 
             @Override
-            public boolean equals(Object other) {
-                if (other instanceof PQContainer)
-                    return tuple.equals(((PQContainer)other).tuple);
-                else
-                    return false;
-            }
-
-            @Override
-            public int hashCode() {
-                return tuple.hashCode(); 
+            public Tuple next() {
+                if (mFileRun == null) {
+                    synchronized (mContents) {
+                        // Check to see if we were reading from memory but we spilled
+                        if (mMemoryPtr == 0 || mContents.size() > 0) {
+                            return readFromMemory();
+                        }
+                        mFileRun = openSpilledMemory();
+                    }
+                }
+                return mFileRun.next();
             }
         }
 
@@ -212,8 +198,7 @@ public class SortedDataBag extends DefaultAbstractBag{
         // than to read it.
         private Tuple mBuf = null;
         private int mMemoryPtr = 0;
-        private PriorityQueue<PQContainer> mMergeQ = null;
-        private ArrayList<DataInputStream> mStreams = null;
+        private TupleSorter.Merger mMerger = null;
         private int mCntr = 0;
 
         SortedDataBagIterator() {
@@ -221,7 +206,7 @@ public class SortedDataBag extends DefaultAbstractBag{
             synchronized (mContents) {
                 if (!mReadStarted) {
                     preMerge();
-                    Collections.sort((ArrayList<Tuple>)mContents, mComp);
+                    TupleSorter.sort((ArrayList<Tuple>)mContents, mComp);
                     mReadStarted = true;
                 }
             }
@@ -248,76 +233,15 @@ public class SortedDataBag extends DefaultAbstractBag{
             }
 
             // Check to see if we just need to read from memory.
-            boolean spilled = false;
             synchronized (mContents) {
-                if (mSpillFiles == null || mSpillFiles.size() == 0) {
+                if (mMerger == null && (mSpillFiles == null || mSpillFiles.size() == 0)) {
                     return readFromMemory();
                 }
-
-                // Check to see if we were reading from memory but we spilled
-                if (mMemoryPtr > 0 && mContents.size() == 0) {
-                    spilled = true;
-                }
-            }
-
-            if (spilled) {
-                DataInputStream in;
-                // We need to open the new file
-                // and then fast forward past all of the tuples we've
-                // already read.  Then we need to place the first tuple
-                // from that file in the priority queue.  Whatever tuples
-                // from memory that were already in the queue will be fine,
-                // as they're guaranteed to be ahead of the point we fast
-                // foward to.
-                // We're guaranteed that the file we want to read from for
-                // the fast forward is the last element in mSpillFiles,
-                // because we don't support calls to add() after calls to
-                // iterator(), and spill() won't create empty files.
-                try {
-                    in = new DataInputStream(new BufferedInputStream(
-                        new FileInputStream(mSpillFiles.get(
-                                mSpillFiles.size() - 1))));
-                    if (mStreams == null) {
-                        // We didn't have any files before this spill.
-                        mMergeQ = new PriorityQueue<PQContainer>(1);
-                        mStreams = new ArrayList<DataInputStream>(1);
-                    }
-                    mStreams.add(in);
-                } catch (FileNotFoundException fnfe) {
-                    // We can't find our own spill file?  That should never
-                    // happen.
-                    String msg = "Unable to find our spill file.";
-                    log.fatal(msg, fnfe);
-                    throw new RuntimeException(msg, fnfe);
-                }
-
-                // Fast foward past the tuples we've already put in the
-                // queue.
-                for (int i = 0; i < mMemoryPtr; i++) {
-                    try {
-                        SEDES.readDatum(in);
-                    } catch (EOFException eof) {
-                        // This should never happen, it means we
-                        // didn't dump all of our tuples to disk.
-                        String msg = "Ran out of tuples to read prematurely.";
-                        log.fatal(msg, eof);
-                        throw new RuntimeException(msg, eof);
-                    } catch (IOException ioe) {
-                        String msg = "Unable to find our spill file.";
-                        log.fatal(msg, ioe);
-                        throw new RuntimeException(msg, ioe);
-                    }
-                }
-                mMemoryPtr = 0;
-                // Add the next tuple from this file to the queue.
-                addToQueue(null, mSpillFiles.size() - 1);
-                // Fall through to read the next entry from the priority
-                // queue.
             }
 
             // We have spill files, so we need to read the next tuple from
             // one of those files or from memory.
-            return readFromPriorityQ();
+            return readFromMerger();
         }
 
         /**
@@ -326,100 +250,52 @@ public class SortedDataBag extends DefaultAbstractBag{
         @Override
         public void remove() {}
 
-        private Tuple readFromPriorityQ() {
-            if (mMergeQ == null) {
-                // First read, we need to set up the queue and the array of
-                // file streams
+        private Tuple readFromMerger() {
+            if (mMerger == null) {
+                // First read, we need to set up the merge of the files
                 // Add one to the size for the list in memory.
-                mMergeQ =
-                    new PriorityQueue<PQContainer>(mSpillFiles.size() + 1);
-
-                // Add one to the size in case we spill later.
-                mStreams =
-                    new ArrayList<DataInputStream>(mSpillFiles.size() + 1);
-
-                Iterator<File> i = mSpillFiles.iterator();
-                while (i.hasNext()) {
-                    try {
-                        DataInputStream in = 
-                            new DataInputStream(new BufferedInputStream(
-                                new FileInputStream(i.next())));
-                        mStreams.add(in);
-                        // Add the first tuple from this file into the
-                        // merge queue.
-                        addToQueue(null, mStreams.size() - 1);
-                    } catch (FileNotFoundException fnfe) {
-                        // We can't find our own spill file?  That should
-                        // never happen.
-                        String msg = "Unable to find our spill file."; 
-                        log.fatal(msg, fnfe);
-                        throw new RuntimeException(msg, fnfe);
+                List<TupleSorter.Run> runs =
+                    new ArrayList<TupleSorter.Run>(mSpillFiles.size() + 1);
+                synchronized (mContents) {
+                    if (mMemoryPtr > 0) {
+                        // We were reading from memory and spilled.  We're
+                        // guaranteed that the only file is the one the
+                        // memory went to, because we don't support calls to
+                        // add() after calls to iterator(), and spill() won't
+                        // create empty files.
+                        runs.add(new MemoryRun());
+                    } else {
+                        for (File f : mSpillFiles) {
+                            runs.add(new FileRun(f));
+                        }
+                        // Prime one from memory too
+                        if (mContents.size() > 0) {
+                            runs.add(new MemoryRun());
+                        }
                     }
                 }
-
-                // Prime one from memory too
-                if (mContents.size() > 0) {
-                    addToQueue(null, -1);
-                }
+                mMerger = new TupleSorter.Merger(runs, mComp);
             }
-
-            // Pop the top one off the queue
-            PQContainer c = mMergeQ.poll();
-            if (c == null) return null;
-
-            // Add the next tuple from whereever we read from into the
-            // queue.  Buffer the tuple we're returning, as we'll be
-            // reusing c.
-            Tuple t = c.tuple;
-            addToQueue(c, c.fileNum);
-
-            return t;
+            return mMerger.next();
         }
 
-        private void addToQueue(PQContainer c, int fileNum) {
-            if (c == null) {
-                c = new PQContainer();
-            }
-            c.fileNum = fileNum;
-
-            if (fileNum == -1) {
-                // Need to read from memory.  We may have spilled since
-                // this tuple was put in the queue, and hence memory might
-                // be empty.  But I don't care, as then I just won't add
-                // any more from memory.
-                synchronized (mContents) {
-                    c.tuple = readFromMemory();
-                }
-                if (c.tuple != null) {
-                    mMergeQ.add(c);
-                }
-                return;
-            }
-
-            // Read the next tuple from the indicated file
-            DataInputStream in = mStreams.get(fileNum);
-            if (in != null) {
-                // There's still data in this file
-                try {
-                    c.tuple = (Tuple) SEDES.readDatum(in);
-                    mMergeQ.add(c);
-                } catch (EOFException eof) {
-                    // Out of tuples in this file.  Set our slot in the
-                    // array to null so we don't keep trying to read from
-                    // this file.
-                    try {
-                        in.close();
-                    }catch(IOException e) {
-                        log.warn("Failed to close spill file.", e);
-                    }                	
-                    mStreams.set(fileNum, null);
-                } catch (IOException ioe) {
-                    String msg = "Unable to find our spill file.";
-                    log.fatal(msg, ioe);
-                    throw new RuntimeException(msg, ioe);
+        /**
+         * Opens the last spill file, which holds the tuples that were in
+         * memory, and fast forwards past the tuples we've already read.
+         */
+        private FileRun openSpilledMemory() {
+            FileRun run = new FileRun(mSpillFiles.get(mSpillFiles.size() - 1));
+            for (int i = 0; i < mMemoryPtr; i++) {
+                if (run.next() == null) {
+                    // This should never happen, it means we
+                    // didn't dump all of our tuples to disk.
+                    String msg = "Ran out of tuples to read prematurely.";
+                    log.fatal(msg);
+                    throw new RuntimeException(msg);
                 }
-
             }
+            mMemoryPtr = 0;
+            return run;
         }
 
         // Function assumes that the reader lock is already held before we enter
@@ -459,74 +335,88 @@ public class SortedDataBag extends DefaultAbstractBag{
             // size merges.  Convert mSpillFiles to a linked list since
             // we'll be removing pieces from the middle and we want to do
             // it efficiently.
-            try {
-                LinkedList<File> ll = new LinkedList<File>(mSpillFiles);
-                LinkedList<File> filesToDelete = new LinkedList<File>();
-                while (ll.size() > MAX_SPILL_FILES) {
-                    ListIterator<File> i = ll.listIterator();
-                    mStreams =
-                        new ArrayList<DataInputStream>(MAX_SPILL_FILES);
-                    mMergeQ = new PriorityQueue<PQContainer>(MAX_SPILL_FILES);
-
-                    for (int j = 0; j < MAX_SPILL_FILES; j++) {
-                        try {
-                            File f = i.next();
-                            DataInputStream in =
-                                new DataInputStream(new BufferedInputStream(
-                                    new FileInputStream(f)));
-                            mStreams.add(in);
-                            addToQueue(null, mStreams.size() - 1);
-                            i.remove();
-                            filesToDelete.add(f);
-                        } catch (FileNotFoundException fnfe) {
-                            // We can't find our own spill file?  That should
-                            // neer happen.
-                            String msg = "Unable to find our spill file.";
-                            log.fatal(msg, fnfe);
-                            throw new RuntimeException(msg, fnfe);
-                        }
-                    }
+            LinkedList<File> ll = new LinkedList<File>(mSpillFiles);
+            LinkedList<File> filesToDelete = new LinkedList<File>();
+            while (ll.size() > MAX_SPILL_FILES) {
+                ListIterator<File> i = ll.listIterator();
+                List<TupleSorter.Run> runs =
+                    new ArrayList<TupleSorter.Run>(MAX_SPILL_FILES);
+
+                for (int j = 0; j < MAX_SPILL_FILES; j++) {
+                    File f = i.next();
+                    runs.add(new FileRun(f));
+                    i.remove();
+                    filesToDelete.add(f);
+                }
+                TupleSorter.Merger merger = new TupleSorter.Merger(runs, mComp);
 
-                    // Get a new spill file.  This adds one to the end of
-                    // the spill files list.  So I need to append it to my
-                    // linked list as well so that it's still there when I
-                    // move my linked list back to the spill files.
-                    try {
-                        DataOutputStream out = getSpillFile();
-                        ll.add(mSpillFiles.get(mSpillFiles.size() - 1));
-                        Tuple t;
-                        while ((t = readFromPriorityQ()) != null) {
-                            t.write(out);
-                        }
-                        out.flush();
-                        out.close();
-                    } catch (IOException ioe) {
-                        String msg = "Unable to find our spill file.";
-                        log.fatal(msg, ioe);
-                        throw new RuntimeException(msg, ioe);
+                // Get a new spill file.  This adds one to the end of
+                // the spill files list.  So I need to append it to my
+                // linked list as well so that it's still there when I
+                // move my linked list back to the spill files.
+                try {
+                    DataOutputStream out = getSpillFile();
+                    ll.add(mSpillFiles.get(mSpillFiles.size() - 1));
+                    Tuple t;
+                    while ((t = merger.next()) != null) {
+                        t.write(out);
                     }
+                    out.flush();
+                    out.close();
+                } catch (IOException ioe) {
+                    String msg = "Unable to find our spill file.";
+                    log.fatal(msg, ioe);
+                    throw new RuntimeException(msg, ioe);
                 }
-                // delete files that have been merged into new files
-                for(File f : filesToDelete){
-                    if( f.delete() == false){
-                        log.warn("Failed to delete spill file: " + f.getPath());
-                    }
+            }
+            // delete files that have been merged into new files
+            for(File f : filesToDelete){
+                if( f.delete() == false){
+                    log.warn("Failed to delete spill file: " + f.getPath());
                 }
-                
-                // clear the list, so that finalize does not delete any files,
-                // when mSpillFiles is assigned a new value
-                mSpillFiles.clear();
+            }
 
-                // Now, move our new list back to the spill files array.
-                mSpillFiles = new FileList(ll);
+            // clear the list, so that finalize does not delete any files,
+            // when mSpillFiles is assigned a new value
+            mSpillFiles.clear();
 
-            } finally {
-                // Reset mStreams and mMerge so that they'll be allocated
-                // properly for regular merging.
-                mStreams = null;
-                mMergeQ = null;
+            // Now, move our new list back to the spill files array.
+            mSpillFiles = new FileList(ll);
+        }
+    }
+
+    /**
+     * The tuples of a spill file as a run of the merge.
+     */
+    private static class FileRun implements TupleSorter.Run {
+        private DataInputStream in;
+
+        FileRun(File f) {
+            in = TupleSorter.openRun(f);
+        }
+
+        @Override
+        public Tuple next() {
+            if (in == null) {
+                return null;
+            }
+            // Read the next tuple from the file
+            try {
+                return (Tuple) SEDES.readDatum(in);
+            } catch (EOFException eof) {
+                // Out of tuples in this file.
+                try {
+                    in.close();
+                }catch(IOException e) {
+                    log.warn("Failed to close spill file.", e);
+                }
+                in = null;
+                return null;
+            } catch (IOException ioe) {
+                String msg = "Unable to find our spill file.";
+                log.fatal(msg, ioe);
+                throw new RuntimeException(msg, ioe);
             }
         }
     }
 }
-
@@ -72,7 +72,8 @@ public abstract class SortedSpillBag extends SelfSpillBag {
             // as per documentation of collection.sort(), it copies to an array,
             // sorts and copies back to collection
             // Avoiding that extra copy back to collection (mContents) by 
-            // copying to an array and using Arrays.sort
+            // copying to an array and using Arrays.sort. The TupleSorter is
+            // not used here, its keys would take more memory while spilling
             Tuple[] array = new Tuple[mContents.size()];
             mContents.toArray(array);
             if(comp == null)
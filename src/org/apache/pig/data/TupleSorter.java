@@ -0,0 +1,465 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pig.data;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.pig.PigConfiguration;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.PigMapReduce;
+import org.apache.pig.classification.InterfaceAudience;
+import org.apache.pig.classification.InterfaceStability;
+
+/**
+ * Sorts the tuples of the sorted bags, and merges their spill files.
+ *
+ * With a {@link NormalizedKeyComparator}, the key and the prefix of each tuple are computed
+ * once, and the tuples are sorted by a stable merge sort of their indexes comparing the
+ * prefixes first. When {@link PigConfiguration#PROP_SORT_PARALLELISM} is set in the job
+ * configuration, large sorts are split into runs sorted and merged in parallel by up to that
+ * many threads, taken from a pool of one thread per processor shared by all the tasks of the
+ * JVM. Other comparators are used
+ * with {@link Arrays#sort(Object[], Comparator)}.
+ *
+ * The {@link Merger} merges sorted runs with a loser tree, which needs one comparison per
+ * level of the tree for each tuple instead of the two of a priority queue.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class TupleSorter {
+
+    // sorts smaller than this are not split
+    static final int PARALLEL_THRESHOLD = 16 * 1024;
+
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    /** Size of the buffer of the spill files read by a merge */
+    public static final int RUN_BUFFER_SIZE = 64 * 1024;
+
+    private static ExecutorService executor;
+
+    private TupleSorter() {
+    }
+
+    /**
+     * Sorts a list of tuples, stable as {@link java.util.Collections#sort(List, Comparator)}
+     * @param tuples the tuples
+     * @param comp the comparator, null for the natural order of the tuples
+     */
+    public static void sort(List<Tuple> tuples, Comparator<Tuple> comp) {
+        if (tuples.size() < 2) {
+            return;
+        }
+        Tuple[] array = tuples.toArray(new Tuple[tuples.size()]);
+        sort(array, comp);
+        for (int i = 0; i < array.length; i++) {
+            tuples.set(i, array[i]);
+        }
+    }
+
+    /**
+     * Sorts an array of tuples, stable as {@link Arrays#sort(Object[], Comparator)}
+     * @param tuples the tuples
+     * @param comp the comparator, null for the natural order of the tuples
+     */
+    public static void sort(Tuple[] tuples, Comparator<Tuple> comp) {
+        if (comp == null) {
+            comp = new NormalizedKeyComparator.TupleComparator();
+        }
+        if (!(comp instanceof NormalizedKeyComparator)) {
+            Arrays.sort(tuples, comp);
+            return;
+        }
+        int n = tuples.length;
+        if (n < 2) {
+            return;
+        }
+        SortKeys keys = new SortKeys((NormalizedKeyComparator) comp, tuples);
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        int parallelism = n < PARALLEL_THRESHOLD ? 1 : getParallelism();
+        if (parallelism <= 1) {
+            int[] aux = order.clone();
+            mergeSort(aux, order, 0, n, keys);
+        } else {
+            order = parallelSort(order, parallelism, keys);
+        }
+        Tuple[] unsorted = tuples.clone();
+        for (int i = 0; i < n; i++) {
+            tuples[i] = unsorted[order[i]];
+        }
+    }
+
+    private static int getParallelism() {
+        if (PigMapReduce.sJobConfInternal.get() != null) {
+            return PigMapReduce.sJobConfInternal.get().getInt(PigConfiguration.PROP_SORT_PARALLELISM, 1);
+        }
+        return 1;
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            // bounded, the runs of concurrent tasks wait for a thread rather than adding more
+            executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "TupleSorter-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * The keys and prefixes of the tuples being sorted, by index
+     */
+    private static class SortKeys {
+        private final NormalizedKeyComparator comp;
+        private final Object[] keys;
+        // the prefixes with their highest bit flipped, to be compared as signed longs
+        private final long[] prefixes;
+
+        SortKeys(NormalizedKeyComparator comp, Tuple[] tuples) {
+            this.comp = comp;
+            keys = new Object[tuples.length];
+            prefixes = new long[tuples.length];
+            boolean prefixed = true;
+            for (int i = 0; i < tuples.length; i++) {
+                keys[i] = comp.getKey(tuples[i]);
+                prefixed = prefixed && comp.hasPrefix(keys[i]);
+            }
+            if (prefixed) {
+                for (int i = 0; i < tuples.length; i++) {
+                    prefixes[i] = comp.getPrefix(keys[i]) ^ Long.MIN_VALUE;
+                }
+            }
+        }
+
+        int compare(int i, int j) {
+            long p1 = prefixes[i];
+            long p2 = prefixes[j];
+            if (p1 != p2) {
+                return p1 < p2 ? -1 : 1;
+            }
+            return comp.compareKeys(keys[i], keys[j]);
+        }
+    }
+
+    /**
+     * Sorts dst[low, high), src holding the same indexes
+     */
+    private static void mergeSort(int[] src, int[] dst, int low, int high, SortKeys keys) {
+        int length = high - low;
+        if (length < INSERTION_SORT_THRESHOLD) {
+            for (int i = low + 1; i < high; i++) {
+                int index = dst[i];
+                int j = i;
+                while (j > low && keys.compare(dst[j - 1], index) > 0) {
+                    dst[j] = dst[j - 1];
+                    j--;
+                }
+                dst[j] = index;
+            }
+            return;
+        }
+        int mid = (low + high) >>> 1;
+        mergeSort(dst, src, low, mid, keys);
+        mergeSort(dst, src, mid, high, keys);
+        if (keys.compare(src[mid - 1], src[mid]) <= 0) {
+            System.arraycopy(src, low, dst, low, length);
+            return;
+        }
+        merge(src, dst, low, mid, high, keys);
+    }
+
+    /**
+     * Merges the sorted src[low, mid) and src[mid, high) into dst[low, high)
+     */
+    private static void merge(int[] src, int[] dst, int low, int mid, int high, SortKeys keys) {
+        int p = low;
+        int q = mid;
+        for (int i = low; i < high; i++) {
+            if (q >= high || (p < mid && keys.compare(src[p], src[q]) <= 0)) {
+                dst[i] = src[p++];
+            } else {
+                dst[i] = src[q++];
+            }
+        }
+    }
+
+    /**
+     * Sorts runs of the indexes in parallel, then merges pairs of runs in parallel
+     * @return the sorted indexes, in order or in a new array
+     */
+    private static int[] parallelSort(int[] order, int parallelism, final SortKeys keys) {
+        final int n = order.length;
+        int numRuns = Math.min(parallelism, n / INSERTION_SORT_THRESHOLD);
+        int[] bounds = new int[numRuns + 1];
+        for (int i = 0; i <= numRuns; i++) {
+            bounds[i] = (int) ((long) n * i / numRuns);
+        }
+        int[] src = order;
+        int[] dst = order.clone();
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int i = 0; i < numRuns; i++) {
+            final int low = bounds[i];
+            final int high = bounds[i + 1];
+            final int[] runSrc = dst;
+            final int[] runDst = src;
+            tasks.add(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    mergeSort(runSrc, runDst, low, high, keys);
+                    return null;
+                }
+            });
+        }
+        invokeAll(tasks);
+        // the runs are sorted in src, merge them by pairs until one is left
+        while (numRuns > 1) {
+            tasks.clear();
+            int newNumRuns = (numRuns + 1) / 2;
+            int[] newBounds = new int[newNumRuns + 1];
+            for (int i = 0; i < numRuns; i += 2) {
+                final int low = bounds[i];
+                final int mid = bounds[Math.min(i + 1, numRuns)];
+                final int high = bounds[Math.min(i + 2, numRuns)];
+                newBounds[i / 2] = low;
+                final int[] mergeSrc = src;
+                final int[] mergeDst = dst;
+                tasks.add(new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        merge(mergeSrc, mergeDst, low, mid, high, keys);
+                        return null;
+                    }
+                });
+            }
+            newBounds[newNumRuns] = n;
+            invokeAll(tasks);
+            int[] swap = src;
+            src = dst;
+            dst = swap;
+            bounds = newBounds;
+            numRuns = newNumRuns;
+        }
+        return src;
+    }
+
+    private static void invokeAll(List<Callable<Object>> tasks) {
+        if (tasks.size() == 1) {
+            try {
+                tasks.get(0).call();
+            } catch (Exception e) {
+                throw new RuntimeException("Unable to sort the tuples", e);
+            }
+            return;
+        }
+        try {
+            for (Future<Object> future : getExecutor().invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while sorting the tuples", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException("Unable to sort the tuples", e.getCause());
+        }
+    }
+
+    /**
+     * Opens a spill file to be read by a merge
+     */
+    public static DataInputStream openRun(File file) {
+        try {
+            return new DataInputStream(new BufferedInputStream(new FileInputStream(file), RUN_BUFFER_SIZE));
+        } catch (FileNotFoundException fnfe) {
+            // We can't find our own spill file?  That should never happen.
+            throw new RuntimeException("Unable to find our spill file.", fnfe);
+        }
+    }
+
+    /**
+     * A sorted sequence of tuples
+     */
+    public interface Run {
+        /**
+         * @return the next tuple, null when there are no more
+         */
+        Tuple next();
+    }
+
+    /**
+     * Merges sorted runs with a loser tree. Each internal node of the tree holds the run that
+     * lost the match played there, the winner going up; only the matches on the path of the
+     * run the last tuple came from are played again. Runs with equal tuples are returned in
+     * the order of the runs.
+     */
+    public static class Merger {
+        private final Run[] runs;
+        private final Comparator<Tuple> comp;
+        private final NormalizedKeyComparator normalizedComp;
+        private final Tuple[] heads;
+        private final Object[] keys;
+        private final long[] prefixes;
+        private boolean prefixed;
+        // tree[1..k-1] hold the losers, the leaves k..2k-1 are the runs
+        private final int[] tree;
+        private int winner;
+
+        /**
+         * @param runs the runs to merge
+         * @param comp the comparator of the runs, null for the natural order of the tuples
+         */
+        public Merger(List<? extends Run> runs, Comparator<Tuple> comp) {
+            if (comp == null) {
+                comp = new NormalizedKeyComparator.TupleComparator();
+            }
+            this.runs = runs.toArray(new Run[runs.size()]);
+            this.comp = comp;
+            normalizedComp = comp instanceof NormalizedKeyComparator ? (NormalizedKeyComparator) comp : null;
+            int k = this.runs.length;
+            heads = new Tuple[k];
+            keys = new Object[k];
+            prefixes = new long[k];
+            tree = new int[Math.max(1, k)];
+            boolean allPrefixed = normalizedComp != null;
+            for (int i = 0; i < k; i++) {
+                heads[i] = this.runs[i].next();
+                if (heads[i] != null && normalizedComp != null) {
+                    keys[i] = normalizedComp.getKey(heads[i]);
+                    allPrefixed = allPrefixed && normalizedComp.hasPrefix(keys[i]);
+                }
+            }
+            prefixed = allPrefixed;
+            for (int i = 0; i < k; i++) {
+                setPrefix(i);
+            }
+            winner = k == 0 ? -1 : build(1);
+        }
+
+        /**
+         * Plays the matches of the subtree of a node
+         * @return the winner of the subtree
+         */
+        private int build(int node) {
+            int k = runs.length;
+            if (node >= k) {
+                return node - k;
+            }
+            int left = build(2 * node);
+            int right = 2 * node + 1 < 2 * k ? build(2 * node + 1) : -1;
+            if (right < 0) {
+                tree[node] = -1;
+                return left;
+            }
+            if (beats(left, right)) {
+                tree[node] = right;
+                return left;
+            }
+            tree[node] = left;
+            return right;
+        }
+
+        private void setPrefix(int run) {
+            if (prefixed && heads[run] != null) {
+                prefixes[run] = normalizedComp.getPrefix(keys[run]) ^ Long.MIN_VALUE;
+            }
+        }
+
+        /**
+         * @return whether the head of run1 goes before the head of run2
+         */
+        private boolean beats(int run1, int run2) {
+            if (run2 < 0 || heads[run2] == null) {
+                return true;
+            }
+            if (run1 < 0 || heads[run1] == null) {
+                return false;
+            }
+            int c;
+            if (normalizedComp != null) {
+                if (prefixes[run1] != prefixes[run2]) {
+                    c = prefixes[run1] < prefixes[run2] ? -1 : 1;
+                } else {
+                    c = normalizedComp.compareKeys(keys[run1], keys[run2]);
+                }
+            } else {
+                c = comp.compare(heads[run1], heads[run2]);
+            }
+            return c < 0 || (c == 0 && run1 < run2);
+        }
+
+        /**
+         * @return the next tuple of the merge, null when all the runs are done
+         */
+        public Tuple next() {
+            if (winner < 0 || heads[winner] == null) {
+                return null;
+            }
+            Tuple t = heads[winner];
+            int run = winner;
+            heads[run] = runs[run].next();
+            if (heads[run] != null && normalizedComp != null) {
+                keys[run] = normalizedComp.getKey(heads[run]);
+                if (prefixed && !normalizedComp.hasPrefix(keys[run])) {
+                    // the matches played so far are still valid, only the keys are compared now
+                    prefixed = false;
+                    Arrays.fill(prefixes, 0);
+                }
+                setPrefix(run);
+            } else {
+                keys[run] = null;
+            }
+            // play the matches on the path to the root again
+            int candidate = run;
+            for (int node = (run + runs.length) / 2; node >= 1; node /= 2) {
+                if (tree[node] >= 0 && beats(tree[node], candidate)) {
+                    int loser = candidate;
+                    candidate = tree[node];
+                    tree[node] = loser;
+                }
+            }
+            winner = candidate;
+            return t;
+        }
+    }
+}
@@ -28,9 +28,11 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.net.URLDecoder;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
@@ -187,6 +189,35 @@ public class JarManager {
         jarFile.close();
     }
 
+    /**
+     * Lists the jar files containing the functions, and the script jars, that {@link #createJar}
+     * merges besides the core pig classes. The jars of pig itself are skipped.
+     *
+     * @param funcs
+     *            the functions that will be used in a job
+     * @return the paths of the jar files
+     * @throws IOException
+     */
+    public static List<String> getFuncJars(Set<String> funcs, PigContext pigContext) throws IOException {
+        Vector<JarListEntry> jarList = new Vector<JarListEntry>();
+        for (String func: funcs) {
+            Class clazz = pigContext.getClassForAlias(func);
+            if (clazz != null) {
+                addContainingJar(jarList, clazz, null, pigContext);
+            }
+        }
+        List<String> jars = new ArrayList<String>();
+        for (JarListEntry jarEntry : jarList) {
+            jars.add(jarEntry.jar);
+        }
+        for (String scriptJar: pigContext.scriptJars) {
+            if (!jars.contains(scriptJar)) {
+                jars.add(scriptJar);
+            }
+        }
+        return jars;
+    }
+
     /**
      * Creates a Classloader based on the passed jarFile and any extra jar files.
      * 
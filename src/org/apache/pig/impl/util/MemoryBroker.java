@@ -0,0 +1,489 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pig.impl.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.pig.PigConfiguration;
+
+/**
+ * Tracks the memory reserved by the Spillable objects of the JVM against a pool of
+ * {@link PigConfiguration#PROP_MEMORY_BROKER_POOL} of the maximum heap size. The Spillable
+ * objects report their size as they grow, and as soon as the reservations exceed the pool
+ * the objects over their budget, an equal share of the pool between the objects holding
+ * memory, are asked to spill. If that is not enough to get back to three quarters of the pool,
+ * the largest of the other objects are asked to spill too.
+ * <p>
+ * Some Spillable objects only free their memory after spill() returns, e.g. POPartialAgg
+ * flushes its maps as the next records are processed. The reservation of such an object is
+ * counted as being released, and it is not asked to spill again, until it reports a smaller
+ * size.
+ * <p>
+ * The objects reporting their size may hold their own lock, or the lock of another object, so
+ * the objects chosen by {@link #update(Spillable, long)} are spilled on the thread of the
+ * broker rather than on the thread of the caller.
+ * <p>
+ * When turned on with {@link PigConfiguration#PROP_MEMORY_BROKER}, the
+ * {@link SpillableMemoryManager} registers the Spillable objects here, and its memory
+ * notifications only make the broker check the reservations again. As with the
+ * SpillableMemoryManager, Spillable objects are tracked using WeakReferences; their
+ * reservations are released when they are GCed. The pool follows the last
+ * {@link #configure(Properties)}.
+ */
+public class MemoryBroker {
+
+    private static final Log log = LogFactory.getLog(MemoryBroker.class);
+
+    private static final float DEFAULT_POOL_FRACTION = 0.5f;
+
+    // after spilling, reservations are brought down to this fraction of the pool
+    private static final float LOW_WATERMARK = 0.75f;
+
+    private static volatile boolean enabled = false;
+
+    private static float poolFraction = DEFAULT_POOL_FRACTION;
+
+    // Spillable objects smaller than this are not worth a spill file
+    // (default 5MB - this can be overridden by user supplied property)
+    private static long spillFileSizeThreshold = 5000000L;
+
+    private static volatile MemoryBroker broker;
+
+    private long pool;
+
+    private final ExecutorService spiller = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "MemoryBroker-spiller");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Map<Consumer, Consumer> consumers = new HashMap<Consumer, Consumer>();
+
+    private final ReferenceQueue<Spillable> staleConsumers = new ReferenceQueue<Spillable>();
+
+    private final Map<String, ConsumerUsage> usageByType = new TreeMap<String, ConsumerUsage>();
+
+    private long reserved = 0;
+
+    private long peakReserved = 0;
+
+    // reservations of the objects asked to spill that have not reported a smaller size yet
+    private long pendingRelease = 0;
+
+    // reservations below which the consumers are not sorted again, set when
+    // none of them was big enough to be spilled
+    private long nextRebalance = 0;
+
+    private MemoryBroker(long pool) {
+        this.pool = pool;
+    }
+
+    public static MemoryBroker getInstance() {
+        if (broker == null) {
+            synchronized (MemoryBroker.class) {
+                if (broker == null) {
+                    broker = new MemoryBroker((long) (Runtime.getRuntime().maxMemory() * poolFraction));
+                }
+            }
+        }
+        return broker;
+    }
+
+    public static void configure(Properties properties) {
+        enabled = Boolean.parseBoolean(properties.getProperty(PigConfiguration.PROP_MEMORY_BROKER, "false"));
+        String fraction = properties.getProperty(PigConfiguration.PROP_MEMORY_BROKER_POOL);
+        poolFraction = fraction != null ? Float.parseFloat(fraction) : DEFAULT_POOL_FRACTION;
+        if (broker != null) {
+            broker.setPool((long) (Runtime.getRuntime().maxMemory() * poolFraction));
+        }
+        String threshold = properties.getProperty("pig.spill.size.threshold");
+        if (threshold != null) {
+            spillFileSizeThreshold = Long.parseLong(threshold);
+        }
+    }
+
+    /**
+     * @return whether the Spillable objects are registered with the broker
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts tracking a Spillable object. No need to unregister, the tracking will stop
+     * when the spillable is GCed.
+     */
+    public void register(Spillable s) {
+        update(s, s.getMemorySize());
+    }
+
+    /**
+     * Sets the reservation of a Spillable object to its current size, asking the largest
+     * objects to spill if the pool is exceeded. They are spilled on the thread of the broker,
+     * so this can be called while holding locks their spill needs.
+     * @param s the spillable
+     * @param bytes the size of the spillable
+     */
+    public void update(Spillable s, long bytes) {
+        List<Consumer> victims = null;
+        synchronized (this) {
+            expungeStaleConsumers();
+            Consumer consumer = consumers.get(new Consumer(s, null));
+            if (consumer == null) {
+                consumer = new Consumer(s, staleConsumers);
+                consumers.put(consumer, consumer);
+                getUsage(consumer.type).consumers++;
+            }
+            setReserved(consumer, bytes);
+            if (reserved - pendingRelease > pool && reserved >= nextRebalance) {
+                victims = selectVictims();
+            }
+        }
+        if (victims != null && !victims.isEmpty()) {
+            final List<Consumer> toSpill = victims;
+            spiller.execute(new Runnable() {
+                @Override
+                public void run() {
+                    spill(toSpill);
+                }
+            });
+        }
+    }
+
+    /**
+     * Waits for the objects chosen by the previous updates to be spilled
+     */
+    public void awaitSpills() throws InterruptedException {
+        try {
+            spiller.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Asks the largest Spillable objects to spill if the pool is exceeded, on the thread of
+     * the caller. Must not be called while holding a lock the spill of an object may need.
+     */
+    public void rebalance() {
+        List<Consumer> victims;
+        synchronized (this) {
+            expungeStaleConsumers();
+            if (reserved - pendingRelease <= pool) {
+                return;
+            }
+            victims = selectVictims();
+        }
+        spill(victims);
+    }
+
+    /**
+     * @return the budget of each Spillable object, an equal share of the pool between the
+     * objects holding memory
+     */
+    public synchronized long getBudget() {
+        int holders = 0;
+        for (Consumer consumer : consumers.keySet()) {
+            if (consumer.reserved > 0) {
+                holders++;
+            }
+        }
+        return pool / Math.max(1, holders);
+    }
+
+    public synchronized long getPool() {
+        return pool;
+    }
+
+    private synchronized void setPool(long pool) {
+        this.pool = pool;
+        nextRebalance = 0;
+    }
+
+    public synchronized long getReserved() {
+        return reserved;
+    }
+
+    public synchronized long getPeakReserved() {
+        return peakReserved;
+    }
+
+    /**
+     * @return the usage of the Spillable objects, by class name
+     */
+    public synchronized Map<String, ConsumerUsage> getUsage() {
+        Map<String, ConsumerUsage> usage = new TreeMap<String, ConsumerUsage>();
+        for (Map.Entry<String, ConsumerUsage> entry : usageByType.entrySet()) {
+            usage.put(entry.getKey(), new ConsumerUsage(entry.getValue()));
+        }
+        return usage;
+    }
+
+    public void logUsage() {
+        if (log.isInfoEnabled()) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Memory broker pool: ").append(getPool()).append(" bytes, peak reserved: ")
+                    .append(getPeakReserved()).append(" bytes");
+            for (Map.Entry<String, ConsumerUsage> entry : getUsage().entrySet()) {
+                sb.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue());
+            }
+            log.info(sb.toString());
+        }
+    }
+
+    private ConsumerUsage getUsage(String type) {
+        ConsumerUsage usage = usageByType.get(type);
+        if (usage == null) {
+            usage = new ConsumerUsage();
+            usageByType.put(type, usage);
+        }
+        return usage;
+    }
+
+    private void setReserved(Consumer consumer, long bytes) {
+        long delta = bytes - consumer.reserved;
+        if (consumer.pendingRelease > 0 && delta < 0) {
+            // the spill has freed memory
+            pendingRelease -= consumer.pendingRelease;
+            consumer.pendingRelease = 0;
+            getUsage(consumer.type).spilledBytes -= delta;
+        }
+        consumer.reserved = bytes;
+        reserved += delta;
+        peakReserved = Math.max(peakReserved, reserved);
+        ConsumerUsage usage = getUsage(consumer.type);
+        usage.reserved += delta;
+        usage.peakReserved = Math.max(usage.peakReserved, usage.reserved);
+    }
+
+    private void expungeStaleConsumers() {
+        Reference<? extends Spillable> ref;
+        while ((ref = staleConsumers.poll()) != null) {
+            Consumer consumer = consumers.remove(ref);
+            if (consumer != null) {
+                pendingRelease -= consumer.pendingRelease;
+                consumer.pendingRelease = 0;
+                setReserved(consumer, 0);
+                getUsage(consumer.type).consumers--;
+            }
+        }
+    }
+
+    /**
+     * @return the consumers over their budget, and the largest other consumers if needed to
+     * bring the reservations down to the low watermark. Their reservations are counted as
+     * being released.
+     */
+    private List<Consumer> selectVictims() {
+        long budget = getBudget();
+        List<Consumer> sorted = new ArrayList<Consumer>(consumers.keySet());
+        Collections.sort(sorted, new Comparator<Consumer>() {
+            @Override
+            public int compare(Consumer o1, Consumer o2) {
+                if (o1.reserved == o2.reserved) {
+                    return 0;
+                }
+                return o1.reserved < o2.reserved ? 1 : -1;
+            }
+        });
+        List<Consumer> victims = new ArrayList<Consumer>();
+        long target = (long) (pool * LOW_WATERMARK);
+        long remaining = reserved - pendingRelease;
+        for (Consumer consumer : sorted) {
+            if (consumer.reserved <= budget) {
+                break;
+            }
+            if (consumer.pendingRelease == 0 && consumer.reserved >= spillFileSizeThreshold) {
+                victims.add(consumer);
+                remaining -= consumer.reserved;
+            }
+        }
+        for (Consumer consumer : sorted) {
+            if (remaining <= target || consumer.reserved < spillFileSizeThreshold) {
+                break;
+            }
+            if (consumer.pendingRelease == 0 && consumer.reserved <= budget) {
+                victims.add(consumer);
+                remaining -= consumer.reserved;
+            }
+        }
+        for (Consumer consumer : victims) {
+            consumer.pendingRelease = consumer.reserved;
+            pendingRelease += consumer.reserved;
+        }
+        if (victims.isEmpty()) {
+            // only small objects, wait for the reservations to grow before trying again
+            nextRebalance = reserved + spillFileSizeThreshold;
+        } else {
+            nextRebalance = 0;
+        }
+        return victims;
+    }
+
+    private void spill(List<Consumer> victims) {
+        long freed = 0;
+        int numObjSpilled = 0;
+        for (Consumer consumer : victims) {
+            Spillable s = consumer.get();
+            if (s == null) {
+                continue;
+            }
+            try {
+                s.spill();
+            } catch (RuntimeException e) {
+                log.warn("Unable to spill " + consumer.type, e);
+                synchronized (this) {
+                    pendingRelease -= consumer.pendingRelease;
+                    consumer.pendingRelease = 0;
+                }
+                continue;
+            }
+            long size = s.getMemorySize();
+            synchronized (this) {
+                if (consumers.containsKey(consumer)) {
+                    // objects spilling asynchronously keep their reservation until they
+                    // report a smaller size
+                    long before = consumer.reserved;
+                    setReserved(consumer, Math.min(before, size));
+                    getUsage(consumer.type).spills++;
+                    freed += before - Math.min(before, size);
+                }
+            }
+            numObjSpilled++;
+        }
+        if (numObjSpilled > 0 && log.isInfoEnabled()) {
+            log.info("Spilled an estimate of " + freed + " bytes from " + numObjSpilled
+                    + " objects, reserved: " + getReserved() + " bytes of " + getPool());
+        }
+    }
+
+    /**
+     * A Spillable object and its reservation. Two consumers are equal if they track the
+     * same object, so that the consumer of an object can be looked up without holding on
+     * to the object.
+     */
+    private static class Consumer extends WeakReference<Spillable> {
+        private final int hash;
+        private final String type;
+        private long reserved = 0;
+        private long pendingRelease = 0;
+
+        Consumer(Spillable s, ReferenceQueue<Spillable> queue) {
+            super(s, queue);
+            hash = System.identityHashCode(s);
+            type = s.getClass().getSimpleName();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Consumer)) {
+                return false;
+            }
+            Spillable s = get();
+            return s != null && s == ((Consumer) other).get();
+        }
+    }
+
+    /**
+     * The usage of the pool by the Spillable objects of a class
+     */
+    public static class ConsumerUsage {
+        private int consumers = 0;
+        private long reserved = 0;
+        private long peakReserved = 0;
+        private long spills = 0;
+        private long spilledBytes = 0;
+
+        ConsumerUsage() {
+        }
+
+        ConsumerUsage(ConsumerUsage other) {
+            consumers = other.consumers;
+            reserved = other.reserved;
+            peakReserved = other.peakReserved;
+            spills = other.spills;
+            spilledBytes = other.spilledBytes;
+        }
+
+        /**
+         * @return the number of objects tracked
+         */
+        public int getConsumers() {
+            return consumers;
+        }
+
+        public long getReserved() {
+            return reserved;
+        }
+
+        public long getPeakReserved() {
+            return peakReserved;
+        }
+
+        /**
+         * @return the number of times the objects were asked to spill
+         */
+        public long getSpills() {
+            return spills;
+        }
+
+        /**
+         * @return the estimated bytes freed by the spills
+         */
+        public long getSpilledBytes() {
+            return spilledBytes;
+        }
+
+        @Override
+        public String toString() {
+            return consumers + " objects, reserved: " + reserved + " bytes, peak: " + peakReserved
+                    + " bytes, " + spills + " spills freeing " + spilledBytes + " bytes";
+        }
+    }
+}
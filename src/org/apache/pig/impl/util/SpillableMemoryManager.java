@@ -139,6 +139,7 @@ public class SpillableMemoryManager implements NotificationListener {
 
     public static void configure(Properties properties) {
         
+        MemoryBroker.configure(properties);
         try {
             
             spillFileSizeThreshold = Long.parseLong(
@@ -155,6 +156,11 @@ public class SpillableMemoryManager implements NotificationListener {
     
     @Override
     public void handleNotification(Notification n, Object o) {
+        if (MemoryBroker.isEnabled()) {
+            // the broker spills before the thresholds are reached, this is only a backstop
+            MemoryBroker.getInstance().rebalance();
+            return;
+        }
         CompositeData cd = (CompositeData) n.getUserData();
         MemoryNotificationInfo info = MemoryNotificationInfo.from(cd);
         // free the amount exceeded over the threshold and then a further half
@@ -317,10 +323,15 @@ public class SpillableMemoryManager implements NotificationListener {
     }
     /**
      * Register a spillable to be tracked. No need to unregister, the tracking will stop
-     * when the spillable is GCed.
+     * when the spillable is GCed. When the {@link MemoryBroker} is enabled the spillable
+     * is tracked by the broker instead.
      * @param s the spillable to track.
      */
     public void registerSpillable(Spillable s) {
+        if (MemoryBroker.isEnabled()) {
+            MemoryBroker.getInstance().register(s);
+            return;
+        }
         synchronized(spillables) {
             // Cleaing the entire list is too expensive.  Just trim off the front while
             // we can.
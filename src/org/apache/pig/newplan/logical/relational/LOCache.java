@@ -17,6 +17,7 @@
  */
 package org.apache.pig.newplan.logical.relational;
 
+import java.util.Arrays;
 import java.util.List;
 
 import org.apache.pig.impl.logicalLayer.FrontendException;
@@ -30,10 +31,28 @@ import org.apache.pig.newplan.PlanVisitor;
  */
 public class LOCache extends LogicalRelationalOperator {
 
+    /**
+     * The levels a relation can be cached at, as in CACHE A USING 'MEMORY_AND_DISK'
+     */
+    public static final List<String> STORAGE_LEVELS = Arrays.asList(
+            "MEMORY_ONLY", "MEMORY_ONLY_SER", "MEMORY_AND_DISK", "MEMORY_AND_DISK_SER", "DISK_ONLY");
+
+    public static final String DEFAULT_STORAGE_LEVEL = "MEMORY_ONLY";
+
+    private String storageLevel = DEFAULT_STORAGE_LEVEL;
+
     public LOCache(OperatorPlan plan) {
         super("LOCache", plan);
     }
 
+    public String getStorageLevel() {
+        return storageLevel;
+    }
+
+    public void setStorageLevel(String storageLevel) {
+        this.storageLevel = storageLevel;
+    }
+
     @Override
     public LogicalSchema getSchema() throws FrontendException {
         if (schema == null) {
@@ -436,7 +436,7 @@ case_cond: ^( CASE_COND ^( WHEN cond+ ) ^( THEN expr+ ) )
 limit_clause : ^( LIMIT rel ( INTEGER | LONGINTEGER | expr ) )
 ;
 
-rel_cache_clause : ^( CACHE IDENTIFIER)
+rel_cache_clause : ^( CACHE IDENTIFIER QUOTEDSTRING? )
 ;
 
 sample_clause : ^( SAMPLE rel ( DOUBLENUMBER | expr ) )
@@ -870,7 +870,15 @@ public class LogicalPlanBuilder {
     }
 
     public String buildCacheOp(SourceLocation loc, LOCache cacheOp,
-            String inputAlias) throws ParserValidationException {
+            String inputAlias, String storageLevel) throws ParserValidationException {
+        if (storageLevel != null) {
+            storageLevel = storageLevel.toUpperCase();
+            if (!LOCache.STORAGE_LEVELS.contains(storageLevel)) {
+                throw new ParserValidationException(intStream, loc, "Unknown cache storage level "
+                        + storageLevel + ", expected one of " + LOCache.STORAGE_LEVELS);
+            }
+            cacheOp.setStorageLevel(storageLevel);
+        }
         String newAlias = newOperatorKey();
         String alias = buildOp(loc, cacheOp, newAlias, inputAlias, null);
         operators.remove(newAlias);
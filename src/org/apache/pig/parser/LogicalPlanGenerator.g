@@ -206,11 +206,14 @@ realias_clause
 ;
 
 rel_cache_clause
-: ^( CACHE IDENTIFIER )
+@init {
+    String storageLevel = null;
+}
+: ^( CACHE IDENTIFIER ( QUOTEDSTRING { storageLevel = builder.unquote( $QUOTEDSTRING.text ); } )? )
     {
         LOCache cacheOp = builder.createCacheOp();
         String alias = builder.buildCacheOp(new SourceLocation( (PigParserNode) $rel_cache_clause.start ),
-            cacheOp, $IDENTIFIER.text);
+            cacheOp, $IDENTIFIER.text, storageLevel);
     }
 ;
 
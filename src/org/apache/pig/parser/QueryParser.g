@@ -253,8 +253,8 @@ foreach_plan_simple : GENERATE flatten_generated_item ( COMMA flatten_generated_
 macro_content : LEFT_CURLY ( macro_content | ~(LEFT_CURLY | RIGHT_CURLY) )* RIGHT_CURLY
 ;
 
-rel_cache_clause : CACHE IDENTIFIER
-    -> ^(CACHE IDENTIFIER)
+rel_cache_clause : CACHE IDENTIFIER ( USING QUOTEDSTRING )?
+    -> ^(CACHE IDENTIFIER QUOTEDSTRING?)
 ;
 
 macro_param_clause : LEFT_PAREN ( identifier_plus (COMMA identifier_plus)* )? RIGHT_PAREN
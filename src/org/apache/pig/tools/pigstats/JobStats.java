@@ -341,6 +341,19 @@ public final class JobStats extends Operator {
         return sb.toString();
     }
 
+    @SuppressWarnings("deprecation")
+    void setCounters(Counters counters) {
+        this.counters = counters;
+    }
+
+    void addOutputStats(OutputStats outputStats) {
+        outputs.add(outputStats);
+    }
+
+    void addInputStats(InputStats inputStats) {
+        inputs.add(inputStats);
+    }
+
     @SuppressWarnings("deprecation")
     void addCounters(RunningJob rjob) {
         if (rjob != null) {
@@ -24,13 +24,17 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
 
 import org.apache.commons.collections.IteratorUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.mapred.Counters;
 import org.apache.hadoop.mapred.JobClient;
+import org.apache.pig.PigConfiguration;
 import org.apache.pig.PigException;
 import org.apache.pig.PigRunner.ReturnCode;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.util.OperatorProfiler;
 import org.apache.pig.classification.InterfaceAudience;
 import org.apache.pig.classification.InterfaceStability;
 import org.apache.pig.impl.logicalLayer.FrontendException;
@@ -193,6 +197,27 @@ public abstract class PigStats {
     public abstract OutputStats result(String alias);
     
     public abstract List<InputStats> getInputStats();    
+
+    /**
+     * Returns the counters of the operator profile, summed over the jobs of the script.
+     * They are only collected if {@link PigConfiguration#OPERATOR_PROFILE_PROP} is set,
+     * see {@link OperatorProfiler}.
+     */
+    @SuppressWarnings("deprecation")
+    public Map<String, Long> getOperatorProfile() {
+        Map<String, Long> profile = new TreeMap<String, Long>();
+        for (JobStats jobStats : getJobGraph()) {
+            Counters counters = jobStats.getHadoopCounters();
+            if (counters == null) {
+                continue;
+            }
+            for (Counters.Counter counter : counters.getGroup(OperatorProfiler.COUNTER_GROUP)) {
+                Long value = profile.get(counter.getName());
+                profile.put(counter.getName(), (value == null ? 0 : value) + counter.getValue());
+            }
+        }
+        return profile;
+    }
     
     void setErrorMessage(String errorMessage) {
         this.errorMessage = errorMessage;
@@ -1,29 +1,153 @@
 package org.apache.pig.tools.pigstats;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.Counters;
 import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobID;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POLoad;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POStore;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.util.OperatorProfiler;
+import org.apache.pig.impl.PigContext;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
+/**
+ * Statistics of a script run by Spark. Every store of the plan is run as a Spark job and
+ * gets its {@link JobStats}, with its inputs, outputs and the counters of the
+ * {@link #COUNTER_GROUP} group, and the time of its stages in the {@link #STAGE_COUNTER_GROUP}
+ * group.
+ */
 public class SparkStats extends PigStats {
-    private List<OutputStats> outputStatsList = new ArrayList<OutputStats>();
+    private static final Log LOG = LogFactory.getLog(SparkStats.class);
+
+    public static final String COUNTER_GROUP = "SparkStats";
+    /** Wall time of the job, in milliseconds */
+    public static final String WALL_TIME = "WALL_TIME_MILLIS";
+    /** Records sent to the shuffles of the job */
+    public static final String SHUFFLE_RECORDS = "SHUFFLE_RECORDS";
+    /** Bytes sent to the shuffles of the job, the size of the records in the binary format of Pig */
+    public static final String SHUFFLE_BYTES = "SHUFFLE_BYTES";
+    /**
+     * Records of the inputs the job shares with other jobs: they are read once for all of them, and
+     * each one reports them in its input stats
+     */
+    public static final String SHARED_INPUT_RECORDS = "SHARED_INPUT_RECORDS";
+    /**
+     * Time taken by the tasks of each stage of the job, in milliseconds, by the key of the operator
+     * ending the stage: a shuffle or the store of the job
+     */
+    public static final String STAGE_COUNTER_GROUP = "SparkStats.StageMillis";
+
+    private final PigContext pigContext;
+    private final String jobTrackerId;
     private JobGraph jobGraph = new JobGraph();
 
-    public void addOutputInfo(POStore poStore, long totalBytes, long totalRecords, boolean success, Configuration conf) {
+    private long startTime = -1;
+    private long endTime = -1;
+
+    public SparkStats(PigContext pigContext) {
+        this.pigContext = pigContext;
+        this.jobTrackerId = "spark" + System.currentTimeMillis();
+    }
+
+    public void markStart() {
+        startTime = System.currentTimeMillis();
+    }
+
+    public void stop() {
+        endTime = System.currentTimeMillis();
+        returnCode = isSuccessful() ? ReturnCode.SUCCESS : ReturnCode.FAILURE;
+    }
+
+    /**
+     * Adds the stats of the job running a store, and notifies the listeners that it started.
+     */
+    @SuppressWarnings("deprecation")
+    public JobStats addJobStats(POStore poStore) {
+        JobStats jobStats = new JobStats(poStore.getOperatorKey().toString(), jobGraph);
+        jobStats.setId(new JobID(jobTrackerId, jobGraph.size() + 1));
+        jobStats.annotate(JobStats.ALIAS, poStore.getAlias());
+        jobStats.annotate(JobStats.FEATURE, ScriptState.PIG_FEATURE.UNKNOWN.name());
+        jobGraph.add(jobStats);
+        ScriptState.get().emitJobStartedNotification(jobStats.getJobId());
+        return jobStats;
+    }
+
+    public void addOutputInfo(JobStats jobStats, POStore poStore, long totalRecords, boolean success,
+            Configuration conf) {
+        long totalBytes = success ? JobStats.getOutputSize(poStore, conf) : -1;
         OutputStats outputStats = new OutputStats(poStore.getSFile().getFileName(), totalBytes, totalRecords, success);
         outputStats.setPOStore(poStore);
         outputStats.setConf(conf);
-        outputStatsList.add(outputStats);
+        jobStats.addOutputStats(outputStats);
+        if (success) {
+            ScriptState.get().emitOutputCompletedNotification(outputStats);
+        }
+    }
+
+    public void addInputInfo(JobStats jobStats, POLoad poLoad, long totalBytes, long totalRecords,
+            boolean success, Configuration conf) {
+        String location = poLoad.getLFile().getFileName();
+        if (PigStatsUtil.isTempFile(location)) {
+            return;
+        }
+        InputStats inputStats = new InputStats(location, totalBytes, totalRecords, success);
+        inputStats.setConf(conf);
+        jobStats.addInputStats(inputStats);
+    }
+
+    /**
+     * Sets the counters of a finished job and notifies the listeners.
+     * @param stageMillis the time taken by the tasks of each stage, by the key of the operator
+     * ending it
+     * @param operatorProfile the counters of the operator profile of the job, see
+     * {@link org.apache.pig.backend.hadoop.executionengine.physicalLayer.util.OperatorProfiler}
+     * @param exception the cause of the failure, null if the job succeeded
+     */
+    @SuppressWarnings("deprecation")
+    public void finishJob(JobStats jobStats, long wallTime, long shuffleRecords, long shuffleBytes,
+            long sharedInputRecords, Map<String, Long> stageMillis, Map<String, Long> operatorProfile,
+            Exception exception) {
+        Counters counters = new Counters();
+        counters.incrCounter(COUNTER_GROUP, WALL_TIME, wallTime);
+        counters.incrCounter(COUNTER_GROUP, SHUFFLE_RECORDS, shuffleRecords);
+        counters.incrCounter(COUNTER_GROUP, SHUFFLE_BYTES, shuffleBytes);
+        counters.incrCounter(COUNTER_GROUP, SHARED_INPUT_RECORDS, sharedInputRecords);
+        for (Map.Entry<String, Long> stage : stageMillis.entrySet()) {
+            counters.incrCounter(STAGE_COUNTER_GROUP, stage.getKey(), stage.getValue());
+        }
+        for (Map.Entry<String, Long> counter : operatorProfile.entrySet()) {
+            counters.incrCounter(OperatorProfiler.COUNTER_GROUP, counter.getKey(), counter.getValue());
+        }
+        jobStats.setCounters(counters);
+        LOG.info("Job " + jobStats.getJobId() + " took " + wallTime + " ms, shuffled " + shuffleRecords
+                + " records (" + shuffleBytes + " bytes), stage task times in ms: " + stageMillis
+                + (sharedInputRecords > 0 ? ", input records shared with other jobs: " + sharedInputRecords : ""));
+
+        if (exception == null) {
+            jobStats.setSuccessful(true);
+            ScriptState.get().emitjobFinishedNotification(jobStats);
+        } else {
+            jobStats.setSuccessful(false);
+            jobStats.setErrorMsg(exception.getMessage());
+            jobStats.setBackendException(exception);
+            ScriptState.get().emitJobFailedNotification(jobStats);
+        }
     }
 
     @Override
     public boolean isSuccessful() {
-        for (OutputStats output : outputStatsList) {
-            if (!output.isSuccessful()) { return false; }
+        Iterator<JobStats> it = jobGraph.iterator();
+        while (it.hasNext()) {
+            if (!it.next().isSuccessful()) { return false; }
         }
         return true;
     }
@@ -50,7 +174,7 @@ public class SparkStats extends PigStats {
 
     @Override
     public Properties getPigProperties() {
-        return null;
+        return pigContext.getProperties();
     }
 
     @Override
@@ -60,26 +184,48 @@ public class SparkStats extends PigStats {
 
     @Override
     public List<String> getOutputLocations() {
-        return null;
+        List<String> locations = new ArrayList<String>();
+        for (OutputStats output : getOutputStats()) {
+            locations.add(output.getLocation());
+        }
+        return Collections.unmodifiableList(locations);
     }
 
     @Override
     public List<String> getOutputNames() {
-        return null;
+        List<String> names = new ArrayList<String>();
+        for (OutputStats output : getOutputStats()) {
+            names.add(output.getName());
+        }
+        return Collections.unmodifiableList(names);
     }
 
     @Override
     public long getNumberBytes(String location) {
-        return 0;
+        OutputStats output = getOutput(location);
+        return output == null ? -1 : output.getBytes();
     }
 
     @Override
     public long getNumberRecords(String location) {
-        return 0;
+        OutputStats output = getOutput(location);
+        return output == null ? -1 : output.getNumberRecords();
     }
 
     @Override
     public String getOutputAlias(String location) {
+        OutputStats output = getOutput(location);
+        return output == null ? null : output.getAlias();
+    }
+
+    private OutputStats getOutput(String location) {
+        if (location == null) return null;
+        String name = new Path(location).getName();
+        for (OutputStats output : getOutputStats()) {
+            if (name.equals(output.getName())) {
+                return output;
+            }
+        }
         return null;
     }
 
@@ -100,46 +246,72 @@ public class SparkStats extends PigStats {
 
     @Override
     public long getBytesWritten() {
-        return 0;
+        Iterator<JobStats> it = jobGraph.iterator();
+        long ret = 0;
+        while (it.hasNext()) {
+            ret += it.next().getBytesWritten();
+        }
+        return ret;
     }
 
     @Override
     public long getRecordWritten() {
-        return 0;
+        Iterator<JobStats> it = jobGraph.iterator();
+        long ret = 0;
+        while (it.hasNext()) {
+            ret += it.next().getRecordWrittern();
+        }
+        return ret;
     }
 
     @Override
     public String getScriptId() {
-        return null;
+        return ScriptState.get().getId();
     }
 
     @Override
     public String getFeatures() {
-        return null;
+        return ScriptState.get().getScriptFeatures();
     }
 
     @Override
     public long getDuration() {
-        return 0;
+        return (startTime > 0 && endTime > 0) ? (endTime - startTime) : -1;
     }
 
     @Override
     public int getNumberJobs() {
-        return 0;
+        return jobGraph.size();
     }
 
     @Override
     public List<OutputStats> getOutputStats() {
-        return outputStatsList;
+        List<OutputStats> outputs = new ArrayList<OutputStats>();
+        Iterator<JobStats> it = jobGraph.iterator();
+        while (it.hasNext()) {
+            outputs.addAll(it.next().getOutputs());
+        }
+        return Collections.unmodifiableList(outputs);
     }
 
     @Override
     public OutputStats result(String alias) {
+        if (alias == null) return null;
+        for (OutputStats output : getOutputStats()) {
+            if (alias.equals(output.getAlias())) {
+                return output;
+            }
+        }
         return null;
     }
 
     @Override
     public List<InputStats> getInputStats() {
-        return null;
+        List<InputStats> inputs = new ArrayList<InputStats>();
+        Iterator<JobStats> it = jobGraph.iterator();
+        while (it.hasNext()) {
+            inputs.addAll(it.next().getInputs());
+        }
+        return Collections.unmodifiableList(inputs);
     }
 }
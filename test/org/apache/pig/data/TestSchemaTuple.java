@@ -36,6 +36,7 @@ import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -43,6 +44,7 @@ import java.util.Properties;
 import java.util.Random;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.TaskAttemptID;
@@ -67,6 +69,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import com.google.common.collect.Maps;
+import com.google.common.io.Files;
 
 public class TestSchemaTuple {
     private Properties props;
@@ -78,12 +81,92 @@ public class TestSchemaTuple {
     public void perTestInitialize() {
         props = new Properties();
         props.setProperty(PigConfiguration.SHOULD_USE_SCHEMA_TUPLE, "true");
+        props.setProperty(PigConfiguration.SCHEMA_TUPLE_CLASS_CACHE_DIR,
+                new File(Files.createTempDir(), "cache").getAbsolutePath());
 
         conf = ConfigurationUtil.toConfiguration(props);
 
         pigContext = new PigContext(ExecType.LOCAL, props);
     }
 
+    @Test
+    public void testCompileAndResolveWithJavac() throws Exception {
+        props.setProperty(PigConfiguration.SCHEMA_TUPLE_USE_JAVAC, "true");
+        conf = ConfigurationUtil.toConfiguration(props);
+        testCompileAndResolve();
+    }
+
+    @Test
+    public void testClassCache() throws Exception {
+        SchemaTupleFrontend.reset();
+        testCompileAndResolve();
+
+        File cacheDir = new File(props.getProperty(PigConfiguration.SCHEMA_TUPLE_CLASS_CACHE_DIR));
+        File[] entries = cacheDir.listFiles();
+        assertTrue(entries.length > 0);
+        for (File entry : entries) {
+            assertTrue(entry.setLastModified(0));
+        }
+
+        // the classes are found in the cache even with other identifiers, and are touched
+        SchemaTupleFrontend.reset();
+        pigContext = new PigContext(ExecType.LOCAL, props);
+        SchemaTupleFrontend.registerToGenerateIfPossible(Utils.getSchemaFromString("shifted:double"),
+                false, GenContext.UDF);
+        testCompileAndResolve();
+
+        assertEquals(entries.length + 1, cacheDir.listFiles().length);
+        for (File entry : entries) {
+            assertTrue(entry.lastModified() > 0);
+        }
+    }
+
+    @Test
+    public void testClassCacheDirectory() throws Exception {
+        // created private to the user
+        File cacheDir = new File(props.getProperty(PigConfiguration.SCHEMA_TUPLE_CLASS_CACHE_DIR));
+        assertNotNull(SchemaTupleClassCache.getInstance(conf));
+        assertTrue(cacheDir.isDirectory());
+        assertEquals((short) 0700, FileSystem.getLocal(conf).getFileStatus(new Path(cacheDir.getPath()))
+                .getPermission().toShort());
+
+        // not used when others can write to it
+        File shared = new File(Files.createTempDir(), "shared");
+        assertTrue(shared.mkdir());
+        assertTrue(shared.setWritable(true, false));
+        props.setProperty(PigConfiguration.SCHEMA_TUPLE_CLASS_CACHE_DIR, shared.getAbsolutePath());
+        assertNull(SchemaTupleClassCache.getInstance(ConfigurationUtil.toConfiguration(props)));
+    }
+
+    @Test
+    public void testClassCacheMaxEntries() throws Exception {
+        props.setProperty(PigConfiguration.SCHEMA_TUPLE_CLASS_CACHE_MAX_ENTRIES, "2");
+        SchemaTupleClassCache cache = SchemaTupleClassCache.getInstance(ConfigurationUtil.toConfiguration(props));
+        File cacheDir = new File(props.getProperty(PigConfiguration.SCHEMA_TUPLE_CLASS_CACHE_DIR));
+        // a file being written by another client
+        File tmp = new File(cacheDir, "key.tmp");
+        assertTrue(tmp.createNewFile());
+        assertTrue(tmp.setLastModified(0));
+        Map<String, byte[]> classes = Maps.newHashMap();
+        classes.put("SchemaTuple_0", new byte[] { 1 });
+        List<Integer> nestedIds = Collections.emptyList();
+        for (int i = 0; i < 3; i++) {
+            cache.put("key" + i, 0, nestedIds, classes);
+            assertTrue(new File(cacheDir, "key" + i).setLastModified((i + 1) * 1000L));
+        }
+        assertTrue(tmp.exists());
+        assertNull(cache.get("key0", 0, nestedIds));
+        assertNotNull(cache.get("key1", 0, nestedIds));
+        assertNotNull(cache.get("key2", 0, nestedIds));
+
+        // key1 was read after key2 was written, so key2 is evicted first
+        assertTrue(new File(cacheDir, "key2").setLastModified(1000L));
+        assertNotNull(cache.get("key1", 0, nestedIds));
+        cache.put("key3", 0, nestedIds, classes);
+        assertNull(cache.get("key2", 0, nestedIds));
+        assertNotNull(cache.get("key1", 0, nestedIds));
+    }
+
     @Test
     public void testCompileAndResolve() throws Exception {
         //frontend
@@ -3,29 +3,59 @@ package org.apache.pig.spark;
 import static org.apache.pig.builtin.mock.Storage.bag;
 import static org.apache.pig.builtin.mock.Storage.tuple;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Iterator;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.log4j.Level;
+import org.apache.log4j.SimpleLayout;
+import org.apache.log4j.WriterAppender;
+import org.apache.pig.EvalFunc;
 import org.apache.pig.ExecType;
+import org.apache.pig.PigConfiguration;
 import org.apache.pig.PigServer;
 import org.apache.pig.backend.executionengine.ExecException;
 import org.apache.pig.backend.executionengine.ExecJob;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.PigMapReduce;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.PhysicalOperator;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhysicalPlan;
+import org.apache.pig.backend.hadoop.executionengine.physicalLayer.util.OperatorProfiler;
+import org.apache.pig.backend.hadoop.executionengine.spark.InputSizeParallelismEstimator;
+import org.apache.pig.backend.hadoop.executionengine.spark.PigKryoRegistrator;
+import org.apache.pig.backend.hadoop.executionengine.spark.SparkSession;
+import org.apache.pig.backend.hadoop.executionengine.spark.SparkUtil;
 import org.apache.pig.builtin.mock.Storage;
 import org.apache.pig.builtin.mock.Storage.Data;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataByteArray;
 import org.apache.pig.data.Tuple;
+import org.apache.pig.tools.pigstats.InputStats;
+import org.apache.pig.tools.pigstats.JobStats;
+import org.apache.pig.tools.pigstats.PigStats;
+import org.apache.pig.tools.pigstats.SparkStats;
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.esotericsoftware.kryo.Kryo;
+import com.google.common.io.Files;
+
 public class TestSpark {
 
     private static final ExecType MODE = ExecType.SPARK;
@@ -65,6 +95,228 @@ public class TestSpark {
                 data.get("output"));
     }
 
+    @Test
+    public void testStats() throws Exception {
+        PigServer pigServer = newPigServer();
+        Data data = Storage.resetData(pigServer);
+        data.set("input",
+                tuple("a", 1),
+                tuple("b", 2),
+                tuple("a", 3));
+        pigServer.setBatchOn();
+        pigServer.registerQuery("A = LOAD 'input' using mock.Storage;");
+        pigServer.registerQuery("B = GROUP A BY $0;");
+        pigServer.registerQuery("STORE B INTO 'output' using mock.Storage;");
+        List<ExecJob> executeBatch = pigServer.executeBatch();
+
+        PigStats stats = executeBatch.get(0).getStatistics();
+        assertTrue(stats.isSuccessful());
+        assertEquals(1, stats.getNumberJobs());
+        assertEquals(2, stats.getNumberRecords("output"));
+        assertEquals(1, stats.getInputStats().size());
+        assertEquals(3, stats.getInputStats().get(0).getNumberRecords());
+        JobStats jobStats = stats.getJobGraph().iterator().next();
+        assertEquals(3, jobStats.getHadoopCounters().getGroup(SparkStats.COUNTER_GROUP)
+                .getCounter(SparkStats.SHUFFLE_RECORDS));
+        assertTrue(jobStats.getHadoopCounters().getGroup(SparkStats.COUNTER_GROUP)
+                .getCounter(SparkStats.SHUFFLE_BYTES) > 0);
+        assertEquals(0, jobStats.getHadoopCounters().getGroup(SparkStats.COUNTER_GROUP)
+                .getCounter(SparkStats.SHARED_INPUT_RECORDS));
+        // the stage before the shuffle of the GROUP and the stage of the store
+        assertEquals(2, jobStats.getHadoopCounters().getGroup(SparkStats.STAGE_COUNTER_GROUP).size());
+    }
+
+    @Test
+    public void testStatsSharedInput() throws Exception {
+        PigServer pigServer = newPigServer();
+        Data data = Storage.resetData(pigServer);
+        data.set("input",
+                tuple("a", 1),
+                tuple("b", 2),
+                tuple("a", 3));
+        pigServer.setBatchOn();
+        pigServer.registerQuery("A = LOAD 'input' using mock.Storage;");
+        pigServer.registerQuery("B = FILTER A BY $1 > 1;");
+        pigServer.registerQuery("C = FILTER A BY $1 < 3;");
+        pigServer.registerQuery("STORE B INTO 'output1' using mock.Storage;");
+        pigServer.registerQuery("STORE C INTO 'output2' using mock.Storage;");
+        List<ExecJob> executeBatch = pigServer.executeBatch();
+
+        PigStats stats = executeBatch.get(0).getStatistics();
+        assertTrue(stats.isSuccessful());
+        assertEquals(2, stats.getNumberJobs());
+        // the input is read once, each job reports all its records as shared
+        Iterator<JobStats> jobs = stats.getJobGraph().iterator();
+        while (jobs.hasNext()) {
+            JobStats jobStats = jobs.next();
+            assertEquals(1, jobStats.getInputs().size());
+            assertEquals(3, jobStats.getInputs().get(0).getNumberRecords());
+            assertEquals(3, jobStats.getHadoopCounters().getGroup(SparkStats.COUNTER_GROUP)
+                    .getCounter(SparkStats.SHARED_INPUT_RECORDS));
+        }
+    }
+
+    @Test
+    public void testStatsIgnoreConversionJobs() throws Exception {
+        PigServer pigServer = newPigServer();
+        Data data = Storage.resetData(pigServer);
+        data.set("input",
+                tuple("a", 1),
+                tuple("b", 2),
+                tuple("a", 3));
+        data.set("small",
+                tuple("a", "x"),
+                tuple("b", "y"));
+        pigServer.setBatchOn();
+        pigServer.registerQuery("A = LOAD 'input' using mock.Storage;");
+        pigServer.registerQuery("S = LOAD 'small' using mock.Storage;");
+        // the ORDER BY samples its input and the replicated join collects the small input first
+        pigServer.registerQuery("B = JOIN A BY $0, S BY $0 USING 'replicated';");
+        pigServer.registerQuery("C = ORDER B BY $1;");
+        pigServer.registerQuery("STORE C INTO 'output' using mock.Storage;");
+        List<ExecJob> executeBatch = pigServer.executeBatch();
+
+        PigStats stats = executeBatch.get(0).getStatistics();
+        assertTrue(stats.isSuccessful());
+        assertEquals(3, stats.getNumberRecords("output"));
+        Map<String, Long> inputRecords = new HashMap<String, Long>();
+        for (InputStats inputStats : stats.getInputStats()) {
+            inputRecords.put(inputStats.getName(), inputStats.getNumberRecords());
+        }
+        assertEquals(Long.valueOf(3), inputRecords.get("input"));
+        assertEquals(Long.valueOf(2), inputRecords.get("small"));
+    }
+
+    @Test
+    public void testOperatorProfile() throws Exception {
+        PigServer pigServer = newPigServer();
+        pigServer.getPigContext().getProperties().setProperty(PigConfiguration.OPERATOR_PROFILE_PROP, "true");
+        Data data = Storage.resetData(pigServer);
+        data.set("input",
+                tuple("a", 1),
+                tuple("b", 2),
+                tuple("c", 3));
+        pigServer.setBatchOn();
+        pigServer.registerQuery("A = LOAD 'input' using mock.Storage;");
+        pigServer.registerQuery("B = FOREACH A GENERATE UPPER($0);");
+        pigServer.registerQuery("STORE B INTO 'output' using mock.Storage;");
+        List<ExecJob> executeBatch = pigServer.executeBatch();
+
+        assertEquals(
+                Arrays.asList(tuple("A"), tuple("B"), tuple("C")),
+                sortByIndex(data.get("output"), 0));
+        PigStats stats = executeBatch.get(0).getStatistics();
+        Map<String, Long> profile = stats.getOperatorProfile();
+        // the first call of each operator is timed, at least the FOREACH and the UDF are called
+        int profiledOperators = 0;
+        for (Map.Entry<String, Long> counter : profile.entrySet()) {
+            if (counter.getKey().endsWith("." + OperatorProfiler.CALLS)) {
+                assertTrue(counter.getValue() >= OperatorProfiler.TIMING_FREQ);
+                ++profiledOperators;
+            }
+        }
+        assertTrue(profile.toString(), profiledOperators >= 2);
+    }
+
+    @Test
+    public void testVectorized() throws Exception {
+        PigServer pigServer = newPigServer();
+        pigServer.getPigContext().getProperties().setProperty(PigConfiguration.SPARK_VECTORIZED, "true");
+        Data data = Storage.resetData(pigServer);
+        data.set("input",
+                tuple(1, 2, 1.5, "x"),
+                tuple(2, 0, null, "y"),
+                tuple(3, null, 2.0, "z"),
+                tuple(null, 4, 0.5, "w"),
+                tuple(5, 2, -1.0, "v"));
+        pigServer.setBatchOn();
+        pigServer.registerQuery("A = LOAD 'input' using mock.Storage as (a:int, b:int, c:double, s:chararray);");
+        pigServer.registerQuery("B = FILTER A BY a > 1 OR c IS NULL;");
+        pigServer.registerQuery("C = FOREACH B GENERATE a + b, a / b, c * 2.0, -a, a % 3;");
+        // the UDF is evaluated one tuple at a time
+        pigServer.registerQuery("D = FOREACH B GENERATE UPPER(s), a;");
+        pigServer.registerQuery("STORE C INTO 'output1' using mock.Storage;");
+        pigServer.registerQuery("STORE D INTO 'output2' using mock.Storage;");
+        pigServer.executeBatch();
+
+        assertEquals(
+                Arrays.asList(
+                        tuple(7, 2, -2.0, -5, 2),
+                        tuple(null, null, 4.0, -3, 0),
+                        tuple(2, null, null, -2, 2)),
+                sortByIndex(data.get("output1"), 3));
+        assertEquals(
+                Arrays.asList(tuple("Y", 2), tuple("Z", 3), tuple("V", 5)),
+                sortByIndex(data.get("output2"), 1));
+    }
+
+    @Test
+    public void testMultiQuerySharesScan() throws Exception {
+        PigServer pigServer = newPigServer();
+        Data data = Storage.resetData(pigServer);
+        data.set("input",
+                tuple("a", 1),
+                tuple("b", 2),
+                tuple("c", 3));
+        pigServer.setBatchOn();
+        pigServer.registerQuery("A = LOAD 'input' using mock.Storage;");
+        pigServer.registerQuery("B = FILTER A BY $1 < 3;");
+        pigServer.registerQuery("C = FILTER A BY $1 > 1;");
+        pigServer.registerQuery("STORE B INTO 'output1' using mock.Storage;");
+        pigServer.registerQuery("STORE C INTO 'output2' using mock.Storage;");
+        List<ExecJob> executeBatch = pigServer.executeBatch();
+
+        assertEquals(
+                Arrays.asList(tuple("a", 1), tuple("b", 2)),
+                sortByIndex(data.get("output1"), 0));
+        assertEquals(
+                Arrays.asList(tuple("b", 2), tuple("c", 3)),
+                sortByIndex(data.get("output2"), 0));
+
+        // the second store reads the input from the first one
+        PigStats stats = executeBatch.get(0).getStatistics();
+        long inputRecords = 0;
+        for (InputStats inputStats : stats.getInputStats()) {
+            inputRecords += inputStats.getNumberRecords();
+        }
+        assertEquals(3, inputRecords);
+    }
+
+    @Test
+    public void testConcurrentStores() throws Exception {
+        Properties properties = new Properties();
+        properties.put("io.sort.mb", "1");
+        properties.put(PigConfiguration.SPARK_STORE_CONCURRENCY, "2");
+        PigServer pigServer = new PigServer(MODE, properties);
+        Data data = Storage.resetData(pigServer);
+        data.set("input",
+                tuple("a", 1),
+                tuple("b", 2),
+                tuple("c", 3));
+        pigServer.setBatchOn();
+        pigServer.registerQuery("A = LOAD 'input' using mock.Storage;");
+        pigServer.registerQuery("B = FILTER A BY $1 > 1;");
+        pigServer.registerQuery("C = FOREACH A GENERATE $0;");
+        pigServer.registerQuery("STORE B INTO 'output1' using mock.Storage;");
+        pigServer.registerQuery("STORE C INTO 'output2' using mock.Storage;");
+        // depends on the first store, and only runs once it succeeded
+        pigServer.registerQuery("D = LOAD 'output1' using mock.Storage;");
+        pigServer.registerQuery("E = FOREACH D GENERATE $1;");
+        pigServer.registerQuery("STORE E INTO 'output3' using mock.Storage;");
+        List<ExecJob> executeBatch = pigServer.executeBatch();
+
+        assertEquals(
+                Arrays.asList(tuple("b", 2), tuple("c", 3)),
+                sortByIndex(data.get("output1"), 0));
+        assertEquals(
+                Arrays.asList(tuple("a"), tuple("b"), tuple("c")),
+                sortByIndex(data.get("output2"), 0));
+        assertEquals(
+                Arrays.asList(tuple(2), tuple(3)),
+                sortByIndex(data.get("output3"), 0));
+        assertEquals(3, executeBatch.get(0).getStatistics().getNumberJobs());
+    }
+
     @Test
     public void testDump() throws Exception {
         PigServer pigServer = new PigServer(MODE);
@@ -162,6 +414,59 @@ public class TestSpark {
                 data.get("output"));
     }
 
+    @Test
+    public void testNestedOrderByAndDistinct() throws Exception {
+        PigServer pigServer = newPigServer();
+        Data data = Storage.resetData(pigServer);
+        data.set("input",
+                tuple("key1", 3),
+                tuple("key2", 1),
+                tuple("key1", 1),
+                tuple("key1", 2),
+                tuple("key1", 3));
+
+        // both are done by the shuffle with a secondary key
+        StringWriter log = new StringWriter();
+        WriterAppender appender = new WriterAppender(new SimpleLayout(), log);
+        org.apache.log4j.Logger logger =
+                org.apache.log4j.Logger.getLogger("org.apache.pig.backend.hadoop.executionengine.spark");
+        logger.addAppender(appender);
+        try {
+            pigServer.registerQuery("A = LOAD 'input' using mock.Storage() AS (k:chararray, v:int);");
+            pigServer.registerQuery("B = GROUP A BY k;");
+            pigServer.registerQuery("C = FOREACH B { D = ORDER A BY v DESC; GENERATE group, D.v; };");
+            pigServer.registerQuery("E = GROUP A BY k;");
+            pigServer.registerQuery("F = FOREACH E { G = DISTINCT A.v; GENERATE group, G; };");
+            pigServer.registerQuery("STORE C INTO 'output' using mock.Storage;");
+            pigServer.registerQuery("STORE F INTO 'output2' using mock.Storage;");
+        } finally {
+            logger.removeAppender(appender);
+        }
+        assertTrue(log.toString(), log.toString().contains("Using secondary key for"));
+
+        // the bags are compared in order
+        List<Tuple> output = sortByIndex(data.get("output"), 0);
+        assertEquals(2, output.size());
+        assertEquals("key1", output.get(0).get(0));
+        assertEquals(Arrays.asList(tuple(3), tuple(3), tuple(2), tuple(1)), toList(output.get(0).get(1)));
+        assertEquals("key2", output.get(1).get(0));
+        assertEquals(Arrays.asList(tuple(1)), toList(output.get(1).get(1)));
+        List<Tuple> output2 = sortByIndex(data.get("output2"), 0);
+        assertEquals(2, output2.size());
+        assertEquals("key1", output2.get(0).get(0));
+        assertEquals(Arrays.asList(tuple(1), tuple(2), tuple(3)), toList(output2.get(0).get(1)));
+        assertEquals("key2", output2.get(1).get(0));
+        assertEquals(Arrays.asList(tuple(1)), toList(output2.get(1).get(1)));
+    }
+
+    private static List<Tuple> toList(Object bag) {
+        List<Tuple> tuples = new ArrayList<Tuple>();
+        for (Tuple tuple : (DataBag) bag) {
+            tuples.add(tuple);
+        }
+        return tuples;
+    }
+
     @Test
     public void testCount() throws Exception {
         PigServer pigServer = newPigServer();
@@ -197,6 +502,29 @@ public class TestSpark {
                 data.get("output"));
     }
 
+    @Test
+    public void testAlgebraicAggregates() throws Exception {
+        PigServer pigServer = newPigServer();
+        Data data = Storage.resetData(pigServer);
+        List<Tuple> input = new ArrayList<Tuple>();
+        // more rows per key than the combiner buffers before running the combine plan
+        for (int i = 0; i < 250; i++) {
+            input.add(tuple(i % 2 == 0 ? "even" : "odd", i));
+        }
+        data.set("input", "key:chararray,value:int", input);
+
+        pigServer.registerQuery("A = LOAD 'input' using mock.Storage;");
+        pigServer.registerQuery("B = GROUP A BY key;");
+        pigServer.registerQuery("C = FOREACH B GENERATE group, COUNT(A), SUM(A.value), MIN(A.value), MAX(A.value);");
+        pigServer.registerQuery("STORE C INTO 'output' using mock.Storage;");
+
+        assertEquals(
+                Arrays.asList(
+                        tuple("even", 125l, 15500l, 0, 248),
+                        tuple("odd", 125l, 15625l, 1, 249)),
+                sortByIndex(data.get("output"), 0));
+    }
+
     @Test
     public void testForEach() throws Exception {
         PigServer pigServer = newPigServer();
@@ -270,6 +598,30 @@ public class TestSpark {
                 data.get("output"));
     }
 
+    @Test
+    public void testFilterForEachPipeline() throws Exception {
+        PigServer pigServer = newPigServer();
+        Data data = Storage.resetData(pigServer);
+        data.set("input",
+                tuple("a", 1),
+                tuple("b", 2),
+                tuple("a", 3),
+                tuple("c", 4));
+
+        // the filters, foreach and local rearrange run in the same partition function
+        pigServer.registerQuery("A = LOAD 'input' using mock.Storage as (key:chararray, value:int);");
+        pigServer.registerQuery("B = FILTER A BY value > 1;");
+        pigServer.registerQuery("C = FOREACH B GENERATE key, value * 10 as value;");
+        pigServer.registerQuery("D = FILTER C BY key != 'c';");
+        pigServer.registerQuery("E = GROUP D BY key;");
+        pigServer.registerQuery("F = FOREACH E GENERATE group, SUM(D.value);");
+        pigServer.registerQuery("STORE F INTO 'output' using mock.Storage;");
+
+        assertEquals(
+                Arrays.asList(tuple("a", 30L), tuple("b", 20L)),
+                sortByIndex(data.get("output"), 0));
+    }
+
     @Test
     public void testDistinct() throws Exception {
         PigServer pigServer = newPigServer();
@@ -289,6 +641,31 @@ public class TestSpark {
                 sortByIndex(data.get("output"), 0));
     }
 
+    @Test
+    public void testDistinctNestedAndNullFields() throws Exception {
+        PigServer pigServer = newPigServer();
+        Data data = Storage.resetData(pigServer);
+        data.set("input",
+                tuple(1, tuple("a", null), null),
+                tuple(2, tuple("a", 1L), bag(tuple("x"), tuple("y"))),
+                tuple(1, tuple("a", null), null),
+                tuple(3, tuple("a", 1), null),
+                tuple(2, tuple("a", 1L), bag(tuple("x"), tuple("y"))),
+                tuple(4, tuple("a", 1L), bag(tuple("x"))));
+
+        pigServer.registerQuery("A = LOAD 'input' using mock.Storage;");
+        pigServer.registerQuery("B = DISTINCT A;");
+        pigServer.registerQuery("STORE B INTO 'output' using mock.Storage;");
+
+        assertEquals(
+                Arrays.asList(
+                        tuple(1, tuple("a", null), null),
+                        tuple(2, tuple("a", 1L), bag(tuple("x"), tuple("y"))),
+                        tuple(3, tuple("a", 1), null),
+                        tuple(4, tuple("a", 1L), bag(tuple("x")))),
+                sortByIndex(data.get("output"), 0));
+    }
+
     @Test
     public void testExplicitSPLIT() throws Exception {
         PigServer pigServer = newPigServer();
@@ -410,6 +787,33 @@ public class TestSpark {
                 data.get("output"));
     }
 
+    @Test
+    public void testParallelOrderByWithSkewedKeys() throws Exception {
+        PigServer pigServer = newPigServer();
+        Data data = Storage.resetData(pigServer);
+        List<Tuple> input = new ArrayList<Tuple>();
+        List<Tuple> expected = new ArrayList<Tuple>();
+        // most rows share the same key so that it spans several partitions
+        for (int i = 0; i < 200; i++) {
+            input.add(tuple(i < 150 ? 1 : i, i % 10));
+        }
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j < 15; j++) {
+                expected.add(tuple(1, 9 - i));
+            }
+        }
+        for (int i = 150; i < 200; i++) {
+            expected.add(tuple(i, i % 10));
+        }
+        data.set("input", "key:int,value:int", input);
+
+        pigServer.registerQuery("A = LOAD 'input' using mock.Storage;");
+        pigServer.registerQuery("B = ORDER A BY key ASC, value DESC PARALLEL 3;");
+        pigServer.registerQuery("STORE B INTO 'output' using mock.Storage;");
+
+        assertEquals(expected, data.get("output"));
+    }
+
     @Test
     public void testLimit() throws Exception {
         PigServer pigServer = newPigServer();
@@ -429,6 +833,54 @@ public class TestSpark {
                 data.get("output"));
     }
 
+    @Test
+    public void testLimitIsGlobal() throws Exception {
+        PigServer pigServer = newPigServer();
+        Data data = Storage.resetData(pigServer);
+        data.set("input",
+                tuple("5"),
+                tuple("3"),
+                tuple("6"),
+                tuple("1"),
+                tuple("4"),
+                tuple("2"));
+
+        pigServer.registerQuery("A = LOAD 'input' using mock.Storage;");
+        pigServer.registerQuery("B = ORDER A BY $0 PARALLEL 3;");
+        pigServer.registerQuery("C = LIMIT B 2;");
+        pigServer.registerQuery("STORE C INTO 'output' using mock.Storage;");
+
+        assertEquals(
+                Arrays.asList(tuple("1"), tuple("2")),
+                data.get("output"));
+    }
+
+    @Test
+    public void testLimitZeroAfterFilter() throws Exception {
+        PigServer pigServer = newPigServer();
+        Data data = Storage.resetData(pigServer);
+        data.set("input1",
+                tuple(1),
+                tuple(2));
+        data.set("input2",
+                tuple(3),
+                tuple(4));
+
+        pigServer.registerQuery("A = LOAD 'input1' using mock.Storage as (a:int);");
+        pigServer.registerQuery("B = LOAD 'input2' using mock.Storage as (a:int);");
+        pigServer.registerQuery("C = UNION A, B;");
+        pigServer.registerQuery("D = FILTER C BY a > 1;");
+        pigServer.registerQuery("E = LIMIT D 0;");
+        pigServer.registerQuery("F = LIMIT D 5;");
+        pigServer.registerQuery("STORE E INTO 'output0' using mock.Storage;");
+        pigServer.registerQuery("STORE F INTO 'output5' using mock.Storage;");
+
+        assertEquals(0, data.get("output0").size());
+        assertEquals(
+                Arrays.asList(tuple(2), tuple(3), tuple(4)),
+                data.get("output5"));
+    }
+
     @Test
     public void testUnion() throws Exception {
         PigServer pigServer = newPigServer();
@@ -591,6 +1043,297 @@ public class TestSpark {
                         data.get("output"));
     }
 
+    @Test
+    public void testReplicatedJoin() throws Exception {
+        PigServer pigServer = newPigServer();
+        Data data = Storage.resetData(pigServer);
+        data.set("input1",
+                tuple(1, "a"),
+                tuple(2, "b"),
+                tuple(3, "c"),
+                tuple(1, "d"));
+        data.set("input2",
+                tuple(1, "e"),
+                tuple(2, "f"),
+                tuple(1, "g"));
+
+        pigServer.registerQuery("A = LOAD 'input1' using mock.Storage;");
+        pigServer.registerQuery("B = LOAD 'input2' using mock.Storage;");
+        pigServer.registerQuery("C = JOIN A BY $0, B BY $0 USING 'replicated';");
+        pigServer.registerQuery("STORE C INTO 'output' using mock.Storage;");
+
+        assertEquals(
+                Arrays.asList(
+                        tuple(1, "a", 1, "e"),
+                        tuple(1, "a", 1, "g"),
+                        tuple(2, "b", 2, "f"),
+                        tuple(1, "d", 1, "e"),
+                        tuple(1, "d", 1, "g")
+                        ),
+                        sortByIndex(data.get("output"), 1));
+    }
+
+    @Test
+    public void testReplicatedLeftOuterJoin() throws Exception {
+        PigServer pigServer = newPigServer();
+        Data data = Storage.resetData(pigServer);
+        data.set("input1", "key:int,value:chararray",
+                tuple(1, "a"),
+                tuple(2, "b"),
+                tuple(3, "c"));
+        data.set("input2", "key:int,value:chararray",
+                tuple(1, "e"),
+                tuple(2, "f"));
+
+        pigServer.registerQuery("A = LOAD 'input1' using mock.Storage;");
+        pigServer.registerQuery("B = LOAD 'input2' using mock.Storage;");
+        pigServer.registerQuery("C = JOIN A BY key LEFT OUTER, B BY key USING 'replicated';");
+        pigServer.registerQuery("STORE C INTO 'output' using mock.Storage;");
+
+        assertEquals(
+                Arrays.asList(
+                        tuple(1, "a", 1, "e"),
+                        tuple(2, "b", 2, "f"),
+                        tuple(3, "c", null, null)
+                        ),
+                        sortByIndex(data.get("output"), 0));
+    }
+
+    @Test
+    public void testSkewedJoin() throws Exception {
+        Properties properties = new Properties();
+        properties.put("io.sort.mb", "1");
+        // a partition can only hold 10 rows of a key, so that the hot key gets split
+        properties.put("pig.skewedjoin.reduce.maxtuple", "10");
+        PigServer pigServer = new PigServer(MODE, properties);
+        Data data = Storage.resetData(pigServer);
+        List<Tuple> input1 = new ArrayList<Tuple>();
+        for (int i = 0; i < 100; i++) {
+            input1.add(tuple(i < 90 ? 1 : i, i));
+        }
+        data.set("input1", "key:int,value:int", input1);
+        data.set("input2", "key:int,value:chararray",
+                tuple(1, "a"),
+                tuple(1, "b"),
+                tuple(95, "c"),
+                tuple(200, "d"));
+
+        pigServer.registerQuery("A = LOAD 'input1' using mock.Storage;");
+        pigServer.registerQuery("B = LOAD 'input2' using mock.Storage;");
+        pigServer.registerQuery("C = JOIN A BY key, B BY key USING 'skewed' PARALLEL 4;");
+        pigServer.registerQuery("D = GROUP C BY B::value;");
+        pigServer.registerQuery("E = FOREACH D GENERATE group, COUNT(C), SUM(C.A::value);");
+        pigServer.registerQuery("STORE E INTO 'output' using mock.Storage;");
+
+        assertEquals(
+                Arrays.asList(
+                        tuple("a", 90l, 4005l),
+                        tuple("b", 90l, 4005l),
+                        tuple("c", 1l, 95l)),
+                sortByIndex(data.get("output"), 0));
+    }
+
+    @Test
+    public void testSkewedJoinOnTupleKeyWithNulls() throws Exception {
+        Properties properties = new Properties();
+        properties.put("io.sort.mb", "1");
+        properties.put("pig.skewedjoin.reduce.maxtuple", "10");
+        PigServer pigServer = new PigServer(MODE, properties);
+        Data data = Storage.resetData(pigServer);
+        List<Tuple> input1 = new ArrayList<Tuple>();
+        for (int i = 0; i < 100; i++) {
+            // the hot key is a single column holding a tuple, and some keys are null
+            input1.add(tuple(i < 90 ? tuple(1, 1) : i < 95 ? null : tuple(i, i), i));
+        }
+        data.set("input1", "key:(a:int,b:int),value:int", input1);
+        data.set("input2", "key:(a:int,b:int),value:chararray",
+                tuple(tuple(1, 1), "a"),
+                tuple(null, "n"),
+                tuple(tuple(95, 95), "c"));
+
+        pigServer.registerQuery("A = LOAD 'input1' using mock.Storage;");
+        pigServer.registerQuery("B = LOAD 'input2' using mock.Storage;");
+        pigServer.registerQuery("C = JOIN A BY key LEFT OUTER, B BY key USING 'skewed' PARALLEL 4;");
+        pigServer.registerQuery("D = FOREACH C GENERATE (B::value is null ? 'z' : B::value) AS v, A::value AS av;");
+        pigServer.registerQuery("E = GROUP D BY v;");
+        pigServer.registerQuery("F = FOREACH E GENERATE group, COUNT_STAR(D), SUM(D.av);");
+        pigServer.registerQuery("STORE F INTO 'output' using mock.Storage;");
+
+        // null keys don't join, not even with each other
+        assertEquals(
+                Arrays.asList(
+                        tuple("a", 90l, 4005l),
+                        tuple("c", 1l, 95l),
+                        tuple("z", 9l, 850l)),
+                sortByIndex(data.get("output"), 0));
+    }
+
+    @Test
+    public void testJoinStreamingLastInput() throws Exception {
+        Properties properties = new Properties();
+        properties.put("io.sort.mb", "1");
+        // the last input of a key is fed to the join in several chunks
+        properties.put("last.input.chunksize", "3");
+        PigServer pigServer = new PigServer(MODE, properties);
+        Data data = Storage.resetData(pigServer);
+        data.set("input1", "key:int,value:chararray",
+                tuple(1, "a"),
+                tuple(1, "b"),
+                tuple(2, "c"),
+                tuple(3, "d"));
+        List<Tuple> input2 = new ArrayList<Tuple>();
+        for (int i = 0; i < 10; i++) {
+            input2.add(tuple(1, i));
+        }
+        input2.add(tuple(2, 100));
+        input2.add(tuple(4, 200));
+        data.set("input2", "key:int,value:int", input2);
+
+        pigServer.registerQuery("A = LOAD 'input1' using mock.Storage;");
+        pigServer.registerQuery("B = LOAD 'input2' using mock.Storage;");
+        pigServer.registerQuery("C = JOIN A BY key, B BY key;");
+        pigServer.registerQuery("D = GROUP C BY A::value;");
+        pigServer.registerQuery("E = FOREACH D GENERATE group, COUNT(C), SUM(C.B::value);");
+        pigServer.registerQuery("STORE E INTO 'output' using mock.Storage;");
+
+        assertEquals(
+                Arrays.asList(
+                        tuple("a", 10l, 45l),
+                        tuple("b", 10l, 45l),
+                        tuple("c", 1l, 100l)),
+                sortByIndex(data.get("output"), 0));
+    }
+
+    @Test
+    public void testMergeJoin() throws Exception {
+        File input1 = File.createTempFile("TestSpark", ".txt");
+        input1.deleteOnExit();
+        writeLines(input1, "1\ta", "2\tb", "3\tc", "4\td");
+        File input2 = File.createTempFile("TestSpark", ".txt");
+        input2.deleteOnExit();
+        writeLines(input2, "2\tx", "3\ty", "3\tz", "5\tw");
+
+        PigServer pigServer = newPigServer();
+        Data data = Storage.resetData(pigServer);
+        pigServer.registerQuery("A = LOAD '" + input1.getAbsolutePath() + "' as (key:int, value:chararray);");
+        pigServer.registerQuery("B = LOAD '" + input2.getAbsolutePath() + "' as (key:int, value:chararray);");
+        pigServer.registerQuery("C = JOIN A BY key, B BY key USING 'merge';");
+        pigServer.registerQuery("STORE C INTO 'output' using mock.Storage;");
+
+        assertEquals(
+                Arrays.asList(
+                        tuple(2, "b", 2, "x"),
+                        tuple(3, "c", 3, "y"),
+                        tuple(3, "c", 3, "z")),
+                sortByIndex(data.get("output"), 3));
+    }
+
+    @Test
+    public void testMergeJoinKeepsSortedSplits() throws Exception {
+        // small files that would be combined in a single split, in no particular order
+        File input1 = Files.createTempDir();
+        writeLines(new File(input1, "part-0"), "1\ta", "2\tb");
+        writeLines(new File(input1, "part-1"), "3\tc");
+        writeLines(new File(input1, "part-2"), "4\td", "5\te", "6\tf");
+        File input2 = Files.createTempDir();
+        writeLines(new File(input2, "part-0"), "2\tx");
+        writeLines(new File(input2, "part-1"), "5\ty", "6\tz");
+
+        PigServer pigServer = newPigServer();
+        Data data = Storage.resetData(pigServer);
+        pigServer.registerQuery("A = LOAD '" + input1.getAbsolutePath() + "' as (key:int, value:chararray);");
+        pigServer.registerQuery("B = LOAD '" + input2.getAbsolutePath() + "' as (key:int, value:chararray);");
+        pigServer.registerQuery("C = JOIN A BY key, B BY key USING 'merge';");
+        pigServer.registerQuery("STORE C INTO 'output' using mock.Storage;");
+
+        assertEquals(
+                Arrays.asList(
+                        tuple(2, "b", 2, "x"),
+                        tuple(5, "e", 5, "y"),
+                        tuple(6, "f", 6, "z")),
+                sortByIndex(data.get("output"), 0));
+    }
+
+    @Test
+    public void testCross() throws Exception {
+        PigServer pigServer = newPigServer();
+        Data data = Storage.resetData(pigServer);
+        data.set("input1", tuple(1), tuple(2));
+        data.set("input2", tuple("a"), tuple("b"));
+
+        pigServer.registerQuery("A = LOAD 'input1' using mock.Storage as (n:int);");
+        pigServer.registerQuery("B = LOAD 'input2' using mock.Storage as (s:chararray);");
+        pigServer.registerQuery("C = CROSS A, B;");
+        pigServer.registerQuery("D = FOREACH C GENERATE CONCAT((chararray) n, s);");
+        pigServer.registerQuery("STORE D INTO 'output' using mock.Storage;");
+
+        assertEquals(
+                Arrays.asList(tuple("1a"), tuple("1b"), tuple("2a"), tuple("2b")),
+                sortByIndex(data.get("output"), 0));
+    }
+
+    @Test
+    public void testRank() throws Exception {
+        PigServer pigServer = newPigServer();
+        Data data = Storage.resetData(pigServer);
+        data.set("input",
+                tuple("a", 3),
+                tuple("b", 1),
+                tuple("c", 2),
+                tuple("d", 2));
+
+        pigServer.setBatchOn();
+        pigServer.registerQuery("A = LOAD 'input' using mock.Storage as (key:chararray, value:int);");
+        pigServer.registerQuery("B = RANK A;");
+        pigServer.registerQuery("C = RANK A BY value;");
+        pigServer.registerQuery("D = RANK A BY value DENSE;");
+        pigServer.registerQuery("STORE B INTO 'output1' using mock.Storage;");
+        pigServer.registerQuery("STORE C INTO 'output2' using mock.Storage;");
+        pigServer.registerQuery("STORE D INTO 'output3' using mock.Storage;");
+        pigServer.executeBatch();
+
+        assertEquals(
+                Arrays.asList(tuple(1L, "a", 3), tuple(2L, "b", 1), tuple(3L, "c", 2), tuple(4L, "d", 2)),
+                sortByIndex(data.get("output1"), 0));
+        assertEquals(
+                Arrays.asList(tuple(4L, "a", 3), tuple(1L, "b", 1), tuple(2L, "c", 2), tuple(2L, "d", 2)),
+                sortByIndex(data.get("output2"), 1));
+        assertEquals(
+                Arrays.asList(tuple(3L, "a", 3), tuple(1L, "b", 1), tuple(2L, "c", 2), tuple(2L, "d", 2)),
+                sortByIndex(data.get("output3"), 1));
+    }
+
+    @Test
+    public void testStream() throws Exception {
+        PigServer pigServer = newPigServer();
+        Data data = Storage.resetData(pigServer);
+        data.set("input",
+                tuple("a", 1),
+                tuple("b", 2));
+
+        pigServer.registerQuery("A = LOAD 'input' using mock.Storage as (key:chararray, value:int);");
+        pigServer.registerQuery("B = STREAM A THROUGH `cat` AS (key:chararray, value:int);");
+        pigServer.registerQuery("STORE B INTO 'output' using mock.Storage;");
+
+        assertEquals(
+                Arrays.asList(tuple("a", 1), tuple("b", 2)),
+                sortByIndex(data.get("output"), 0));
+    }
+
+    @Test
+    public void testKryoSerializesTuples() throws Exception {
+        Kryo kryo = new Kryo();
+        new PigKryoRegistrator().registerClasses(kryo);
+        Tuple tuple = tuple(1, "a", null, 2l, new DataByteArray("b"), bag(tuple(3.0, 4f), tuple("c")));
+
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        kryo.writeClassAndObject(buffer, tuple);
+        buffer.flip();
+
+        assertEquals(tuple, kryo.readClassAndObject(buffer));
+        assertEquals(0, buffer.remaining());
+    }
+
     @Test
     public void testCachingLoad() throws Exception {
 
@@ -633,6 +1376,224 @@ public class TestSpark {
                 "STORE A INTO 'output' using mock.Storage;");
     }
 
+    @Test
+    public void testCachingWithStorageLevel() throws Exception {
+        testCaching("A = LOAD 'input' using mock.Storage;" +
+                "CACHE A USING 'memory_and_disk_ser';" +
+                "STORE A INTO 'output' using mock.Storage;");
+    }
+
+    @Test
+    public void testCachingWithAnotherStorageLevel() throws Exception {
+        PigServer pigServer = newPigServer();
+        Data data = Storage.resetData(pigServer);
+        data.set("input",
+                tuple("test1"),
+                tuple("test2"));
+        pigServer.setBatchOn();
+        pigServer.registerQuery("A = LOAD 'input' using mock.Storage;");
+        pigServer.registerQuery("CACHE A;");
+        pigServer.registerQuery("STORE A INTO 'output' using mock.Storage;");
+        pigServer.executeBatch();
+        List<Tuple> originalOutput = data.get("output");
+
+        // the relation is cached once, with the level it was first cached with
+        data = Storage.resetData(pigServer);
+        data.set("input",
+                tuple("test3"),
+                tuple("test4"));
+        pigServer.registerQuery("A = LOAD 'input' using mock.Storage;");
+        pigServer.registerQuery("CACHE A USING 'memory_and_disk_ser';");
+        pigServer.registerQuery("STORE A INTO 'output' using mock.Storage;");
+        pigServer.executeBatch();
+
+        assertEquals(originalOutput, data.get("output"));
+    }
+
+    @Test
+    public void testCacheInvalidatedWhenInputChanges() throws Exception {
+        File input = File.createTempFile("TestSpark", ".txt");
+        input.deleteOnExit();
+        writeLines(input, "test1", "test2");
+
+        PigServer pigServer = newPigServer();
+        Data data = Storage.resetData(pigServer);
+        pigServer.setBatchOn();
+        pigServer.registerQuery("A = LOAD '" + input.getAbsolutePath() + "' as (foo:chararray);");
+        pigServer.registerQuery("CACHE A;");
+        pigServer.registerQuery("STORE A INTO 'output' using mock.Storage;");
+        pigServer.executeBatch();
+
+        assertEquals(
+                Arrays.asList(tuple("test1"), tuple("test2")),
+                data.get("output"));
+
+        writeLines(input, "test3", "test4", "test5");
+        data = Storage.resetData(pigServer);
+        pigServer.registerQuery("STORE A INTO 'output' using mock.Storage;");
+        pigServer.executeBatch();
+
+        assertEquals(
+                Arrays.asList(tuple("test3"), tuple("test4"), tuple("test5")),
+                data.get("output"));
+    }
+
+    @Test
+    public void testParallelismEstimatedFromInputSize() throws Exception {
+        File input = File.createTempFile("TestSpark", ".txt");
+        input.deleteOnExit();
+        writeLines(input, "a", "b", "a", "c");
+
+        Properties properties = new Properties();
+        properties.put("io.sort.mb", "1");
+        // 8 bytes of input, half of them kept by the filter: 2 partitions of 2 bytes
+        properties.put("pig.exec.reducers.bytes.per.reducer", "2");
+        properties.put(InputSizeParallelismEstimator.FILTER_SELECTIVITY_PARAM, "0.5");
+        properties.put(PigConfiguration.SPARK_PARALLELISM_ESTIMATOR, RecordingParallelismEstimator.class.getName());
+        PigServer pigServer = new PigServer(MODE, properties);
+        Data data = Storage.resetData(pigServer);
+        RecordingParallelismEstimator.estimates.clear();
+
+        pigServer.registerQuery("A = LOAD '" + input.getAbsolutePath() + "' as (f:chararray);");
+        pigServer.registerQuery("B = FILTER A BY f != 'c';");
+        pigServer.registerQuery("C = GROUP B BY f;");
+        pigServer.registerQuery("D = FOREACH C GENERATE group, COUNT(B);");
+        pigServer.registerQuery("STORE D INTO 'output' using mock.Storage;");
+
+        assertEquals(Arrays.asList(2), RecordingParallelismEstimator.estimates);
+        assertEquals(
+                Arrays.asList(tuple("a", 2L), tuple("b", 1L)),
+                sortByIndex(data.get("output"), 0));
+    }
+
+    @Test
+    public void testSortParallelismInTasks() throws Exception {
+        Properties properties = new Properties();
+        properties.put("io.sort.mb", "1");
+        properties.put(PigConfiguration.PROP_SORT_PARALLELISM, "4");
+        PigServer pigServer = new PigServer(MODE, properties);
+        Data data = Storage.resetData(pigServer);
+        data.set("input",
+                tuple("a", 2),
+                tuple("a", 1),
+                tuple("b", 3));
+
+        // the nested sort reads the setting from the job configuration of the task
+        pigServer.registerQuery("A = LOAD 'input' using mock.Storage as (k:chararray, v:int);");
+        pigServer.registerQuery("B = GROUP A BY k;");
+        pigServer.registerQuery("C = FOREACH B { S = ORDER A BY v; GENERATE group, "
+                + SortParallelism.class.getName() + "(), S.v; };");
+        pigServer.registerQuery("STORE C INTO 'output' using mock.Storage;");
+
+        List<Tuple> output = sortByIndex(data.get("output"), 0);
+        assertEquals(2, output.size());
+        assertEquals(Integer.valueOf(4), output.get(0).get(1));
+        assertEquals(Arrays.asList(tuple(1), tuple(2)), toList(output.get(0).get(2)));
+        assertEquals(Integer.valueOf(4), output.get(1).get(1));
+    }
+
+    public static class SortParallelism extends EvalFunc<Integer> {
+        @Override
+        public Integer exec(Tuple input) throws IOException {
+            Configuration conf = PigMapReduce.sJobConfInternal.get();
+            return conf == null ? null : conf.getInt(PigConfiguration.PROP_SORT_PARALLELISM, 1);
+        }
+    }
+
+    public static class RecordingParallelismEstimator extends InputSizeParallelismEstimator {
+        private static final List<Integer> estimates = new ArrayList<Integer>();
+
+        @Override
+        public int estimateParallelism(PhysicalPlan plan, PhysicalOperator shuffle, Configuration conf)
+                throws IOException {
+            int parallelism = super.estimateParallelism(plan, shuffle, conf);
+            estimates.add(parallelism);
+            return parallelism;
+        }
+    }
+
+    @Test
+    public void testSparkSessionIsReused() throws Exception {
+        Properties properties = new Properties();
+        properties.put("io.sort.mb", "1");
+        properties.put(PigConfiguration.SPARK_SESSION_WARM, "true");
+        SparkSession.stop();
+        PigServer pigServer1 = new PigServer(MODE, properties);
+        // the session started by the warm up, or for the PigServer if it isn't done yet
+        SparkSession session = SparkSession.acquire(pigServer1.getPigContext());
+        session.release();
+        Data data = Storage.resetData(pigServer1);
+        data.set("input", tuple("test1"));
+        pigServer1.registerQuery("A = LOAD 'input' using mock.Storage;");
+        pigServer1.registerQuery("STORE A INTO 'output1' using mock.Storage;");
+
+        // a second script with the same settings runs in the same SparkContext
+        PigServer pigServer2 = new PigServer(MODE, properties);
+        Data data2 = Storage.resetData(pigServer2);
+        data2.set("input", tuple("test2"));
+        pigServer2.registerQuery("A = LOAD 'input' using mock.Storage;");
+        pigServer2.registerQuery("STORE A INTO 'output' using mock.Storage;");
+        SparkSession session2 = SparkSession.acquire(pigServer2.getPigContext());
+        session2.release();
+        assertTrue(session == session2);
+
+        assertEquals(Arrays.asList(tuple("test1")), data.get("output1"));
+        assertEquals(Arrays.asList(tuple("test2")), data2.get("output"));
+
+        // the system properties set for the session are cleared with it
+        assertEquals(PigKryoRegistrator.class.getName(), System.getProperty("spark.kryo.registrator"));
+        SparkSession.stop();
+        assertEquals(null, System.getProperty("spark.kryo.registrator"));
+    }
+
+    @Test
+    public void testSparkSessionNotStoppedWhileInUse() throws Exception {
+        Properties properties = new Properties();
+        properties.put("io.sort.mb", "1");
+        PigServer pigServer = new PigServer(MODE, properties);
+        final SparkSession session = SparkSession.acquire(pigServer.getPigContext());
+
+        // a script with other settings waits for the session to be released
+        Properties otherProperties = new Properties();
+        otherProperties.put("io.sort.mb", "1");
+        otherProperties.put(PigConfiguration.SPARK_MAX_CPUS, "2");
+        final PigServer otherPigServer = new PigServer(MODE, otherProperties);
+        final SparkSession[] otherSession = new SparkSession[1];
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    otherSession[0] = SparkSession.acquire(otherPigServer.getPigContext());
+                    otherSession[0].release();
+                } catch (IOException e) {
+                    LOG.error("Couldn't start the Spark session", e);
+                }
+            }
+        };
+        other.start();
+        other.join(1000);
+        assertTrue(other.isAlive());
+        // still usable
+        assertEquals(1, session.getSparkContext().parallelize(
+                SparkUtil.toScalaSeq(Arrays.asList(1)), 1, SparkUtil.getManifest(Integer.class)).count());
+
+        session.release();
+        other.join();
+        assertTrue(otherSession[0] != null && otherSession[0] != session);
+        SparkSession.stop();
+    }
+
+    private static void writeLines(File file, String... lines) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        try {
+            for (String line : lines) {
+                writer.write(line + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
     @Test
     public void testIgnoreWrongUDFCache() throws Exception {
         testIgnoreCache(
@@ -27,6 +27,10 @@ import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
 
 
+import org.apache.hadoop.conf.Configuration;
+import org.apache.pig.PigConfiguration;
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.PigMapReduce;
 import org.apache.pig.data.*;
 import org.apache.pig.impl.util.Spillable;
 import org.junit.After;
@@ -1172,6 +1176,156 @@ public class TestDataBag  {
         }
     }
 
+    @Test
+    public void testSerializedDataBag() throws Exception {
+        long allocatedBefore = SerializedDataBag.getAllocatedBytes();
+        DataBag bag = BagFactory.getInstance().newSerializedBag();
+        assertFalse(bag.isSorted());
+        assertFalse(bag.isDistinct());
+        // enough tuples to fill several pages, a spill in the middle, and a tuple larger than a page
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            large.append('x');
+        }
+        for (int i = 0; i < 20000; i++) {
+            if (i == 10000) {
+                bag.spill();
+            }
+            bag.add(Util.createTuple(new Object[] { i, i % 3 == 0 ? null : "value" + i }));
+        }
+        bag.add(Util.createTuple(new Object[] { -1, large.toString() }));
+        assertEquals(20001, bag.size());
+        assertTrue(bag.getMemorySize() > 0);
+        assertTrue(SerializedDataBag.getAllocatedBytes() > allocatedBefore);
+
+        Iterator<Tuple> iter = bag.iterator();
+        for (int i = 0; i < 20000; i++) {
+            assertTrue(iter.hasNext());
+            Tuple t = iter.next();
+            assertEquals(i, t.get(0));
+            assertEquals(i % 3 == 0 ? null : "value" + i, t.get(1));
+        }
+        assertEquals(large.toString(), iter.next().get(1));
+        assertFalse(iter.hasNext());
+
+        DataBag copy = new DefaultDataBag();
+        copy.addAll(bag);
+        assertEquals(copy, bag);
+
+        bag.clear();
+        assertEquals(0, bag.size());
+        assertFalse(bag.iterator().hasNext());
+        assertEquals(allocatedBefore, SerializedDataBag.getAllocatedBytes());
+    }
+
+    @Test
+    public void testSerializedDataBagPages() throws Exception {
+        long allocatedBefore = SerializedDataBag.getAllocatedBytes();
+        SerializedDataBag bag = (SerializedDataBag) BagFactory.getInstance().newSerializedBag();
+        // a small bag only takes a small page
+        bag.add(Util.createTuple(new Object[] { 1, "value" }));
+        assertTrue(bag.getMemorySize() < 4 * 1024);
+
+        for (int i = 2; i <= 5000; i++) {
+            bag.add(Util.createTuple(new Object[] { i, "value" }));
+        }
+        // spilled while being read, the iterator reads the records it started with
+        Iterator<Tuple> iter = bag.iterator();
+        assertEquals(1, iter.next().get(0));
+        bag.spill();
+        for (int i = 2; i <= 5000; i++) {
+            assertEquals(i, iter.next().get(0));
+        }
+        assertFalse(iter.hasNext());
+        // and read again from the spill file
+        int count = 0;
+        for (Tuple t : bag) {
+            assertEquals(++count, t.get(0));
+        }
+        assertEquals(5000, count);
+
+        bag.clear();
+        assertEquals(allocatedBefore, SerializedDataBag.getAllocatedBytes());
+    }
+
+    @Test
+    public void testSortedParallelSort() throws Exception {
+        Configuration conf = new Configuration();
+        conf.setInt(PigConfiguration.PROP_SORT_PARALLELISM, 4);
+        PigMapReduce.sJobConfInternal.set(conf);
+        try {
+            checkSortedParallelSort();
+        } finally {
+            PigMapReduce.sJobConfInternal.set(null);
+        }
+    }
+
+    private void checkSortedParallelSort() throws Exception {
+        // more tuples than TupleSorter sorts on one thread, of values of several types
+        // with the same prefixes, spilled once and sorted again in memory
+        Random r = new Random(42);
+        List<Tuple> expected = new ArrayList<Tuple>();
+        DataBag bag = BagFactory.getInstance().newSortedBag(null);
+        for (int i = 0; i < 40000; i++) {
+            Object value;
+            switch (i % 6) {
+            case 0: value = r.nextInt() - r.nextInt(); break;
+            case 1: value = (long) r.nextInt(100) << 40; break;
+            case 2: value = r.nextGaussian(); break;
+            case 3: value = "abcd" + r.nextInt(1000); break;
+            case 4: value = null; break;
+            default: value = "ab";
+            }
+            Tuple t = i % 7 == 0 ? Util.createTuple(new Object[] { value })
+                    : Util.createTuple(new Object[] { value, i });
+            expected.add(t);
+            bag.add(t);
+            if (i == 25000) {
+                bag.spill();
+            }
+        }
+        Tuple[] sorted = expected.toArray(new Tuple[expected.size()]);
+        Arrays.sort(sorted);
+        assertEquals(sorted.length, bag.size());
+        Iterator<Tuple> iter = bag.iterator();
+        for (Tuple t : sorted) {
+            assertTrue(iter.hasNext());
+            assertEquals(t, iter.next());
+        }
+        assertFalse(iter.hasNext());
+
+        // descending on the first field, equal keys keep the order they were added in
+        NormalizedKeyComparator desc = new NormalizedKeyComparator() {
+            @Override
+            public Object getKey(Tuple t) {
+                try {
+                    return t.get(0);
+                } catch (ExecException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            public int compareKeys(Object key1, Object key2) {
+                return DataType.compare(key2, key1);
+            }
+
+            @Override
+            public long getPrefix(Object key) {
+                return getPrefix(key, false);
+            }
+        };
+        Tuple[] tuples = new Tuple[30000];
+        for (int i = 0; i < tuples.length; i++) {
+            tuples[i] = Util.createTuple(new Object[] { r.nextInt(100) * 0.5, i });
+        }
+        TupleSorter.sort(tuples, desc);
+        for (int i = 1; i < tuples.length; i++) {
+            int c = DataType.compare(tuples[i - 1].get(0), tuples[i].get(0));
+            assertTrue(c > 0 || (c == 0 && (Integer) tuples[i - 1].get(1) < (Integer) tuples[i].get(1)));
+        }
+    }
+
     @Test
     public void testSpillCustomTuple() throws Exception {
         DataBag bag = new DefaultDataBag();
@@ -0,0 +1,183 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pig.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+
+import org.apache.pig.PigConfiguration;
+import org.apache.pig.impl.util.MemoryBroker;
+import org.apache.pig.impl.util.Spillable;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Test the spills requested by the MemoryBroker
+ */
+public class TestMemoryBroker {
+
+    private static class TestSpillable implements Spillable {
+        long size = 0;
+        boolean spilled = false;
+
+        @Override
+        public long spill() {
+            spilled = true;
+            size = 0;
+            return 1;
+        }
+
+        @Override
+        public long getMemorySize() {
+            return size;
+        }
+    }
+
+    private static class AsyncSpillable implements Spillable {
+        long size = 0;
+        int spills = 0;
+
+        @Override
+        public long spill() {
+            // only frees its memory later, like POPartialAgg
+            spills++;
+            return 0;
+        }
+
+        @Override
+        public long getMemorySize() {
+            return size;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        MemoryBroker.configure(new Properties());
+    }
+
+    @Test
+    public void testSpillLargest() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(PigConfiguration.PROP_MEMORY_BROKER, "true");
+        props.setProperty(PigConfiguration.PROP_MEMORY_BROKER_POOL, "0.01");
+        props.setProperty("pig.spill.size.threshold", "1");
+        MemoryBroker.configure(props);
+        assertTrue(MemoryBroker.isEnabled());
+
+        MemoryBroker broker = MemoryBroker.getInstance();
+        long pool = broker.getPool();
+        long reserved = broker.getReserved();
+
+        TestSpillable small = new TestSpillable();
+        small.size = pool / 2 - reserved;
+        broker.register(small);
+        assertEquals(pool / 2, broker.getReserved());
+
+        // the pool is exceeded, only the largest one is needed to get below it
+        TestSpillable large = new TestSpillable();
+        large.size = pool / 2 + 1;
+        broker.register(large);
+        broker.awaitSpills();
+        assertTrue(large.spilled);
+        assertFalse(small.spilled);
+        assertEquals(pool / 2, broker.getReserved());
+
+        MemoryBroker.ConsumerUsage usage = broker.getUsage().get(TestSpillable.class.getSimpleName());
+        assertEquals(2, usage.getConsumers());
+        assertEquals(1, usage.getSpills());
+        assertEquals(pool / 2 + 1, usage.getSpilledBytes());
+    }
+
+    @Test
+    public void testAsyncSpillNotRepeated() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(PigConfiguration.PROP_MEMORY_BROKER, "true");
+        props.setProperty(PigConfiguration.PROP_MEMORY_BROKER_POOL, "0.01");
+        props.setProperty("pig.spill.size.threshold", "1");
+        MemoryBroker.configure(props);
+
+        MemoryBroker broker = MemoryBroker.getInstance();
+        long pool = broker.getPool();
+
+        AsyncSpillable async = new AsyncSpillable();
+        async.size = pool + 1;
+        broker.register(async);
+        broker.awaitSpills();
+        assertEquals(1, async.spills);
+
+        // still growing until it gets to flush, its reservation is counted as released
+        async.size = pool + 2;
+        broker.update(async, async.size);
+        broker.awaitSpills();
+        broker.rebalance();
+        assertEquals(1, async.spills);
+
+        // memory freed, it can be asked to spill again
+        async.size = 0;
+        broker.update(async, async.size);
+        async.size = pool + 1;
+        broker.update(async, async.size);
+        broker.awaitSpills();
+        assertEquals(2, async.spills);
+        assertEquals(pool + 2, broker.getUsage().get(AsyncSpillable.class.getSimpleName()).getSpilledBytes());
+    }
+
+    @Test
+    public void testPoolFollowsConfiguration() {
+        Properties props = new Properties();
+        props.setProperty(PigConfiguration.PROP_MEMORY_BROKER, "true");
+        props.setProperty(PigConfiguration.PROP_MEMORY_BROKER_POOL, "0.01");
+        MemoryBroker.configure(props);
+        long pool = MemoryBroker.getInstance().getPool();
+
+        props.setProperty(PigConfiguration.PROP_MEMORY_BROKER_POOL, "0.02");
+        MemoryBroker.configure(props);
+        assertTrue(MemoryBroker.getInstance().getPool() > pool);
+    }
+
+    @Test
+    public void testSpillOutsideCallerLocks() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(PigConfiguration.PROP_MEMORY_BROKER, "true");
+        props.setProperty(PigConfiguration.PROP_MEMORY_BROKER_POOL, "0.01");
+        props.setProperty("pig.spill.size.threshold", "1");
+        MemoryBroker.configure(props);
+
+        MemoryBroker broker = MemoryBroker.getInstance();
+        final Object lock = new Object();
+        TestSpillable locked = new TestSpillable() {
+            @Override
+            public long spill() {
+                synchronized (lock) {
+                    return super.spill();
+                }
+            }
+        };
+        // a bag reporting its size while holding a lock the spill needs
+        synchronized (lock) {
+            locked.size = broker.getPool() + 1;
+            broker.update(locked, locked.size);
+            assertFalse(locked.spilled);
+        }
+        broker.awaitSpills();
+        assertTrue(locked.spilled);
+    }
+}
@@ -35,7 +35,10 @@ import org.apache.pig.backend.hadoop.executionengine.physicalLayer.expressionOpe
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.expressionOperators.POUserFunc;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.plans.PhysicalPlan;
 import org.apache.pig.backend.hadoop.executionengine.physicalLayer.relationalOperators.POPartialAgg;
+import org.apache.pig.builtin.COUNT;
+import org.apache.pig.builtin.IntMin;
 import org.apache.pig.builtin.IntSum;
+import org.apache.pig.builtin.LongAvg;
 import org.apache.pig.data.DataType;
 import org.apache.pig.data.Tuple;
 import org.apache.pig.impl.plan.PlanException;
@@ -92,6 +95,25 @@ public class TestPOPartialAgg {
         partAggOp.setValuePlans(valuePlans);
     }
 
+    private void setValuePlans(Class<?>... intermediates) throws PlanException {
+        List<PhysicalPlan> valuePlans = new ArrayList<PhysicalPlan>();
+        for (int i = 0; i < intermediates.length; i++) {
+            PhysicalPlan valPlan = new PhysicalPlan();
+            POProject projVal = new POProject(GenPhyOp.getOK(), -1, i + 1);
+            projVal.setResultType(DataType.BAG);
+            valPlan.add(projVal);
+
+            List<PhysicalOperator> udfInps = new ArrayList<PhysicalOperator>();
+            udfInps.add(projVal);
+            POUserFunc udf = new POUserFunc(GenPhyOp.getOK(), -1, udfInps,
+                    new FuncSpec(intermediates[i].getName()));
+            valPlan.add(udf);
+            valPlan.connect(projVal, udf);
+            valuePlans.add(valPlan);
+        }
+        partAggOp.setValuePlans(valuePlans);
+    }
+
     @After
     public void tearDown() throws Exception {
     }
@@ -217,6 +239,24 @@ public class TestPOPartialAgg {
         checkInputAndOutput(inputTups, outputTups, false);
     }
 
+    @Test
+    public void testPartialMultiFunctions() throws Exception {
+        // input tuple has key, and COUNT, AVG and MIN Init outputs
+        setValuePlans(COUNT.Intermediate.class, LongAvg.Intermediate.class,
+                IntMin.Intermediate.class);
+        String[] inputTups = { "(1,(1L),(2L,1L),(3))", "(1,(1L),(null,1L),(1))",
+                "(2,(1L),(5L,1L),(null))" };
+        String[] outputTups = { "(1,(2L),(2L,2L),(1))", "(2,(1L),(5L,1L),(null))" };
+        checkInputAndOutput(inputTups, outputTups, false);
+    }
+
+    @Test
+    public void testPartialUnexpectedKeyType() throws Exception {
+        // the key isn't of the declared type, aggregation goes on with the maps
+        String[] inputTups = { "(1,(1L))", "(2L,(2L))", "(1,(2L))" };
+        String[] outputTups = { "(1,(3L))", "(2L,(2L))" };
+        checkInputAndOutput(inputTups, outputTups, false);
+    }
 
     /**
      * run the plan on inputTups and check if output matches outputTups if